@@ -17,24 +17,37 @@
  */
 package org.waarp.common.database;
 
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.util.HashedWheelTimer;
 import io.netty.util.Timer;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.common.database.model.DbModel;
+import org.waarp.common.database.model.DbModelAbstract;
 import org.waarp.common.database.model.DbModelFactory;
 import org.waarp.common.database.model.DbType;
 import org.waarp.common.database.model.EmptyDbModel;
+import org.waarp.common.json.JsonHandler;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.UUID;
 import org.waarp.common.utility.WaarpThreadFactory;
 
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
 /**
  * Class for access to Database
  * 
@@ -99,6 +112,126 @@ public class DbAdmin {
     protected static final Timer dbSessionTimer = new HashedWheelTimer(new WaarpThreadFactory("TimerClose"),
             50, TimeUnit.MILLISECONDS, 1024);
 
+    /**
+     * Read replicas for read only DbSessions
+     */
+    private final List<DbReplica> replicas = new CopyOnWriteArrayList<DbReplica>();
+    /**
+     * Round robin between replicas
+     */
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    /**
+     * Read only DbSessions routed to the primary since no replica was usable
+     */
+    private final AtomicLong readOnlyOnPrimary = new AtomicLong();
+    /**
+     * Own thread for the periodic health check of replicas, since checks may block on connect
+     * (lazily created)
+     */
+    private ScheduledExecutorService replicaCheck = null;
+    /**
+     * Circuit breaker on the connections of this DbAdmin
+     */
+    private final DbCircuitBreaker circuitBreaker = new DbCircuitBreaker();
+    /**
+     * Retry policy for transient failures
+     */
+    private volatile DbRetryPolicy retryPolicy = new DbRetryPolicy();
+    /**
+     * Executor of asynchronous operations (lazily created)
+     */
+    private volatile DbAsyncExecutor asyncExecutor = null;
+
+    /**
+     * Periodic health check of replicas
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class ReplicaCheckTask implements Runnable {
+        private final DbAdmin admin;
+
+        private ReplicaCheckTask(DbAdmin admin) {
+            this.admin = admin;
+        }
+
+        public void run() {
+            try {
+                admin.checkReplicas();
+            } catch (Throwable e) {
+                // keep the periodic check alive
+                logger.warn("Replica check in error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the circuit breaker on the connections of this DbAdmin
+     */
+    public DbCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the retry policy for transient failures
+     */
+    public DbRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy
+     *            the retry policy for transient failures to set
+     */
+    public void setRetryPolicy(DbRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * @return the executor of asynchronous operations on this database, sized to its pool
+     */
+    public DbAsyncExecutor getAsyncExecutor() {
+        DbAsyncExecutor executor = asyncExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = asyncExecutor;
+                if (executor == null) {
+                    DbConnectionPool pool = null;
+                    if (dbModel instanceof DbModelAbstract) {
+                        pool = ((DbModelAbstract) dbModel).getPool();
+                    }
+                    executor = DbAsyncExecutor.forPool(pool);
+                    asyncExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Enable or disable the group commit on the session of this DbAdmin, shared by many threads:
+     * commits requested within delay ms are issued as one commit (see DbGroupCommit).
+     * 
+     * @param delay
+     *            max delay in ms to wait for other commits, 0 or less for strict mode (one commit
+     *            per call, the default)
+     * @param maxSize
+     *            number of pending commits triggering the commit before the delay (0 or less for
+     *            DbConstant.GROUPCOMMITMAXSIZE)
+     */
+    public void setGroupCommit(long delay, int maxSize) {
+        DbSession dbSession = getSession();
+        if (dbSession == null) {
+            return;
+        }
+        if (delay <= 0) {
+            dbSession.setGroupCommit(null);
+            return;
+        }
+        dbSession.setGroupCommit(new DbGroupCommit(delay,
+                maxSize > 0 ? maxSize : DbConstant.GROUPCOMMITMAXSIZE));
+    }
+
     /**
      * @return the session
      */
@@ -216,12 +349,16 @@ public class DbAdmin {
             throw new WaarpDatabaseNoConnectionException(
                     "Cannot find database driver");
         }
+        int retries = retryPolicy.getMaxRetries();
         if (write) {
-            for (int i = 0; i < RETRYNB; i++) {
+            for (int i = 0; i < retries; i++) {
                 try {
                     setSession(new DbSession(this, false));
                 } catch (WaarpDatabaseNoConnectionException e) {
                     logger.warn("Attempt of connection in error: " + i, e);
+                    if (i + 1 < retries && !retryPolicy.backoff(i)) {
+                        break;
+                    }
                     continue;
                 }
                 isReadOnly = false;
@@ -232,11 +369,14 @@ public class DbAdmin {
                 return;
             }
         } else {
-            for (int i = 0; i < RETRYNB; i++) {
+            for (int i = 0; i < retries; i++) {
                 try {
                     setSession(new DbSession(this, true));
                 } catch (WaarpDatabaseNoConnectionException e) {
                     logger.warn("Attempt of connection in error: " + i, e);
+                    if (i + 1 < retries && !retryPolicy.backoff(i)) {
+                        break;
+                    }
                     continue;
                 }
                 isReadOnly = true;
@@ -268,6 +408,125 @@ public class DbAdmin {
         passwd = null;
     }
 
+    /**
+     * Add a read replica of the same type of database: read only DbSessions will be routed to the
+     * healthy replicas, and to the primary if none is usable.
+     * 
+     * @param server
+     * @param user
+     * @param passwd
+     * @param maxLag
+     *            maximum replication lag in ms (0 for no bound, only used if the DbModel can give
+     *            the lag)
+     * @return the new replica
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public DbReplica addReplica(String server, String user, String passwd, long maxLag)
+            throws WaarpDatabaseNoConnectionException {
+        DbConnectionPool pool = null;
+        String lagRequest = null;
+        if (dbModel instanceof DbModelAbstract) {
+            pool = ((DbModelAbstract) dbModel).createReplicaPool(server, user, passwd);
+            lagRequest = ((DbModelAbstract) dbModel).getReplicaLagRequest();
+        }
+        DbReplica replica = new DbReplica(server, user, passwd, pool, lagRequest, maxLag);
+        if (pool != null) {
+            pool.registerMBean(typeDriver.name() + "-replica" + replicas.size());
+        }
+        replica.check();
+        replicas.add(replica);
+        scheduleReplicaCheck();
+        return replica;
+    }
+
+    /**
+     * Start the periodic health check of replicas on its own thread, not on the shared timer of
+     * DbSessions, such that an unreachable replica cannot delay other timeouts
+     */
+    private synchronized void scheduleReplicaCheck() {
+        if (replicaCheck == null) {
+            replicaCheck = Executors.newSingleThreadScheduledExecutor(
+                    new WaarpThreadFactory("DbReplicaCheck", true));
+            replicaCheck.scheduleWithFixedDelay(new ReplicaCheckTask(this),
+                    DbConstant.REPLICACHECKDELAY, DbConstant.REPLICACHECKDELAY,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the periodic health check of replicas
+     */
+    private synchronized void stopReplicaCheck() {
+        if (replicaCheck != null) {
+            replicaCheck.shutdownNow();
+            replicaCheck = null;
+        }
+    }
+
+    /**
+     * Check the health of all replicas
+     */
+    public void checkReplicas() {
+        for (DbReplica replica : replicas) {
+            replica.check();
+        }
+    }
+
+    /**
+     * 
+     * @return the read replicas
+     */
+    public List<DbReplica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * 
+     * @return a connection to a healthy replica, or null if none is usable (primary to be used)
+     */
+    Connection getReplicaConnection() {
+        int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = (nextReplica.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            DbReplica replica;
+            try {
+                replica = replicas.get((start + i) % size);
+            } catch (IndexOutOfBoundsException e) {
+                break;
+            }
+            Connection conn = replica.getConnection();
+            if (conn != null) {
+                return conn;
+            }
+        }
+        readOnlyOnPrimary.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 
+     * @return the metrics of all routes (primary and replicas) as Json
+     */
+    public ObjectNode getRoutesSnapshot() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        ObjectNode primary = JsonHandler.createObjectNode();
+        primary.put("server", server);
+        primary.put("readOnlyFailover", readOnlyOnPrimary.get());
+        ObjectNode pool = getPoolSnapshot();
+        if (pool != null) {
+            primary.set("pool", pool);
+        }
+        node.set("primary", primary);
+        ArrayNode array = node.putArray("replicas");
+        for (DbReplica replica : replicas) {
+            array.add(replica.toJson());
+        }
+        return node;
+    }
+
     /**
      * Close the underlying session. Can be call even for connection given from the constructor
      * DbAdmin(Connection, boolean).
@@ -280,6 +539,15 @@ public class DbAdmin {
             getSession().forceDisconnect();
             setSession(null);
         }
+        stopReplicaCheck();
+        for (DbReplica replica : replicas) {
+            replica.close();
+        }
+        replicas.clear();
+        DbAsyncExecutor executor = asyncExecutor;
+        if (executor != null) {
+            executor.shutdown();
+        }
         setActive(false);
     }
 
@@ -342,6 +610,16 @@ public class DbAdmin {
      */
     private static ConcurrentHashMap<UUID, DbSession> listConnection = new ConcurrentHashMap<UUID, DbSession>();
 
+    /**
+     * Owners of the Connections of listConnection, if leak detection is enabled
+     */
+    private static ConcurrentHashMap<UUID, DbConnectionOwner> listOwner = new ConcurrentHashMap<UUID, DbConnectionOwner>();
+
+    /**
+     * Health check of the Connections of listConnection
+     */
+    private static DbHealthCheck healthCheck = null;
+
     /**
      * Increment nb of Http Connection
      */
@@ -368,6 +646,10 @@ public class DbAdmin {
      */
     public static void addConnection(UUID id, DbSession session) {
         listConnection.put(id, session);
+        DbConnectionOwner owner = DbConnectionOwner.checkout();
+        if (owner != null) {
+            listOwner.put(id, owner);
+        }
     }
 
     /**
@@ -378,6 +660,39 @@ public class DbAdmin {
      */
     public static void removeConnection(UUID id) {
         listConnection.remove(id);
+        listOwner.remove(id);
+    }
+
+    /**
+     * Report the DbSessions opened for longer than the leak threshold (DbConnectionOwner), each one
+     * being logged once with its call site if sampled. Sessions are never closed by this check
+     * (see DbConnectionPool.checkLeaks() for pooled connections).
+     * 
+     * @return the number of DbSessions currently considered as leaked
+     */
+    public static int checkLeakedSessions() {
+        long now = System.currentTimeMillis();
+        int leaked = 0;
+        for (Entry<UUID, DbConnectionOwner> entry : listOwner.entrySet()) {
+            if (entry.getValue().isLeaked(now)) {
+                leaked++;
+                entry.getValue().report(logger, "DbSession " + entry.getKey());
+            }
+        }
+        return leaked;
+    }
+
+    /**
+     * 
+     * @return the owners of the opened DbSessions by internal id, as Json (only if leak detection
+     *         is enabled)
+     */
+    public static ObjectNode getSessionOwners() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        for (Entry<UUID, DbConnectionOwner> entry : listOwner.entrySet()) {
+            node.set(entry.getKey().toString(), entry.getValue().toJson());
+        }
+        return node;
     }
 
     /**
@@ -401,6 +716,8 @@ public class DbAdmin {
             }
         }
         listConnection.clear();
+        listOwner.clear();
+        stopHealthCheck();
         for (DbModel dbModel : DbModelFactory.dbModels) {
             if (dbModel != null) {
                 dbModel.releaseResources();
@@ -410,16 +727,68 @@ public class DbAdmin {
     }
 
     /**
-     * Check all database connections and try to reopen them if disActive
+     * Check all database connections and try to reopen them if disActive.<br>
+     * <br>
+     * Connections are checked in parallel (DbConstant.HEALTHCHECKPARALLELISM at most), skipping
+     * those validated or checked less than DbConstant.HEALTHCHECKSKIPDELAY ms ago.
      */
     public static void checkAllConnections() {
-        for (DbSession session : listConnection.values()) {
-            try {
-                session.checkConnection();
-            } catch (WaarpDatabaseNoConnectionException e) {
-                logger.error("Database Connection cannot be reinitialized");
+        getHealthCheck().checkAll(listConnection.values());
+    }
+
+    /**
+     * 
+     * @return the health check of all database connections
+     */
+    public static synchronized DbHealthCheck getHealthCheck() {
+        if (healthCheck == null) {
+            healthCheck = new DbHealthCheck(DbConstant.HEALTHCHECKPARALLELISM,
+                    DbConstant.HEALTHCHECKSKIPDELAY);
+        }
+        return healthCheck;
+    }
+
+    /**
+     * Start the periodic health check of all database connections, replacing the current one
+     * 
+     * @param delay
+     *            delay in ms between 2 checks
+     * @param parallelism
+     *            max number of connections checked at the same time
+     * @param skipDelay
+     *            delay in ms during which a connection validated or checked is not checked again
+     * @return the health check
+     */
+    public static synchronized DbHealthCheck startHealthCheck(long delay, int parallelism,
+            long skipDelay) {
+        stopHealthCheck();
+        healthCheck = new DbHealthCheck(parallelism, skipDelay);
+        healthCheck.start(listConnection.values(), dbSessionTimer, delay);
+        return healthCheck;
+    }
+
+    /**
+     * Stop the health check of all database connections
+     */
+    public static synchronized void stopHealthCheck() {
+        if (healthCheck != null) {
+            healthCheck.stop();
+            healthCheck = null;
+        }
+    }
+
+    /**
+     * 
+     * @return a snapshot of the metrics of the connection pool as Json, null if no pool is used
+     */
+    public ObjectNode getPoolSnapshot() {
+        if (dbModel instanceof DbModelAbstract) {
+            DbConnectionPool pool = ((DbModelAbstract) dbModel).getPool();
+            if (pool != null) {
+                return pool.getMonitor().toJson();
             }
         }
+        return null;
     }
 
     /**
@@ -0,0 +1,246 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Executor of blocking database operations (AbstractDbData, DbRequest, DbPreparedStatement)
+ * returning DbFutures, such that callers on I/O threads (as Netty event loops) never block on
+ * JDBC.<br>
+ * <br>
+ * The number of threads is bounded by the number of connections of the pool (if any), since more
+ * threads would only wait for a connection, and the queue of waiting operations is bounded: when
+ * it is full, the submitted operation fails immediately (backpressure) instead of blocking the
+ * caller.<br>
+ * <br>
+ * The deadline of the submitting thread (see DbDeadline) also applies to the operation, including
+ * the time spent waiting for a thread.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbAsyncExecutor {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbAsyncExecutor.class);
+
+    /**
+     * Executor used for sessions without DbAdmin
+     */
+    private static volatile DbAsyncExecutor defaultExecutor = null;
+
+    private final ThreadPoolExecutor executor;
+    private final int nbThreads;
+    private final int queueSize;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * 
+     * @param nbThreads
+     *            max number of operations running at the same time
+     * @param queueSize
+     *            max number of operations waiting for a thread
+     */
+    public DbAsyncExecutor(int nbThreads, int queueSize) {
+        this.nbThreads = Math.max(1, nbThreads);
+        this.queueSize = Math.max(1, queueSize);
+        executor = new ThreadPoolExecutor(this.nbThreads, this.nbThreads, 60,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.queueSize),
+                new WaarpThreadFactory("DbAsync", true));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 
+     * @param pool
+     *            the pool of connections (may be null)
+     * @return a new executor with DbConstant.ASYNCTHREADS threads, limited to the number of
+     *         connections of the pool, and DbConstant.ASYNCQUEUESIZE waiting operations
+     */
+    public static DbAsyncExecutor forPool(DbConnectionPool pool) {
+        int nb = DbConstant.ASYNCTHREADS;
+        if (pool != null && pool.getMaxConnections() > 0 && pool.getMaxConnections() < nb) {
+            nb = pool.getMaxConnections();
+        }
+        return new DbAsyncExecutor(nb, DbConstant.ASYNCQUEUESIZE);
+    }
+
+    /**
+     * 
+     * @param session
+     *            may be null
+     * @return the executor of the DbAdmin of this session, or a shared default one
+     */
+    public static DbAsyncExecutor getExecutor(DbSession session) {
+        if (session != null && session.getAdmin() != null) {
+            return session.getAdmin().getAsyncExecutor();
+        }
+        DbAsyncExecutor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (DbAsyncExecutor.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = forPool(null);
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Submit an operation
+     * 
+     * @param task
+     * @return the future of this operation, failed with a WaarpDatabaseNoConnectionException if
+     *         the executor is saturated or shutdown
+     */
+    public <V> DbFuture<V> submit(final Callable<V> task) {
+        final DbFuture<V> future = new DbFuture<V>();
+        final long deadline = DbDeadline.get();
+        submitted.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        // cancelled while waiting
+                        return;
+                    }
+                    long previous = DbDeadline.attach(deadline);
+                    try {
+                        future.setResult(task.call());
+                    } catch (Throwable e) {
+                        failed.incrementAndGet();
+                        future.setFailure(e);
+                    } finally {
+                        DbDeadline.restore(previous);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.debug("Database operation rejected: " + executor.getQueue().size() +
+                    " waiting");
+            future.setFailure(new WaarpDatabaseNoConnectionException(
+                    "Database executor saturated", e));
+        }
+        return future;
+    }
+
+    /**
+     * @return True if no more operation can be submitted without being rejected
+     */
+    public boolean isSaturated() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * @return the number of operations waiting for a thread
+     */
+    public int getPending() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of operations currently running
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of threads
+     */
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * @return the max number of operations waiting for a thread
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @return the number of submitted operations
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of operations rejected since saturated
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of operations in error
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stop the executor: waiting operations are still executed, new ones are rejected
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 
+     * @return the state of this executor as Json
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("threads", nbThreads);
+        node.put("active", getActive());
+        node.put("pending", getPending());
+        node.put("queueSize", queueSize);
+        node.put("submitted", getSubmittedCount());
+        node.put("rejected", getRejectedCount());
+        node.put("failed", getFailedCount());
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
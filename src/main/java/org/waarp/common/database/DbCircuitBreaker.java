@@ -0,0 +1,198 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Circuit breaker on the connections to a database (one per DbAdmin).<br>
+ * <br>
+ * After failureThreshold consecutive connection failures, the circuit is open: new connections
+ * fail immediately during openDelay ms, such that threads do not stampede the database while it
+ * recovers. Then one connection at a time is allowed as a probe (half open): its success closes
+ * the circuit, its failure opens it again.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbCircuitBreaker {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbCircuitBreaker.class);
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDelay;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt = 0;
+    private volatile long probeStart = 0;
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Circuit breaker using DbConstant.CIRCUITBREAKERTHRESHOLD and
+     * DbConstant.CIRCUITBREAKEROPENDELAY
+     */
+    public DbCircuitBreaker() {
+        this(DbConstant.CIRCUITBREAKERTHRESHOLD, DbConstant.CIRCUITBREAKEROPENDELAY);
+    }
+
+    /**
+     * 
+     * @param failureThreshold
+     *            number of consecutive failures opening the circuit (0 to disable the circuit
+     *            breaker)
+     * @param openDelay
+     *            delay in ms during which the circuit stays open before a probe
+     */
+    public DbCircuitBreaker(int failureThreshold, long openDelay) {
+        this.failureThreshold = failureThreshold;
+        this.openDelay = openDelay;
+    }
+
+    /**
+     * 
+     * @return True if a connection may be tried now
+     */
+    public boolean allowRequest() {
+        State current = state;
+        if (failureThreshold <= 0 || current == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (current == State.OPEN && now < openedAt + openDelay) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        // one probe at a time, a lost probe being replaced after openDelay
+        if (probing.compareAndSet(false, true) || now > probeStart + openDelay) {
+            probing.set(true);
+            probeStart = now;
+            state = State.HALF_OPEN;
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Record a successful connection
+     */
+    public void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state != State.CLOSED) {
+                    logger.warn("Database available again: circuit closed");
+                    state = State.CLOSED;
+                }
+            }
+            probing.set(false);
+        }
+    }
+
+    /**
+     * Record a failed connection
+     */
+    public void onFailure() {
+        int nb = consecutiveFailures.incrementAndGet();
+        if (failureThreshold <= 0) {
+            return;
+        }
+        State current = state;
+        if (current == State.HALF_OPEN || (current == State.CLOSED && nb >= failureThreshold)) {
+            synchronized (this) {
+                if (state != State.OPEN) {
+                    logger.warn("Database unavailable after " + nb
+                            + " failures: circuit open for " + openDelay + " ms");
+                    openedAt = System.currentTimeMillis();
+                    state = State.OPEN;
+                    opened.incrementAndGet();
+                }
+            }
+            probing.set(false);
+        }
+    }
+
+    /**
+     * 
+     * @return the current state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 
+     * @return the number of consecutive failures
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * 
+     * @return the number of times the circuit was opened
+     */
+    public long getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * 
+     * @return the number of connections refused while the circuit was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * 
+     * @return the Json representation of this circuit breaker
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("state", state.name());
+        node.put("consecutiveFailures", getConsecutiveFailures());
+        node.put("opened", getOpenedCount());
+        node.put("rejected", getRejectedCount());
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
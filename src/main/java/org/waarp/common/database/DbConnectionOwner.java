@@ -0,0 +1,185 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Owner of a connection (pooled connection checkout or DbSession), for leak detection: thread,
+ * time of checkout and, for sampled checkouts, the stack of the call site.<br>
+ * <br>
+ * Leak detection is disabled by default (threshold 0): no owner is then recorded.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbConnectionOwner {
+    private static volatile long leakThreshold = DbConstant.LEAKTHRESHOLD;
+    private static volatile int stackSampling = DbConstant.LEAKSTACKSAMPLING;
+    private static volatile boolean reclaim = DbConstant.LEAKRECLAIM;
+    private static final AtomicLong checkouts = new AtomicLong();
+
+    private final String thread;
+    private final long since;
+    private final Throwable stack;
+    private volatile boolean reported = false;
+
+    private DbConnectionOwner(String thread, long since, Throwable stack) {
+        this.thread = thread;
+        this.since = since;
+        this.stack = stack;
+    }
+
+    /**
+     * 
+     * @param thresholdMs
+     *            time in ms from which a connection still in use is considered as leaked (0 to
+     *            disable leak detection)
+     * @param sampling
+     *            the stack of the call site is recorded once every sampling checkouts (1 for all,
+     *            0 for none)
+     * @param reclaimLeaked
+     *            True to close forcibly leaked pooled connections
+     */
+    public static void setLeakDetection(long thresholdMs, int sampling, boolean reclaimLeaked) {
+        stackSampling = sampling;
+        reclaim = reclaimLeaked;
+        leakThreshold = thresholdMs;
+    }
+
+    /**
+     * 
+     * @return the time in ms from which a connection is considered as leaked (0 if disabled)
+     */
+    public static long getLeakThreshold() {
+        return leakThreshold;
+    }
+
+    /**
+     * 
+     * @return True if leaked pooled connections are closed forcibly
+     */
+    public static boolean isReclaim() {
+        return reclaim;
+    }
+
+    /**
+     * 
+     * @return the owner of a connection taken now by the current thread, null if leak detection is
+     *         disabled
+     */
+    static DbConnectionOwner checkout() {
+        if (leakThreshold <= 0) {
+            return null;
+        }
+        Thread current = Thread.currentThread();
+        long now = System.currentTimeMillis();
+        int sampling = stackSampling;
+        Throwable stack = null;
+        if (sampling > 0 && checkouts.getAndIncrement() % sampling == 0) {
+            stack = new Throwable("Connection taken by " + current.getName());
+        }
+        return new DbConnectionOwner(current.getName(), now, stack);
+    }
+
+    /**
+     * 
+     * @param now
+     * @return True if held longer than the leak threshold
+     */
+    boolean isLeaked(long now) {
+        long threshold = leakThreshold;
+        return threshold > 0 && now - since > threshold;
+    }
+
+    /**
+     * Log the leak once
+     * 
+     * @param logger
+     * @param what
+     *            the leaked resource
+     * @return True if this is the first report of this leak
+     */
+    boolean report(WaarpLogger logger, String what) {
+        if (reported) {
+            return false;
+        }
+        reported = true;
+        String message = "Possible leak of " + what + " held for " +
+                (System.currentTimeMillis() - since) + " ms by " + thread;
+        if (stack != null) {
+            logger.warn(message, stack);
+        } else {
+            logger.warn(message + " (stack not sampled)");
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @return the name of the owner thread
+     */
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * 
+     * @return the time of checkout
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * 
+     * @return the stack of the call site, or null if not sampled
+     */
+    public Throwable getStack() {
+        return stack;
+    }
+
+    /**
+     * 
+     * @return the Json representation of this owner
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("thread", thread);
+        node.put("heldMs", System.currentTimeMillis() - since);
+        node.put("leaked", isLeaked(System.currentTimeMillis()));
+        if (stack != null) {
+            StringBuilder builder = new StringBuilder();
+            for (StackTraceElement element : stack.getStackTrace()) {
+                builder.append(element).append('\n');
+            }
+            node.put("stack", builder.toString());
+        }
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
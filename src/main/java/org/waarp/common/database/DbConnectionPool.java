@@ -17,21 +17,30 @@
  */
 package org.waarp.common.database;
 
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayDeque;
-import java.util.Iterator;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
 import javax.sql.ConnectionPoolDataSource;
 import javax.sql.PooledConnection;
 
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
 /**
  * 
  * A simple standalone JDBC connection pool manager.
@@ -40,6 +49,14 @@ import javax.sql.PooledConnection;
  * <p/>
  * Nothe that JDBC4 is needed and isValid() must be implemented (not yet in PostGre in April 2012)
  * <p/>
+ * The checkout and return paths are lock-free: idle connections are kept in a concurrent map and
+ * claimed through a compare-and-set on their state, the last connection used by a thread being
+ * tried first. Only the semaphore (if a limit is set) may block a caller.
+ * <p/>
+ * A minimum of idle connections may be kept ready: they are created in background (at startup,
+ * by the check task and each time a checkout finds no idle connection), never by the caller
+ * itself except when the pool is empty.
+ * <p/>
  * 
  * @author Christian d'Heureuse, Inventec Informatik AG, Zurich, Switzerland<br>
  *         Multi-licensed: EPL/LGPL/MPL.
@@ -48,7 +65,13 @@ import javax.sql.PooledConnection;
  * 
  */
 public class DbConnectionPool {
-    private ConnectionPoolDataSource dataSource;
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbConnectionPool.class);
+
+    private volatile ConnectionPoolDataSource dataSource;
 
     private int maxConnections;
 
@@ -59,22 +82,76 @@ public class DbConnectionPool {
     // private PrintWriter logWriter;
     private Semaphore semaphore;
 
-    private Queue<Con> recycledConnections;
+    /**
+     * All pooled connections known by this pool, whatever their state
+     */
+    private final ConcurrentHashMap<PooledConnection, Con> connections =
+            new ConcurrentHashMap<PooledConnection, Con>();
+
+    /**
+     * Last connection used by the current thread, tried first on next checkout
+     */
+    private final ThreadLocal<WeakReference<Con>> lastUsed = new ThreadLocal<WeakReference<Con>>();
 
-    private int activeConnections;
+    private final AtomicInteger activeConnections = new AtomicInteger();
 
     private PoolConnectionEventListener poolConnectionEventListener;
 
-    private boolean isDisposed;
+    private volatile boolean isDisposed;
+
+    private volatile DbValidationPolicy validationPolicy = DbConstant.VALIDATIONPOLICY;
+
+    private volatile long validationIdleDelay = DbConstant.VALIDATIONIDLEDELAY;
+
+    /**
+     * Backoff between 2 attempts to create a valid connection
+     */
+    private volatile DbRetryPolicy retryPolicy = new DbRetryPolicy();
+
+    private final DbConnectionPoolMonitor monitor = new DbConnectionPoolMonitor(this);
+
+    private volatile int minIdle = DbConstant.MINIDLECONNECTIONS;
+
+    /**
+     * Number of connections being created in background
+     */
+    private final AtomicInteger pendingCreations = new AtomicInteger();
+
+    /**
+     * Executor creating connections in background (lazily created)
+     */
+    private ThreadPoolExecutor warmUpExecutor;
 
     static class Con {
+        static final int IDLE = 0;
+        static final int IN_USE = 1;
+        static final int RESERVED = 2;
+        static final int REMOVED = -1;
+
         final PooledConnection pooledCon;
 
-        long lastRecyle;
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+
+        volatile long lastRecyle;
+
+        /**
+         * Last time this connection was known as valid
+         */
+        volatile long lastValid;
+
+        /**
+         * Owner of the current checkout if leak detection is enabled
+         */
+        volatile DbConnectionOwner owner;
 
         Con(PooledConnection pooledCon) {
             this.pooledCon = pooledCon;
             lastRecyle = System.currentTimeMillis();
+            lastValid = lastRecyle;
+        }
+
+        boolean compareAndSet(int expect, int update) {
+            return state.compareAndSet(expect, update);
         }
 
         @Override
@@ -123,41 +200,57 @@ public class DbConnectionPool {
         }
 
         public void run() {
-            Iterator<Con> conIterator = pool.recycledConnections.iterator();
+            if (pool.isDisposed) {
+                cancel();
+                return;
+            }
             long now = System.currentTimeMillis();
-            while (conIterator.hasNext()) {
-                Con c = conIterator.next();
-                if (c.lastRecyle + pool.timeOutForceClose < now) {
-                    conIterator.remove();
-                    pool.closeConnectionNoEx(c.pooledCon);
-                } else {
-                    try {
-                        if (!c.pooledCon.getConnection().isValid(DbConstant.VALIDTESTDURATION)) {
-                            conIterator.remove();
-                            pool.closeConnectionNoEx(c.pooledCon);
-                        }
-                    } catch (SQLException e) {
-                        conIterator.remove();
-                        pool.closeConnectionNoEx(c.pooledCon);
+            int idle = pool.getIdleConnections();
+            for (Con c : pool.connections.values()) {
+                // only idle connections are checked, reserving them meanwhile
+                if (!c.compareAndSet(Con.IDLE, Con.RESERVED)) {
+                    continue;
+                }
+                if (c.lastRecyle + pool.timeOutForceClose < now && idle > pool.minIdle) {
+                    idle--;
+                    pool.removeConnection(c);
+                    continue;
+                }
+                try {
+                    if (!c.pooledCon.getConnection().isValid(DbConstant.VALIDTESTDURATION)) {
+                        pool.monitor.invalidated.incrementAndGet();
+                        idle--;
+                        pool.removeConnection(c);
+                        continue;
                     }
+                } catch (SQLException e) {
+                    pool.monitor.invalidated.incrementAndGet();
+                    idle--;
+                    pool.removeConnection(c);
+                    continue;
                 }
+                c.lastValid = System.currentTimeMillis();
+                pool.releaseToIdle(c);
             }
-            timer.schedule(this, delay);
+            pool.checkLeaks();
+            pool.ensureMinIdle();
         }
 
     }
 
     /**
-     * Release all idle connections
+     * Release all idle connections (too old), keeping the minimum number of idle connections
      */
-    public synchronized void freeIdleConnections() {
-        Iterator<Con> conIterator = recycledConnections.iterator();
+    public void freeIdleConnections() {
         long now = System.currentTimeMillis();
-        while (conIterator.hasNext()) {
-            Con c = conIterator.next();
-            if (c.lastRecyle + timeOutForceClose < now) {
-                conIterator.remove();
-                closeConnectionNoEx(c.pooledCon);
+        int idle = getIdleConnections();
+        for (Con c : connections.values()) {
+            if (idle <= minIdle) {
+                break;
+            }
+            if (c.lastRecyle + timeOutForceClose < now && c.compareAndSet(Con.IDLE, Con.RESERVED)) {
+                idle--;
+                removeConnection(c);
             }
         }
     }
@@ -197,7 +290,7 @@ public class DbConnectionPool {
     public DbConnectionPool(ConnectionPoolDataSource dataSource, Timer timer, long delay) {
         this(dataSource, 0, (int) (delay / 1000));
         timer.schedule(new TimerTaskCheckConnections(timer, delay, this),
-                delay);
+                delay, delay);
     }
 
     /**
@@ -237,14 +330,168 @@ public class DbConnectionPool {
             }
             semaphore = new Semaphore(maxConnections, true);
         }
-        recycledConnections = new ArrayDeque<Con>();
         poolConnectionEventListener = new PoolConnectionEventListener();
+        if (minIdle > 0) {
+            prefill();
+        }
     }
 
     public void resetPoolDataSource(ConnectionPoolDataSource dataSource) {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Change the validation policy of this pool (default from DbConstant)
+     * 
+     * @param policy
+     * @param idleDelay
+     *            delay in ms used by IDLE policy
+     */
+    public void setValidationPolicy(DbValidationPolicy policy, long idleDelay) {
+        this.validationPolicy = policy;
+        this.validationIdleDelay = idleDelay;
+    }
+
+    /**
+     * 
+     * @param retryPolicy
+     *            the policy giving the delay between 2 attempts to create a valid connection
+     *            (default one from DbConstant)
+     */
+    public void setRetryPolicy(DbRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Change the minimum number of idle connections kept ready by this pool (default from
+     * DbConstant), starting the background creation of the missing ones
+     * 
+     * @param minIdle
+     *            0 for none
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle < 0 ? 0 : minIdle;
+        ensureMinIdle();
+    }
+
+    /**
+     * 
+     * @return the minimum number of idle connections kept ready by this pool
+     */
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * Start in background the creation of the connections needed to reach the minimum of idle
+     * connections, without waiting for them
+     * 
+     * @return the number of connections whose creation was started
+     */
+    public int prefill() {
+        return ensureMinIdle();
+    }
+
+    /**
+     * Start in background the creation of the missing idle connections
+     * 
+     * @return the number of connections whose creation was started
+     */
+    private int ensureMinIdle() {
+        if (isDisposed || minIdle <= 0) {
+            return 0;
+        }
+        int missing = minIdle - getIdleConnections() - pendingCreations.get();
+        if (maxConnections > 0) {
+            missing = Math.min(missing,
+                    maxConnections - connections.size() - pendingCreations.get());
+        }
+        int started = 0;
+        for (int i = 0; i < missing; i++) {
+            pendingCreations.incrementAndGet();
+            try {
+                getWarmUpExecutor().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            createIdleConnection();
+                        } finally {
+                            pendingCreations.decrementAndGet();
+                        }
+                    }
+                });
+                started++;
+            } catch (RejectedExecutionException e) {
+                // disposed meanwhile
+                pendingCreations.decrementAndGet();
+                break;
+            }
+        }
+        return started;
+    }
+
+    private synchronized ThreadPoolExecutor getWarmUpExecutor() {
+        if (warmUpExecutor == null) {
+            int nb = Math.max(1, DbConstant.WARMUPTHREADS);
+            warmUpExecutor = new ThreadPoolExecutor(nb, nb, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new WaarpThreadFactory("DbPoolWarmUp", true));
+            warmUpExecutor.allowCoreThreadTimeOut(true);
+            if (isDisposed) {
+                warmUpExecutor.shutdown();
+            }
+        }
+        return warmUpExecutor;
+    }
+
+    /**
+     * Create a new connection directly added as idle to the pool
+     */
+    private void createIdleConnection() {
+        if (isDisposed) {
+            return;
+        }
+        Con con;
+        try {
+            con = new Con(dataSource.getPooledConnection());
+        } catch (SQLException e) {
+            logger.warn("Cannot create a connection in background: " + e.getMessage());
+            return;
+        }
+        con.state.set(Con.IDLE);
+        connections.put(con.pooledCon, con);
+        monitor.created.incrementAndGet();
+        if (isDisposed && con.compareAndSet(Con.IDLE, Con.REMOVED)) {
+            connections.remove(con.pooledCon);
+            closeConnectionNoEx(con.pooledCon);
+        }
+    }
+
+    /**
+     * 
+     * @return the current validation policy
+     */
+    public DbValidationPolicy getValidationPolicy() {
+        return validationPolicy;
+    }
+
+    /**
+     * 
+     * @return the monitor (metrics) of this pool
+     */
+    public DbConnectionPoolMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Register the monitor of this pool within JMX
+     * 
+     * @param name
+     *            the name of this pool
+     */
+    public void registerMBean(String name) {
+        monitor.registerMBean(name);
+    }
+
     /**
      * 
      * @return the max number of connections
@@ -279,12 +526,19 @@ public class DbConnectionPool {
         if (isDisposed)
             return;
         isDisposed = true;
+        if (warmUpExecutor != null) {
+            warmUpExecutor.shutdown();
+        }
+        monitor.unregisterMBean();
         SQLException e = null;
-        while (!recycledConnections.isEmpty()) {
-            Con c = recycledConnections.remove();
-            PooledConnection pconn = c.pooledCon;
+        for (Con c : connections.values()) {
+            if (!c.compareAndSet(Con.IDLE, Con.REMOVED)) {
+                continue;
+            }
+            connections.remove(c.pooledCon);
+            monitor.closed.incrementAndGet();
             try {
-                pconn.close();
+                c.pooledCon.close();
             } catch (SQLException e2) {
                 if (e == null)
                     e = e2;
@@ -307,27 +561,34 @@ public class DbConnectionPool {
      *             //
      */
     public Connection getConnection() throws SQLException {
-        // This routine is unsynchronized, because semaphore.tryAcquire() may
-        // block.
-        synchronized (this) {
-            if (isDisposed)
-                throw new IllegalStateException(
-                        "Connection pool has been disposed.");
-        }
+        // This routine is unsynchronized, only semaphore.tryAcquire() may block.
+        if (isDisposed)
+            throw new IllegalStateException(
+                    "Connection pool has been disposed.");
+        long start = System.nanoTime();
         if (semaphore != null) {
-            try {
-                if (!semaphore.tryAcquire(timeout, TimeUnit.SECONDS))
-                    throw new TimeoutException();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(
-                        "Interrupted while waiting for a database connection.",
-                        e);
+            // fast path first: a free permit is taken without any wait
+            if (!semaphore.tryAcquire()) {
+                try {
+                    boolean acquired = semaphore.tryAcquire(timeout, TimeUnit.SECONDS);
+                    monitor.semaphoreWait.record(System.nanoTime() - start);
+                    if (!acquired) {
+                        monitor.timeouts.incrementAndGet();
+                        throw new TimeoutException();
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(
+                            "Interrupted while waiting for a database connection.",
+                            e);
+                }
             }
         }
         boolean ok = false;
         try {
             Connection conn = getConnection2();
             ok = true;
+            monitor.checkouts.incrementAndGet();
+            monitor.checkoutLatency.record(System.nanoTime() - start);
             return conn;
         } finally {
             if (semaphore != null) {
@@ -337,64 +598,159 @@ public class DbConnectionPool {
         }
     }
 
-    private synchronized Connection getConnection2() throws SQLException {
-        if (isDisposed)
-            throw new IllegalStateException(
-                    "Connection pool has been disposed."); // test again with
-                                                           // lock
+    private Connection getConnection2() throws SQLException {
         long time = System.currentTimeMillis() + timeout * 1000;
+        int attempt = 0;
         while (true) {
-            PooledConnection pconn;
-            if (!recycledConnections.isEmpty()) {
-                pconn = recycledConnections.remove().pooledCon;
-            } else {
-                pconn = dataSource.getPooledConnection();
+            if (isDisposed)
+                throw new IllegalStateException(
+                        "Connection pool has been disposed."); // test again
+            Con con = borrowIdleConnection();
+            boolean created = con == null;
+            if (created) {
+                // creation is done outside of any lock
+                con = new Con(dataSource.getPooledConnection());
+                connections.put(con.pooledCon, con);
+                monitor.created.incrementAndGet();
+                // prepare the next ones in background
+                ensureMinIdle();
             }
-
-            Connection conn = pconn.getConnection();
-            if (conn.isValid(DbConstant.VALIDTESTDURATION)) {
-                activeConnections++;
+            PooledConnection pconn = con.pooledCon;
+            boolean valid = true;
+            Connection conn = null;
+            try {
+                conn = pconn.getConnection();
+                if (validationPolicy.needValidation(con.lastValid, validationIdleDelay)) {
+                    valid = conn.isValid(DbConstant.VALIDTESTDURATION);
+                    if (valid) {
+                        con.lastValid = System.currentTimeMillis();
+                    }
+                }
+            } catch (SQLException e) {
+                valid = false;
+            }
+            if (valid) {
+                con.owner = DbConnectionOwner.checkout();
+                monitor.updatePeak(activeConnections.incrementAndGet());
                 pconn.addConnectionEventListener(poolConnectionEventListener);
+                lastUsed.set(new WeakReference<Con>(con));
                 assertInnerState();
                 return conn;
             }
-            if (time > System.currentTimeMillis()) {
+            monitor.invalidated.incrementAndGet();
+            removeConnection(con);
+            long remaining = time - System.currentTimeMillis();
+            if (remaining < 0) {
                 // too long
                 break;
             }
+            if (created) {
+                // the database is probably unavailable: do not hammer it with new connections
+                long delay = Math.min(retryPolicy.getDelay(attempt++), remaining);
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
         }
 
         throw new SQLException("Could not get a valid connection before timeout");
     }
 
-    private synchronized void recycleConnection(PooledConnection pconn) {
+    /**
+     * Try to claim an idle connection, starting with the last one used by the current thread
+     * 
+     * @return the claimed connection (state IN_USE) or null if none is idle
+     */
+    private Con borrowIdleConnection() {
+        WeakReference<Con> ref = lastUsed.get();
+        if (ref != null) {
+            Con con = ref.get();
+            if (con != null && con.compareAndSet(Con.IDLE, Con.IN_USE)) {
+                return con;
+            }
+        }
+        for (Con con : connections.values()) {
+            if (con.compareAndSet(Con.IDLE, Con.IN_USE)) {
+                return con;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set back the connection as idle, closing it if the pool was disposed meanwhile
+     * 
+     * @param con
+     */
+    private void releaseToIdle(Con con) {
+        con.state.set(Con.IDLE);
+        if (isDisposed && con.compareAndSet(Con.IDLE, Con.REMOVED)) {
+            connections.remove(con.pooledCon);
+            closeConnectionNoEx(con.pooledCon);
+        }
+    }
+
+    /**
+     * Remove definitively the connection from the pool and close it
+     * 
+     * @param con
+     */
+    private void removeConnection(Con con) {
+        con.state.set(Con.REMOVED);
+        connections.remove(con.pooledCon);
+        closeConnectionNoEx(con.pooledCon);
+    }
+
+    private void recycleConnection(PooledConnection pconn) {
+        Con con = connections.get(pconn);
+        if (con == null || !con.compareAndSet(Con.IN_USE, Con.RESERVED)) {
+            // already reclaimed as leaked (and maybe already disposed)
+            return;
+        }
         if (isDisposed) {
             disposeConnection(pconn);
             return;
         }
-        try {
-            if (!pconn.getConnection().isValid(DbConstant.VALIDTESTDURATION)) {
+        con.owner = null;
+        if (validationPolicy.needValidation(con.lastValid, validationIdleDelay)) {
+            try {
+                if (!pconn.getConnection().isValid(DbConstant.VALIDTESTDURATION)) {
+                    monitor.invalidated.incrementAndGet();
+                    disposeConnection(pconn);
+                    return;
+                }
+            } catch (SQLException e) {
+                monitor.invalidated.incrementAndGet();
                 disposeConnection(pconn);
                 return;
             }
-        } catch (SQLException e) {
-            disposeConnection(pconn);
-            return;
+            con.lastValid = System.currentTimeMillis();
         }
-        if (activeConnections <= 0)
+        if (activeConnections.decrementAndGet() < 0)
             throw new AssertionError();
-        activeConnections--;
+        con.lastRecyle = System.currentTimeMillis();
+        // idle before releasing the permit so that a waiting thread finds it
+        releaseToIdle(con);
         if (semaphore != null) {
             semaphore.release();
         }
-        recycledConnections.add(new Con(pconn));
         assertInnerState();
     }
 
-    private synchronized void disposeConnection(PooledConnection pconn) {
-        if (activeConnections <= 0)
+    private void disposeConnection(PooledConnection pconn) {
+        Con con = connections.remove(pconn);
+        if (con == null) {
+            // already disposed: closed, counter and permit already released
+            return;
+        }
+        con.state.set(Con.REMOVED);
+        if (activeConnections.decrementAndGet() < 0)
             throw new AssertionError();
-        activeConnections--;
         if (semaphore != null) {
             semaphore.release();
         }
@@ -403,6 +759,7 @@ public class DbConnectionPool {
     }
 
     private void closeConnectionNoEx(PooledConnection pconn) {
+        monitor.closed.incrementAndGet();
         try {
             pconn.close();
         } catch (SQLException e) {
@@ -411,12 +768,10 @@ public class DbConnectionPool {
     }
 
     private void assertInnerState() {
-        if (activeConnections < 0)
+        if (activeConnections.get() < 0)
             throw new AssertionError();
         if (semaphore != null) {
-            if (activeConnections + recycledConnections.size() > maxConnections)
-                throw new AssertionError();
-            if (activeConnections + semaphore.availablePermits() > maxConnections)
+            if (activeConnections.get() > maxConnections)
                 throw new AssertionError();
         }
     }
@@ -432,6 +787,12 @@ public class DbConnectionPool {
         public void connectionErrorOccurred(ConnectionEvent event) {
             PooledConnection pconn = (PooledConnection) event.getSource();
             pconn.removeConnectionEventListener(this);
+            Con con = connections.get(pconn);
+            if (con == null || !con.compareAndSet(Con.IN_USE, Con.REMOVED)) {
+                // already reclaimed as leaked (and maybe already disposed)
+                return;
+            }
+            monitor.invalidated.incrementAndGet();
             disposeConnection(pconn);
         }
     }
@@ -442,7 +803,68 @@ public class DbConnectionPool {
      * 
      * @return the number of active connections.
      */
-    public synchronized int getActiveConnections() {
-        return activeConnections;
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Report the connections in use for longer than the leak threshold (DbConnectionOwner), each
+     * leak being logged once with its call site if sampled. If reclaim is set, leaked connections
+     * are closed forcibly and their permit released.
+     * 
+     * @return the number of connections currently considered as leaked
+     */
+    public int checkLeaks() {
+        if (DbConnectionOwner.getLeakThreshold() <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int leaked = 0;
+        for (Con con : connections.values()) {
+            DbConnectionOwner owner = con.owner;
+            if (owner == null || con.state.get() != Con.IN_USE || !owner.isLeaked(now)) {
+                continue;
+            }
+            leaked++;
+            if (owner.report(logger, "pooled connection")) {
+                monitor.leaks.incrementAndGet();
+            }
+            if (DbConnectionOwner.isReclaim() && con.compareAndSet(Con.IN_USE, Con.REMOVED)) {
+                logger.warn("Reclaim leaked connection held by " + owner.getThread());
+                con.pooledCon.removeConnectionEventListener(poolConnectionEventListener);
+                monitor.reclaimed.incrementAndGet();
+                disposeConnection(con.pooledCon);
+            }
+        }
+        return leaked;
+    }
+
+    /**
+     * 
+     * @return the owners of the connections currently in use (only if leak detection is enabled)
+     */
+    public List<DbConnectionOwner> getOwners() {
+        List<DbConnectionOwner> owners = new ArrayList<DbConnectionOwner>();
+        for (Con con : connections.values()) {
+            DbConnectionOwner owner = con.owner;
+            if (owner != null && con.state.get() == Con.IN_USE) {
+                owners.add(owner);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * 
+     * @return the number of idle connections currently kept in the pool
+     */
+    public int getIdleConnections() {
+        int idle = 0;
+        for (Con con : connections.values()) {
+            if (con.state.get() == Con.IDLE) {
+                idle++;
+            }
+        }
+        return idle;
     }
 }
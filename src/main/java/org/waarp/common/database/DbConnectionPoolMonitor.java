@@ -0,0 +1,285 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Metrics of one DbConnectionPool, readable through the API, a Json snapshot or JMX
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbConnectionPoolMonitor implements DbConnectionPoolMonitorMBean {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbConnectionPoolMonitor.class);
+
+    /**
+     * JMX domain used to register the monitors
+     */
+    public static final String JMX_DOMAIN = "org.waarp.common.database";
+
+    private final DbConnectionPool pool;
+
+    final DbLatencyHistogram checkoutLatency = new DbLatencyHistogram();
+
+    final DbLatencyHistogram semaphoreWait = new DbLatencyHistogram();
+
+    final AtomicLong checkouts = new AtomicLong();
+
+    final AtomicLong timeouts = new AtomicLong();
+
+    final AtomicLong created = new AtomicLong();
+
+    final AtomicLong closed = new AtomicLong();
+
+    final AtomicLong invalidated = new AtomicLong();
+
+    final AtomicInteger peak = new AtomicInteger();
+
+    final AtomicLong leaks = new AtomicLong();
+
+    final AtomicLong reclaimed = new AtomicLong();
+
+    /**
+     * To give a unique JMX name to each pool, even of the same database type
+     */
+    private static final AtomicInteger poolIds = new AtomicInteger();
+
+    private final int poolId = poolIds.incrementAndGet();
+
+    private ObjectName objectName = null;
+
+    DbConnectionPoolMonitor(DbConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Update the peak of active connections
+     * 
+     * @param active
+     */
+    void updatePeak(int active) {
+        int current = peak.get();
+        while (active > current && !peak.compareAndSet(current, active)) {
+            current = peak.get();
+        }
+    }
+
+    public int getActiveConnections() {
+        return pool.getActiveConnections();
+    }
+
+    public int getIdleConnections() {
+        return pool.getIdleConnections();
+    }
+
+    public int getPeakConnections() {
+        return peak.get();
+    }
+
+    public int getMaxConnections() {
+        return pool.getMaxConnections();
+    }
+
+    public int getMinIdleConnections() {
+        return pool.getMinIdle();
+    }
+
+    public long getCheckoutCount() {
+        return checkouts.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getClosedCount() {
+        return closed.get();
+    }
+
+    public long getInvalidatedCount() {
+        return invalidated.get();
+    }
+
+    public long getLeakCount() {
+        return leaks.get();
+    }
+
+    public long getReclaimedCount() {
+        return reclaimed.get();
+    }
+
+    public double getCheckoutMeanMs() {
+        return checkoutLatency.getMeanMs();
+    }
+
+    public double getCheckoutMaxMs() {
+        return checkoutLatency.getMaxMs();
+    }
+
+    public long getCheckoutP99Ms() {
+        return checkoutLatency.getPercentileMs(99);
+    }
+
+    public long getSemaphoreWaitTotalMs() {
+        return semaphoreWait.getTotalNanos() / 1000000;
+    }
+
+    public double getSemaphoreWaitMaxMs() {
+        return semaphoreWait.getMaxMs();
+    }
+
+    /**
+     * 
+     * @return the checkout latency histogram
+     */
+    public DbLatencyHistogram getCheckoutLatency() {
+        return checkoutLatency;
+    }
+
+    /**
+     * 
+     * @return the histogram of the time spent waiting on the semaphore
+     */
+    public DbLatencyHistogram getSemaphoreWait() {
+        return semaphoreWait;
+    }
+
+    public String getSnapshot() {
+        return JsonHandler.writeAsString(toJson());
+    }
+
+    public void reset() {
+        checkoutLatency.reset();
+        semaphoreWait.reset();
+        checkouts.set(0);
+        timeouts.set(0);
+        created.set(0);
+        closed.set(0);
+        invalidated.set(0);
+        leaks.set(0);
+        reclaimed.set(0);
+        peak.set(pool.getActiveConnections());
+    }
+
+    /**
+     * 
+     * @return a snapshot of all metrics as Json
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("active", getActiveConnections());
+        node.put("idle", getIdleConnections());
+        node.put("peak", getPeakConnections());
+        node.put("max", getMaxConnections());
+        node.put("minIdle", getMinIdleConnections());
+        node.put("checkouts", getCheckoutCount());
+        node.put("timeouts", getTimeoutCount());
+        node.put("created", getCreatedCount());
+        node.put("closed", getClosedCount());
+        node.put("invalidated", getInvalidatedCount());
+        node.put("leaks", getLeakCount());
+        node.put("reclaimed", getReclaimedCount());
+        List<DbConnectionOwner> owners = pool.getOwners();
+        if (!owners.isEmpty()) {
+            ArrayNode array = node.putArray("owners");
+            for (DbConnectionOwner owner : owners) {
+                array.add(owner.toJson());
+            }
+        }
+        node.set("checkoutLatency", checkoutLatency.toJson());
+        node.set("semaphoreWait", semaphoreWait.toJson());
+        return node;
+    }
+
+    /**
+     * Register this monitor within the platform MBeanServer, as
+     * "org.waarp.common.database:type=DbConnectionPool,name=<name>,id=<pool id>" such that several
+     * pools of the same database type (several DbAdmin, replicas) are all exposed
+     * 
+     * @param name
+     *            the name of the pool (as the database type)
+     */
+    public synchronized void registerMBean(String name) {
+        if (objectName != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName oname = new ObjectName(JMX_DOMAIN + ":type=DbConnectionPool,name="
+                    + ObjectName.quote(name) + ",id=" + poolId);
+            server.registerMBean(this, oname);
+            objectName = oname;
+        } catch (InstanceAlreadyExistsException e) {
+            logger.warn("Pool monitor already registered: " + name + " id: " + poolId);
+        } catch (JMException e) {
+            logger.warn("Cannot register pool monitor: " + name, e);
+        }
+    }
+
+    /**
+     * 
+     * @return the JMX name of this monitor, null if not registered
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Unregister this monitor from the platform MBeanServer if registered
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.debug("Cannot unregister pool monitor", e);
+        }
+        objectName = null;
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+/**
+ * JMX interface of DbConnectionPoolMonitor
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public interface DbConnectionPoolMonitorMBean {
+    /**
+     * @return the number of connections currently given by the pool
+     */
+    public int getActiveConnections();
+
+    /**
+     * @return the number of idle connections currently kept by the pool
+     */
+    public int getIdleConnections();
+
+    /**
+     * @return the highest number of active connections since start or last reset
+     */
+    public int getPeakConnections();
+
+    /**
+     * @return the max number of connections (0 for no limit)
+     */
+    public int getMaxConnections();
+
+    /**
+     * @return the minimum number of idle connections kept ready (0 for none)
+     */
+    public int getMinIdleConnections();
+
+    /**
+     * @return the number of successful checkouts
+     */
+    public long getCheckoutCount();
+
+    /**
+     * @return the number of checkouts in timeout
+     */
+    public long getTimeoutCount();
+
+    /**
+     * @return the number of physical connections created
+     */
+    public long getCreatedCount();
+
+    /**
+     * @return the number of physical connections closed
+     */
+    public long getClosedCount();
+
+    /**
+     * @return the number of connections found invalid or in error
+     */
+    public long getInvalidatedCount();
+
+    /**
+     * @return the number of connections reported as possible leaks
+     */
+    public long getLeakCount();
+
+    /**
+     * @return the number of leaked connections closed forcibly
+     */
+    public long getReclaimedCount();
+
+    /**
+     * @return the mean checkout latency in ms
+     */
+    public double getCheckoutMeanMs();
+
+    /**
+     * @return the max checkout latency in ms
+     */
+    public double getCheckoutMaxMs();
+
+    /**
+     * @return the 99th percentile of the checkout latency in ms (bucket upper bound)
+     */
+    public long getCheckoutP99Ms();
+
+    /**
+     * @return the total time spent waiting on the semaphore in ms
+     */
+    public long getSemaphoreWaitTotalMs();
+
+    /**
+     * @return the max time spent waiting on the semaphore in ms
+     */
+    public double getSemaphoreWaitMaxMs();
+
+    /**
+     * @return the full snapshot as a Json string
+     */
+    public String getSnapshot();
+
+    /**
+     * Reset all counters and histograms (not the gauges)
+     */
+    public void reset();
+}
@@ -40,6 +40,100 @@ public class DbConstant {
      * How long to wait in second for a validation of connection (isValid(time))
      */
     public static int VALIDTESTDURATION = 2;
+    /**
+     * When to validate a connection (pooled or within a DbSession)
+     */
+    public static DbValidationPolicy VALIDATIONPOLICY = DbValidationPolicy.ALWAYS;
+    /**
+     * Delay in ms after which a connection not validated must be validated again (policy IDLE)
+     */
+    public static long VALIDATIONIDLEDELAY = 30000;
+    /**
+     * Number of sequence values reserved in one database operation by nextSequence (1 meaning no
+     * reservation)
+     */
+    public static int SEQUENCEBLOCKSIZE = 1;
+    /**
+     * Number of idle PreparedStatement kept per DbSession, keyed by SQL text (0 to disable)
+     */
+    public static int PREPAREDSTATEMENTCACHESIZE = 32;
+    /**
+     * Default fetch size of streaming cursors (DbCursor), when the DbModel has no specific one
+     */
+    public static int STREAMINGFETCHSIZE = 1000;
+    /**
+     * Delay in ms between 2 health checks of read replicas
+     */
+    public static long REPLICACHECKDELAY = 10000;
+    /**
+     * Default status of the per statement latency tracing (DbStatementTracer)
+     */
+    public static boolean STATEMENTTRACING = false;
+    /**
+     * Maximum number of distinct statement templates traced
+     */
+    public static int STATEMENTTRACINGMAXTEMPLATES = 1000;
+    /**
+     * Default execution time in ms from which a traced statement is logged as slow
+     */
+    public static long SLOWQUERYTHRESHOLD = 1000;
+    /**
+     * Default status of the capture of the plan of slow statements
+     */
+    public static boolean SLOWQUERYEXPLAIN = false;
+    /**
+     * Default status of the generated row binders of AbstractDbData (DbDataBinder)
+     */
+    public static boolean GENERATEDBINDERS = false;
+    /**
+     * Default time in ms from which a connection still in use is reported as a possible leak (0
+     * for no leak detection)
+     */
+    public static long LEAKTHRESHOLD = 0;
+    /**
+     * Default sampling of the stack of the call site of connections for leak detection (one every
+     * LEAKSTACKSAMPLING, 0 for none)
+     */
+    public static int LEAKSTACKSAMPLING = 10;
+    /**
+     * Default status of the forcible close of leaked pooled connections
+     */
+    public static boolean LEAKRECLAIM = false;
+    /**
+     * Default minimum number of idle connections kept ready in a pool (0 for no prefill)
+     */
+    public static int MINIDLECONNECTIONS = 0;
+    /**
+     * Max number of threads creating connections in background to reach the minimum of idle
+     * connections
+     */
+    public static int WARMUPTHREADS = 2;
+    /**
+     * Max number of DbSessions validated at the same time by the health check
+     */
+    public static int HEALTHCHECKPARALLELISM = 4;
+    /**
+     * Delay in ms during which a DbSession validated or checked is not checked again by the health
+     * check
+     */
+    public static long HEALTHCHECKSKIPDELAY = 5000;
+    /**
+     * Max delay in ms between 2 attempts of the default retry policy (DbRetryPolicy)
+     */
+    public static long RETRYMAXDELAY = 5000;
+    /**
+     * Part (between 0 and 1) of each delay of the default retry policy which is random
+     */
+    public static double RETRYJITTER = 0.5;
+    /**
+     * Number of consecutive connection failures opening the circuit breaker of a DbAdmin (0 to
+     * disable it)
+     */
+    public static int CIRCUITBREAKERTHRESHOLD = 5;
+    /**
+     * Delay in ms during which an open circuit breaker refuses new connections before a probe
+     */
+    public static long CIRCUITBREAKEROPENDELAY = 5000;
     /**
      * Number of Database max connection (if pooled)
      */
@@ -48,5 +142,27 @@ public class DbConstant {
      * Delay in second to try to connect
      */
     public static int DELAYMAXCONNECTION = 30;
+    /**
+     * Default number of rows sent in one batch (insertBatch/updateBatch/deleteBatch)
+     */
+    public static int BATCHSIZE = 100;
+    /**
+     * Default number of pending commits triggering a group commit before its delay
+     */
+    public static int GROUPCOMMITMAXSIZE = 32;
+    /**
+     * Max number of threads of the asynchronous executor of a DbAdmin (limited to the number of
+     * connections of its pool)
+     */
+    public static int ASYNCTHREADS = 16;
+    /**
+     * Max number of asynchronous operations waiting for a thread before new ones are rejected
+     */
+    public static int ASYNCQUEUESIZE = 1000;
+    /**
+     * Default max duration in ms of one statement execution, enforced by query timeout and
+     * DbStatementWatchdog (0 for none)
+     */
+    public static long QUERYTIMEOUT = 0;
 
 }
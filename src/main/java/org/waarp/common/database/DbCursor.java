@@ -0,0 +1,266 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModel;
+import org.waarp.common.database.model.DbModelAbstract;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Streaming cursor over the result of a DbPreparedStatement or a DbRequest.<br>
+ * <br>
+ * The statement is set in streaming mode according to the DbModel (fetch size), such that memory
+ * stays flat whatever the size of the result. Each row is given to a RowMapper which can reuse the
+ * object returned for the previous row.<br>
+ * <br>
+ * Some databases (PostgreSQL) only stream within a transaction: the cursor is then refused on a
+ * DbSession in autocommit, since switching a possibly shared connection out of autocommit would
+ * keep the writes of the other users uncommitted. Use a DbSession not in autocommit (the cursor
+ * then lives within its current transaction), or see getStreamingSession.<br>
+ * <br>
+ * The cursor must be closed once used (it is closed automatically at the end of the result). Note
+ * that with MySQL or MariaDB, no other request can be issued on the same connection while the
+ * cursor is open.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbCursor<E> implements Iterator<E> {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbCursor.class);
+
+    /**
+     * Mapper from the current row to an object
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static interface RowMapper<E> {
+        /**
+         * 
+         * @param resultSet
+         *            positioned on the current row
+         * @param previous
+         *            the object returned for the previous row (null for the first row) which
+         *            might be reused
+         * @return the object for the current row
+         * @throws SQLException
+         * @throws WaarpDatabaseSqlException
+         */
+        public E mapRow(ResultSet resultSet, E previous) throws SQLException,
+                WaarpDatabaseSqlException;
+    }
+
+    private final DbSession session;
+    private final Statement statement;
+    private final RowMapper<E> mapper;
+    private ResultSet resultSet = null;
+    private int previousFetchSize = 0;
+    private boolean restored = true;
+    private E current = null;
+    private boolean nextChecked = false;
+    private boolean hasNextRow = false;
+    private boolean isClosed = false;
+
+    /**
+     * Set the statement in streaming mode before its execution
+     * 
+     * @param session
+     * @param statement
+     * @param mapper
+     * @throws WaarpDatabaseSqlException
+     *             if the database needs a transaction to stream and the session is in autocommit
+     */
+    DbCursor(DbSession session, Statement statement, RowMapper<E> mapper)
+            throws WaarpDatabaseSqlException {
+        if (!isStreamingAllowed(session)) {
+            throw new WaarpDatabaseSqlException(
+                    "Streaming cursor needs a DbSession not in autocommit with this database");
+        }
+        this.session = session;
+        this.statement = statement;
+        this.mapper = mapper;
+        int fetchSize = DbConstant.STREAMINGFETCHSIZE;
+        DbModel model = getModel(session);
+        if (model instanceof DbModelAbstract) {
+            fetchSize = ((DbModelAbstract) model).getStreamingFetchSize();
+        }
+        try {
+            previousFetchSize = statement.getFetchSize();
+            statement.setFetchSize(fetchSize);
+            restored = false;
+        } catch (SQLException e) {
+            logger.debug("Cannot set streaming fetch size", e);
+        }
+    }
+
+    private static DbModel getModel(DbSession session) {
+        DbAdmin admin = session.getAdmin();
+        return admin != null ? admin.getDbModel() : null;
+    }
+
+    /**
+     * 
+     * @param session
+     * @return True if a cursor can stream on this session (False if the database needs a
+     *         transaction to stream and the session is in autocommit)
+     */
+    public static boolean isStreamingAllowed(DbSession session) {
+        if (!session.isAutoCommit()) {
+            return true;
+        }
+        DbModel model = getModel(session);
+        return !(model instanceof DbModelAbstract) ||
+                !((DbModelAbstract) model).isStreamingNeedsTransaction();
+    }
+
+    /**
+     * 
+     * @param session
+     * @return the session itself if a cursor can stream on it, else a new dedicated DbSession (on
+     *         the same DbAdmin) not in autocommit, to be disconnected by the caller once the cursor
+     *         is closed
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public static DbSession getStreamingSession(DbSession session)
+            throws WaarpDatabaseNoConnectionException {
+        if (isStreamingAllowed(session)) {
+            return session;
+        }
+        DbSession dedicated = new DbSession(session.getAdmin(), false);
+        dedicated.setAutoCommit(false);
+        return dedicated;
+    }
+
+    /**
+     * 
+     * @param resultSet
+     *            the result of the statement once executed
+     */
+    void setResultSet(ResultSet resultSet) {
+        this.resultSet = resultSet;
+    }
+
+    public boolean hasNext() {
+        if (isClosed) {
+            return false;
+        }
+        if (!nextChecked) {
+            try {
+                hasNextRow = resultSet != null && resultSet.next();
+            } catch (SQLException e) {
+                DbSession.error(e);
+                close();
+                throw new IllegalStateException("SQL Exception to getNextRow", e);
+            }
+            nextChecked = true;
+            if (!hasNextRow) {
+                close();
+            }
+        }
+        return hasNextRow;
+    }
+
+    /**
+     * @return the object for the next row
+     * @throws NoSuchElementException
+     *             if there is no more row
+     * @throws IllegalStateException
+     *             if the row cannot be read, the cause being the original exception
+     */
+    public E next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        nextChecked = false;
+        try {
+            current = mapper.mapRow(resultSet, current);
+        } catch (SQLException e) {
+            DbSession.error(e);
+            close();
+            throw new IllegalStateException("SQL Exception while reading row", e);
+        } catch (WaarpDatabaseSqlException e) {
+            close();
+            throw new IllegalStateException("SQL Exception while reading row", e);
+        }
+        return current;
+    }
+
+    /**
+     * Not supported
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Read only cursor");
+    }
+
+    /**
+     * Close the result and restore the statement as before the cursor
+     */
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        hasNextRow = false;
+        if (resultSet != null) {
+            try {
+                resultSet.close();
+            } catch (SQLException e) {
+                // ignore
+            }
+            resultSet = null;
+        }
+        if (!restored) {
+            try {
+                statement.setFetchSize(previousFetchSize);
+                restored = true;
+            } catch (SQLException e) {
+                logger.debug("Cannot restore fetch size", e);
+                session.checkConnectionNoException();
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return True if the statement is no more in streaming mode
+     */
+    boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * 
+     * @return True if the cursor is closed
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
+}
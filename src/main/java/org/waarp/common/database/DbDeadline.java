@@ -0,0 +1,154 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of the database operations of the current thread.<br>
+ * <br>
+ * A caller gives a time budget to a unit of work (as a step of a transfer) and every statement
+ * executed by this thread meanwhile (DbPreparedStatement, DbRequest) only gets the remaining time:
+ * it is applied as query timeout and enforced by the DbStatementWatchdog. A nested deadline can
+ * only shorten the current one.
+ * 
+ * <pre>
+ * long previous = DbDeadline.set(5000);
+ * try {
+ *     ...
+ * } finally {
+ *     DbDeadline.restore(previous);
+ * }
+ * </pre>
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public final class DbDeadline {
+    /**
+     * No deadline
+     */
+    public static final long NONE = Long.MAX_VALUE;
+    /**
+     * Deadline (System.nanoTime) of the current thread
+     */
+    private static final ThreadLocal<long[]> deadline = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[] { NONE };
+        }
+    };
+
+    private DbDeadline() {
+    }
+
+    /**
+     * Set the deadline of the current thread, unless the current one is earlier
+     * 
+     * @param timeout
+     *            in ms from now
+     * @return the previous deadline, to be given back to restore
+     */
+    public static long set(long timeout) {
+        long[] current = deadline.get();
+        long previous = current[0];
+        long next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+        if (previous == NONE || next - previous < 0) {
+            current[0] = next;
+        }
+        return previous;
+    }
+
+    /**
+     * 
+     * @return the deadline (System.nanoTime) of the current thread, NONE if none, to be given to
+     *         attach by another thread running an operation on behalf of this one
+     */
+    public static long get() {
+        return deadline.get()[0];
+    }
+
+    /**
+     * Set the deadline of the current thread to the one of another thread (as for an operation
+     * submitted to a DbAsyncExecutor), such that the time already elapsed is taken into account
+     * 
+     * @param other
+     *            as returned by get in the other thread
+     * @return the previous deadline, to be given back to restore
+     */
+    public static long attach(long other) {
+        long[] current = deadline.get();
+        long previous = current[0];
+        current[0] = other;
+        return previous;
+    }
+
+    /**
+     * Restore the previous deadline of the current thread
+     * 
+     * @param previous
+     *            as returned by set
+     */
+    public static void restore(long previous) {
+        deadline.get()[0] = previous;
+    }
+
+    /**
+     * Remove the deadline of the current thread
+     */
+    public static void clear() {
+        deadline.get()[0] = NONE;
+    }
+
+    /**
+     * 
+     * @return True if the current thread has a deadline
+     */
+    public static boolean isSet() {
+        return deadline.get()[0] != NONE;
+    }
+
+    /**
+     * 
+     * @param timeout
+     *            timeout in ms of the statement itself (0 for none)
+     * @return the time in ms left to a statement of the current thread, according to its own
+     *         timeout, the thread deadline and DbConstant.QUERYTIMEOUT: NONE if unlimited, 0 or
+     *         less if already exceeded
+     */
+    public static long remaining(long timeout) {
+        long result = NONE;
+        if (timeout > 0) {
+            result = timeout;
+        }
+        if (DbConstant.QUERYTIMEOUT > 0 && DbConstant.QUERYTIMEOUT < result) {
+            result = DbConstant.QUERYTIMEOUT;
+        }
+        long current = deadline.get()[0];
+        if (current != NONE) {
+            long left = TimeUnit.NANOSECONDS.toMillis(current - System.nanoTime());
+            if (left <= 0) {
+                return 0;
+            }
+            if (left < result) {
+                result = left;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.waarp.common.future.WaarpFuture;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Future of an asynchronous database operation (see DbAsyncExecutor), giving its result and
+ * calling listeners on completion such that callers need not to wait on it.
+ * 
+ * @author Frederic Bregier
+ * 
+ * @param <V>
+ *            type of the result
+ */
+public class DbFuture<V> extends WaarpFuture {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbFuture.class);
+
+    /**
+     * Listener called once the future is done (success, failure or cancel)
+     * 
+     * @param <V>
+     */
+    public static interface Listener<V> {
+        /**
+         * Called by the thread completing the future, or by addListener if already done. Must not
+         * block.
+         * 
+         * @param future
+         */
+        public void operationComplete(DbFuture<V> future);
+    }
+
+    private volatile V result = null;
+    private final List<Listener<V>> listeners = new ArrayList<Listener<V>>(1);
+    private boolean notified = false;
+
+    public DbFuture() {
+        super(true);
+    }
+
+    /**
+     * @return the result of the operation (null if not done or failed)
+     */
+    public V getResult() {
+        return result;
+    }
+
+    /**
+     * Set the result and the success of this future
+     * 
+     * @param result
+     * @return True if the future was not already done
+     */
+    public boolean setResult(V result) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            this.result = result;
+        }
+        return setSuccess();
+    }
+
+    @Override
+    public boolean setSuccess() {
+        if (super.setSuccess()) {
+            notifyListeners();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean setFailure(Throwable cause) {
+        if (super.setFailure(cause)) {
+            notifyListeners();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean cancel() {
+        if (super.cancel()) {
+            notifyListeners();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add a listener, called immediately if this future is already done
+     * 
+     * @param listener
+     */
+    public void addListener(Listener<V> listener) {
+        synchronized (listeners) {
+            if (!notified) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        call(listener);
+    }
+
+    private void notifyListeners() {
+        List<Listener<V>> toCall;
+        synchronized (listeners) {
+            notified = true;
+            toCall = new ArrayList<Listener<V>>(listeners);
+            listeners.clear();
+        }
+        for (Listener<V> listener : toCall) {
+            call(listener);
+        }
+    }
+
+    private void call(Listener<V> listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (RuntimeException e) {
+            logger.warn("Listener of DbFuture in error", e);
+        }
+    }
+}
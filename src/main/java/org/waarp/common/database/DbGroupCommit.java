@@ -0,0 +1,224 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.waarp.common.json.JsonHandler;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Group commit of the threads sharing one DbSession (as the DbAdmin session) not in autocommit.<br>
+ * <br>
+ * Instead of one commit (and one log flush) per thread, the first committing thread becomes the
+ * leader: it waits up to delay ms (or until maxSize commits are requested), then issues one
+ * commit for all the requests received until then. Each thread returns only once a commit started
+ * after its request succeeded, so the durability and ordering of its work are kept. If this commit
+ * fails, all the threads of the group get the error: each round of requests keeps its own result,
+ * whatever the following rounds.<br>
+ * <br>
+ * Since a JDBC transaction belongs to one connection, only threads sharing the same DbSession are
+ * grouped. A rollback by one thread still concerns the work of all of them, as without group
+ * commit. If a statement of one thread was cancelled meanwhile (see DbSession.cleanAfterCancel),
+ * the commit of the group fails.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbGroupCommit {
+    private final long delay;
+    private final int maxSize;
+    private final Object lock = new Object();
+    /**
+     * Number of commit requests
+     */
+    private long requested = 0;
+    /**
+     * Round gathering the commit requests not yet taken by a leader
+     */
+    private Round current = new Round();
+    private boolean leaderActive = false;
+    private long commits = 0;
+
+    /**
+     * Commit requests committed by one commit, with their own result (guarded by lock)
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static final class Round {
+        private int size = 0;
+        private boolean done = false;
+        private SQLException failure = null;
+    }
+
+    /**
+     * 
+     * @param delay
+     *            max delay in ms the leader waits for other commits
+     * @param maxSize
+     *            number of pending commits triggering the commit before the delay
+     */
+    public DbGroupCommit(long delay, int maxSize) {
+        this.delay = delay;
+        this.maxSize = maxSize < 1 ? 1 : maxSize;
+    }
+
+    /**
+     * Commit the connection of this session with the others threads committing meanwhile
+     * 
+     * @param session
+     * @throws SQLException
+     *             if the commit of the group failed
+     */
+    public void commit(DbSession session) throws SQLException {
+        synchronized (lock) {
+            requested++;
+            Round round = current;
+            round.size++;
+            if (leaderActive) {
+                if (round.size >= maxSize) {
+                    lock.notifyAll();
+                }
+                // follower: wait for the commit of its round
+                for (;;) {
+                    if (round.done) {
+                        if (round.failure != null) {
+                            throw new SQLException("Group commit failed", round.failure);
+                        }
+                        return;
+                    }
+                    if (!leaderActive) {
+                        // take over: its round is still the current one
+                        break;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for group commit", e);
+                    }
+                }
+            }
+            leaderActive = true;
+        }
+        Round round;
+        synchronized (lock) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            long remaining;
+            while (current.size < maxSize && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                } catch (InterruptedException e) {
+                    // commit now
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // later requests go to the next round
+            round = current;
+            current = new Round();
+        }
+        SQLException error = null;
+        RuntimeException unexpected = null;
+        try {
+            Connection connection = session.getConn();
+            if (connection == null) {
+                throw new SQLException("Cannot commit since connection is null");
+            }
+            if (session.isTransactionInvalid()) {
+                // the work of the whole group is in a cancelled transaction
+                throw new SQLException("Cannot commit since a statement was cancelled");
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            error = e;
+        } catch (RuntimeException e) {
+            unexpected = e;
+            error = new SQLException("Group commit failed", e);
+        }
+        synchronized (lock) {
+            round.failure = error;
+            round.done = true;
+            if (unexpected == null) {
+                commits++;
+            }
+            leaderActive = false;
+            lock.notifyAll();
+        }
+        if (unexpected != null) {
+            throw unexpected;
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @return the max delay in ms the leader waits for other commits
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    /**
+     * @return the number of pending commits triggering the commit before the delay
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the number of commits requested
+     */
+    public long getRequestedCount() {
+        synchronized (lock) {
+            return requested;
+        }
+    }
+
+    /**
+     * @return the number of commits really issued
+     */
+    public long getCommitCount() {
+        synchronized (lock) {
+            return commits;
+        }
+    }
+
+    /**
+     * 
+     * @return the state of this group commit as Json
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("delay", delay);
+        node.put("maxSize", maxSize);
+        node.put("requested", getRequestedCount());
+        node.put("commits", getCommitCount());
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Health check of DbSessions, validating them in parallel with a bounded concurrency.<br>
+ * <br>
+ * A session validated (by a check or by its own usage) or checked less than skipDelay ms ago is
+ * skipped, as is a session whose check is still running. The result of each check is recorded
+ * in the DbSessionHealth of the session. A successful check updates the last valid time of the
+ * session, such that the next validations of the session may be short-circuited according to
+ * the validation policy.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbHealthCheck {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbHealthCheck.class);
+
+    private final int parallelism;
+    private final long skipDelay;
+    private final ThreadPoolExecutor executor;
+    private volatile Timeout timeout = null;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Periodic run of the health check
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class HealthCheckTask implements TimerTask {
+        private final DbHealthCheck healthCheck;
+        private final Collection<DbSession> sessions;
+        private final Timer timer;
+        private final long delay;
+
+        private HealthCheckTask(DbHealthCheck healthCheck, Collection<DbSession> sessions,
+                Timer timer, long delay) {
+            this.healthCheck = healthCheck;
+            this.sessions = sessions;
+            this.timer = timer;
+            this.delay = delay;
+        }
+
+        public void run(Timeout timeout) throws Exception {
+            if (healthCheck.executor.isShutdown()) {
+                return;
+            }
+            // do not wait for the checks: the timer must not be blocked
+            healthCheck.submitAll(sessions);
+            healthCheck.schedule(this);
+        }
+    }
+
+    /**
+     * 
+     * @param parallelism
+     *            max number of sessions checked at the same time
+     * @param skipDelay
+     *            delay in ms during which a session validated or checked is not checked again
+     */
+    public DbHealthCheck(int parallelism, long skipDelay) {
+        this.parallelism = Math.max(1, parallelism);
+        this.skipDelay = skipDelay;
+        executor = new ThreadPoolExecutor(this.parallelism, this.parallelism, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WaarpThreadFactory("DbHealthCheck", true));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start the periodic health check of the given sessions
+     * 
+     * @param sessions
+     *            a live view of the sessions to check
+     * @param timer
+     * @param delay
+     *            delay in ms between 2 runs
+     */
+    public void start(Collection<DbSession> sessions, Timer timer, long delay) {
+        schedule(new HealthCheckTask(this, sessions, timer, delay));
+    }
+
+    private void schedule(HealthCheckTask task) {
+        try {
+            timeout = task.timer.newTimeout(task, task.delay, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // timer stopped
+            timeout = null;
+        }
+    }
+
+    /**
+     * Stop the periodic health check and the running checks
+     */
+    public void stop() {
+        Timeout check = timeout;
+        if (check != null) {
+            check.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check in parallel all the given sessions that need it, waiting for the end of the checks
+     * 
+     * @param sessions
+     * @return the number of sessions found invalid
+     */
+    public int checkAll(Collection<DbSession> sessions) {
+        long failedBefore = failed.get();
+        CountDownLatch latch = submitAll(sessions);
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return (int) (failed.get() - failedBefore);
+    }
+
+    /**
+     * Submit the check of all the given sessions that need it
+     * 
+     * @param sessions
+     * @return the latch released when all submitted checks are over
+     */
+    CountDownLatch submitAll(Collection<DbSession> sessions) {
+        runs.incrementAndGet();
+        long now = System.currentTimeMillis();
+        int nb = 0;
+        DbSession[] toCheck = new DbSession[sessions.size()];
+        for (DbSession session : sessions) {
+            if (nb == toCheck.length) {
+                break;
+            }
+            if (!needCheck(session, now)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            if (!session.getHealth().tryStartCheck()) {
+                // still running from a previous run
+                skipped.incrementAndGet();
+                continue;
+            }
+            toCheck[nb++] = session;
+        }
+        final CountDownLatch latch = new CountDownLatch(nb);
+        for (int i = 0; i < nb; i++) {
+            final DbSession session = toCheck[i];
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            check(session);
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // stopped
+                session.getHealth().cancelCheck();
+                latch.countDown();
+            }
+        }
+        return latch;
+    }
+
+    /**
+     * 
+     * @param session
+     * @param now
+     * @return True if the session was neither validated nor checked recently
+     */
+    boolean needCheck(DbSession session, long now) {
+        if (session.isDisActive()) {
+            return true;
+        }
+        long last = Math.max(session.getLastValid(), session.getHealth().getLastCheck());
+        return last + skipDelay <= now;
+    }
+
+    /**
+     * Check one session (whose check was started) and record its health
+     * 
+     * @param session
+     */
+    private void check(DbSession session) {
+        long start = System.nanoTime();
+        boolean valid = false;
+        try {
+            valid = session.checkConnectionNoException();
+        } finally {
+            session.getHealth().endCheck(valid, System.nanoTime() - start);
+        }
+        checked.incrementAndGet();
+        if (!valid) {
+            failed.incrementAndGet();
+            logger.error("Database Connection cannot be reinitialized: "
+                    + session.getInternalId());
+        }
+    }
+
+    /**
+     * 
+     * @return the max number of sessions checked at the same time
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * 
+     * @return the delay in ms during which a session validated or checked is not checked again
+     */
+    public long getSkipDelay() {
+        return skipDelay;
+    }
+
+    /**
+     * 
+     * @return the Json representation of the statistics of this health check
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("parallelism", parallelism);
+        node.put("skipDelay", skipDelay);
+        node.put("runs", runs.get());
+        node.put("checked", checked.get());
+        node.put("skipped", skipped.get());
+        node.put("failed", failed.get());
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModel;
+import org.waarp.common.database.model.DbModelAbstract;
+
+/**
+ * Keyset pagination over a table: each page is the rows following the last key seen (see
+ * DbModelAbstract.getKeysetRequest), such that walking through millions of rows costs the same
+ * for each page, as opposed to OFFSET.<br>
+ * <br>
+ * Each call to next() executes the request of the next page and gives back the
+ * DbPreparedStatement positioned before its first row. Rows must then be read through getNext()
+ * of this paginator (not the one of the DbPreparedStatement) so that the last key is known. The
+ * rows of a page not read are skipped by the next call to next().<br>
+ * <br>
+ * <code>
+ * DbKeysetPaginator paginator = new DbKeysetPaginator(session, fields, table, null, null, keys, false, 1000);<br>
+ * try {<br>
+ * &nbsp;&nbsp;while (paginator.hasNext()) {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;DbPreparedStatement page = paginator.next();<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;while (paginator.getNext()) {<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;// read page.getResultSet()<br>
+ * &nbsp;&nbsp;&nbsp;&nbsp;}<br>
+ * &nbsp;&nbsp;}<br>
+ * } finally {<br>
+ * &nbsp;&nbsp;paginator.close();<br>
+ * }<br>
+ * </code>
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbKeysetPaginator implements Iterator<DbPreparedStatement> {
+    private final DbModelAbstract model;
+    private final String allfields;
+    private final String table;
+    private final String condition;
+    private final Object[] conditionParameters;
+    private final String[] keys;
+    private final String[] keyLabels;
+    private final boolean descending;
+    private final int pageSize;
+    private final DbPreparedStatement preparedStatement;
+    private Object[] lastKey = null;
+    private boolean afterKeyPrepared = false;
+    private boolean started = false;
+    private boolean pageOver = false;
+    private int rowsInPage = 0;
+    private boolean isClosed = false;
+
+    /**
+     * 
+     * @param session
+     * @param allfields
+     *            string representing the equivalent to "*" in "select *", which must include the
+     *            key columns
+     * @param table
+     * @param condition
+     *            optional condition (without WHERE), may be null
+     * @param conditionParameters
+     *            values of the parameters of the condition, may be null
+     * @param keys
+     *            the ordering columns, identifying uniquely a row
+     * @param descending
+     *            True for a descending order
+     * @param pageSize
+     *            the number of rows of a page
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     *             if the DbModel does not support keyset pagination
+     */
+    public DbKeysetPaginator(DbSession session, String allfields, String table,
+            String condition, Object[] conditionParameters, String[] keys, boolean descending,
+            int pageSize) throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        if (keys == null || keys.length == 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("Need at least one key and a positive page size");
+        }
+        DbAdmin admin = session.getAdmin();
+        DbModel dbModel = admin != null ? admin.getDbModel() : null;
+        if (!(dbModel instanceof DbModelAbstract)) {
+            throw new WaarpDatabaseSqlException(
+                    "Keyset pagination not supported by this database model");
+        }
+        this.model = (DbModelAbstract) dbModel;
+        this.allfields = allfields;
+        this.table = table;
+        this.condition = condition;
+        this.conditionParameters = conditionParameters != null ? conditionParameters
+                : new Object[0];
+        this.keys = keys;
+        this.keyLabels = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            // column label as given in the result, without table prefix
+            keyLabels[i] = keys[i].substring(keys[i].lastIndexOf('.') + 1).trim();
+        }
+        this.descending = descending;
+        this.pageSize = pageSize;
+        this.preparedStatement = new DbPreparedStatement(session);
+    }
+
+    /**
+     * @return True if a next page might exist (the previous page was full)
+     */
+    public boolean hasNext() {
+        if (isClosed) {
+            return false;
+        }
+        if (!started) {
+            return true;
+        }
+        if (!pageOver) {
+            skipPage();
+        }
+        return rowsInPage == pageSize && lastKey != null;
+    }
+
+    /**
+     * @return the DbPreparedStatement of the next page, executed and positioned before its first
+     *         row
+     * @throws NoSuchElementException
+     *             if there is no more page
+     * @throws IllegalStateException
+     *             if the page cannot be read, the cause being the original exception
+     */
+    public DbPreparedStatement next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            if (!started) {
+                preparedStatement.createPrepareStatement(model.getKeysetRequest(allfields,
+                        table, condition, keys, descending, false, pageSize));
+            } else if (!afterKeyPrepared) {
+                // prepared once for all next pages
+                preparedStatement.createPrepareStatement(model.getKeysetRequest(allfields,
+                        table, condition, keys, descending, true, pageSize));
+                afterKeyPrepared = true;
+            }
+            PreparedStatement statement = preparedStatement.getPreparedStatement();
+            int rank = 1;
+            for (Object value : conditionParameters) {
+                statement.setObject(rank++, value);
+            }
+            if (started) {
+                for (Object value : model.getKeysetParameters(lastKey)) {
+                    statement.setObject(rank++, value);
+                }
+            }
+            started = true;
+            rowsInPage = 0;
+            pageOver = false;
+            preparedStatement.executeQuery();
+        } catch (SQLException e) {
+            DbSession.error(e);
+            close();
+            throw new IllegalStateException("SQL Exception while reading page", e);
+        } catch (WaarpDatabaseNoConnectionException e) {
+            close();
+            throw new IllegalStateException("SQL Exception while reading page", e);
+        } catch (WaarpDatabaseSqlException e) {
+            close();
+            throw new IllegalStateException("SQL Exception while reading page", e);
+        }
+        return preparedStatement;
+    }
+
+    /**
+     * Move to the next row of the current page, recording its key
+     * 
+     * @return True if a row is available
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public boolean getNext() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (pageOver || !started) {
+            return false;
+        }
+        if (!preparedStatement.getNext()) {
+            pageOver = true;
+            return false;
+        }
+        rowsInPage++;
+        ResultSet resultSet = preparedStatement.getResultSet();
+        Object[] key = new Object[keyLabels.length];
+        try {
+            for (int i = 0; i < keyLabels.length; i++) {
+                key[i] = resultSet.getObject(keyLabels[i]);
+            }
+        } catch (SQLException e) {
+            DbSession.error(e);
+            throw new WaarpDatabaseSqlException("Cannot read the key of the row", e);
+        }
+        lastKey = key;
+        return true;
+    }
+
+    /**
+     * Read the remaining rows of the current page to know its last key
+     */
+    private void skipPage() {
+        try {
+            while (getNext()) {
+                // skip
+            }
+        } catch (WaarpDatabaseNoConnectionException e) {
+            close();
+            throw new IllegalStateException("SQL Exception while reading page", e);
+        } catch (WaarpDatabaseSqlException e) {
+            close();
+            throw new IllegalStateException("SQL Exception while reading page", e);
+        }
+    }
+
+    /**
+     * Start the pagination after the given key (as a previous getLastKey), the first page being
+     * then the rows following this key
+     * 
+     * @param key
+     *            the values of the key columns
+     */
+    public void startAfter(Object[] key) {
+        if (started) {
+            throw new IllegalStateException("Pagination already started");
+        }
+        if (key == null || key.length != keys.length) {
+            throw new IllegalArgumentException("Need one value per key column");
+        }
+        lastKey = key;
+        started = true;
+        pageOver = true;
+        rowsInPage = pageSize;
+    }
+
+    /**
+     * 
+     * @return the values of the key columns of the last row read, null if none
+     */
+    public Object[] getLastKey() {
+        return lastKey;
+    }
+
+    /**
+     * Not supported
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("Read only paginator");
+    }
+
+    /**
+     * Close the underlying DbPreparedStatement
+     */
+    public void close() {
+        if (isClosed) {
+            return;
+        }
+        isClosed = true;
+        preparedStatement.realClose();
+    }
+}
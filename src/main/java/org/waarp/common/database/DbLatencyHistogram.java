@@ -0,0 +1,166 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.waarp.common.json.JsonHandler;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Lock-free latency histogram with fixed buckets (in ms), cheap enough to be always on
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbLatencyHistogram {
+    /**
+     * Upper bounds (exclusive) in ms of each bucket, the last bucket having no upper bound
+     */
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record one value
+     * 
+     * @param nanos
+     *            elapsed time in ns
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long ms = nanos / 1000000;
+        int i = 0;
+        while (i < BOUNDS.length && ms >= BOUNDS[i]) {
+            i++;
+        }
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * 
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * 
+     * @return the total recorded time in ns
+     */
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * 
+     * @return the mean in ms
+     */
+    public double getMeanMs() {
+        long nb = count.get();
+        if (nb == 0) {
+            return 0;
+        }
+        return totalNanos.get() / 1000000.0 / nb;
+    }
+
+    /**
+     * 
+     * @return the max in ms
+     */
+    public double getMaxMs() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * 
+     * @param percentile
+     *            between 0 and 100
+     * @return the upper bound in ms of the bucket containing this percentile (-1 if beyond the last
+     *         bound, 0 if empty)
+     */
+    public long getPercentileMs(double percentile) {
+        long nb = count.get();
+        if (nb == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(nb * percentile / 100.0);
+        long sum = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            sum += buckets.get(i);
+            if (sum >= target) {
+                return BOUNDS[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reset all values
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /**
+     * 
+     * @return the Json representation of this histogram
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("count", count.get());
+        node.put("meanMs", getMeanMs());
+        node.put("maxMs", getMaxMs());
+        node.put("p50Ms", getPercentileMs(50));
+        node.put("p99Ms", getPercentileMs(99));
+        ObjectNode histo = node.putObject("buckets");
+        for (int i = 0; i < BOUNDS.length; i++) {
+            histo.put("<" + BOUNDS[i], buckets.get(i));
+        }
+        histo.put(">=" + BOUNDS[BOUNDS.length - 1], buckets.get(BOUNDS.length));
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
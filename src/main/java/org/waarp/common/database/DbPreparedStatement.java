@@ -20,6 +20,7 @@ package org.waarp.common.database;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -64,6 +65,31 @@ public class DbPreparedStatement {
      */
     private final DbSession ls;
 
+    /**
+     * Generation of the DbSession PreparedStatement cache at creation (-1 if not from the cache)
+     */
+    private int cacheGeneration = -1;
+
+    /**
+     * Number of rows read from the current resultSet when traced (-1 if not traced)
+     */
+    private long tracedRows = -1;
+
+    /**
+     * Max duration in ms of each execution of this statement (0 for none, see DbDeadline)
+     */
+    private long timeout = 0;
+
+    /**
+     * Query timeout in seconds currently set on the preparedStatement
+     */
+    private int queryTimeout = 0;
+
+    /**
+     * Last cursor opened on the preparedStatement
+     */
+    private DbCursor<?> cursor = null;
+
     /**
      * Create a DbPreparedStatement from DbSession object
      * 
@@ -120,6 +146,7 @@ public class DbPreparedStatement {
             this.request = request;
             setReady(true);
         } catch (SQLException e) {
+            ls.invalidateLastValid();
             ls.checkConnection();
             try {
                 preparedStatement = this.ls.getConn().prepareStatement(request);
@@ -173,6 +200,7 @@ public class DbPreparedStatement {
             this.preparedStatement.setFetchSize(nbFetch);
             setReady(true);
         } catch (SQLException e) {
+            ls.invalidateLastValid();
             ls.checkConnection();
             try {
                 preparedStatement = this.ls.getConn().prepareStatement(request);
@@ -217,13 +245,14 @@ public class DbPreparedStatement {
             ls.checkConnection();
         }
         try {
-            preparedStatement = ls.getConn().prepareStatement(requestarg);
+            preparedStatement = prepareStatement(requestarg);
             request = requestarg;
             setReady(true);
         } catch (SQLException e) {
+            ls.invalidateLastValid();
             ls.checkConnection();
             try {
-                preparedStatement = ls.getConn().prepareStatement(requestarg);
+                preparedStatement = prepareStatement(requestarg);
                 request = requestarg;
                 setReady(true);
             } catch (SQLException e1) {
@@ -240,6 +269,24 @@ public class DbPreparedStatement {
         }
     }
 
+    /**
+     * Get the PreparedStatement from the DbSession cache if any
+     * 
+     * @param requestarg
+     * @return the PreparedStatement
+     * @throws SQLException
+     */
+    private PreparedStatement prepareStatement(String requestarg) throws SQLException {
+        queryTimeout = 0;
+        DbPreparedStatementCache cache = ls.getPreparedStatementCache();
+        if (cache == null) {
+            cacheGeneration = -1;
+            return ls.getConn().prepareStatement(requestarg);
+        }
+        cacheGeneration = cache.getGeneration();
+        return cache.acquire(ls.getConn(), requestarg);
+    }
+
     /**
      * In case of closing database connection, it is possible to reopen a long term
      * preparedStatement as it was at creation.
@@ -276,18 +323,84 @@ public class DbPreparedStatement {
                     "Request cannot be executed since connection was recreated between: " +
                             request);
         }
+        DbStatementWatchdog.Watch watch = startDeadline();
+        long start = DbStatementTracer.start();
         try {
             rs = preparedStatement.executeQuery();
         } catch (SQLException e) {
+            DbStatementTracer.end(ls, request, null, start, true);
+            boolean cancelled = endDeadline(watch, e);
             logger.error("SQL Exception executeQuery:" + request + " " +
                     e.getMessage());
             DbSession.error(e);
             close();
             rs = null;
+            String message = "SQL Exception executeQuery: " + request;
+            if (cancelled) {
+                message = cleanAfterCancel(message);
+            }
             ls.checkConnectionNoException();
+            throw new WaarpDatabaseSqlException(message, e);
+        }
+        endDeadline(watch, null);
+        if (start != 0) {
+            DbStatementTracer.end(ls, request, request.indexOf('?') < 0 ? request : null, start, false);
+            tracedRows = 0;
+        }
+    }
+
+    /**
+     * Execute a Select preparedStatement as a streaming cursor
+     * 
+     * @param mapper
+     *            mapper from each row to an object
+     * @return the cursor on the result, to be closed once used
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public <E> DbCursor<E> executeCursor(DbCursor.RowMapper<E> mapper)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (preparedStatement == null) {
+            logger.error("executeCursor no request");
+            throw new WaarpDatabaseNoConnectionException(
+                    "executeCursor no request");
+        }
+        if (rs != null) {
+            close();
+        }
+        if (ls.isDisActive()) {
+            ls.checkConnection();
             throw new WaarpDatabaseSqlException(
-                    "SQL Exception executeQuery: " + request, e);
+                    "Request cannot be executed since connection was recreated between: " +
+                            request);
         }
+        closeCursor();
+        DbCursor<E> cursor = new DbCursor<E>(ls, preparedStatement, mapper);
+        this.cursor = cursor;
+        DbStatementWatchdog.Watch watch = startDeadline();
+        long start = DbStatementTracer.start();
+        try {
+            rs = preparedStatement.executeQuery();
+        } catch (SQLException e) {
+            DbStatementTracer.end(ls, request, null, start, true);
+            boolean cancelled = endDeadline(watch, e);
+            logger.error("SQL Exception executeCursor:" + request + " " +
+                    e.getMessage());
+            DbSession.error(e);
+            cursor.close();
+            rs = null;
+            String message = "SQL Exception executeCursor: " + request;
+            if (cancelled) {
+                message = cleanAfterCancel(message);
+            }
+            ls.checkConnectionNoException();
+            throw new WaarpDatabaseSqlException(message, e);
+        }
+        endDeadline(watch, null);
+        DbStatementTracer.end(ls, request, null, start, false);
+        cursor.setResultSet(rs);
+        return cursor;
     }
 
     /**
@@ -314,25 +427,196 @@ public class DbPreparedStatement {
                             request);
         }
         int retour = -1;
+        DbStatementWatchdog.Watch watch = startDeadline();
+        long start = DbStatementTracer.start();
         try {
             retour = preparedStatement.executeUpdate();
         } catch (SQLException e) {
+            DbStatementTracer.end(ls, request, null, start, true);
+            boolean cancelled = endDeadline(watch, e);
             logger.error("SQL Exception executeUpdate:" + request + " " +
                     e.getMessage());
             logger.debug("SQL Exception full stack trace", e);
             DbSession.error(e);
+            String message = "SQL Exception executeUpdate: " + request;
+            if (cancelled) {
+                message = cleanAfterCancel(message);
+            }
             ls.checkConnectionNoException();
-            throw new WaarpDatabaseSqlException(
-                    "SQL Exception executeUpdate: " + request, e);
+            throw new WaarpDatabaseSqlException(message, e);
+        }
+        endDeadline(watch, null);
+        if (start != 0) {
+            DbStatementTracer.end(ls, request, request.indexOf('?') < 0 ? request : null, start, false);
+            DbStatementTracer.rows(request, retour);
         }
         return retour;
     }
 
+    /**
+     * Add the current set of parameters to the batch of this preparedStatement
+     * 
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public void addBatch() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (preparedStatement == null) {
+            logger.error("addBatch no request");
+            throw new WaarpDatabaseNoConnectionException(
+                    "addBatch no request");
+        }
+        try {
+            preparedStatement.addBatch();
+        } catch (SQLException e) {
+            logger.error("SQL Exception addBatch:" + request + " " +
+                    e.getMessage());
+            DbSession.error(e);
+            ls.checkConnectionNoException();
+            throw new WaarpDatabaseSqlException(
+                    "SQL Exception addBatch: " + request, e);
+        }
+    }
+
+    /**
+     * Execute the current batch of Update/Insert/Delete preparedStatement
+     * 
+     * @return the number of row for each element of the batch (as in JDBC executeBatch)
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     *             if the batch failed, the cause being the original BatchUpdateException if any
+     */
+    public int[] executeBatch() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (preparedStatement == null) {
+            logger.error("executeBatch no request");
+            throw new WaarpDatabaseNoConnectionException(
+                    "executeBatch no request");
+        }
+        if (rs != null) {
+            close();
+        }
+        if (ls.isDisActive()) {
+            ls.checkConnection();
+            throw new WaarpDatabaseSqlException(
+                    "Request cannot be executed since connection was recreated between:" +
+                            request);
+        }
+        DbStatementWatchdog.Watch watch = startDeadline();
+        long start = DbStatementTracer.start();
+        try {
+            int[] results = preparedStatement.executeBatch();
+            endDeadline(watch, null);
+            if (start != 0) {
+                DbStatementTracer.end(ls, request, null, start, false);
+                long nb = 0;
+                for (int result : results) {
+                    if (result > 0) {
+                        nb += result;
+                    }
+                }
+                DbStatementTracer.rows(request, nb);
+            }
+            return results;
+        } catch (SQLException e) {
+            DbStatementTracer.end(ls, request, null, start, true);
+            boolean cancelled = endDeadline(watch, e);
+            logger.error("SQL Exception executeBatch:" + request + " " +
+                    e.getMessage());
+            logger.debug("SQL Exception full stack trace", e);
+            DbSession.error(e);
+            try {
+                preparedStatement.clearBatch();
+            } catch (SQLException e1) {
+                // ignore
+            }
+            String message = "SQL Exception executeBatch: " + request;
+            if (cancelled) {
+                message = cleanAfterCancel(message);
+            }
+            ls.checkConnectionNoException();
+            throw new WaarpDatabaseSqlException(message, e);
+        }
+    }
+
+    /**
+     * 
+     * @param timeout
+     *            max duration in ms of each execution of this statement (0 for none), further
+     *            limited by the deadline of the current thread (see DbDeadline)
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * 
+     * @return the max duration in ms of each execution of this statement (0 for none)
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Apply the remaining time as query timeout and watch the next execution
+     * 
+     * @return the watch of the execution, null if no deadline
+     * @throws WaarpDatabaseSqlException
+     *             if the deadline is already exceeded
+     */
+    private DbStatementWatchdog.Watch startDeadline() throws WaarpDatabaseSqlException {
+        long remaining = DbDeadline.remaining(timeout);
+        try {
+            queryTimeout = DbStatementWatchdog.applyTimeout(preparedStatement, remaining,
+                    queryTimeout);
+        } catch (SQLException e) {
+            logger.warn("Deadline exceeded before executing: " + request);
+            throw new WaarpDatabaseSqlException("Deadline exceeded before executing: " +
+                    request, e);
+        }
+        return DbStatementWatchdog.watch(preparedStatement, remaining);
+    }
+
+    /**
+     * 
+     * @param watch
+     *            may be null
+     * @param e
+     *            the exception of the execution if any
+     * @return True if the execution was cancelled by the watchdog or by the driver query timeout
+     */
+    private boolean endDeadline(DbStatementWatchdog.Watch watch, SQLException e) {
+        boolean cancelled = watch != null && watch.done();
+        return e != null && (cancelled || e instanceof SQLTimeoutException);
+    }
+
+    /**
+     * After a cancelled execution, do not give back this statement to the cache and clean the
+     * current transaction (see DbSession.cleanAfterCancel)
+     * 
+     * @param message
+     *            message of the exception to throw
+     * @return the message, completed if the transaction of the shared session must be rolled back
+     *         by the caller
+     */
+    private String cleanAfterCancel(String message) {
+        logger.warn("Execution cancelled after its deadline: " + request);
+        cacheGeneration = -1;
+        if (ls.cleanAfterCancel()) {
+            return message + " (cancelled on a shared session: transaction to be rolled back)";
+        }
+        return message;
+    }
+
     /**
      * Close the resultSet if any
      * 
      */
     public void close() {
+        if (tracedRows >= 0) {
+            DbStatementTracer.rows(request, tracedRows);
+            tracedRows = -1;
+        }
         if (rs != null) {
             try {
                 rs.close();
@@ -342,6 +626,20 @@ public class DbPreparedStatement {
         }
     }
 
+    /**
+     * Close the last cursor if still open, restoring the statement out of streaming mode. If it
+     * cannot be restored, the statement is not given back to the cache.
+     */
+    private void closeCursor() {
+        if (cursor != null) {
+            cursor.close();
+            if (!cursor.isRestored()) {
+                cacheGeneration = -1;
+            }
+            cursor = null;
+        }
+    }
+
     /**
      * Really close the preparedStatement and the resultSet if any
      * 
@@ -349,14 +647,31 @@ public class DbPreparedStatement {
     public void realClose() {
         close();
         if (preparedStatement != null) {
+            closeCursor();
             if (ls.isDisActive()) {
                 ls.checkConnectionNoException();
             }
-            try {
-                preparedStatement.close();
-            } catch (SQLException e) {
-                ls.checkConnectionNoException();
+            if (queryTimeout != 0) {
+                // the next user of a cached statement must not inherit this timeout
+                try {
+                    preparedStatement.setQueryTimeout(0);
+                } catch (SQLException e) {
+                    cacheGeneration = -1;
+                }
+                queryTimeout = 0;
             }
+            DbPreparedStatementCache cache = ls.getPreparedStatementCache();
+            if (cacheGeneration >= 0 && cache != null && !ls.isDisActive()) {
+                // back to the cache of the session for the next usage
+                cache.release(request, preparedStatement, cacheGeneration);
+            } else {
+                try {
+                    preparedStatement.close();
+                } catch (SQLException e) {
+                    ls.checkConnectionNoException();
+                }
+            }
+            cacheGeneration = -1;
             preparedStatement = null;
         }
         setReady(false);
@@ -382,7 +697,11 @@ public class DbPreparedStatement {
                     "Request cannot be executed since connection was recreated between");
         }
         try {
-            return rs.next();
+            boolean next = rs.next();
+            if (next && tracedRows >= 0) {
+                tracedRows++;
+            }
+            return next;
         } catch (SQLException e) {
             logger.error("SQL Exception to getNextRow" + (request != null ? " [" + request + "]" : "") + " "
                     + e.getMessage());
@@ -0,0 +1,294 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Bounded LRU cache of PreparedStatement of one DbSession, keyed by the SQL text.<br>
+ * <br>
+ * A cached PreparedStatement is removed from the cache while used by one DbPreparedStatement
+ * (acquire) and given back when this one is closed (release), such that a PreparedStatement is
+ * never shared. When the associated connection is changed, the current statements are closed and
+ * their SQL texts are prepared again on the new connection by rebuild.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbPreparedStatementCache {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbPreparedStatementCache.class);
+
+    /**
+     * LRU map closing the eldest statement when the capacity is reached
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class StatementLruMap extends LinkedHashMap<String, PreparedStatement> {
+        private static final long serialVersionUID = 4398720316545614285L;
+        private final int capacity;
+        private final AtomicLong evictions;
+
+        private StatementLruMap(int capacity, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > capacity) {
+                evictions.incrementAndGet();
+                closeStatement(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final int capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final StatementLruMap statements;
+    /**
+     * SQL texts to prepare again on the next rebuild
+     */
+    private final Set<String> toRebuild = new LinkedHashSet<String>();
+    /**
+     * Changed each time the connection is changed: statements acquired with a previous generation
+     * are closed instead of being given back to the cache
+     */
+    private volatile int generation = 0;
+
+    /**
+     * 
+     * @param capacity
+     *            maximum number of idle statements kept in the cache
+     * @throws IllegalArgumentException
+     *             if capacity is not positive
+     */
+    public DbPreparedStatementCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.statements = new StatementLruMap(capacity, evictions);
+    }
+
+    /**
+     * 
+     * @return the current generation, to be kept before acquire and given back to release
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get a PreparedStatement for this SQL text, from the cache if any, else prepared from the
+     * connection. The statement is owned by the caller until release.
+     * 
+     * @param conn
+     * @param sql
+     * @return the PreparedStatement
+     * @throws SQLException
+     */
+    public PreparedStatement acquire(Connection conn, String sql) throws SQLException {
+        PreparedStatement preparedStatement;
+        synchronized (this) {
+            preparedStatement = statements.remove(sql);
+        }
+        if (preparedStatement != null) {
+            hits.incrementAndGet();
+            return preparedStatement;
+        }
+        misses.incrementAndGet();
+        return conn.prepareStatement(sql);
+    }
+
+    /**
+     * Give back a PreparedStatement previously acquired, clearing its parameters and its pending
+     * batch if any (as after a failure between addBatch and executeBatch). If it cannot be reused
+     * (obsolete generation, already an idle one for this SQL text or not cleared), it is closed.
+     * 
+     * @param sql
+     * @param preparedStatement
+     * @param fromGeneration
+     *            the generation got before acquire
+     */
+    public void release(String sql, PreparedStatement preparedStatement, int fromGeneration) {
+        if (preparedStatement == null) {
+            return;
+        }
+        try {
+            preparedStatement.clearParameters();
+        } catch (SQLException e) {
+            closeStatement(preparedStatement);
+            return;
+        }
+        try {
+            preparedStatement.clearBatch();
+        } catch (SQLFeatureNotSupportedException e) {
+            // no batch support so nothing pending
+        } catch (SQLException e) {
+            closeStatement(preparedStatement);
+            return;
+        }
+        PreparedStatement previous = null;
+        synchronized (this) {
+            if (fromGeneration != generation || sql == null) {
+                previous = preparedStatement;
+            } else {
+                previous = statements.put(sql, preparedStatement);
+            }
+        }
+        if (previous != null) {
+            closeStatement(previous);
+        }
+    }
+
+    /**
+     * The connection is no more valid: close all idle statements but keep their SQL texts for the
+     * next rebuild. Statements currently in use will be closed on release.
+     */
+    public void invalidate() {
+        List<PreparedStatement> toClose;
+        synchronized (this) {
+            generation++;
+            toRebuild.addAll(statements.keySet());
+            toClose = new ArrayList<PreparedStatement>(statements.values());
+            statements.clear();
+        }
+        for (PreparedStatement preparedStatement : toClose) {
+            closeStatement(preparedStatement);
+        }
+    }
+
+    /**
+     * Prepare again on the new connection the SQL texts of the statements known before the
+     * connection was changed
+     * 
+     * @param conn
+     *            the new connection
+     */
+    public void rebuild(Connection conn) {
+        invalidate();
+        if (conn == null) {
+            return;
+        }
+        List<String> sqls;
+        int fromGeneration;
+        synchronized (this) {
+            sqls = new ArrayList<String>(toRebuild);
+            toRebuild.clear();
+            fromGeneration = generation;
+        }
+        logger.debug("Rebuild PreparedStatement cache: " + sqls.size());
+        Iterator<String> iterator = sqls.iterator();
+        while (iterator.hasNext()) {
+            String sql = iterator.next();
+            try {
+                release(sql, conn.prepareStatement(sql), fromGeneration);
+            } catch (SQLException e) {
+                logger.debug("Cannot rebuild PreparedStatement: " + sql, e);
+            }
+        }
+    }
+
+    /**
+     * Close all idle statements and forget them (closing connection)
+     */
+    public void clear() {
+        invalidate();
+        synchronized (this) {
+            toRebuild.clear();
+        }
+    }
+
+    /**
+     * 
+     * @return the number of idle statements
+     */
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * 
+     * @return the maximum number of idle statements
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 
+     * @return the number of acquire served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 
+     * @return the number of acquire that needed a new prepare
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 
+     * @return the number of statements closed due to the capacity
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static void closeStatement(PreparedStatement preparedStatement) {
+        try {
+            preparedStatement.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedStatementCache: " + size() + "/" + capacity + " hits: " + getHits() +
+                " misses: " + getMisses() + " evictions: " + getEvictions();
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * One read replica endpoint of a DbAdmin, used by read only DbSessions.<br>
+ * <br>
+ * A replica is used while healthy: a connection error or a failed health check (connection not
+ * valid, or replication lag over the staleness bound if any) removes it from the routing until the
+ * next successful health check.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbReplica {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbReplica.class);
+
+    private final String server;
+    private final String user;
+    private final String passwd;
+    /**
+     * Own pool if the DbModel supports it, else direct connections
+     */
+    private final DbConnectionPool pool;
+    /**
+     * Request returning the replication lag in ms (null if not supported)
+     */
+    private volatile String lagRequest;
+    /**
+     * Maximum replication lag in ms (0 for no bound)
+     */
+    private volatile long maxLag;
+    private volatile boolean healthy = true;
+    private volatile long lastCheck = 0;
+    private volatile long lag = -1;
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+
+    /**
+     * 
+     * @param server
+     * @param user
+     * @param passwd
+     * @param pool
+     *            the pool for this replica (null for direct connections)
+     * @param lagRequest
+     *            request returning the replication lag in ms (null if not supported)
+     * @param maxLag
+     *            maximum replication lag in ms (0 for no bound)
+     */
+    public DbReplica(String server, String user, String passwd, DbConnectionPool pool,
+            String lagRequest, long maxLag) {
+        this.server = server;
+        this.user = user;
+        this.passwd = passwd;
+        this.pool = pool;
+        this.lagRequest = lagRequest;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * 
+     * @return a new connection to this replica
+     * @throws SQLException
+     */
+    private Connection newConnection() throws SQLException {
+        if (pool != null) {
+            return pool.getConnection();
+        }
+        return DriverManager.getConnection(server, user, passwd);
+    }
+
+    /**
+     * 
+     * @return a connection to this replica for a read only DbSession, or null if this replica is
+     *         not usable
+     */
+    Connection getConnection() {
+        if (!healthy) {
+            return null;
+        }
+        try {
+            Connection conn = newConnection();
+            routed.incrementAndGet();
+            return conn;
+        } catch (SQLException e) {
+            logger.warn("Replica in error, failover: " + server + " " + e.getMessage());
+            markFailure();
+            return null;
+        }
+    }
+
+    /**
+     * Remove this replica from the routing until the next successful health check
+     */
+    public void markFailure() {
+        healthy = false;
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Check the health of this replica: valid connection and replication lag within the bound
+     * 
+     * @return True if healthy
+     */
+    public boolean check() {
+        checks.incrementAndGet();
+        boolean valid = false;
+        Connection conn = null;
+        try {
+            conn = newConnection();
+            valid = conn.isValid(DbConstant.VALIDTESTDURATION);
+            String request = lagRequest;
+            if (valid && request != null) {
+                Statement statement = conn.createStatement();
+                try {
+                    ResultSet resultSet = statement.executeQuery(request);
+                    if (resultSet.next()) {
+                        lag = resultSet.getLong(1);
+                    }
+                    resultSet.close();
+                } finally {
+                    statement.close();
+                }
+                long bound = maxLag;
+                if (bound > 0 && lag > bound) {
+                    logger.info("Replica too stale: " + server + " lag: " + lag);
+                    valid = false;
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug("Replica check in error: " + server, e);
+            valid = false;
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+        }
+        if (!valid && healthy) {
+            failures.incrementAndGet();
+        }
+        healthy = valid;
+        lastCheck = System.currentTimeMillis();
+        return valid;
+    }
+
+    /**
+     * Release the associated resources
+     */
+    void close() {
+        if (pool != null) {
+            try {
+                pool.dispose();
+            } catch (SQLException e) {
+                logger.debug("Cannot dispose replica pool: " + server, e);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param lagRequest
+     *            request returning the replication lag in ms (null if not supported)
+     * @param maxLag
+     *            maximum replication lag in ms (0 for no bound)
+     */
+    public void setStalenessBound(String lagRequest, long maxLag) {
+        this.lagRequest = lagRequest;
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * @return the server
+     */
+    public String getServer() {
+        return server;
+    }
+
+    /**
+     * @return the pool of this replica (null if none)
+     */
+    public DbConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return True if this replica is currently used
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * @return the last replication lag in ms (-1 if unknown)
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * @return the number of DbSessions routed to this replica
+     */
+    public long getRouted() {
+        return routed.get();
+    }
+
+    /**
+     * @return the number of failures
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * 
+     * @return the metrics of this route as Json
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("server", server);
+        node.put("healthy", healthy);
+        node.put("lag", lag);
+        node.put("maxLag", maxLag);
+        node.put("lastCheck", lastCheck);
+        node.put("checks", checks.get());
+        node.put("routed", getRouted());
+        node.put("failures", getFailures());
+        if (pool != null) {
+            node.set("pool", pool.getMonitor().toJson());
+        }
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return "Replica: " + server + " healthy: " + healthy + " lag: " + lag + " routed: " +
+                getRouted() + " failures: " + getFailures();
+    }
+}
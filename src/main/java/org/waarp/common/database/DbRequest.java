@@ -19,6 +19,7 @@ package org.waarp.common.database;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
@@ -55,6 +56,16 @@ public class DbRequest {
      */
     private final DbSession ls;
 
+    /**
+     * Template of the current request when traced (null if not traced)
+     */
+    private String tracedTemplate = null;
+
+    /**
+     * Number of rows read from the current resultSet when traced
+     */
+    private long tracedRows = 0;
+
     /**
      * Create a new request from the DbSession
      * 
@@ -90,6 +101,7 @@ public class DbRequest {
         try {
             return ls.getConn().createStatement();
         } catch (SQLException e) {
+            ls.invalidateLastValid();
             ls.checkConnection();
             try {
                 return ls.getConn().createStatement();
@@ -111,63 +123,97 @@ public class DbRequest {
     public void select(String select)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException {
+        select(select, 0);
+    }
+
+    /**
+     * Execute a SELECT statement and set of Result. The statement must not be an
+     * update/insert/delete. The previous statement and resultSet are closed.
+     * The timeout is applied if > 0, further limited by the deadline of the current thread (see
+     * DbDeadline).
+     * 
+     * @param select
+     * @param timeout
+     *            in seconds
+     * @throws WaarpDatabaseSqlException
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public void select(String select, int timeout)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
         close();
         stmt = createStatement();
+        DbStatementWatchdog.Watch watch = startDeadline(select, timeout > 0 ? timeout * 1000L : 0);
         // rs = stmt.executeQuery(select);
         // or alternatively, if you don't know ahead of time that
         // the query will be a SELECT...
+        long start = DbStatementTracer.start();
         try {
             if (stmt.execute(select)) {
                 rs = stmt.getResultSet();
             }
         } catch (SQLException e) {
+            traceEnd(select, start, true);
+            boolean cancelled = endDeadline(watch, e);
             logger.error("SQL Exception Request:" + select + " " +
                     e.getMessage());
             DbSession.error(e);
+            String message = "SQL Exception Request:" + select;
+            if (cancelled) {
+                message = cleanAfterCancel(select, message);
+            }
             ls.checkConnectionNoException();
-            throw new WaarpDatabaseSqlException("SQL Exception Request:" +
-                    select, e);
+            throw new WaarpDatabaseSqlException(message, e);
         }
+        endDeadline(watch, null);
+        tracedTemplate = traceEnd(select, start, false);
     }
 
     /**
-     * Execute a SELECT statement and set of Result. The statement must not be an
-     * update/insert/delete. The previous statement and resultSet are closed.
-     * The timeout is applied if > 0.
+     * Execute a SELECT statement as a streaming cursor. The previous statement and resultSet are
+     * closed.
      * 
      * @param select
-     * @param timeout
-     *            in seconds
-     * @throws WaarpDatabaseSqlException
+     * @param mapper
+     *            mapper from each row to an object
+     * @return the cursor on the result, to be closed once used (before closing this DbRequest)
      * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
      */
-    public void select(String select, int timeout)
+    public <E> DbCursor<E> selectCursor(String select, DbCursor.RowMapper<E> mapper)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException {
         close();
         stmt = createStatement();
-        if (timeout > 0) {
-            try {
-                stmt.setQueryTimeout(timeout);
-            } catch (SQLException e1) {
-                // ignore
-            }
+        DbCursor<E> cursor;
+        try {
+            cursor = new DbCursor<E>(ls, stmt, mapper);
+        } catch (WaarpDatabaseSqlException e) {
+            close();
+            throw e;
         }
-        // rs = stmt.executeQuery(select);
-        // or alternatively, if you don't know ahead of time that
-        // the query will be a SELECT...
+        DbStatementWatchdog.Watch watch = startDeadline(select, 0);
+        long start = DbStatementTracer.start();
         try {
-            if (stmt.execute(select)) {
-                rs = stmt.getResultSet();
-            }
+            rs = stmt.executeQuery(select);
         } catch (SQLException e) {
+            traceEnd(select, start, true);
+            boolean cancelled = endDeadline(watch, e);
             logger.error("SQL Exception Request:" + select + " " +
                     e.getMessage());
             DbSession.error(e);
+            cursor.close();
+            String message = "SQL Exception Request:" + select;
+            if (cancelled) {
+                message = cleanAfterCancel(select, message);
+            }
             ls.checkConnectionNoException();
-            throw new WaarpDatabaseSqlException("SQL Exception Request:" +
-                    select, e);
+            throw new WaarpDatabaseSqlException(message, e);
         }
+        endDeadline(watch, null);
+        traceEnd(select, start, false);
+        cursor.setResultSet(rs);
+        return cursor;
     }
 
     /**
@@ -183,24 +229,112 @@ public class DbRequest {
             WaarpDatabaseSqlException {
         close();
         stmt = createStatement();
+        DbStatementWatchdog.Watch watch = startDeadline(query, 0);
+        long start = DbStatementTracer.start();
         try {
             int rowcount = stmt.executeUpdate(query);
+            endDeadline(watch, null);
+            String template = traceEnd(query, start, false);
+            DbStatementTracer.rows(template, rowcount);
             logger.debug("QUERY(" + rowcount + "): {}", query);
             return rowcount;
         } catch (SQLException e) {
+            traceEnd(query, start, true);
+            boolean cancelled = endDeadline(watch, e);
             logger.error("SQL Exception Request:" + query + " " +
                     e.getMessage());
             DbSession.error(e);
+            String message = "SQL Exception Request:" + query;
+            if (cancelled) {
+                message = cleanAfterCancel(query, message);
+            }
             ls.checkConnectionNoException();
-            throw new WaarpDatabaseSqlException("SQL Exception Request:" +
-                    query, e);
+            throw new WaarpDatabaseSqlException(message, e);
+        }
+    }
+
+    /**
+     * Apply the remaining time as query timeout and watch the next execution
+     * 
+     * @param sql
+     * @param timeout
+     *            max duration in ms of this execution (0 for none)
+     * @return the watch of the execution, null if no deadline
+     * @throws WaarpDatabaseSqlException
+     *             if the deadline is already exceeded
+     */
+    private DbStatementWatchdog.Watch startDeadline(String sql, long timeout)
+            throws WaarpDatabaseSqlException {
+        long remaining = DbDeadline.remaining(timeout);
+        try {
+            DbStatementWatchdog.applyTimeout(stmt, remaining, 0);
+        } catch (SQLException e) {
+            logger.warn("Deadline exceeded before executing: " + sql);
+            close();
+            throw new WaarpDatabaseSqlException("Deadline exceeded before executing: " + sql, e);
         }
+        return DbStatementWatchdog.watch(stmt, remaining);
+    }
+
+    /**
+     * 
+     * @param watch
+     *            may be null
+     * @param e
+     *            the exception of the execution if any
+     * @return True if the execution was cancelled by the watchdog or by the driver query timeout
+     */
+    private boolean endDeadline(DbStatementWatchdog.Watch watch, SQLException e) {
+        boolean cancelled = watch != null && watch.done();
+        return e != null && (cancelled || e instanceof SQLTimeoutException);
+    }
+
+    /**
+     * After a cancelled execution, close the cancelled statement and clean the current transaction
+     * (see DbSession.cleanAfterCancel)
+     * 
+     * @param sql
+     * @param message
+     *            message of the exception to throw
+     * @return the message, completed if the transaction of the shared session must be rolled back
+     *         by the caller
+     */
+    private String cleanAfterCancel(String sql, String message) {
+        logger.warn("Execution cancelled after its deadline: " + sql);
+        close();
+        if (ls.cleanAfterCancel()) {
+            return message + " (cancelled on a shared session: transaction to be rolled back)";
+        }
+        return message;
+    }
+
+    /**
+     * Record the end of the execution of a request if traced
+     * 
+     * @param sql
+     * @param start
+     *            as given by DbStatementTracer.start()
+     * @param error
+     * @return the template of the request, or null if not traced
+     */
+    private String traceEnd(String sql, long start, boolean error) {
+        if (start == 0) {
+            return null;
+        }
+        String template = DbStatementTracer.template(sql);
+        DbStatementTracer.end(ls, template, error ? null : sql, start, error);
+        return template;
     }
 
     /**
      * Finished a Request (ready for a new one)
      */
     public void close() {
+        if (tracedTemplate != null) {
+            DbStatementTracer.rows(tracedTemplate, tracedRows);
+            tracedTemplate = null;
+            tracedRows = 0;
+        }
         // it is a good idea to release
         // resources in a finally{} block
         // in reverse-order of their creation
@@ -267,7 +401,11 @@ public class DbRequest {
                     "Request cannot be executed since connection was recreated between");
         }
         try {
-            return rs.next();
+            boolean next = rs.next();
+            if (next && tracedTemplate != null) {
+                tracedRows++;
+            }
+            return next;
         } catch (SQLException e) {
             logger.warn("SQL Exception to getNextRow" + " " + e.getMessage());
             DbSession.error(e);
@@ -0,0 +1,315 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModel;
+import org.waarp.common.database.model.DbModelAbstract;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Retry policy for transient database failures: exponential backoff with jitter between
+ * attempts, only for errors classified as transient by the DbModel, and through the circuit
+ * breaker of the DbAdmin.<br>
+ * <br>
+ * Deadlocks and serialization failures (DbModelAbstract.isTransactionRollback) are retried only
+ * when the action covers a whole transaction (executeTransaction) or when the session is in
+ * autocommit (executeOnSession), since the database has already rolled back the previous work of the transaction
+ * which retrying one statement would silently lose.<br>
+ * <br>
+ * This class might be extended to change the delays or the classification of errors.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbRetryPolicy {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbRetryPolicy.class);
+
+    /**
+     * Action to retry
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static interface Action<E> {
+        /**
+         * 
+         * @return the result of the action
+         * @throws WaarpDatabaseNoConnectionException
+         * @throws WaarpDatabaseSqlException
+         */
+        public E run() throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException;
+    }
+
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double jitter;
+
+    /**
+     * Policy using DbAdmin.RETRYNB attempts, DbAdmin.WAITFORNETOP as first delay,
+     * DbConstant.RETRYMAXDELAY and DbConstant.RETRYJITTER
+     */
+    public DbRetryPolicy() {
+        this(DbAdmin.RETRYNB, DbAdmin.WAITFORNETOP, DbConstant.RETRYMAXDELAY,
+                DbConstant.RETRYJITTER);
+    }
+
+    /**
+     * 
+     * @param maxRetries
+     *            max number of attempts
+     * @param baseDelay
+     *            delay in ms after the first failure, doubled after each next one
+     * @param maxDelay
+     *            max delay in ms between 2 attempts
+     * @param jitter
+     *            part (between 0 and 1) of each delay which is random
+     */
+    public DbRetryPolicy(int maxRetries, long baseDelay, long maxDelay, double jitter) {
+        this.maxRetries = Math.max(1, maxRetries);
+        this.baseDelay = Math.max(0, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+    }
+
+    /**
+     * 
+     * @return the max number of attempts
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 
+     * @param attempt
+     *            rank of the failed attempt (from 0)
+     * @return the delay in ms to wait before the next attempt
+     */
+    public long getDelay(int attempt) {
+        long delay = maxDelay;
+        if (attempt < 62 && (baseDelay << attempt) >> attempt == baseDelay) {
+            delay = Math.min(maxDelay, baseDelay << attempt);
+        }
+        if (jitter > 0 && delay > 0) {
+            long random = (long) (delay * jitter);
+            if (random > 0) {
+                delay = delay - random + ThreadLocalRandom.current().nextLong(random + 1);
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Wait before the next attempt
+     * 
+     * @param attempt
+     *            rank of the failed attempt (from 0)
+     * @return False if interrupted (the interrupted status being kept)
+     */
+    public boolean backoff(int attempt) {
+        long delay = getDelay(attempt);
+        if (delay <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @param e
+     * @param model
+     *            the DbModel classifying SQL errors, may be null
+     * @return True if the error is transient, such that an action covering a whole transaction
+     *         (or in autocommit) might be retried
+     */
+    public boolean isRetryable(Throwable e, DbModel model) {
+        return isRetryable(e, model, true);
+    }
+
+    /**
+     * 
+     * @param e
+     * @param model
+     *            the DbModel classifying SQL errors, may be null
+     * @param wholeTransaction
+     *            True if the action covers a whole transaction or runs in autocommit, False if
+     *            it is a part of a transaction (then transaction rollbacks are not retryable)
+     * @return True if the error is transient, such that the action might be retried
+     */
+    public boolean isRetryable(Throwable e, DbModel model, boolean wholeTransaction) {
+        if (e instanceof WaarpDatabaseNoConnectionException) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                if (model instanceof DbModelAbstract) {
+                    DbModelAbstract modelAbstract = (DbModelAbstract) model;
+                    if (!wholeTransaction
+                            && modelAbstract.isTransactionRollback((SQLException) cause)) {
+                        return false;
+                    }
+                    return modelAbstract.isTransientError((SQLException) cause);
+                }
+                return isConnectionError((SQLException) cause);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @param e
+     * @return True if the error comes from the connection (and not from the request)
+     */
+    public static boolean isConnectionError(SQLException e) {
+        if (e instanceof SQLRecoverableException
+                || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLTransientConnectionException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    /**
+     * 
+     * @param e
+     * @return True if the error comes from the connection to the database
+     */
+    private static boolean isConnectionFailure(Throwable e) {
+        if (e instanceof WaarpDatabaseNoConnectionException) {
+            return true;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException) {
+                return isConnectionError((SQLException) cause);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Execute the action, part of a transaction, retrying it on transient errors after a backoff,
+     * and failing fast when the circuit breaker of the DbAdmin is open. Transaction rollbacks are
+     * not retried.
+     * 
+     * @param admin
+     *            the DbAdmin giving the DbModel and the circuit breaker, may be null
+     * @param action
+     * @return the result of the action
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public <E> E execute(DbAdmin admin, Action<E> action)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        return execute(admin, false, action);
+    }
+
+    /**
+     * Execute the action on the session, retrying it on transient errors after a backoff, and
+     * failing fast when the circuit breaker of the DbAdmin is open. Transaction rollbacks are
+     * retried only if the session is in autocommit.
+     * 
+     * @param session
+     * @param action
+     * @return the result of the action
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public <E> E executeOnSession(DbSession session, Action<E> action)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        return execute(session.getAdmin(), session.isAutoCommit(), action);
+    }
+
+    /**
+     * Execute the action covering a whole transaction (from its first statement to its commit),
+     * retrying it on transient errors including transaction rollbacks after a backoff, and
+     * failing fast when the circuit breaker of the DbAdmin is open
+     * 
+     * @param admin
+     *            the DbAdmin giving the DbModel and the circuit breaker, may be null
+     * @param action
+     * @return the result of the action
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public <E> E executeTransaction(DbAdmin admin, Action<E> action)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        return execute(admin, true, action);
+    }
+
+    private <E> E execute(DbAdmin admin, boolean wholeTransaction, Action<E> action)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        DbCircuitBreaker breaker = admin != null ? admin.getCircuitBreaker() : null;
+        DbModel model = admin != null ? admin.getDbModel() : null;
+        for (int attempt = 0;; attempt++) {
+            if (breaker != null && !breaker.allowRequest()) {
+                throw new WaarpDatabaseNoConnectionException(
+                        "Database unavailable: circuit breaker open");
+            }
+            Exception error;
+            try {
+                E result = action.run();
+                if (breaker != null) {
+                    breaker.onSuccess();
+                }
+                return result;
+            } catch (WaarpDatabaseNoConnectionException e) {
+                error = e;
+            } catch (WaarpDatabaseSqlException e) {
+                error = e;
+            }
+            if (breaker != null) {
+                if (isConnectionFailure(error)) {
+                    breaker.onFailure();
+                } else {
+                    // the database answered
+                    breaker.onSuccess();
+                }
+            }
+            if (attempt + 1 >= maxRetries || !isRetryable(error, model, wholeTransaction)
+                    || !backoff(attempt)) {
+                if (error instanceof WaarpDatabaseNoConnectionException) {
+                    throw (WaarpDatabaseNoConnectionException) error;
+                }
+                throw (WaarpDatabaseSqlException) error;
+            }
+            logger.debug("Retry after transient error: " + error.getMessage());
+        }
+    }
+}
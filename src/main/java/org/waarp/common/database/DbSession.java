@@ -29,6 +29,7 @@ import io.netty.util.Timeout;
 import io.netty.util.TimerTask;
 import io.netty.util.internal.ConcurrentSet;
 
+import org.waarp.common.database.data.DbWriteBehindQueue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.common.database.model.DbModel;
@@ -88,12 +89,47 @@ public class DbSession {
      */
     private volatile boolean isDisActive = true;
 
+    /**
+     * Last time (ms) the connection was known as valid, 0 if unknown or in error
+     */
+    private volatile long lastValid = 0;
+
+    /**
+     * Does the driver support batch updates (null if not yet known)
+     */
+    private volatile Boolean supportBatchUpdates = null;
+
     /**
      * List all DbPrepareStatement with long term usage to enable the recreation when the associated
      * connection is reopened
      */
     private final Set<DbPreparedStatement> listPreparedStatement = new ConcurrentSet<DbPreparedStatement>();
 
+    /**
+     * Cache of PreparedStatement for this connection (null if disabled)
+     */
+    private final DbPreparedStatementCache preparedStatementCache =
+            DbConstant.PREPAREDSTATEMENTCACHESIZE > 0 ?
+                    new DbPreparedStatementCache(DbConstant.PREPAREDSTATEMENTCACHESIZE) : null;
+
+    /**
+     * Optional write-behind queue of updates for this session
+     */
+    private volatile DbWriteBehindQueue writeBehindQueue = null;
+
+    /**
+     * Health of this session as recorded by the health checks
+     */
+    private final DbSessionHealth health = new DbSessionHealth();
+    /**
+     * Group commit of the threads sharing this session (null for one commit per call)
+     */
+    private volatile DbGroupCommit groupCommit = null;
+    /**
+     * True if the current transaction was left in an unknown state by a cancelled statement
+     */
+    private volatile boolean transactionInvalid = false;
+
     private void initialize(DbModel dbModel, String server, String user, String passwd, boolean isReadOnly,
             boolean autoCommit) throws WaarpDatabaseNoConnectionException {
         if (!DbModelFactory.classLoaded.contains(dbModel.getDbType().name())) {
@@ -106,9 +142,37 @@ public class DbSession {
             throw new WaarpDatabaseNoConnectionException(
                     "Cannot set a null Server");
         }
+        DbCircuitBreaker breaker = getAdmin() != null ? getAdmin().getCircuitBreaker() : null;
         try {
             this.setAutoCommit(autoCommit);
-            setConn(dbModel.getDbConnection(server, user, passwd));
+            Connection replicaConn = null;
+            if (isReadOnly && getAdmin() != null) {
+                replicaConn = getAdmin().getReplicaConnection();
+            }
+            if (replicaConn != null) {
+                setConn(replicaConn);
+            } else {
+                // fail fast while the database recovers
+                if (breaker != null && !breaker.allowRequest()) {
+                    setConn(null);
+                    setDisActive(true);
+                    throw new WaarpDatabaseNoConnectionException(
+                            "Database unavailable: circuit breaker open");
+                }
+                try {
+                    setConn(dbModel.getDbConnection(server, user, passwd));
+                } catch (SQLException e) {
+                    if (breaker != null) {
+                        breaker.onFailure();
+                    }
+                    throw e;
+                }
+                if (breaker != null) {
+                    breaker.onSuccess();
+                }
+            }
+            // just given (and validated according to its policy) by the pool
+            setLastValid();
             getConn().setAutoCommit(this.isAutoCommit());
             this.setReadOnly(isReadOnly);
             getConn().setReadOnly(this.isReadOnly());
@@ -347,7 +411,9 @@ public class DbSession {
             Thread.currentThread().interrupt();
         }
         logger.debug("DbConnection still in use: " + nbThread);
+        closeWriteBehindQueue();
         removeLongTermPreparedStatements();
+        clearPreparedStatementCache();
         DbAdmin.removeConnection(getInternalId());
         setDisActive(true);
         try {
@@ -390,7 +456,9 @@ public class DbSession {
             return;
         }
         synchronized (this) {
+            closeWriteBehindQueue();
             removeLongTermPreparedStatements();
+            clearPreparedStatementCache();
             DbAdmin.removeConnection(getInternalId());
             setDisActive(true);
             try {
@@ -430,10 +498,13 @@ public class DbSession {
     }
 
     /**
+     * To be called after an error: the connection will be really validated whatever the
+     * validation policy
      * 
      * @return True if the connection was successfully reconnected
      */
     public boolean checkConnectionNoException() {
+        invalidateLastValid();
         try {
             checkConnection();
             return true;
@@ -462,6 +533,9 @@ public class DbSession {
             WaarpDatabaseSqlException {
         WaarpDatabaseNoConnectionException elast = null;
         WaarpDatabaseSqlException e2last = null;
+        if (preparedStatementCache != null) {
+            preparedStatementCache.rebuild(getConn());
+        }
         logger.info("RecreateLongTermPreparedStatements: " + listPreparedStatement.size());
         for (DbPreparedStatement longterm : listPreparedStatement) {
             try {
@@ -498,6 +572,61 @@ public class DbSession {
         listPreparedStatement.clear();
     }
 
+    /**
+     * 
+     * @return the cache of PreparedStatement of this session (null if disabled)
+     */
+    public DbPreparedStatementCache getPreparedStatementCache() {
+        return preparedStatementCache;
+    }
+
+    /**
+     * Close all cached PreparedStatements (closing connection)
+     */
+    private void clearPreparedStatementCache() {
+        if (preparedStatementCache != null) {
+            preparedStatementCache.clear();
+        }
+    }
+
+    /**
+     * Set the write-behind queue of updates for this session (null to disable). The previous one
+     * if any is flushed and closed.
+     * 
+     * @param writeBehindQueue
+     */
+    public void setWriteBehindQueue(DbWriteBehindQueue writeBehindQueue) {
+        if (this.writeBehindQueue != writeBehindQueue) {
+            closeWriteBehindQueue();
+        }
+        this.writeBehindQueue = writeBehindQueue;
+    }
+
+    /**
+     * 
+     * @return the write-behind queue of updates for this session (null if disabled)
+     */
+    public DbWriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    /**
+     * Write all pending updates and stop the write-behind queue if any
+     */
+    private void closeWriteBehindQueue() {
+        DbWriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            writeBehindQueue = null;
+            try {
+                queue.close();
+            } catch (WaarpDatabaseNoConnectionException e) {
+                logger.warn("Pending updates not written: " + queue, e);
+            } catch (WaarpDatabaseSqlException e) {
+                logger.warn("Pending updates not written: " + queue, e);
+            }
+        }
+    }
+
     /**
      * Remove one Long Term PreparedStatement
      * 
@@ -508,7 +637,7 @@ public class DbSession {
     }
 
     /**
-     * Commit everything
+     * Commit everything, including the pending updates of the write-behind queue if any
      * 
      * @throws WaarpDatabaseSqlException
      * @throws WaarpDatabaseNoConnectionException
@@ -520,14 +649,28 @@ public class DbSession {
             throw new WaarpDatabaseNoConnectionException(
                     "Cannot commit since connection is null");
         }
+        DbWriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.flush();
+        }
         if (this.isAutoCommit()) {
             return;
         }
         if (isDisActive()) {
             checkConnection();
         }
+        if (transactionInvalid) {
+            logger.warn("Cannot commit since a statement was cancelled: rollback needed");
+            throw new WaarpDatabaseSqlException(
+                    "Cannot commit since a statement was cancelled: rollback needed");
+        }
         try {
-            getConn().commit();
+            DbGroupCommit group = groupCommit;
+            if (group != null) {
+                group.commit(this);
+            } else {
+                getConn().commit();
+            }
         } catch (SQLException e) {
             logger.error("Cannot Commit");
             error(e);
@@ -556,6 +699,7 @@ public class DbSession {
         try {
             if (savepoint == null) {
                 getConn().rollback();
+                transactionInvalid = false;
             } else {
                 getConn().rollback(savepoint);
             }
@@ -619,6 +763,27 @@ public class DbSession {
         }
     }
 
+    /**
+     * 
+     * @return True if the underlying driver supports batch updates
+     */
+    public boolean supportBatchUpdates() {
+        Boolean support = supportBatchUpdates;
+        if (support == null) {
+            if (getConn() == null) {
+                return false;
+            }
+            try {
+                support = getConn().getMetaData().supportsBatchUpdates();
+            } catch (SQLException e) {
+                logger.debug("Cannot get batch support from driver", e);
+                support = Boolean.FALSE;
+            }
+            supportBatchUpdates = support;
+        }
+        return support;
+    }
+
     /**
      * @return the isReadOnly
      */
@@ -651,6 +816,13 @@ public class DbSession {
      * @param conn the conn to set
      */
     public void setConn(Connection conn) {
+        if (preparedStatementCache != null && this.conn != null && this.conn != conn) {
+            // cached statements belong to the previous connection
+            preparedStatementCache.invalidate();
+        }
+        if (this.conn != conn) {
+            transactionInvalid = false;
+        }
         this.conn = conn;
     }
 
@@ -668,6 +840,96 @@ public class DbSession {
         this.internalId = internalId;
     }
 
+    /**
+     * @return the last time (ms) the connection was known as valid, 0 if unknown or in error
+     */
+    public long getLastValid() {
+        return lastValid;
+    }
+
+    /**
+     * Mark the connection as valid now
+     */
+    public void setLastValid() {
+        this.lastValid = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark the connection as suspect, such that the next check will validate it whatever the
+     * validation policy
+     */
+    public void invalidateLastValid() {
+        this.lastValid = 0;
+    }
+
+    /**
+     * @return the health of this session as recorded by the health checks
+     */
+    public DbSessionHealth getHealth() {
+        return health;
+    }
+
+    /**
+     * @return the group commit of the threads sharing this session, null if each commit is
+     *         issued immediately (strict mode)
+     */
+    public DbGroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * @param groupCommit
+     *            the group commit of the threads sharing this session, null for strict mode (each
+     *            commit issued immediately)
+     */
+    public void setGroupCommit(DbGroupCommit groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    /**
+     * @return True if this session may be used by several threads at the same time: the session of
+     *         its DbAdmin, one used by several clients (see useConnection) or one with a group
+     *         commit
+     */
+    public boolean isShared() {
+        return nbThread.get() > 1 || groupCommit != null ||
+                (admin != null && admin.getSession() == this);
+    }
+
+    /**
+     * @return True if the current transaction was left in an unknown state by a cancelled
+     *         statement: commit fails until a rollback
+     */
+    public boolean isTransactionInvalid() {
+        return transactionInvalid;
+    }
+
+    /**
+     * After a statement cancelled after its deadline, clean the current transaction (if not in
+     * autocommit). If this session is not shared, the transaction is rolled back such that the
+     * connection is clean for its next usage. Else a rollback would silently discard the
+     * uncommitted work of the other threads, so the transaction is only marked as invalid: commits
+     * fail until a rollback.
+     * 
+     * @return True if the transaction was marked as invalid instead of being rolled back
+     */
+    boolean cleanAfterCancel() {
+        if (isAutoCommit() || getConn() == null) {
+            return false;
+        }
+        if (isShared()) {
+            transactionInvalid = true;
+            logger.warn("Statement cancelled on a shared session: transaction to be rolled back");
+            return true;
+        }
+        try {
+            getConn().rollback();
+        } catch (SQLException e) {
+            logger.debug("Cannot rollback after cancel", e);
+        }
+        return false;
+    }
+
     /**
      * @return the isDisActive
      */
@@ -0,0 +1,151 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.json.JsonHandler;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Health of one DbSession as recorded by the health checks (DbHealthCheck)
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbSessionHealth {
+    private final AtomicBoolean inCheck = new AtomicBoolean(false);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastCheck = 0;
+    private volatile long lastLatency = 0;
+
+    /**
+     * 
+     * @return True if the caller is the only one to check the session now
+     */
+    boolean tryStartCheck() {
+        return inCheck.compareAndSet(false, true);
+    }
+
+    /**
+     * Cancel a started check without result
+     */
+    void cancelCheck() {
+        inCheck.set(false);
+    }
+
+    /**
+     * Record the result of a check
+     * 
+     * @param valid
+     * @param latencyNs
+     */
+    void endCheck(boolean valid, long latencyNs) {
+        checks.incrementAndGet();
+        lastLatency = latencyNs;
+        if (valid) {
+            consecutiveFailures.set(0);
+        } else {
+            failures.incrementAndGet();
+            consecutiveFailures.incrementAndGet();
+        }
+        lastCheck = System.currentTimeMillis();
+        inCheck.set(false);
+    }
+
+    /**
+     * 
+     * @return True if the last check succeeded (or if never checked)
+     */
+    public boolean isHealthy() {
+        return consecutiveFailures.get() == 0;
+    }
+
+    /**
+     * 
+     * @return True if a check is currently running on the session
+     */
+    public boolean isInCheck() {
+        return inCheck.get();
+    }
+
+    /**
+     * 
+     * @return the time (ms) of the last check, 0 if never checked
+     */
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    /**
+     * 
+     * @return the duration in ns of the last check
+     */
+    public long getLastLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * 
+     * @return the number of failed checks since the last successful one
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * 
+     * @return the total number of checks
+     */
+    public long getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * 
+     * @return the total number of failed checks
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * 
+     * @return the Json representation of this health
+     */
+    public ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("healthy", isHealthy());
+        node.put("lastCheck", lastCheck);
+        node.put("lastLatencyUs", lastLatency / 1000);
+        node.put("consecutiveFailures", getConsecutiveFailures());
+        node.put("checks", getChecks());
+        node.put("failures", getFailures());
+        return node;
+    }
+
+    @Override
+    public String toString() {
+        return JsonHandler.writeAsString(toJson());
+    }
+}
@@ -0,0 +1,425 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.database.model.DbModel;
+import org.waarp.common.database.model.DbModelAbstract;
+import org.waarp.common.json.JsonHandler;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Per statement latency tracing and slow query log, used by DbPreparedStatement and DbRequest.<br>
+ * <br>
+ * Statements are grouped by template: the SQL of a PreparedStatement, or the SQL of a Request
+ * where literals are replaced by '?'. When disabled, the cost is one volatile read per statement.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbStatementTracer {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbStatementTracer.class);
+
+    /**
+     * Template used once the maximum number of templates is reached
+     */
+    public static final String OTHERS = "[others]";
+
+    /**
+     * Statistics of one statement template
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static class StatementStats {
+        private final DbLatencyHistogram latency = new DbLatencyHistogram();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong slow = new AtomicLong();
+        private volatile String explain = null;
+
+        /**
+         * 
+         * @return the latency histogram of executions
+         */
+        public DbLatencyHistogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * 
+         * @return the number of rows read or updated
+         */
+        public long getRows() {
+            return rows.get();
+        }
+
+        /**
+         * 
+         * @return the number of executions in error
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * 
+         * @return the number of slow executions
+         */
+        public long getSlow() {
+            return slow.get();
+        }
+
+        /**
+         * 
+         * @return the plan captured at the first slow execution, or null
+         */
+        public String getExplain() {
+            return explain;
+        }
+
+        /**
+         * 
+         * @return the Json representation of those statistics
+         */
+        public ObjectNode toJson() {
+            ObjectNode node = latency.toJson();
+            node.put("rows", rows.get());
+            node.put("errors", errors.get());
+            node.put("slow", slow.get());
+            if (explain != null) {
+                node.put("explain", explain);
+            }
+            return node;
+        }
+    }
+
+    private static volatile boolean enabled = DbConstant.STATEMENTTRACING;
+    private static volatile long slowThresholdNanos = DbConstant.SLOWQUERYTHRESHOLD * 1000000L;
+    private static volatile boolean explainSlow = DbConstant.SLOWQUERYEXPLAIN;
+
+    private static final ConcurrentHashMap<String, StatementStats> stats =
+            new ConcurrentHashMap<String, StatementStats>();
+
+    private DbStatementTracer() {
+    }
+
+    /**
+     * 
+     * @param enable
+     *            True to trace statements
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 
+     * @return True if statements are traced
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 
+     * @param thresholdMs
+     *            execution time in ms from which a statement is logged as slow (0 or less to log
+     *            none)
+     * @param explain
+     *            True to capture the plan of the database at the first slow execution of each
+     *            template (only for statements without parameters)
+     */
+    public static void setSlowQuery(long thresholdMs, boolean explain) {
+        slowThresholdNanos = thresholdMs * 1000000L;
+        explainSlow = explain;
+    }
+
+    /**
+     * 
+     * @return the execution time in ms from which a statement is logged as slow
+     */
+    public static long getSlowQueryThreshold() {
+        return slowThresholdNanos / 1000000L;
+    }
+
+    /**
+     * 
+     * @return the start time to give to end(), or 0 if tracing is disabled
+     */
+    static long start() {
+        if (enabled) {
+            long start = System.nanoTime();
+            return start == 0 ? 1 : start;
+        }
+        return 0;
+    }
+
+    /**
+     * Record the end of the execution of a statement
+     * 
+     * @param session
+     *            the session to use to capture the plan (may be null)
+     * @param template
+     * @param sql
+     *            the executable SQL to capture the plan, null if not possible (only SELECT are
+     *            explained)
+     * @param start
+     *            as given by start()
+     * @param error
+     *            True if the execution failed
+     */
+    static void end(DbSession session, String template, String sql, long start, boolean error) {
+        if (start == 0 || template == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        StatementStats stat = getOrCreate(template);
+        stat.latency.record(elapsed);
+        if (error) {
+            stat.errors.incrementAndGet();
+        }
+        long threshold = slowThresholdNanos;
+        if (threshold > 0 && elapsed >= threshold) {
+            stat.slow.incrementAndGet();
+            logger.warn("Slow query (" + (elapsed / 1000000L) + " ms): " + template);
+            if (explainSlow && stat.explain == null && sql != null && session != null) {
+                String plan = explain(session, sql);
+                if (plan != null) {
+                    stat.explain = plan;
+                    logger.warn("Slow query plan: " + template + "\n" + plan);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the number of rows read or updated by a statement
+     * 
+     * @param template
+     * @param nb
+     */
+    static void rows(String template, long nb) {
+        if (template == null || nb <= 0) {
+            return;
+        }
+        getOrCreate(template).rows.addAndGet(nb);
+    }
+
+    private static StatementStats getOrCreate(String template) {
+        StatementStats stat = stats.get(template);
+        if (stat == null) {
+            if (stats.size() >= DbConstant.STATEMENTTRACINGMAXTEMPLATES) {
+                template = OTHERS;
+            }
+            stat = new StatementStats();
+            StatementStats previous = stats.putIfAbsent(template, stat);
+            if (previous != null) {
+                stat = previous;
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * 
+     * @param sql
+     * @return True if this SQL is a query (SELECT), the only statements that can be explained
+     *         without side effect
+     */
+    static boolean isSelect(String sql) {
+        int len = sql.length();
+        int i = 0;
+        while (i < len && (Character.isWhitespace(sql.charAt(i)) || sql.charAt(i) == '(')) {
+            i++;
+        }
+        return sql.regionMatches(true, i, "SELECT", 0, 6);
+    }
+
+    /**
+     * Capture the plan of the statement from the database.<br>
+     * <br>
+     * Outside autocommit, the plan is captured under a savepoint, such that a failing EXPLAIN
+     * (which aborts the current transaction on PostgreSQL) cannot harm the work of the caller.
+     * 
+     * @param session
+     * @param sql
+     * @return the plan, or null if not available
+     */
+    private static String explain(DbSession session, String sql) {
+        DbAdmin admin = session.getAdmin();
+        DbModel model = admin != null ? admin.getDbModel() : null;
+        Connection conn = session.getConn();
+        if (!(model instanceof DbModelAbstract) || conn == null || !isSelect(sql)) {
+            return null;
+        }
+        String request = ((DbModelAbstract) model).getExplainRequest(sql);
+        if (request == null) {
+            return null;
+        }
+        Savepoint savepoint = null;
+        try {
+            if (!conn.getAutoCommit()) {
+                savepoint = conn.setSavepoint();
+            }
+        } catch (SQLException e) {
+            logger.debug("Cannot explain without savepoint: " + sql + " " + e.getMessage());
+            return null;
+        }
+        Statement statement = null;
+        ResultSet resultSet = null;
+        try {
+            statement = conn.createStatement();
+            resultSet = statement.executeQuery(request);
+            int nb = resultSet.getMetaData().getColumnCount();
+            StringBuilder builder = new StringBuilder();
+            while (resultSet.next()) {
+                for (int i = 1; i <= nb; i++) {
+                    if (i > 1) {
+                        builder.append(' ');
+                    }
+                    builder.append(resultSet.getString(i));
+                }
+                builder.append('\n');
+            }
+            return builder.toString();
+        } catch (SQLException e) {
+            logger.debug("Cannot explain: " + sql + " " + e.getMessage());
+            if (savepoint != null) {
+                try {
+                    conn.rollback(savepoint);
+                } catch (SQLException e1) {
+                    logger.warn("Cannot rollback to savepoint after explain: " + e1.getMessage());
+                }
+            }
+            return null;
+        } finally {
+            if (resultSet != null) {
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (statement != null) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                }
+            }
+            if (savepoint != null) {
+                try {
+                    conn.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace literals (strings and numbers) by '?' such that similar requests share the same
+     * template
+     * 
+     * @param sql
+     * @return the template of this SQL
+     */
+    public static String template(String sql) {
+        if (sql == null) {
+            return null;
+        }
+        int len = sql.length();
+        StringBuilder builder = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                i++;
+                while (i < len) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < len && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                builder.append('?');
+                i++;
+            } else if (Character.isDigit(c) && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))) {
+                while (i < len && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                builder.append('?');
+            } else {
+                builder.append(c);
+                i++;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    /**
+     * 
+     * @param template
+     * @return the statistics of this template, or null if none
+     */
+    public static StatementStats getStats(String template) {
+        return stats.get(template);
+    }
+
+    /**
+     * Forget all statistics
+     */
+    public static void reset() {
+        stats.clear();
+    }
+
+    /**
+     * 
+     * @return the Json representation of the statistics of all templates
+     */
+    public static ObjectNode toJson() {
+        ObjectNode node = JsonHandler.createObjectNode();
+        node.put("enabled", enabled);
+        node.put("slowThresholdMs", getSlowQueryThreshold());
+        ObjectNode statements = node.putObject("statements");
+        for (Entry<String, StatementStats> entry : stats.entrySet()) {
+            statements.set(entry.getKey(), entry.getValue().toJson());
+        }
+        return node;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Watchdog cancelling the statements still running after their deadline (see DbDeadline).<br>
+ * <br>
+ * The query timeout given to the driver is in seconds and not enforced by all drivers, so each
+ * execution with a deadline is also watched: once the deadline is reached, Statement.cancel() is
+ * called. The execution then fails and its DbPreparedStatement or DbRequest restores a clean
+ * state: the statement is not reused, and the transaction is rolled back, or only marked as
+ * invalid if the DbSession is shared (see DbSession.cleanAfterCancel).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbStatementWatchdog {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbStatementWatchdog.class);
+
+    /**
+     * Shared timer for all watched executions
+     */
+    private static final Timer timer = new HashedWheelTimer(new WaarpThreadFactory("DbWatchdog"),
+            10, TimeUnit.MILLISECONDS, 1024);
+
+    private static final AtomicLong watched = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLING = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * One watched execution
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static class Watch implements TimerTask {
+        private final Statement statement;
+        private Timeout timeout;
+        private int state = RUNNING;
+
+        private Watch(Statement statement) {
+            this.statement = statement;
+        }
+
+        public void run(Timeout timeout) throws Exception {
+            synchronized (this) {
+                if (state != RUNNING) {
+                    return;
+                }
+                state = CANCELLING;
+            }
+            try {
+                statement.cancel();
+                cancelled.incrementAndGet();
+                logger.warn("Statement cancelled since its deadline is exceeded");
+            } catch (SQLException e) {
+                logger.debug("Cannot cancel statement", e);
+            } finally {
+                synchronized (this) {
+                    state = CANCELLED;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * To be called once the execution is over (in success or not)
+         * 
+         * @return True if the statement was cancelled by the watchdog
+         */
+        public boolean done() {
+            synchronized (this) {
+                if (state == RUNNING) {
+                    state = DONE;
+                    if (timeout != null) {
+                        timeout.cancel();
+                    }
+                    return false;
+                }
+                // do not let a late cancel hit the next execution
+                while (state == CANCELLING) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    private DbStatementWatchdog() {
+    }
+
+    /**
+     * Apply the remaining time as query timeout of the statement and watch its execution
+     * 
+     * @param statement
+     * @param remaining
+     *            as given by DbDeadline.remaining (NONE for no deadline)
+     * @param queryTimeout
+     *            query timeout in seconds currently set on the statement
+     * @return the query timeout in seconds now set on the statement
+     * @throws SQLException
+     *             if the deadline is already exceeded
+     */
+    static int applyTimeout(Statement statement, long remaining, int queryTimeout)
+            throws SQLException {
+        if (remaining <= 0) {
+            throw new SQLException("Deadline exceeded before execution", "HYT00");
+        }
+        int seconds = 0;
+        if (remaining != DbDeadline.NONE) {
+            seconds = (int) Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000);
+        }
+        if (seconds != queryTimeout) {
+            try {
+                statement.setQueryTimeout(seconds);
+            } catch (SQLException e) {
+                // unsupported: only the watchdog applies
+                return queryTimeout;
+            }
+        }
+        return seconds;
+    }
+
+    /**
+     * 
+     * @param statement
+     * @param remaining
+     *            in ms
+     * @return the watch of this execution, null if no deadline
+     */
+    static Watch watch(Statement statement, long remaining) {
+        if (remaining == DbDeadline.NONE) {
+            return null;
+        }
+        Watch watch = new Watch(statement);
+        synchronized (watch) {
+            watch.timeout = timer.newTimeout(watch, remaining, TimeUnit.MILLISECONDS);
+        }
+        watched.incrementAndGet();
+        return watch;
+    }
+
+    /**
+     * @return the number of executions watched
+     */
+    public static long getWatchedCount() {
+        return watched.get();
+    }
+
+    /**
+     * @return the number of statements cancelled
+     */
+    public static long getCancelledCount() {
+        return cancelled.get();
+    }
+}
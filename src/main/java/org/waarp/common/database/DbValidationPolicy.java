@@ -0,0 +1,63 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+/**
+ * Policy to decide when a connection (pooled or within a DbSession) must be validated through a
+ * round trip to the database (isValid() or equivalent request)
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public enum DbValidationPolicy {
+    /**
+     * Validate each time (default and historical behavior)
+     */
+    ALWAYS,
+    /**
+     * Validate only if the connection was not known as valid since more than the idle delay
+     */
+    IDLE,
+    /**
+     * Validate only after an error was detected on the connection
+     */
+    ONERROR;
+
+    /**
+     * 
+     * @param lastValid
+     *            last time in ms the connection was known as valid, 0 meaning unknown or in error
+     * @param idleDelay
+     *            delay in ms after which a connection not validated must be validated (IDLE only)
+     * @return True if the connection must be validated
+     */
+    public boolean needValidation(long lastValid, long idleDelay) {
+        if (lastValid <= 0) {
+            return true;
+        }
+        switch (this) {
+            case IDLE:
+                return lastValid + idleDelay < System.currentTimeMillis();
+            case ONERROR:
+                return false;
+            case ALWAYS:
+            default:
+                return true;
+        }
+    }
+}
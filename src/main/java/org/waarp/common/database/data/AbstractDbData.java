@@ -20,19 +20,38 @@ package org.waarp.common.database.data;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.BatchUpdateException;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbAsyncExecutor;
+import org.waarp.common.database.DbConstant;
+import org.waarp.common.database.DbCursor;
+import org.waarp.common.database.DbFuture;
 import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseBatchException;
 import org.waarp.common.database.exception.WaarpDatabaseException;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelAbstract;
 import org.waarp.common.json.JsonHandler;
 
 import com.fasterxml.jackson.databind.JsonNode;
@@ -89,6 +108,16 @@ public abstract class AbstractDbData {
         DONE;
     }
 
+    /**
+     * Kind of batch operation
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static enum BatchOperation {
+        INSERT, UPDATE, DELETE, UPSERT;
+    }
+
     /**
      * To be implemented
      */
@@ -102,6 +131,10 @@ public abstract class AbstractDbData {
     protected DbValue[] allFields;
 
     protected boolean isSaved = false;
+    /**
+     * True if allFields may not reflect the fields since a generated binder was used
+     */
+    private boolean valuesStale = false;
     /**
      * The DbSession to use
      */
@@ -152,6 +185,10 @@ public abstract class AbstractDbData {
         if (dbSession == null) {
             return false;
         }
+        DbDataCache cache = DbDataCache.getCache(getClass());
+        if (cache != null && cache.contains(this)) {
+            return true;
+        }
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
@@ -176,6 +213,13 @@ public abstract class AbstractDbData {
         if (dbSession == null) {
             throw new WaarpDatabaseNoDataException("No row found");
         }
+        DbDataCache cache = DbDataCache.getCache(getClass());
+        if (cache != null && cache.load(this)) {
+            setFromArray();
+            isSaved = true;
+            return;
+        }
+        long[] versions = cache != null ? cache.getVersions() : null;
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
@@ -186,9 +230,12 @@ public abstract class AbstractDbData {
             setValues(preparedStatement, primaryKey);
             preparedStatement.executeQuery();
             if (preparedStatement.getNext()) {
-                getValues(preparedStatement, allFields);
-                setFromArray();
+                readAllFields(preparedStatement.getResultSet());
                 isSaved = true;
+                if (cache != null) {
+                    syncValues();
+                    cache.store(this, versions);
+                }
             } else {
                 throw new WaarpDatabaseNoDataException("No row found");
             }
@@ -210,13 +257,12 @@ public abstract class AbstractDbData {
             isSaved = true;
             return;
         }
-        setToArray();
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
             preparedStatement.createPrepareStatement("INSERT INTO " + getTable() +
                     " (" + getSelectAllFields() + ") VALUES " + getInsertAllValues());
-            setValues(preparedStatement, allFields);
+            bindAllFields(preparedStatement);
             int count = preparedStatement.executeUpdate();
             if (count <= 0) {
                 throw new WaarpDatabaseNoDataException("No row found");
@@ -224,6 +270,7 @@ public abstract class AbstractDbData {
             isSaved = true;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
         }
     }
 
@@ -240,14 +287,13 @@ public abstract class AbstractDbData {
             isSaved = true;
             return;
         }
-        setToArray();
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
             preparedStatement.createPrepareStatement("UPDATE " + getTable() +
                     " SET " + getUpdateAllFields() + " WHERE " +
                     getWherePrimaryKey());
-            setValues(preparedStatement, allFields);
+            bindAllFields(preparedStatement);
             int count = preparedStatement.executeUpdate();
             if (count <= 0) {
                 throw new WaarpDatabaseNoDataException("No row found");
@@ -255,10 +301,50 @@ public abstract class AbstractDbData {
             isSaved = true;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
+        }
+    }
+
+    /**
+     * Insert object into table, or update it if its primary key already exists, in one statement
+     * native to the database (MERGE or INSERT ... ON CONFLICT/DUPLICATE KEY). If the database does
+     * not support it, falls back to exist() then update() or insert().
+     * 
+     * @throws WaarpDatabaseException
+     */
+    public void upsert() throws WaarpDatabaseException {
+        if (isSaved) {
+            return;
+        }
+        if (dbSession == null) {
+            isSaved = true;
+            return;
+        }
+        String request = getUpsertRequest();
+        if (request == null) {
+            if (exist()) {
+                update();
+            } else {
+                insert();
+            }
+            return;
+        }
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(
+                dbSession);
+        try {
+            preparedStatement.createPrepareStatement(request);
+            bindAllFields(preparedStatement);
+            // unchanged row may give 0 (MySQL)
+            preparedStatement.executeUpdate();
+            isSaved = true;
+        } finally {
+            preparedStatement.realClose();
+            invalidateCache();
         }
     }
 
     public DbValue[] getAllFields() {
+        syncValues();
         return allFields;
     }
 
@@ -285,9 +371,784 @@ public abstract class AbstractDbData {
             isSaved = false;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
         }
     }
 
+    /**
+     * 
+     * @return the executor of asynchronous operations of the DbSession of this object
+     */
+    protected DbAsyncExecutor getAsyncExecutor() {
+        return DbAsyncExecutor.getExecutor(dbSession);
+    }
+
+    /**
+     * Test the existence of the current object without blocking the caller
+     * 
+     * @return the future of exist()
+     */
+    public DbFuture<Boolean> existAsync() {
+        return getAsyncExecutor().submit(new Callable<Boolean>() {
+            public Boolean call() throws WaarpDatabaseException {
+                return exist();
+            }
+        });
+    }
+
+    /**
+     * Select object from table without blocking the caller
+     * 
+     * @return the future of select(), failed with a WaarpDatabaseNoDataException if not found
+     */
+    public DbFuture<Void> selectAsync() {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            public Void call() throws WaarpDatabaseException {
+                select();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Insert object into table without blocking the caller
+     * 
+     * @return the future of insert()
+     */
+    public DbFuture<Void> insertAsync() {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            public Void call() throws WaarpDatabaseException {
+                insert();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Update object to table without blocking the caller
+     * 
+     * @return the future of update()
+     */
+    public DbFuture<Void> updateAsync() {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            public Void call() throws WaarpDatabaseException {
+                update();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Insert or update object without blocking the caller
+     * 
+     * @return the future of upsert()
+     */
+    public DbFuture<Void> upsertAsync() {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            public Void call() throws WaarpDatabaseException {
+                upsert();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Delete object from table without blocking the caller
+     * 
+     * @return the future of delete()
+     */
+    public DbFuture<Void> deleteAsync() {
+        return getAsyncExecutor().submit(new Callable<Void>() {
+            public Void call() throws WaarpDatabaseException {
+                delete();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Insert all objects in one or more JDBC batches of DbConstant.BATCHSIZE rows
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @return the number of rows inserted for each object, in the collection order
+     * @throws WaarpDatabaseException
+     * @see #insertBatch(Collection, int)
+     */
+    public static int[] insertBatch(Collection<? extends AbstractDbData> datas)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, DbConstant.BATCHSIZE, BatchOperation.INSERT);
+    }
+
+    /**
+     * Insert all objects in one or more JDBC batches.<br>
+     * <br>
+     * Objects already saved are ignored (result 0). If the driver does not support batch, each
+     * object is inserted one by one.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @param batchSize
+     *            maximum number of rows sent in one batch
+     * @return the number of rows inserted for each object, in the collection order (or
+     *         Statement.SUCCESS_NO_INFO if the driver cannot tell)
+     * @throws WaarpDatabaseBatchException
+     *             if a row is in error, giving the result of each object
+     * @throws WaarpDatabaseException
+     */
+    public static int[] insertBatch(Collection<? extends AbstractDbData> datas, int batchSize)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, batchSize, BatchOperation.INSERT);
+    }
+
+    /**
+     * Update all objects in one or more JDBC batches of DbConstant.BATCHSIZE rows
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @return the number of rows updated for each object, in the collection order
+     * @throws WaarpDatabaseException
+     * @see #updateBatch(Collection, int)
+     */
+    public static int[] updateBatch(Collection<? extends AbstractDbData> datas)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, DbConstant.BATCHSIZE, BatchOperation.UPDATE);
+    }
+
+    /**
+     * Update all objects in one or more JDBC batches.<br>
+     * <br>
+     * Objects already saved are ignored (result 0). If the driver does not support batch, each
+     * object is updated one by one.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @param batchSize
+     *            maximum number of rows sent in one batch
+     * @return the number of rows updated for each object, in the collection order (or
+     *         Statement.SUCCESS_NO_INFO if the driver cannot tell)
+     * @throws WaarpDatabaseBatchException
+     *             if a row is in error, giving the result of each object
+     * @throws WaarpDatabaseException
+     */
+    public static int[] updateBatch(Collection<? extends AbstractDbData> datas, int batchSize)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, batchSize, BatchOperation.UPDATE);
+    }
+
+    /**
+     * Delete all objects in one or more JDBC batches of DbConstant.BATCHSIZE rows
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @return the number of rows deleted for each object, in the collection order
+     * @throws WaarpDatabaseException
+     * @see #deleteBatch(Collection, int)
+     */
+    public static int[] deleteBatch(Collection<? extends AbstractDbData> datas)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, DbConstant.BATCHSIZE, BatchOperation.DELETE);
+    }
+
+    /**
+     * Delete all objects in one or more JDBC batches.<br>
+     * <br>
+     * If the driver does not support batch, each object is deleted one by one.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @param batchSize
+     *            maximum number of rows sent in one batch
+     * @return the number of rows deleted for each object, in the collection order (or
+     *         Statement.SUCCESS_NO_INFO if the driver cannot tell)
+     * @throws WaarpDatabaseBatchException
+     *             if a row is in error, giving the result of each object
+     * @throws WaarpDatabaseException
+     */
+    public static int[] deleteBatch(Collection<? extends AbstractDbData> datas, int batchSize)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, batchSize, BatchOperation.DELETE);
+    }
+
+    /**
+     * Upsert all objects in one or more JDBC batches of DbConstant.BATCHSIZE rows
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @return the result for each object, in the collection order
+     * @throws WaarpDatabaseException
+     * @see #upsertBatch(Collection, int)
+     */
+    public static int[] upsertBatch(Collection<? extends AbstractDbData> datas)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, DbConstant.BATCHSIZE, BatchOperation.UPSERT);
+    }
+
+    /**
+     * Insert or update (see upsert()) all objects in one or more JDBC batches.<br>
+     * <br>
+     * Objects already saved are ignored (result 0). If the driver does not support batch or the
+     * database has no native upsert, each object is upserted one by one.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @param batchSize
+     *            maximum number of rows sent in one batch
+     * @return the result for each object as given by the driver (for MySQL/MariaDB: 1 inserted, 2
+     *         updated, 0 unchanged), in the collection order
+     * @throws WaarpDatabaseBatchException
+     *             if a row is in error, giving the result of each object
+     * @throws WaarpDatabaseException
+     */
+    public static int[] upsertBatch(Collection<? extends AbstractDbData> datas, int batchSize)
+            throws WaarpDatabaseException {
+        return executeBatch(datas, batchSize, BatchOperation.UPSERT);
+    }
+
+    /**
+     * Select all objects by primary key in chunks of DbConstant.BATCHSIZE keys
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession, with their primary key
+     *            set
+     * @return the objects not found
+     * @throws WaarpDatabaseException
+     * @see #selectBatch(Collection, int)
+     */
+    public static <E extends AbstractDbData> List<E> selectBatch(Collection<E> datas)
+            throws WaarpDatabaseException {
+        return selectBatch(datas, DbConstant.BATCHSIZE);
+    }
+
+    /**
+     * Select all objects by primary key, using one request per chunk of keys ("WHERE pk IN
+     * (?,...)" or OR of primary key conditions for a composite key) instead of one select() per
+     * object.<br>
+     * <br>
+     * Each object found is filled as by select(). The last chunk is padded by repeating its last
+     * key so that the very same request is used for all chunks. Objects found in the DbDataCache
+     * are not requested.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession, with their primary key
+     *            set
+     * @param batchSize
+     *            maximum number of keys in one request
+     * @return the objects not found, in the collection order
+     * @throws WaarpDatabaseException
+     */
+    public static <E extends AbstractDbData> List<E> selectBatch(Collection<E> datas,
+            int batchSize) throws WaarpDatabaseException {
+        List<E> missing = new ArrayList<E>();
+        if (datas.isEmpty()) {
+            return missing;
+        }
+        AbstractDbData first = checkSameType(datas);
+        DbSession session = first.dbSession;
+        if (session == null) {
+            for (E data : datas) {
+                try {
+                    data.select();
+                } catch (WaarpDatabaseNoDataException e) {
+                    missing.add(data);
+                }
+            }
+            return missing;
+        }
+        if (batchSize <= 0) {
+            batchSize = DbConstant.BATCHSIZE;
+        }
+        DbDataCache cache = DbDataCache.getCache(first.getClass());
+        // objects to request by key, keeping duplicates
+        Map<List<Object>, List<E>> pending = new LinkedHashMap<List<Object>, List<E>>();
+        for (E data : datas) {
+            if (cache != null && cache.load(data)) {
+                data.setFromArray();
+                data.isSaved = true;
+                continue;
+            }
+            data.setPrimaryKey();
+            // reported missing unless found by the request
+            data.isSaved = false;
+            List<Object> key = keyOf(data.primaryKey);
+            List<E> list = pending.get(key);
+            if (list == null) {
+                list = new ArrayList<E>(1);
+                pending.put(key, list);
+            }
+            list.add(data);
+        }
+        if (!pending.isEmpty()) {
+            long[] versions = cache != null ? cache.getVersions() : null;
+            if (batchSize > pending.size()) {
+                batchSize = pending.size();
+            }
+            DbValue[] keyColumns = first.primaryKey;
+            DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+            try {
+                preparedStatement.createPrepareStatement("SELECT " + first.getSelectAllFields() +
+                        " FROM " + first.getTable() + " WHERE " +
+                        getWherePrimaryKeys(keyColumns, batchSize));
+                List<List<E>> chunk = new ArrayList<List<E>>(batchSize);
+                for (List<E> list : pending.values()) {
+                    chunk.add(list);
+                    if (chunk.size() == batchSize) {
+                        selectChunk(preparedStatement, chunk, batchSize, cache, versions);
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    selectChunk(preparedStatement, chunk, batchSize, cache, versions);
+                }
+            } finally {
+                preparedStatement.realClose();
+            }
+        }
+        for (E data : datas) {
+            if (!data.isSaved) {
+                missing.add(data);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * 
+     * @param keyColumns
+     * @param nb
+     *            number of keys
+     * @return the condition selecting nb primary keys
+     */
+    private static String getWherePrimaryKeys(DbValue[] keyColumns, int nb) {
+        StringBuilder builder = new StringBuilder();
+        if (keyColumns.length == 1) {
+            builder.append(keyColumns[0].getColumn()).append(" IN (");
+            for (int i = 0; i < nb; i++) {
+                builder.append(i == 0 ? "?" : ",?");
+            }
+            return builder.append(')').toString();
+        }
+        builder.append('(');
+        for (int i = 0; i < nb; i++) {
+            builder.append(i == 0 ? "(" : " OR (");
+            for (int j = 0; j < keyColumns.length; j++) {
+                if (j > 0) {
+                    builder.append(" AND ");
+                }
+                builder.append(keyColumns[j].getColumn()).append(" = ?");
+            }
+            builder.append(')');
+        }
+        return builder.append(')').toString();
+    }
+
+    /**
+     * Execute the select request for one chunk of keys and fill the objects found
+     * 
+     * @param preparedStatement
+     * @param chunk
+     *            objects by distinct key
+     * @param batchSize
+     *            number of keys expected by the request
+     * @param cache
+     *            may be null
+     * @param versions
+     *            versions of the cache taken before the select
+     * @throws WaarpDatabaseException
+     */
+    private static <E extends AbstractDbData> void selectChunk(
+            DbPreparedStatement preparedStatement, List<List<E>> chunk, int batchSize,
+            DbDataCache cache, long[] versions) throws WaarpDatabaseException {
+        PreparedStatement ps = preparedStatement.getPreparedStatement();
+        Map<List<Object>, List<E>> byKey = new HashMap<List<Object>, List<E>>(chunk.size() * 2);
+        int rank = 1;
+        for (int i = 0; i < batchSize; i++) {
+            // padding with the last key
+            List<E> list = chunk.get(Math.min(i, chunk.size() - 1));
+            AbstractDbData data = list.get(0);
+            for (DbValue value : data.primaryKey) {
+                setTrueValue(ps, value, rank++);
+            }
+            if (i < chunk.size()) {
+                byKey.put(keyOf(data.primaryKey), list);
+            }
+        }
+        preparedStatement.executeQuery();
+        ResultSet rs = preparedStatement.getResultSet();
+        DbValue[] keyColumns = chunk.get(0).get(0).primaryKey;
+        while (preparedStatement.getNext()) {
+            Object[] key = new Object[keyColumns.length];
+            try {
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = keyPart(rs.getObject(keyColumns[i].getColumn()));
+                }
+            } catch (SQLException e) {
+                DbSession.error(e);
+                throw new WaarpDatabaseSqlException("Getting values in error", e);
+            }
+            List<E> list = byKey.remove(Arrays.asList(key));
+            if (list == null) {
+                continue;
+            }
+            for (AbstractDbData data : list) {
+                data.readAllFields(rs);
+                data.isSaved = true;
+                if (cache != null) {
+                    data.syncValues();
+                    cache.store(data, versions);
+                }
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param values
+     * @return the comparable key of these primary key values
+     */
+    private static List<Object> keyOf(DbValue[] values) {
+        Object[] key = new Object[values.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = keyPart(values[i].getValue());
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the value comparable whatever the Java type given by the driver (integral numbers
+     *         as Long, trailing spaces of CHAR removed, dates as milliseconds)
+     */
+    private static Object keyPart(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            if (decimal.signum() == 0 || decimal.stripTrailingZeros().scale() <= 0) {
+                return decimal.longValue();
+            }
+            return decimal.doubleValue();
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1L : 0L;
+        } else if (value instanceof String) {
+            String text = (String) value;
+            int end = text.length();
+            while (end > 0 && text.charAt(end - 1) == ' ') {
+                end--;
+            }
+            return text.substring(0, end);
+        } else if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).getTime();
+        } else if (value instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) value);
+        }
+        return value;
+    }
+
+    /**
+     * 
+     * @param datas
+     *            not empty
+     * @return the first object
+     * @throws WaarpDatabaseSqlException
+     *             if the objects are not of the same type and DbSession
+     */
+    private static AbstractDbData checkSameType(Collection<? extends AbstractDbData> datas)
+            throws WaarpDatabaseSqlException {
+        AbstractDbData first = datas.iterator().next();
+        for (AbstractDbData data : datas) {
+            if (data.getClass() != first.getClass() || data.dbSession != first.dbSession) {
+                throw new WaarpDatabaseSqlException(
+                        "Batch needs objects of the same type and DbSession: " +
+                                first.getClass().getName() + " vs " + data.getClass().getName());
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Common implementation of batch operations. Contrary to the one by one operations, a row not
+     * found does not raise an exception but gives a 0 result for this object.<br>
+     * <br>
+     * The operation stops at the first batch in error, with a WaarpDatabaseBatchException giving
+     * the result of each object: the rows of the previous batches are applied, those of the batch
+     * in error are applied as reported by the driver unless rolled back (see rollbackBatch), the
+     * next ones are not executed.
+     * 
+     * @param datas
+     * @param batchSize
+     * @param operation
+     * @return the per object results
+     * @throws WaarpDatabaseException
+     */
+    private static int[] executeBatch(Collection<? extends AbstractDbData> datas, int batchSize,
+            BatchOperation operation) throws WaarpDatabaseException {
+        int[] results = new int[datas.size()];
+        if (results.length == 0) {
+            return results;
+        }
+        AbstractDbData first = checkSameType(datas);
+        DbSession session = first.dbSession;
+        String request = session == null ? null : first.getBatchRequest(operation);
+        if (request == null || !session.supportBatchUpdates()) {
+            int rank = 0;
+            for (AbstractDbData data : datas) {
+                try {
+                    results[rank] = data.executeSingle(operation);
+                } catch (WaarpDatabaseException e) {
+                    results[rank] = Statement.EXECUTE_FAILED;
+                    throw new WaarpDatabaseBatchException("Batch in error at rank " + rank, e,
+                            results);
+                }
+                rank++;
+            }
+            return results;
+        }
+        if (batchSize <= 0) {
+            batchSize = DbConstant.BATCHSIZE;
+        }
+        AbstractDbData[] pending = new AbstractDbData[batchSize];
+        int[] positions = new int[batchSize];
+        int nbPending = 0;
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+        try {
+            preparedStatement.createPrepareStatement(request);
+            int rank = 0;
+            for (AbstractDbData data : datas) {
+                if (operation == BatchOperation.DELETE) {
+                    data.setPrimaryKey();
+                    data.setValues(preparedStatement, data.primaryKey);
+                } else if (data.isSaved) {
+                    results[rank++] = 0;
+                    continue;
+                } else {
+                    data.bindAllFields(preparedStatement);
+                }
+                preparedStatement.addBatch();
+                pending[nbPending] = data;
+                positions[nbPending] = rank++;
+                nbPending++;
+                if (nbPending == batchSize) {
+                    flushBatch(preparedStatement, pending, positions, nbPending, results,
+                            operation);
+                    nbPending = 0;
+                }
+            }
+            if (nbPending > 0) {
+                flushBatch(preparedStatement, pending, positions, nbPending, results,
+                        operation);
+            }
+        } finally {
+            preparedStatement.realClose();
+        }
+        return results;
+    }
+
+    /**
+     * Execute the current batch and dispatch its results
+     * 
+     * @param preparedStatement
+     * @param pending
+     *            objects of the current batch
+     * @param positions
+     *            position of each object of the current batch in results
+     * @param nbPending
+     *            number of objects in the current batch
+     * @param results
+     * @param operation
+     * @throws WaarpDatabaseBatchException
+     *             if the batch is in error
+     * @throws WaarpDatabaseException
+     */
+    private static void flushBatch(DbPreparedStatement preparedStatement,
+            AbstractDbData[] pending, int[] positions, int nbPending, int[] results,
+            BatchOperation operation) throws WaarpDatabaseException {
+        int[] counts;
+        try {
+            counts = preparedStatement.executeBatch();
+        } catch (WaarpDatabaseSqlException e) {
+            failBatch(e, pending, positions, nbPending, results, operation);
+            return;
+        }
+        pending[0].commitBatch();
+        for (int i = 0; i < nbPending; i++) {
+            int count = i < counts.length ? counts[i] : Statement.EXECUTE_FAILED;
+            results[positions[i]] = count;
+            pending[i].invalidateCache();
+            boolean done = count > 0 || count == Statement.SUCCESS_NO_INFO ||
+                    (operation == BatchOperation.UPSERT && count == 0);
+            if (done) {
+                pending[i].isSaved = operation != BatchOperation.DELETE;
+            }
+            pending[i] = null;
+        }
+    }
+
+    /**
+     * Dispatch the results of a batch in error, rolling it back if necessary, and throw the
+     * WaarpDatabaseBatchException
+     * 
+     * @param e
+     *            the error of the batch
+     * @param pending
+     * @param positions
+     * @param nbPending
+     * @param results
+     * @param operation
+     * @throws WaarpDatabaseBatchException
+     */
+    private static void failBatch(WaarpDatabaseSqlException e, AbstractDbData[] pending,
+            int[] positions, int nbPending, int[] results, BatchOperation operation)
+            throws WaarpDatabaseBatchException {
+        int[] counts = null;
+        if (e.getCause() instanceof BatchUpdateException) {
+            counts = ((BatchUpdateException) e.getCause()).getUpdateCounts();
+        }
+        boolean rolledBack = pending[0].rollbackBatch();
+        for (int i = 0; i < nbPending; i++) {
+            int count;
+            if (counts == null) {
+                count = Statement.EXECUTE_FAILED;
+            } else if (i < counts.length) {
+                count = counts[i];
+            } else {
+                // driver stopped at the first failed row
+                count = i == counts.length ? Statement.EXECUTE_FAILED : 0;
+            }
+            if (rolledBack && count != Statement.EXECUTE_FAILED) {
+                count = 0;
+            }
+            results[positions[i]] = count;
+            pending[i].invalidateCache();
+            boolean done = count > 0 || count == Statement.SUCCESS_NO_INFO;
+            if (done) {
+                pending[i].isSaved = operation != BatchOperation.DELETE;
+            }
+            pending[i] = null;
+        }
+        throw new WaarpDatabaseBatchException("Batch in error: " + e.getMessage(), e, results);
+    }
+
+    /**
+     * Fallback for batch operation when the driver does not support it
+     * 
+     * @param operation
+     * @return the number of rows concerned by this operation
+     * @throws WaarpDatabaseException
+     */
+    private int executeSingle(BatchOperation operation) throws WaarpDatabaseException {
+        try {
+            switch (operation) {
+                case INSERT:
+                    if (isSaved) {
+                        return 0;
+                    }
+                    insert();
+                    break;
+                case UPDATE:
+                    if (isSaved) {
+                        return 0;
+                    }
+                    update();
+                    break;
+                case DELETE:
+                    delete();
+                    break;
+                case UPSERT:
+                    if (isSaved) {
+                        return 0;
+                    }
+                    upsert();
+                    break;
+            }
+        } catch (WaarpDatabaseNoDataException e) {
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * 
+     * @param operation
+     * @return the SQL request used for this batch operation, null if not supported
+     */
+    private String getBatchRequest(BatchOperation operation) {
+        switch (operation) {
+            case UPSERT:
+                return getUpsertRequest();
+            case INSERT:
+                return "INSERT INTO " + getTable() +
+                        " (" + getSelectAllFields() + ") VALUES " + getInsertAllValues();
+            case UPDATE:
+                return "UPDATE " + getTable() +
+                        " SET " + getUpdateAllFields() + " WHERE " +
+                        getWherePrimaryKey();
+            default:
+                return "DELETE FROM " + getTable() +
+                        " WHERE " + getWherePrimaryKey();
+        }
+    }
+
+    /**
+     * 
+     * @return the native upsert request of the database of this object, or null if not supported
+     */
+    protected String getUpsertRequest() {
+        DbAdmin admin = dbSession.getAdmin();
+        if (admin == null || !(admin.getDbModel() instanceof DbModelAbstract)) {
+            return null;
+        }
+        return ((DbModelAbstract) admin.getDbModel()).getUpsertRequest(getTable(), allFields,
+                primaryKey);
+    }
+
+    /**
+     * 
+     * @return the key of this object (table and primary key values)
+     */
+    final String getKey() {
+        setPrimaryKey();
+        StringBuilder builder = new StringBuilder(getTable());
+        for (DbValue value : primaryKey) {
+            builder.append('|').append(value.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Invalidate the cached row of this object if its type uses DbDataCache. To be called by
+     * specific write methods of subclasses.
+     */
+    protected void invalidateCache() {
+        DbDataCache cache = DbDataCache.getCache(getClass());
+        if (cache != null) {
+            cache.invalidate(this);
+        }
+    }
+
+    /**
+     * Called after each executed batch, to commit if necessary
+     * 
+     * @throws WaarpDatabaseException
+     */
+    protected void commitBatch() throws WaarpDatabaseException {
+        // nothing: autocommit
+    }
+
+    /**
+     * Called after a batch in error, to rollback if necessary the rows of this batch applied
+     * before the error
+     * 
+     * @return True if the rows of the batch in error were rolled back
+     */
+    protected boolean rollbackBatch() {
+        // nothing: autocommit
+        return false;
+    }
+
     /**
      * Change UpdatedInfo status
      * 
@@ -335,53 +1196,53 @@ public abstract class AbstractDbData {
                     ps.setString(rank, (String) value.getValue());
                     break;
                 case Types.BIT:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.BIT);
                         break;
                     }
-                    ps.setBoolean(rank, (Boolean) value.getValue());
+                    ps.setBoolean(rank, value.getBoolean());
                     break;
                 case Types.TINYINT:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.TINYINT);
                         break;
                     }
-                    ps.setByte(rank, (Byte) value.getValue());
+                    ps.setByte(rank, value.getByte());
                     break;
                 case Types.SMALLINT:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.SMALLINT);
                         break;
                     }
-                    ps.setShort(rank, (Short) value.getValue());
+                    ps.setShort(rank, value.getShort());
                     break;
                 case Types.INTEGER:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.INTEGER);
                         break;
                     }
-                    ps.setInt(rank, (Integer) value.getValue());
+                    ps.setInt(rank, value.getInt());
                     break;
                 case Types.BIGINT:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.BIGINT);
                         break;
                     }
-                    ps.setLong(rank, (Long) value.getValue());
+                    ps.setLong(rank, value.getLong());
                     break;
                 case Types.REAL:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.REAL);
                         break;
                     }
-                    ps.setFloat(rank, (Float) value.getValue());
+                    ps.setFloat(rank, value.getFloat());
                     break;
                 case Types.DOUBLE:
-                    if (value.getValue() == null) {
+                    if (value.isNull()) {
                         ps.setNull(rank, Types.DOUBLE);
                         break;
                     }
-                    ps.setDouble(rank, (Double) value.getValue());
+                    ps.setDouble(rank, value.getDouble());
                     break;
                 case Types.VARBINARY:
                     if (value.getValue() == null) {
@@ -559,6 +1420,148 @@ public abstract class AbstractDbData {
         }
     }
 
+    /**
+     * 
+     * @return the names of the Java fields matching allFields (same order) to use a generated
+     *         DbDataBinder, null (default) to always use setToArray/setFromArray. Only possible if
+     *         setToArray and setFromArray are plain copies between those fields and allFields.
+     */
+    protected String[] getBinderFields() {
+        return null;
+    }
+
+    /**
+     * Set all the fields of this object as parameters (in allFields order), through the generated
+     * binder if any, else through setToArray
+     * 
+     * @param preparedStatement
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    void bindAllFields(DbPreparedStatement preparedStatement)
+            throws WaarpDatabaseNoConnectionException, WaarpDatabaseSqlException {
+        DbDataBinder binder = DbDataBinder.getBinder(this);
+        if (binder == null) {
+            setToArray();
+            setValues(preparedStatement, allFields);
+            return;
+        }
+        try {
+            binder.bind(this, preparedStatement.getPreparedStatement());
+        } catch (SQLException e) {
+            DbSession.error(e);
+            throw new WaarpDatabaseSqlException("Setting values in error", e);
+        }
+        valuesStale = true;
+    }
+
+    /**
+     * Set all the fields of this object from the current row, through the generated binder if
+     * any, else through setFromArray
+     * 
+     * @param rs
+     * @throws WaarpDatabaseSqlException
+     */
+    void readAllFields(ResultSet rs) throws WaarpDatabaseSqlException {
+        DbDataBinder binder = DbDataBinder.getBinder(this);
+        if (binder == null) {
+            for (DbValue value : allFields) {
+                getTrueValue(rs, value);
+            }
+            setFromArray();
+            return;
+        }
+        try {
+            binder.read(this, rs);
+        } catch (SQLException e) {
+            DbSession.error(e);
+            throw new WaarpDatabaseSqlException("Getting values in error", e);
+        }
+        valuesStale = true;
+    }
+
+    /**
+     * 
+     * @return a copy of the current values of all the fields (allFields order)
+     */
+    DbValue[] snapshotAllFields() {
+        setToArray();
+        valuesStale = false;
+        DbValue[] values = new DbValue[allFields.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = allFields[i].copy();
+        }
+        return values;
+    }
+
+    /**
+     * Update the rows of the objects with the given values instead of their current fields, in
+     * JDBC batches of DbConstant.BATCHSIZE rows, committed (see commitBatch) once all written. In
+     * case of error, the rows are rolled back if possible (see rollbackBatch).<br>
+     * <br>
+     * A row not found is silently ignored.
+     * 
+     * @param datas
+     *            objects of the very same type sharing the same DbSession
+     * @param rows
+     *            the values to write for each object (allFields order)
+     * @throws WaarpDatabaseException
+     */
+    static void updateSnapshots(List<? extends AbstractDbData> datas, List<DbValue[]> rows)
+            throws WaarpDatabaseException {
+        if (datas.isEmpty()) {
+            return;
+        }
+        AbstractDbData first = checkSameType(datas);
+        if (first.dbSession == null) {
+            return;
+        }
+        boolean batch = first.dbSession.supportBatchUpdates();
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(first.dbSession);
+        try {
+            preparedStatement.createPrepareStatement(first.getBatchRequest(BatchOperation.UPDATE));
+            PreparedStatement ps = preparedStatement.getPreparedStatement();
+            int nbPending = 0;
+            for (DbValue[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    setTrueValue(ps, row[i], i + 1);
+                }
+                if (!batch) {
+                    preparedStatement.executeUpdate();
+                    continue;
+                }
+                preparedStatement.addBatch();
+                nbPending++;
+                if (nbPending == DbConstant.BATCHSIZE) {
+                    preparedStatement.executeBatch();
+                    nbPending = 0;
+                }
+            }
+            if (nbPending > 0) {
+                preparedStatement.executeBatch();
+            }
+            first.commitBatch();
+        } catch (WaarpDatabaseException e) {
+            first.rollbackBatch();
+            throw e;
+        } finally {
+            preparedStatement.realClose();
+            for (AbstractDbData data : datas) {
+                data.invalidateCache();
+            }
+        }
+    }
+
+    /**
+     * Refresh allFields from the fields if a generated binder was used
+     */
+    private void syncValues() {
+        if (valuesStale) {
+            setToArray();
+            valuesStale = false;
+        }
+    }
+
     /**
      * Get Values from PreparedStatement
      * 
@@ -567,8 +1570,7 @@ public abstract class AbstractDbData {
      */
     public boolean get(DbPreparedStatement preparedStatement) {
         try {
-            getValues(preparedStatement, allFields);
-            setFromArray();
+            readAllFields(preparedStatement.getResultSet());
         } catch (WaarpDatabaseNoConnectionException e1) {
             return false;
         } catch (WaarpDatabaseSqlException e1) {
@@ -578,6 +1580,22 @@ public abstract class AbstractDbData {
         return true;
     }
 
+    /**
+     * 
+     * @param reused
+     *            the object filled from each row (selected with getSelectAllFields)
+     * @return a RowMapper for DbCursor reusing the very same object for all rows
+     */
+    public static <E extends AbstractDbData> DbCursor.RowMapper<E> getRowMapper(final E reused) {
+        return new DbCursor.RowMapper<E>() {
+            public E mapRow(ResultSet resultSet, E previous) throws WaarpDatabaseSqlException {
+                reused.readAllFields(resultSet);
+                reused.isSaved = true;
+                return reused;
+            }
+        };
+    }
+
     /**
      * 
      * @return the runner as Json
@@ -595,6 +1613,7 @@ public abstract class AbstractDbData {
     public ObjectNode getJson() {
         ObjectNode node = JsonHandler.createObjectNode();
         node.put(JSON_MODEL, this.getClass().getSimpleName());
+        syncValues();
         for (DbValue value : allFields) {
             switch (value.type) {
                 case Types.VARCHAR:
@@ -602,25 +1621,53 @@ public abstract class AbstractDbData {
                     node.put(value.getColumn(), (String) value.getValue());
                     break;
                 case Types.BIT:
-                    node.put(value.getColumn(), (Boolean) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getBoolean());
+                    }
                     break;
                 case Types.TINYINT:
-                    node.put(value.getColumn(), (Byte) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getByte());
+                    }
                     break;
                 case Types.SMALLINT:
-                    node.put(value.getColumn(), (Short) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getShort());
+                    }
                     break;
                 case Types.INTEGER:
-                    node.put(value.getColumn(), (Integer) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getInt());
+                    }
                     break;
                 case Types.BIGINT:
-                    node.put(value.getColumn(), (Long) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getLong());
+                    }
                     break;
                 case Types.REAL:
-                    node.put(value.getColumn(), (Float) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getFloat());
+                    }
                     break;
                 case Types.DOUBLE:
-                    node.put(value.getColumn(), (Double) value.getValue());
+                    if (value.isNull()) {
+                        node.putNull(value.getColumn());
+                    } else {
+                        node.put(value.getColumn(), value.getDouble());
+                    }
                     break;
                 case Types.VARBINARY:
                     node.put(value.getColumn(), (byte[]) value.getValue());
@@ -649,6 +1696,7 @@ public abstract class AbstractDbData {
      * @throws WaarpDatabaseSqlException
      */
     public void setFromJson(ObjectNode node, boolean ignorePrimaryKey) throws WaarpDatabaseSqlException {
+        syncValues();
         DbValue[] list = allFields;
         if (ignorePrimaryKey) {
             list = otherFields;
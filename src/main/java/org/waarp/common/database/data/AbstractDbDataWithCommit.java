@@ -21,6 +21,8 @@ import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.exception.WaarpDatabaseException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
 
 /**
  * Abstract database table implementation with explicit COMMIT.<br>
@@ -34,6 +36,12 @@ import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
  * 
  */
 public abstract class AbstractDbDataWithCommit extends AbstractDbData {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(AbstractDbDataWithCommit.class);
+
     /**
      * To be implemented
      */
@@ -69,13 +77,12 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
             isSaved = true;
             return;
         }
-        setToArray();
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
             preparedStatement.createPrepareStatement("INSERT INTO " + getTable() +
                     " (" + getSelectAllFields() + ") VALUES " + getInsertAllValues());
-            setValues(preparedStatement, allFields);
+            bindAllFields(preparedStatement);
             int count = preparedStatement.executeUpdate();
             if (count <= 0) {
                 throw new WaarpDatabaseNoDataException("No row found");
@@ -84,6 +91,7 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
             isSaved = true;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
         }
     }
 
@@ -100,14 +108,27 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
             isSaved = true;
             return;
         }
-        setToArray();
+        DbWriteBehindQueue queue = dbSession.getWriteBehindQueue();
+        if (queue != null) {
+            queue.add(this);
+            return;
+        }
+        updateNow();
+    }
+
+    /**
+     * Update object to table immediately
+     * 
+     * @throws WaarpDatabaseException
+     */
+    private void updateNow() throws WaarpDatabaseException {
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
             preparedStatement.createPrepareStatement("UPDATE " + getTable() +
                     " SET " + getUpdateAllFields() + " WHERE " +
                     getWherePrimaryKey());
-            setValues(preparedStatement, allFields);
+            bindAllFields(preparedStatement);
             int count = preparedStatement.executeUpdate();
             if (count <= 0) {
                 throw new WaarpDatabaseNoDataException("No row found");
@@ -116,9 +137,80 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
             isSaved = true;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
+        }
+    }
+
+    /**
+     * Insert object into table, or update it if its primary key already exists
+     * 
+     * @throws WaarpDatabaseException
+     */
+    @Override
+    public void upsert() throws WaarpDatabaseException {
+        if (isSaved) {
+            return;
+        }
+        if (dbSession == null) {
+            isSaved = true;
+            return;
+        }
+        String request = getUpsertRequest();
+        if (request == null) {
+            // insert() and update() commit
+            super.upsert();
+            return;
+        }
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(
+                dbSession);
+        try {
+            preparedStatement.createPrepareStatement(request);
+            bindAllFields(preparedStatement);
+            // unchanged row may give 0 (MySQL)
+            preparedStatement.executeUpdate();
+            dbSession.commit();
+            isSaved = true;
+        } finally {
+            preparedStatement.realClose();
+            invalidateCache();
         }
     }
 
+    @Override
+    protected void commitBatch() throws WaarpDatabaseException {
+        dbSession.commit();
+    }
+
+    @Override
+    protected boolean rollbackBatch() {
+        if (dbSession.isAutoCommit()) {
+            return false;
+        }
+        try {
+            dbSession.rollback(null);
+        } catch (WaarpDatabaseException e) {
+            // the transaction is lost anyway
+            logger.warn("Cannot rollback batch in error: " + e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Select object from table, writing first its pending update if any
+     * 
+     * @throws WaarpDatabaseException
+     */
+    @Override
+    public void select() throws WaarpDatabaseException {
+        if (dbSession != null) {
+            DbWriteBehindQueue queue = dbSession.getWriteBehindQueue();
+            if (queue != null && queue.remove(this)) {
+                updateNow();
+            }
+        }
+        super.select();
+    }
+
     /**
      * Delete object from table
      * 
@@ -128,6 +220,10 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
         if (dbSession == null) {
             return;
         }
+        DbWriteBehindQueue queue = dbSession.getWriteBehindQueue();
+        if (queue != null) {
+            queue.remove(this);
+        }
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
                 dbSession);
         try {
@@ -143,6 +239,7 @@ public abstract class AbstractDbDataWithCommit extends AbstractDbData {
             isSaved = false;
         } finally {
             preparedStatement.realClose();
+            invalidateCache();
         }
     }
 }
@@ -0,0 +1,397 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.NotFoundException;
+
+import org.waarp.common.database.DbConstant;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Row binder generated with javassist for one AbstractDbData type, writing its fields directly as
+ * parameters of a PreparedStatement and reading its fields directly from a ResultSet, instead of
+ * setToArray/setFromArray and the generic switch over DbValue types.<br>
+ * <br>
+ * Only types giving with getBinderFields() the Java fields matching allFields are concerned, which
+ * implies their setToArray/setFromArray are plain copies. Those fields must not be private nor
+ * static, and their Java types must match the DbValue types (String for VARCHAR/LONGVARCHAR,
+ * boolean, byte, short, int, long, float, double, byte[], java.sql.Date, java.sql.Timestamp). In
+ * any other case (CLOB/BLOB, boxed types, generation error), the generic path is used.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public abstract class DbDataBinder {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbDataBinder.class);
+
+    /**
+     * Suffix of the name of the generated classes
+     */
+    private static final String SUFFIX = "$$WaarpDbDataBinder";
+
+    /**
+     * Marker of types without binder
+     */
+    private static final DbDataBinder NONE = new DbDataBinder() {
+        @Override
+        public void bind(AbstractDbData data, PreparedStatement ps) throws SQLException {
+            throw new SQLException("No binder");
+        }
+
+        @Override
+        public void read(AbstractDbData data, ResultSet rs) throws SQLException {
+            throw new SQLException("No binder");
+        }
+    };
+
+    /**
+     * Binders by entity type
+     */
+    private static final ConcurrentHashMap<Class<?>, DbDataBinder> binders =
+            new ConcurrentHashMap<Class<?>, DbDataBinder>();
+
+    private static volatile boolean enabled = DbConstant.GENERATEDBINDERS;
+
+    /**
+     * 
+     * @param enable
+     *            True to use generated binders for the types giving their fields
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * 
+     * @return True if generated binders are used
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set all the fields of data as parameters (1 to n, in allFields order)
+     * 
+     * @param data
+     * @param ps
+     * @throws SQLException
+     */
+    public abstract void bind(AbstractDbData data, PreparedStatement ps) throws SQLException;
+
+    /**
+     * Set all the fields of data from the columns of the current row
+     * 
+     * @param data
+     * @param rs
+     * @throws SQLException
+     */
+    public abstract void read(AbstractDbData data, ResultSet rs) throws SQLException;
+
+    /**
+     * 
+     * @param data
+     * @return the binder of the type of this object, generated at first call, or null if none
+     */
+    static DbDataBinder getBinder(AbstractDbData data) {
+        if (!enabled) {
+            return null;
+        }
+        Class<?> type = data.getClass();
+        DbDataBinder binder = binders.get(type);
+        if (binder == null) {
+            // only one generation by type, since its class can be defined only once
+            synchronized (type) {
+                binder = binders.get(type);
+                if (binder == null) {
+                    binder = generate(data);
+                    binders.put(type, binder);
+                }
+            }
+        }
+        return binder == NONE ? null : binder;
+    }
+
+    /**
+     * 
+     * @param type
+     * @return True if a binder was generated for this type
+     */
+    public static boolean hasBinder(Class<? extends AbstractDbData> type) {
+        DbDataBinder binder = binders.get(type);
+        return binder != null && binder != NONE;
+    }
+
+    /**
+     * Forget all generated binders (the generated classes stay loaded and are reused by the next
+     * getBinder)
+     */
+    public static void clear() {
+        binders.clear();
+    }
+
+    /**
+     * 
+     * @param data
+     * @return the generated binder, or NONE if not possible
+     */
+    private static DbDataBinder generate(AbstractDbData data) {
+        Class<?> type = data.getClass();
+        String[] names = data.getBinderFields();
+        DbValue[] values = data.allFields;
+        if (names == null || values == null) {
+            return NONE;
+        }
+        if (names.length != values.length) {
+            logger.warn("Binder fields do not match allFields for " + type.getName());
+            return NONE;
+        }
+        Field[] fields = new Field[names.length];
+        for (int i = 0; i < names.length; i++) {
+            fields[i] = getField(type, names[i]);
+            if (fields[i] == null || getJavaType(values[i].type) != fields[i].getType()) {
+                logger.info("No binder for " + type.getName() + " since field " + names[i] +
+                        " is not usable for " + values[i].getColumn());
+                return NONE;
+            }
+        }
+        try {
+            ClassPool pool = new ClassPool(true);
+            pool.appendClassPath(new LoaderClassPath(type.getClassLoader()));
+            pool.appendClassPath(new LoaderClassPath(DbDataBinder.class.getClassLoader()));
+            CtClass ctClass = pool.makeClass(type.getName() + SUFFIX,
+                    pool.get(DbDataBinder.class.getName()));
+            ctClass.addMethod(CtNewMethod.make(getBindSource(type, values, fields), ctClass));
+            ctClass.addMethod(CtNewMethod.make(getReadSource(type, values, fields), ctClass));
+            // same class loader and package than the type to access its fields
+            Class<?> generated = ctClass.toClass(type.getClassLoader(),
+                    type.getProtectionDomain());
+            ctClass.detach();
+            return (DbDataBinder) generated.newInstance();
+        } catch (NotFoundException e) {
+            logger.warn("Cannot generate binder for " + type.getName(), e);
+        } catch (CannotCompileException e) {
+            logger.warn("Cannot generate binder for " + type.getName(), e);
+        } catch (InstantiationException e) {
+            logger.warn("Cannot generate binder for " + type.getName(), e);
+        } catch (IllegalAccessException e) {
+            logger.warn("Cannot generate binder for " + type.getName(), e);
+        } catch (LinkageError e) {
+            // already defined (as before a clear)
+            DbDataBinder binder = getDefined(type);
+            if (binder != null) {
+                return binder;
+            }
+            logger.warn("Cannot generate binder for " + type.getName(), e);
+        }
+        return NONE;
+    }
+
+    /**
+     * 
+     * @param type
+     * @return a new instance of the binder class already generated for this type, or null if none
+     */
+    private static DbDataBinder getDefined(Class<?> type) {
+        try {
+            Class<?> generated = Class.forName(type.getName() + SUFFIX, true,
+                    type.getClassLoader());
+            if (DbDataBinder.class.isAssignableFrom(generated)) {
+                return (DbDataBinder) generated.newInstance();
+            }
+        } catch (ClassNotFoundException e) {
+            // not defined
+        } catch (InstantiationException e) {
+            logger.debug("Cannot instantiate binder for " + type.getName(), e);
+        } catch (IllegalAccessException e) {
+            logger.debug("Cannot instantiate binder for " + type.getName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * 
+     * @param type
+     * @param name
+     * @return the accessible (non private, non static) field of this name in the hierarchy, or null
+     */
+    private static Field getField(Class<?> type, String name) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            try {
+                Field field = current.getDeclaredField(name);
+                int modifiers = field.getModifiers();
+                if (Modifier.isPrivate(modifiers) || Modifier.isStatic(modifiers) ||
+                        Modifier.isFinal(modifiers)) {
+                    return null;
+                }
+                // the binder is in the package of the type but is not a subclass
+                if (!Modifier.isPublic(modifiers) &&
+                        !getPackageName(current).equals(getPackageName(type))) {
+                    return null;
+                }
+                return field;
+            } catch (NoSuchFieldException e) {
+                // continue in super class
+            }
+        }
+        return null;
+    }
+
+    private static String getPackageName(Class<?> type) {
+        String name = type.getName();
+        int pos = name.lastIndexOf('.');
+        return pos < 0 ? "" : name.substring(0, pos);
+    }
+
+    /**
+     * 
+     * @param sqlType
+     * @return the Java type of the field for this SQL type, or null if not supported
+     */
+    private static Class<?> getJavaType(int sqlType) {
+        switch (sqlType) {
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+                return String.class;
+            case Types.BIT:
+                return Boolean.TYPE;
+            case Types.TINYINT:
+                return Byte.TYPE;
+            case Types.SMALLINT:
+                return Short.TYPE;
+            case Types.INTEGER:
+                return Integer.TYPE;
+            case Types.BIGINT:
+                return Long.TYPE;
+            case Types.REAL:
+                return Float.TYPE;
+            case Types.DOUBLE:
+                return Double.TYPE;
+            case Types.VARBINARY:
+                return byte[].class;
+            case Types.DATE:
+                return Date.class;
+            case Types.TIMESTAMP:
+                return Timestamp.class;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 
+     * @param sqlType
+     * @return the suffix of the PreparedStatement setter and ResultSet getter for this SQL type
+     */
+    private static String getAccessor(int sqlType) {
+        switch (sqlType) {
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+                return "String";
+            case Types.BIT:
+                return "Boolean";
+            case Types.TINYINT:
+                return "Byte";
+            case Types.SMALLINT:
+                return "Short";
+            case Types.INTEGER:
+                return "Int";
+            case Types.BIGINT:
+                return "Long";
+            case Types.REAL:
+                return "Float";
+            case Types.DOUBLE:
+                return "Double";
+            case Types.VARBINARY:
+                return "Bytes";
+            case Types.DATE:
+                return "Date";
+            default:
+                return "Timestamp";
+        }
+    }
+
+    /**
+     * 
+     * @param type
+     * @param values
+     * @param fields
+     * @return the source of the bind method (same behavior as setToArray then setTrueValue)
+     */
+    static String getBindSource(Class<?> type, DbValue[] values, Field[] fields) {
+        StringBuilder builder = new StringBuilder(
+                "public void bind(org.waarp.common.database.data.AbstractDbData data, " +
+                        "java.sql.PreparedStatement ps) throws java.sql.SQLException { ")
+                .append(type.getName()).append(" o = (").append(type.getName())
+                .append(") data; ");
+        for (int i = 0; i < fields.length; i++) {
+            int rank = i + 1;
+            String field = "o." + fields[i].getName();
+            String set = "ps.set" + getAccessor(values[i].type) + "(" + rank + ", " + field +
+                    "); ";
+            if (fields[i].getType().isPrimitive()) {
+                builder.append(set);
+            } else {
+                builder.append("if (").append(field).append(" == null) { ps.setNull(")
+                        .append(rank).append(", ").append(values[i].type).append("); } else { ")
+                        .append(set).append("} ");
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * 
+     * @param type
+     * @param values
+     * @param fields
+     * @return the source of the read method (same behavior as getTrueValue then setFromArray)
+     */
+    static String getReadSource(Class<?> type, DbValue[] values, Field[] fields) {
+        StringBuilder builder = new StringBuilder(
+                "public void read(org.waarp.common.database.data.AbstractDbData data, " +
+                        "java.sql.ResultSet rs) throws java.sql.SQLException { ")
+                .append(type.getName()).append(" o = (").append(type.getName())
+                .append(") data; ");
+        for (int i = 0; i < fields.length; i++) {
+            builder.append("o.").append(fields[i].getName()).append(" = rs.get")
+                    .append(getAccessor(values[i].type)).append("(\"")
+                    .append(values[i].getColumn()).append("\"); ");
+        }
+        return builder.append('}').toString();
+    }
+}
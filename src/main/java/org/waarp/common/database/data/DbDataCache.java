@@ -0,0 +1,288 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.lru.InterfaceLruCache;
+import org.waarp.common.lru.SynchronizedLruCache;
+
+/**
+ * Second level cache of AbstractDbData rows keyed by database (server of the DbAdmin), table and
+ * primary key values.<br>
+ * <br>
+ * The cache is enabled per entity type with register. Then select() and exist() use the cached
+ * values while they are not expired, and insert/update/delete (one by one or by batch) through the
+ * same class invalidate the row. The cache keeps a copy of the values, not the objects themselves.<br>
+ * <br>
+ * A row read from the database is only kept if no invalidation of its key happened meanwhile
+ * (versions by stripe of keys, see getVersions), such that a select concurrent with an update
+ * cannot keep the old row until the TTL.<br>
+ * <br>
+ * Writes done outside this class (other nodes, direct requests) are only seen after the TTL.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbDataCache {
+    /**
+     * Caches by entity type
+     */
+    private static final ConcurrentHashMap<Class<?>, DbDataCache> caches =
+            new ConcurrentHashMap<Class<?>, DbDataCache>();
+
+    /**
+     * Number of stripes of keys sharing the same version
+     */
+    private static final int STRIPES = 64;
+
+    private final InterfaceLruCache<String, Object[]> cache;
+    /**
+     * Incremented on each invalidation of a key of the stripe
+     */
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * 
+     * @param capacity
+     *            maximum number of rows
+     * @param ttl
+     *            time to live in ms of a row
+     */
+    public DbDataCache(int capacity, long ttl) {
+        cache = new SynchronizedLruCache<String, Object[]>(capacity, ttl);
+    }
+
+    /**
+     * Enable the cache for this entity type
+     * 
+     * @param type
+     * @param capacity
+     *            maximum number of rows
+     * @param ttl
+     *            time to live in ms of a row
+     * @return the cache for this entity type
+     */
+    public static DbDataCache register(Class<? extends AbstractDbData> type, int capacity,
+            long ttl) {
+        DbDataCache dataCache = new DbDataCache(capacity, ttl);
+        DbDataCache previous = caches.put(type, dataCache);
+        if (previous != null) {
+            previous.clear();
+        }
+        return dataCache;
+    }
+
+    /**
+     * Disable the cache for this entity type
+     * 
+     * @param type
+     */
+    public static void unregister(Class<? extends AbstractDbData> type) {
+        DbDataCache previous = caches.remove(type);
+        if (previous != null) {
+            previous.clear();
+        }
+    }
+
+    /**
+     * 
+     * @param type
+     * @return the cache for this entity type or null if not enabled
+     */
+    public static DbDataCache getCache(Class<?> type) {
+        if (caches.isEmpty()) {
+            return null;
+        }
+        return caches.get(type);
+    }
+
+    /**
+     * 
+     * @param data
+     * @return the key of the row of this object, including the database of its DbSession
+     */
+    private static String getKey(AbstractDbData data) {
+        DbSession session = data.dbSession;
+        DbAdmin admin = session != null ? session.getAdmin() : null;
+        String key = data.getKey();
+        return admin != null ? admin.getServer() + '#' + key : key;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * 
+     * @return the current versions, to be taken before reading rows from the database and given
+     *         back to store
+     */
+    long[] getVersions() {
+        long[] current = new long[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            current[i] = versions.get(i);
+        }
+        return current;
+    }
+
+    /**
+     * Fill the object from the cache if present
+     * 
+     * @param data
+     * @return True if the object was filled from the cache
+     */
+    boolean load(AbstractDbData data) {
+        Object[] values = cache.get(getKey(data));
+        if (values == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        DbValue[] fields = data.allFields;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i].setValue(copy(values[i]));
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 
+     * @param data
+     * @return True if the row of this object is in the cache
+     */
+    boolean contains(AbstractDbData data) {
+        return cache.contains(getKey(data));
+    }
+
+    /**
+     * Keep a copy of the current values of this object (just selected), unless its row was
+     * invalidated since the versions were taken
+     * 
+     * @param data
+     * @param previous
+     *            the versions taken (getVersions) before reading the row from the database
+     */
+    void store(AbstractDbData data, long[] previous) {
+        DbValue[] fields = data.allFields;
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            Object value = fields[i].getValue();
+            if (value instanceof InputStream || value instanceof Reader) {
+                // cannot be read twice
+                return;
+            }
+            values[i] = copy(value);
+        }
+        String key = getKey(data);
+        cache.put(key, values);
+        int stripe = stripe(key);
+        if (previous[stripe] != versions.get(stripe)) {
+            // invalidated while read: the row might be the old one
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Invalidate the row of this object
+     * 
+     * @param data
+     */
+    void invalidate(AbstractDbData data) {
+        String key = getKey(data);
+        // before remove, such that a concurrent store of the old row sees it
+        versions.incrementAndGet(stripe(key));
+        if (cache.remove(key) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof java.util.Date) {
+            return ((java.util.Date) value).clone();
+        }
+        return value;
+    }
+
+    /**
+     * Remove all rows
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * 
+     * @return the current number of rows
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * 
+     * @return the number of select served by the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * 
+     * @return the number of select not served by the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 
+     * @return the number of rows invalidated by a write
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * 
+     * @return the ratio of select served by the cache (0 if none)
+     */
+    public double getHitRatio() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : ((double) hit) / total;
+    }
+
+    @Override
+    public String toString() {
+        return "DataCache: " + size() + "/" + cache.getCapacity() + " hits: " + getHits() +
+                " misses: " + getMisses() + " invalidations: " + getInvalidations() +
+                " hitRatio: " + getHitRatio();
+    }
+}
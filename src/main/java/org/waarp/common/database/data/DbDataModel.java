@@ -139,17 +139,17 @@ public class DbDataModel extends AbstractDbData {
     @Override
     protected void setFromArray() throws WaarpDatabaseSqlException {
         hostid = (String) allFields[Columns.HOSTID.ordinal()].getValue();
-        readgloballimit = (Long) allFields[Columns.READGLOBALLIMIT.ordinal()]
-                .getValue();
-        writegloballimit = (Long) allFields[Columns.WRITEGLOBALLIMIT.ordinal()]
-                .getValue();
-        readsessionlimit = (Long) allFields[Columns.READSESSIONLIMIT.ordinal()]
-                .getValue();
-        writesessionlimit = (Long) allFields[Columns.WRITESESSIONLIMIT
-                .ordinal()].getValue();
-        delayllimit = (Long) allFields[Columns.DELAYLIMIT.ordinal()].getValue();
-        updatedInfo = (Integer) allFields[Columns.UPDATEDINFO.ordinal()]
-                .getValue();
+        readgloballimit = allFields[Columns.READGLOBALLIMIT.ordinal()]
+                .getLong();
+        writegloballimit = allFields[Columns.WRITEGLOBALLIMIT.ordinal()]
+                .getLong();
+        readsessionlimit = allFields[Columns.READSESSIONLIMIT.ordinal()]
+                .getLong();
+        writesessionlimit = allFields[Columns.WRITESESSIONLIMIT
+                .ordinal()].getLong();
+        delayllimit = allFields[Columns.DELAYLIMIT.ordinal()].getLong();
+        updatedInfo = allFields[Columns.UPDATEDINFO.ordinal()]
+                .getInt();
     }
 
     @Override
@@ -0,0 +1,483 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Date;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.waarp.common.database.DbCursor;
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.json.AdaptativeJsonHandler.JsonCodec;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streaming export and import of whole tables in Json or Smile, for backup or migration between
+ * databases.<br>
+ * <br>
+ * The export walks the table through a DbCursor and writes each row directly with a JsonGenerator;
+ * the import reads each row with a JsonParser and inserts (or upserts) them by batch, reusing the
+ * same objects. Both use constant memory whatever the size of the table. The stream is:<br>
+ * {"@model": "SimpleClassName", "rows": [ {"COLUMN": value, ...}, ... ], "count": n}<br>
+ * with the same representation of values than AbstractDbData.getJson().
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbDataTransfer {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbDataTransfer.class);
+
+    private static final String ROWS = "rows";
+    private static final String COUNT = "count";
+
+    /**
+     * Factory of the objects used by the import
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static interface Factory<E extends AbstractDbData> {
+        /**
+         * 
+         * @return a new object to be filled from the stream, all objects sharing the same DbSession
+         * @throws WaarpDatabaseException
+         */
+        public E newInstance() throws WaarpDatabaseException;
+    }
+
+    private DbDataTransfer() {
+    }
+
+    /**
+     * Export all the rows of the table of this object
+     * 
+     * @param template
+     *            object of the type to export, with its DbSession, reused for each row
+     * @param out
+     *            not closed by this method
+     * @param codec
+     *            Json or Smile
+     * @return the number of exported rows
+     * @throws WaarpDatabaseException
+     */
+    public static long exportTable(AbstractDbData template, OutputStream out, JsonCodec codec)
+            throws WaarpDatabaseException {
+        if (template.dbSession == null) {
+            throw new WaarpDatabaseSqlException("No DbSession to export from");
+        }
+        long count = 0;
+        // dedicated session if the database cannot stream in autocommit
+        DbSession session = DbCursor.getStreamingSession(template.dbSession);
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+        DbCursor<AbstractDbData> cursor = null;
+        try {
+            preparedStatement.createPrepareStatement("SELECT " + template.getSelectAllFields() +
+                    " FROM " + template.getTable());
+            cursor = preparedStatement.executeCursor(AbstractDbData.getRowMapper(template));
+            JsonGenerator generator = codec.factory.createGenerator(out);
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartObject();
+            generator.writeStringField(AbstractDbData.JSON_MODEL,
+                    template.getClass().getSimpleName());
+            generator.writeArrayFieldStart(ROWS);
+            while (cursor.hasNext()) {
+                AbstractDbData data = cursor.next();
+                writeRow(generator, data.getAllFields());
+                count++;
+            }
+            generator.writeEndArray();
+            generator.writeNumberField(COUNT, count);
+            generator.writeEndObject();
+            generator.close();
+        } catch (IOException e) {
+            throw new WaarpDatabaseSqlException("Cannot write export of " + template.getTable(), e);
+        } catch (IllegalStateException e) {
+            throw new WaarpDatabaseSqlException("Cannot read export of " + template.getTable(),
+                    e.getCause() != null ? e.getCause() : e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            preparedStatement.realClose();
+            if (session != template.dbSession) {
+                try {
+                    session.rollback(null);
+                } catch (WaarpDatabaseException e) {
+                    // ignore: read only
+                }
+                session.disconnect();
+            }
+        }
+        logger.debug("Exported " + count + " rows from " + template.getTable());
+        return count;
+    }
+
+    /**
+     * Import all the rows of the stream into the table of the objects given by the factory
+     * 
+     * @param factory
+     *            gives the objects (at most batchSize) reused to insert the rows
+     * @param in
+     *            not closed by this method
+     * @param codec
+     *            Json or Smile
+     * @param batchSize
+     *            number of rows inserted by one batch
+     * @param upsert
+     *            True to use upsertBatch (existing rows are updated), False to use insertBatch
+     * @return the number of imported rows
+     * @throws WaarpDatabaseException
+     */
+    public static <E extends AbstractDbData> long importTable(Factory<E> factory, InputStream in,
+            JsonCodec codec, int batchSize, boolean upsert) throws WaarpDatabaseException {
+        if (batchSize <= 0) {
+            batchSize = 1;
+        }
+        List<AbstractDbData> batch = Arrays.asList(new AbstractDbData[batchSize]);
+        E first = factory.newInstance();
+        batch.set(0, first);
+        Map<String, Integer> columns = getColumns(first.allFields);
+        long count = 0;
+        int nb = 0;
+        try {
+            JsonParser parser = codec.factory.createParser(in);
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new WaarpDatabaseSqlException("Not an export stream");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (AbstractDbData.JSON_MODEL.equals(name)) {
+                    String model = parser.getText();
+                    if (!first.getClass().getSimpleName().equals(model)) {
+                        throw new WaarpDatabaseSqlException("Export of " + model +
+                                " cannot be imported as " + first.getClass().getSimpleName());
+                    }
+                } else if (ROWS.equals(name) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        AbstractDbData data = batch.get(nb);
+                        if (data == null) {
+                            data = factory.newInstance();
+                            batch.set(nb, data);
+                        }
+                        readRow(parser, data.allFields, columns);
+                        data.setFromArray();
+                        data.isSaved = false;
+                        nb++;
+                        if (nb == batchSize) {
+                            count += flush(batch, nb, upsert);
+                            nb = 0;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (nb > 0) {
+                count += flush(batch.subList(0, nb), nb, upsert);
+            }
+            parser.close();
+        } catch (IOException e) {
+            throw new WaarpDatabaseSqlException("Cannot read import of " + first.getTable(), e);
+        }
+        logger.debug("Imported " + count + " rows into " + first.getTable());
+        return count;
+    }
+
+    /**
+     * 
+     * @param batch
+     * @param nb
+     * @param upsert
+     * @return the number of rows written
+     * @throws WaarpDatabaseException
+     */
+    private static long flush(List<AbstractDbData> batch, int nb, boolean upsert)
+            throws WaarpDatabaseException {
+        int[] results = upsert ? AbstractDbData.upsertBatch(batch, nb)
+                : AbstractDbData.insertBatch(batch, nb);
+        long count = 0;
+        for (int result : results) {
+            if (result != Statement.EXECUTE_FAILED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 
+     * @param template
+     *            object of the type to export, with its DbSession (not shared with other tasks)
+     * @param out
+     * @param codec
+     * @return a task exporting the table, to be used with runParallel
+     */
+    public static Callable<Long> exportTask(final AbstractDbData template,
+            final OutputStream out, final JsonCodec codec) {
+        return new Callable<Long>() {
+            public Long call() throws WaarpDatabaseException {
+                return exportTable(template, out, codec);
+            }
+        };
+    }
+
+    /**
+     * 
+     * @param factory
+     *            giving objects with their DbSession (not shared with other tasks)
+     * @param in
+     * @param codec
+     * @param batchSize
+     * @param upsert
+     * @return a task importing the table, to be used with runParallel
+     */
+    public static <E extends AbstractDbData> Callable<Long> importTask(final Factory<E> factory,
+            final InputStream in, final JsonCodec codec, final int batchSize, final boolean upsert) {
+        return new Callable<Long>() {
+            public Long call() throws WaarpDatabaseException {
+                return importTable(factory, in, codec, batchSize, upsert);
+            }
+        };
+    }
+
+    /**
+     * Run export or import tasks (one per table) in parallel. Each task must use its own DbSession
+     * and stream.
+     * 
+     * @param tasks
+     * @param parallelism
+     *            maximum number of tables transferred at the same time
+     * @return the number of rows of each task, in the same order
+     * @throws WaarpDatabaseException
+     *             the first error met, once all tasks are done
+     */
+    public static long[] runParallel(List<Callable<Long>> tasks, int parallelism)
+            throws WaarpDatabaseException {
+        long[] results = new long[tasks.size()];
+        if (results.length == 0) {
+            return results;
+        }
+        if (parallelism <= 0) {
+            parallelism = 1;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(parallelism, results.length), new WaarpThreadFactory("DbDataTransfer"));
+        WaarpDatabaseException error = null;
+        try {
+            List<Future<Long>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.warn("Transfer in error", e.getCause());
+                    if (error == null) {
+                        error = e.getCause() instanceof WaarpDatabaseException
+                                ? (WaarpDatabaseException) e.getCause()
+                                : new WaarpDatabaseSqlException("Transfer in error", e.getCause());
+                    }
+                    results[i] = -1;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new WaarpDatabaseSqlException("Transfer interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (error != null) {
+            throw error;
+        }
+        return results;
+    }
+
+    /**
+     * 
+     * @param values
+     * @return the rank of each column
+     */
+    private static Map<String, Integer> getColumns(DbValue[] values) {
+        Map<String, Integer> columns = new HashMap<String, Integer>(values.length * 2);
+        for (int i = 0; i < values.length; i++) {
+            columns.put(values[i].getColumn(), i);
+        }
+        return columns;
+    }
+
+    /**
+     * Write one row as an object, as in AbstractDbData.getJson()
+     * 
+     * @param generator
+     * @param values
+     * @throws IOException
+     * @throws WaarpDatabaseSqlException
+     */
+    static void writeRow(JsonGenerator generator, DbValue[] values) throws IOException,
+            WaarpDatabaseSqlException {
+        generator.writeStartObject();
+        for (DbValue value : values) {
+            String column = value.getColumn();
+            if (value.isNull()) {
+                generator.writeNullField(column);
+                continue;
+            }
+            switch (value.type) {
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                    generator.writeStringField(column, (String) value.getValue());
+                    break;
+                case Types.BIT:
+                    generator.writeBooleanField(column, value.getBoolean());
+                    break;
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                    generator.writeNumberField(column, value.getInt());
+                    break;
+                case Types.BIGINT:
+                    generator.writeNumberField(column, value.getLong());
+                    break;
+                case Types.REAL:
+                    generator.writeNumberField(column, value.getFloat());
+                    break;
+                case Types.DOUBLE:
+                    generator.writeNumberField(column, value.getDouble());
+                    break;
+                case Types.VARBINARY:
+                    generator.writeBinaryField(column, (byte[]) value.getValue());
+                    break;
+                case Types.DATE:
+                    generator.writeNumberField(column, ((Date) value.getValue()).getTime());
+                    break;
+                case Types.TIMESTAMP:
+                    generator.writeNumberField(column, ((Timestamp) value.getValue()).getTime());
+                    break;
+                case Types.CLOB:
+                case Types.BLOB:
+                default:
+                    throw new WaarpDatabaseSqlException("Unsupported type for export: " +
+                            value.type + " for " + column);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    /**
+     * Read one row (the START_OBJECT being the current token) into the values. All the columns
+     * must be present, unknown ones are ignored.
+     * 
+     * @param parser
+     * @param values
+     * @param columns
+     *            rank of each column in values
+     * @throws IOException
+     * @throws WaarpDatabaseSqlException
+     */
+    static void readRow(JsonParser parser, DbValue[] values, Map<String, Integer> columns)
+            throws IOException, WaarpDatabaseSqlException {
+        boolean[] seen = new boolean[values.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            Integer rank = columns.get(parser.getCurrentName());
+            JsonToken token = parser.nextToken();
+            if (rank == null) {
+                parser.skipChildren();
+                continue;
+            }
+            seen[rank] = true;
+            DbValue value = values[rank];
+            if (token == JsonToken.VALUE_NULL) {
+                value.setValue((Object) null);
+                continue;
+            }
+            switch (value.type) {
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                    value.setValue(parser.getText());
+                    break;
+                case Types.BIT:
+                    value.setValue(parser.getValueAsBoolean());
+                    break;
+                case Types.TINYINT:
+                    value.setValue((byte) parser.getValueAsInt());
+                    break;
+                case Types.SMALLINT:
+                    value.setValue((short) parser.getValueAsInt());
+                    break;
+                case Types.INTEGER:
+                    value.setValue(parser.getValueAsInt());
+                    break;
+                case Types.BIGINT:
+                    value.setValue(parser.getValueAsLong());
+                    break;
+                case Types.REAL:
+                    value.setValue((float) parser.getValueAsDouble());
+                    break;
+                case Types.DOUBLE:
+                    value.setValue(parser.getValueAsDouble());
+                    break;
+                case Types.VARBINARY:
+                    value.setValue(parser.getBinaryValue());
+                    break;
+                case Types.DATE:
+                    value.setValue(new Date(parser.getValueAsLong()));
+                    break;
+                case Types.TIMESTAMP:
+                    value.setValue(new Timestamp(parser.getValueAsLong()));
+                    break;
+                case Types.CLOB:
+                case Types.BLOB:
+                default:
+                    throw new WaarpDatabaseSqlException("Unsupported type for import: " +
+                            value.type + " for " + value.getColumn());
+            }
+        }
+        for (int i = 0; i < seen.length; i++) {
+            if (!seen[i]) {
+                throw new WaarpDatabaseSqlException("Missing column in import: " +
+                        values[i].getColumn());
+            }
+        }
+    }
+}
@@ -41,9 +41,32 @@ import org.waarp.common.utility.WaarpStringUtils;
  */
 public class DbValue {
     /**
-     * Real value
+     * Kind of the primitive slot in use (NOPRIMITIVE when value holds the real value)
+     */
+    private static final byte NOPRIMITIVE = 0;
+    private static final byte PBOOLEAN = 1;
+    private static final byte PBYTE = 2;
+    private static final byte PSHORT = 3;
+    private static final byte PINT = 4;
+    private static final byte PLONG = 5;
+    private static final byte PFLOAT = 6;
+    private static final byte PDOUBLE = 7;
+    /**
+     * Real value (if not a primitive)
      */
     private Object value;
+    /**
+     * Primitive slot for boolean, byte, short, int and long
+     */
+    private long longValue;
+    /**
+     * Primitive slot for float and double
+     */
+    private double doubleValue;
+    /**
+     * Which primitive slot holds the real value
+     */
+    private byte primitive = NOPRIMITIVE;
     /**
      * Data Type
      */
@@ -208,64 +231,106 @@ public class DbValue {
         setColumn(name);
     }
 
+    /**
+     * 
+     * @return a copy of this value (same column and type), byte arrays and dates being cloned
+     */
+    DbValue copy() {
+        DbValue copy = new DbValue((String) null, column);
+        copy.type = type;
+        copy.primitive = primitive;
+        copy.longValue = longValue;
+        copy.doubleValue = doubleValue;
+        if (value instanceof byte[]) {
+            copy.value = ((byte[]) value).clone();
+        } else if (value instanceof java.util.Date) {
+            copy.value = ((java.util.Date) value).clone();
+        } else {
+            copy.value = value;
+        }
+        return copy;
+    }
+
     public void setValue(String value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(boolean value) {
-        this.value = value;
+        this.value = null;
+        longValue = value ? 1 : 0;
+        primitive = PBOOLEAN;
     }
 
     public void setValue(byte value) {
-        this.value = value;
+        this.value = null;
+        longValue = value;
+        primitive = PBYTE;
     }
 
     public void setValue(short value) {
-        this.value = value;
+        this.value = null;
+        longValue = value;
+        primitive = PSHORT;
     }
 
     public void setValue(int value) {
-        this.value = value;
+        this.value = null;
+        longValue = value;
+        primitive = PINT;
     }
 
     public void setValue(long value) {
-        this.value = value;
+        this.value = null;
+        longValue = value;
+        primitive = PLONG;
     }
 
     public void setValue(float value) {
-        this.value = value;
+        this.value = null;
+        doubleValue = value;
+        primitive = PFLOAT;
     }
 
     public void setValue(double value) {
-        this.value = value;
+        this.value = null;
+        doubleValue = value;
+        primitive = PDOUBLE;
     }
 
     public void setValue(byte[] value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(Date value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(Timestamp value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(java.util.Date value) {
         this.value = new Timestamp(value.getTime());
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(Reader value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(InputStream value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     public void setValue(Object value) {
         this.value = value;
+        primitive = NOPRIMITIVE;
     }
 
     /**
@@ -323,12 +388,154 @@ public class DbValue {
             case Types.TIMESTAMP:
             case Types.CLOB:
             case Types.BLOB:
-                return value;
+                return getObject();
             default:
                 throw new IllegalAccessError("Type unknown: " + type);
         }
     }
 
+    /**
+     * 
+     * @return the real value, boxing the primitive slot if in use as the original type set
+     */
+    private Object getObject() {
+        switch (primitive) {
+            case PBOOLEAN:
+                return longValue != 0;
+            case PBYTE:
+                return (byte) longValue;
+            case PSHORT:
+                return (short) longValue;
+            case PINT:
+                return (int) longValue;
+            case PLONG:
+                return longValue;
+            case PFLOAT:
+                return (float) doubleValue;
+            case PDOUBLE:
+                return doubleValue;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * 
+     * @return True if the value is null
+     */
+    public boolean isNull() {
+        return primitive == NOPRIMITIVE && value == null;
+    }
+
+    /**
+     * Value as long without boxing when set from a primitive
+     * 
+     * @return the value as a long
+     * @throws ClassCastException
+     *             if the value is not a number nor a boolean
+     * @throws NullPointerException
+     *             if the value is null
+     */
+    public long getLong() {
+        switch (primitive) {
+            case NOPRIMITIVE:
+                if (value instanceof Boolean) {
+                    return ((Boolean) value) ? 1 : 0;
+                }
+                return ((Number) value).longValue();
+            case PFLOAT:
+            case PDOUBLE:
+                return (long) doubleValue;
+            default:
+                return longValue;
+        }
+    }
+
+    /**
+     * Value as int without boxing when set from a primitive
+     * 
+     * @return the value as an int
+     * @see #getLong()
+     */
+    public int getInt() {
+        return (int) getLong();
+    }
+
+    /**
+     * Value as short without boxing when set from a primitive
+     * 
+     * @return the value as a short
+     * @see #getLong()
+     */
+    public short getShort() {
+        return (short) getLong();
+    }
+
+    /**
+     * Value as byte without boxing when set from a primitive
+     * 
+     * @return the value as a byte
+     * @see #getLong()
+     */
+    public byte getByte() {
+        return (byte) getLong();
+    }
+
+    /**
+     * Value as double without boxing when set from a primitive
+     * 
+     * @return the value as a double
+     * @throws ClassCastException
+     *             if the value is not a number
+     * @throws NullPointerException
+     *             if the value is null
+     */
+    public double getDouble() {
+        switch (primitive) {
+            case NOPRIMITIVE:
+                return ((Number) value).doubleValue();
+            case PFLOAT:
+            case PDOUBLE:
+                return doubleValue;
+            default:
+                return longValue;
+        }
+    }
+
+    /**
+     * Value as float without boxing when set from a primitive
+     * 
+     * @return the value as a float
+     * @see #getDouble()
+     */
+    public float getFloat() {
+        return (float) getDouble();
+    }
+
+    /**
+     * Value as boolean without boxing when set from a primitive
+     * 
+     * @return the value as a boolean
+     * @throws ClassCastException
+     *             if the value is not a boolean nor a number
+     * @throws NullPointerException
+     *             if the value is null
+     */
+    public boolean getBoolean() {
+        switch (primitive) {
+            case NOPRIMITIVE:
+                if (value instanceof Number) {
+                    return ((Number) value).longValue() != 0;
+                }
+                return (Boolean) value;
+            case PFLOAT:
+            case PDOUBLE:
+                return doubleValue != 0;
+            default:
+                return longValue != 0;
+        }
+    }
+
     public String getValueAsString() throws WaarpDatabaseSqlException {
         switch (type) {
             case Types.VARCHAR:
@@ -0,0 +1,368 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.waarp.common.database.DbConstant;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Write-behind queue of updates for one DbSession.<br>
+ * <br>
+ * Once set on a DbSession (DbSession.setWriteBehindQueue), the update() of
+ * AbstractDbDataWithCommit objects of this session only registers a copy of the values of the
+ * object, keyed by its table and primary key, such that several updates of the same row are
+ * coalesced into one write of the latest state. Pending updates are written by batch when the delay
+ * is over, when the number of pending rows reaches the threshold, on DbSession.commit() and when
+ * the DbSession is closed.<br>
+ * <br>
+ * Since the values are copied when registered, the owner of the object can go on changing it while
+ * a flush is running: the row written is always the state given to the last update(). The object
+ * itself stays not saved, such that a next update() registers it again.<br>
+ * <br>
+ * The periodic flush runs on a timer thread. It writes directly only for a session in autocommit,
+ * where each write stands alone. For a session not in autocommit, writing from the timer thread
+ * would commit (or rollback) the transaction in progress of the owner thread and use its
+ * connection concurrently: the timer then only marks the flush as due, and the owner thread writes
+ * the pending updates at its next update() or DbSession.commit().<br>
+ * <br>
+ * Note that a pending update is not checked against the database: a missing row is silently
+ * ignored, contrary to the immediate update().
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbWriteBehindQueue {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbWriteBehindQueue.class);
+
+    /**
+     * Shared timer for all periodic flushes
+     */
+    private static final Timer timer = new HashedWheelTimer(new WaarpThreadFactory("WriteBehind"),
+            50, TimeUnit.MILLISECONDS, 1024);
+
+    /**
+     * Periodic flush
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class FlushTask implements TimerTask {
+        private final DbWriteBehindQueue queue;
+
+        private FlushTask(DbWriteBehindQueue queue) {
+            this.queue = queue;
+        }
+
+        public void run(Timeout timeout) throws Exception {
+            if (queue.isClosed) {
+                return;
+            }
+            try {
+                queue.periodicFlush();
+            } catch (Throwable e) {
+                // whatever the error, the periodic flush must go on
+                logger.warn("Write-behind flush in error: " + e.getMessage());
+            } finally {
+                queue.schedule();
+            }
+        }
+    }
+
+    /**
+     * Values to write for one row
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static final class PendingUpdate {
+        private final AbstractDbData data;
+        private final DbValue[] values;
+
+        private PendingUpdate(AbstractDbData data, DbValue[] values) {
+            this.data = data;
+            this.values = values;
+        }
+    }
+
+    private final DbSession session;
+    private final long flushDelay;
+    private final int maxPending;
+    private final ConcurrentHashMap<String, PendingUpdate> pending =
+            new ConcurrentHashMap<String, PendingUpdate>();
+    /**
+     * Only one flush at a time
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile Timeout timeout = null;
+    private volatile boolean isClosed = false;
+    /**
+     * The periodic flush is due, to be done by the owner thread (session not in autocommit)
+     */
+    private volatile boolean flushDue = false;
+
+    /**
+     * 
+     * @param session
+     *            the DbSession used to write
+     * @param flushDelay
+     *            delay in ms between 2 periodic flushes (0 for no periodic flush)
+     * @param maxPending
+     *            number of pending rows that forces a flush
+     */
+    public DbWriteBehindQueue(DbSession session, long flushDelay, int maxPending) {
+        this.session = session;
+        this.flushDelay = flushDelay;
+        this.maxPending = maxPending > 0 ? maxPending : DbConstant.BATCHSIZE;
+        schedule();
+    }
+
+    private void schedule() {
+        if (flushDelay > 0 && !isClosed) {
+            try {
+                timeout = timer.newTimeout(new FlushTask(this), flushDelay,
+                        TimeUnit.MILLISECONDS);
+            } catch (IllegalStateException e) {
+                logger.debug("Cannot schedule write-behind flush", e);
+            }
+        }
+    }
+
+    /**
+     * Register the update of this object with a copy of its current values, replacing any previous
+     * pending update of the same row
+     * 
+     * @param data
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public void add(AbstractDbData data) throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (isClosed) {
+            throw new WaarpDatabaseSqlException("Write-behind queue closed");
+        }
+        updates.incrementAndGet();
+        data.isSaved = false;
+        PendingUpdate update = new PendingUpdate(data, data.snapshotAllFields());
+        if (pending.put(data.getKey(), update) != null) {
+            coalesced.incrementAndGet();
+        }
+        data.invalidateCache();
+        if (flushDue || pending.size() >= maxPending) {
+            flush();
+        }
+    }
+
+    /**
+     * Periodic flush from the timer thread: written only if the session is in autocommit, else
+     * marked as due for the owner thread
+     * 
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    void periodicFlush() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (session.isAutoCommit()) {
+            flush();
+        } else {
+            flushDue = true;
+        }
+    }
+
+    /**
+     * Remove the pending update of this object if any
+     * 
+     * @param data
+     * @return True if an update of this object was pending
+     */
+    public boolean remove(AbstractDbData data) {
+        String key = data.getKey();
+        PendingUpdate update = pending.get(key);
+        return update != null && update.data == data && pending.remove(key, update);
+    }
+
+    /**
+     * Write all pending updates by batch.<br>
+     * <br>
+     * In case of error, the updates not written are kept pending.
+     * 
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public void flush() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        if (flushLock.isHeldByCurrentThread()) {
+            // commit called from this flush
+            return;
+        }
+        flushLock.lock();
+        try {
+            flushDue = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            Map<Class<?>, List<Entry<String, PendingUpdate>>> byType =
+                    new HashMap<Class<?>, List<Entry<String, PendingUpdate>>>();
+            for (Entry<String, PendingUpdate> entry : pending.entrySet()) {
+                PendingUpdate update = entry.getValue();
+                if (pending.remove(entry.getKey(), update)) {
+                    Class<?> type = update.data.getClass();
+                    List<Entry<String, PendingUpdate>> list = byType.get(type);
+                    if (list == null) {
+                        list = new ArrayList<Entry<String, PendingUpdate>>();
+                        byType.put(type, list);
+                    }
+                    list.add(new SimpleImmutableEntry<String, PendingUpdate>(entry.getKey(),
+                            update));
+                }
+            }
+            Exception last = null;
+            for (List<Entry<String, PendingUpdate>> list : byType.values()) {
+                List<AbstractDbData> datas = new ArrayList<AbstractDbData>(list.size());
+                List<DbValue[]> rows = new ArrayList<DbValue[]>(list.size());
+                for (Entry<String, PendingUpdate> entry : list) {
+                    datas.add(entry.getValue().data);
+                    rows.add(entry.getValue().values);
+                }
+                try {
+                    AbstractDbData.updateSnapshots(datas, rows);
+                    written.addAndGet(list.size());
+                } catch (Exception e) {
+                    logger.warn("Write-behind flush in error: " + e.getMessage());
+                    last = e;
+                    // kept pending unless updated again meanwhile
+                    for (Entry<String, PendingUpdate> entry : list) {
+                        pending.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            flushes.incrementAndGet();
+            if (last instanceof WaarpDatabaseNoConnectionException) {
+                throw (WaarpDatabaseNoConnectionException) last;
+            } else if (last instanceof WaarpDatabaseSqlException) {
+                throw (WaarpDatabaseSqlException) last;
+            } else if (last != null) {
+                throw new WaarpDatabaseSqlException("Write-behind flush in error", last);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the periodic flush and write all pending updates
+     * 
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     */
+    public void close() throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException {
+        isClosed = true;
+        Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+        flush();
+    }
+
+    /**
+     * 
+     * @return the DbSession of this queue
+     */
+    public DbSession getSession() {
+        return session;
+    }
+
+    /**
+     * 
+     * @return the number of pending updates
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * 
+     * @return the number of updates registered
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * 
+     * @return the number of updates replaced by a later one before being written
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * 
+     * @return the number of rows written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * 
+     * @return the number of flushes
+     */
+    public long getFlushes() {
+        return flushes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehind: pending: " + getPending() + " updates: " + getUpdates() +
+                " coalesced: " + getCoalesced() + " written: " + getWritten() + " flushes: " +
+                getFlushes();
+    }
+}
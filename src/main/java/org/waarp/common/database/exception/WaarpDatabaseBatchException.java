@@ -0,0 +1,55 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.exception;
+
+/**
+ * Database batch Error, giving the result of each object of the batch operation
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class WaarpDatabaseBatchException extends WaarpDatabaseSqlException {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 2947110613826483507L;
+
+    private final int[] results;
+
+    /**
+     * @param arg0
+     * @param arg1
+     * @param results
+     *            the result of each object of the batch operation
+     */
+    public WaarpDatabaseBatchException(String arg0, Throwable arg1, int[] results) {
+        super(arg0, arg1);
+        this.results = results;
+    }
+
+    /**
+     * 
+     * @return the result of each object, in the collection order: the number of rows concerned
+     *         (or Statement.SUCCESS_NO_INFO) if applied, Statement.EXECUTE_FAILED if in error, 0
+     *         if not applied (not found, not executed or rolled back)
+     */
+    public int[] getResults() {
+        return results;
+    }
+}
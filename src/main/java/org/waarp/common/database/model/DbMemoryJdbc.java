@@ -0,0 +1,692 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.sql.BatchUpdateException;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+
+/**
+ * Minimal JDBC layer of the in-memory database (DbModelMemory), implemented through dynamic
+ * proxies of Connection, PreparedStatement and ResultSet.<br>
+ * <br>
+ * Only the methods used by the Database package are implemented: other methods without result
+ * are ignored, the others throw a SQLFeatureNotSupportedException.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+final class DbMemoryJdbc {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private DbMemoryJdbc() {
+    }
+
+    /**
+     * 
+     * @param store
+     * @return a new Connection on this store
+     */
+    static Connection newConnection(DbMemoryStore store) {
+        ConnectionHandler handler = new ConnectionHandler(store);
+        handler.proxy = (Connection) Proxy.newProxyInstance(DbMemoryJdbc.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, handler);
+        return handler.proxy;
+    }
+
+    /**
+     * Common part of the handlers
+     */
+    private static abstract class Handler implements InvocationHandler {
+        boolean closed = false;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return getClass().getSimpleName() + "@" +
+                        Integer.toHexString(System.identityHashCode(proxy));
+            }
+            if (args == null) {
+                args = new Object[0];
+            }
+            if (name.equals("close")) {
+                closed = true;
+                return null;
+            } else if (name.equals("isClosed")) {
+                return closed;
+            } else if (name.equals("isWrapperFor")) {
+                return false;
+            } else if (name.equals("getWarnings")) {
+                return null;
+            }
+            return handle(name, method, args);
+        }
+
+        /**
+         * 
+         * @param name
+         * @param method
+         * @param args
+         *            never null
+         * @return the result of the method
+         * @throws Exception
+         */
+        abstract Object handle(String name, Method method, Object[] args) throws Exception;
+
+        /**
+         * 
+         * @param method
+         * @return the default value for an unhandled method
+         * @throws SQLFeatureNotSupportedException
+         *             if the method has a result
+         */
+        static Object unsupported(Method method) throws SQLFeatureNotSupportedException {
+            if (method.getReturnType() == Void.TYPE) {
+                return null;
+            }
+            throw new SQLFeatureNotSupportedException("Memory database does not support " +
+                    method.getDeclaringClass().getSimpleName() + "." + method.getName());
+        }
+
+        void checkOpen() throws SQLException {
+            if (closed) {
+                throw new SQLException("Already closed", "08003");
+            }
+        }
+    }
+
+    /**
+     * Handler of Connection
+     */
+    private static final class ConnectionHandler extends Handler {
+        private final DbMemoryStore store;
+        private Connection proxy;
+        private boolean autoCommit = true;
+        private boolean readOnly = false;
+        private int isolation = Connection.TRANSACTION_NONE;
+
+        private ConnectionHandler(DbMemoryStore store) {
+            this.store = store;
+        }
+
+        @Override
+        Object handle(String name, Method method, Object[] args) throws Exception {
+            if (name.equals("isValid")) {
+                return !closed;
+            }
+            checkOpen();
+            if (name.equals("prepareStatement")) {
+                return newStatement(this, DbMemorySql.parse((String) args[0]));
+            } else if (name.equals("createStatement")) {
+                return newStatement(this, null);
+            } else if (name.equals("setAutoCommit")) {
+                autoCommit = (Boolean) args[0];
+                return null;
+            } else if (name.equals("getAutoCommit")) {
+                return autoCommit;
+            } else if (name.equals("setReadOnly")) {
+                readOnly = (Boolean) args[0];
+                return null;
+            } else if (name.equals("isReadOnly")) {
+                return readOnly;
+            } else if (name.equals("setTransactionIsolation")) {
+                isolation = (Integer) args[0];
+                return null;
+            } else if (name.equals("getTransactionIsolation")) {
+                return isolation;
+            } else if (name.equals("setSavepoint")) {
+                final String savepointName = args.length > 0 ? (String) args[0] : null;
+                return new Savepoint() {
+                    public int getSavepointId() throws SQLException {
+                        return 0;
+                    }
+
+                    public String getSavepointName() throws SQLException {
+                        return savepointName;
+                    }
+                };
+            } else if (name.equals("getMetaData")) {
+                return Proxy.newProxyInstance(DbMemoryJdbc.class.getClassLoader(),
+                        new Class<?>[] { DatabaseMetaData.class }, new MetaDataHandler(proxy));
+            }
+            // commit, rollback, releaseSavepoint, clearWarnings: no transaction
+            return unsupported(method);
+        }
+    }
+
+    /**
+     * Handler of DatabaseMetaData
+     */
+    private static final class MetaDataHandler extends Handler {
+        private final Connection connection;
+
+        private MetaDataHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        Object handle(String name, Method method, Object[] args) throws Exception {
+            if (name.equals("supportsBatchUpdates")) {
+                return true;
+            } else if (name.equals("getDatabaseProductName")) {
+                return "Memory";
+            } else if (name.equals("getURL")) {
+                return "jdbc:memory:";
+            } else if (name.equals("getConnection")) {
+                return connection;
+            }
+            Class<?> type = method.getReturnType();
+            if (type == Boolean.TYPE) {
+                return false;
+            } else if (type == Integer.TYPE) {
+                return 0;
+            }
+            return unsupported(method);
+        }
+    }
+
+    private static PreparedStatement newStatement(ConnectionHandler connection,
+            DbMemorySql statement) {
+        StatementHandler handler = new StatementHandler(connection, statement);
+        handler.proxy = (PreparedStatement) Proxy.newProxyInstance(
+                DbMemoryJdbc.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, handler);
+        return handler.proxy;
+    }
+
+    /**
+     * Handler of Statement and PreparedStatement
+     */
+    private static final class StatementHandler extends Handler {
+        private final ConnectionHandler connection;
+        private final DbMemorySql statement;
+        private PreparedStatement proxy;
+        private Object[] parameters;
+        private List<Object> batch = null;
+        private ResultSet resultSet = null;
+        private int updateCount = -1;
+        private int fetchSize = 0;
+        private int queryTimeout = 0;
+
+        private StatementHandler(ConnectionHandler connection, DbMemorySql statement) {
+            this.connection = connection;
+            this.statement = statement;
+            this.parameters = new Object[statement == null ? 0 : statement.nbParameters];
+        }
+
+        @Override
+        Object handle(String name, Method method, Object[] args) throws Exception {
+            checkOpen();
+            if (name.startsWith("set") && args.length >= 2 && args[0] instanceof Integer &&
+                    method.getParameterTypes()[0] == Integer.TYPE) {
+                setParameter(name, (Integer) args[0], args[1]);
+                return null;
+            } else if (name.equals("executeQuery")) {
+                execute(args);
+                if (resultSet == null) {
+                    throw new SQLException("Not a query", "07000");
+                }
+                return resultSet;
+            } else if (name.equals("executeUpdate")) {
+                execute(args);
+                if (resultSet != null) {
+                    throw new SQLException("Not an update", "07000");
+                }
+                return updateCount;
+            } else if (name.equals("execute")) {
+                execute(args);
+                return resultSet != null;
+            } else if (name.equals("getResultSet")) {
+                return resultSet;
+            } else if (name.equals("getUpdateCount")) {
+                return resultSet != null ? -1 : updateCount;
+            } else if (name.equals("getMoreResults")) {
+                resultSet = null;
+                updateCount = -1;
+                return false;
+            } else if (name.equals("addBatch")) {
+                if (batch == null) {
+                    batch = new ArrayList<Object>();
+                }
+                batch.add(args.length > 0 ? args[0] : parameters.clone());
+                return null;
+            } else if (name.equals("clearBatch")) {
+                batch = null;
+                return null;
+            } else if (name.equals("executeBatch")) {
+                return executeBatch();
+            } else if (name.equals("clearParameters")) {
+                Arrays.fill(parameters, null);
+                return null;
+            } else if (name.equals("setFetchSize")) {
+                fetchSize = (Integer) args[0];
+                return null;
+            } else if (name.equals("getFetchSize")) {
+                return fetchSize;
+            } else if (name.equals("setQueryTimeout")) {
+                queryTimeout = (Integer) args[0];
+                return null;
+            } else if (name.equals("getQueryTimeout")) {
+                return queryTimeout;
+            } else if (name.equals("getConnection")) {
+                return connection.proxy;
+            } else if (name.equals("getGeneratedKeys")) {
+                return newResultSet(proxy, new String[0], Collections.<Object[]> emptyList());
+            } else if (name.equals("getMetaData")) {
+                return null;
+            }
+            return unsupported(method);
+        }
+
+        private void setParameter(String name, int rank, Object value) throws SQLException {
+            if (rank < 1) {
+                throw new SQLException("Invalid parameter index " + rank, "07009");
+            }
+            if (rank > parameters.length) {
+                parameters = Arrays.copyOf(parameters, rank);
+            }
+            if (name.equals("setNull")) {
+                value = null;
+            }
+            parameters[rank - 1] = materialize(value);
+        }
+
+        private void execute(Object[] args) throws SQLException {
+            DbMemorySql current = statement;
+            Object[] values = parameters;
+            if (args.length > 0 && args[0] instanceof String) {
+                current = DbMemorySql.parse((String) args[0]);
+                values = new Object[0];
+            }
+            if (current == null) {
+                throw new SQLException("No statement to execute", "07000");
+            }
+            if (values.length < current.nbParameters) {
+                throw new SQLException("Missing parameters", "07001");
+            }
+            if (current.kind != DbMemorySql.SELECT && connection.readOnly) {
+                throw new SQLException("Connection is read only", "25006");
+            }
+            DbMemoryStore.Result result = connection.store.execute(current, values);
+            if (result.rows != null) {
+                resultSet = newResultSet(proxy, result.labels, result.rows);
+                updateCount = -1;
+            } else {
+                resultSet = null;
+                updateCount = result.updateCount;
+            }
+        }
+
+        private int[] executeBatch() throws SQLException {
+            List<Object> current = batch;
+            batch = null;
+            if (current == null) {
+                return new int[0];
+            }
+            int[] counts = new int[current.size()];
+            Object[] saved = parameters;
+            try {
+                for (int i = 0; i < counts.length; i++) {
+                    Object item = current.get(i);
+                    try {
+                        if (item instanceof String) {
+                            execute(new Object[] { item });
+                        } else {
+                            parameters = (Object[]) item;
+                            execute(new Object[0]);
+                        }
+                    } catch (SQLException e) {
+                        // as most drivers: stop at the first failed row
+                        int[] done = new int[i];
+                        System.arraycopy(counts, 0, done, 0, i);
+                        throw new BatchUpdateException(e.getMessage(), e.getSQLState(),
+                                e.getErrorCode(), done, e);
+                    }
+                    counts[i] = updateCount;
+                }
+            } finally {
+                parameters = saved;
+            }
+            resultSet = null;
+            return counts;
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the value to store (streams, Clob and Blob read as String and byte[])
+     * @throws SQLException
+     */
+    private static Object materialize(Object value) throws SQLException {
+        try {
+            if (value instanceof Reader) {
+                Reader reader = (Reader) value;
+                StringBuilder builder = new StringBuilder();
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) >= 0) {
+                    builder.append(buffer, 0, read);
+                }
+                return builder.toString();
+            } else if (value instanceof InputStream) {
+                InputStream input = (InputStream) value;
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) >= 0) {
+                    output.write(buffer, 0, read);
+                }
+                return output.toByteArray();
+            } else if (value instanceof Clob) {
+                Clob clob = (Clob) value;
+                return clob.getSubString(1, (int) clob.length());
+            } else if (value instanceof Blob) {
+                Blob blob = (Blob) value;
+                return blob.getBytes(1, (int) blob.length());
+            }
+        } catch (IOException e) {
+            throw new SQLException("Cannot read parameter", e);
+        }
+        return value;
+    }
+
+    private static ResultSet newResultSet(PreparedStatement statement, String[] labels,
+            List<Object[]> rows) {
+        return (ResultSet) Proxy.newProxyInstance(DbMemoryJdbc.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new ResultSetHandler(statement, labels, rows));
+    }
+
+    /**
+     * Handler of ResultSet
+     */
+    private static final class ResultSetHandler extends Handler {
+        private final PreparedStatement statement;
+        private final String[] labels;
+        private final List<Object[]> rows;
+        private int current = -1;
+        private boolean wasNull = false;
+
+        private ResultSetHandler(PreparedStatement statement, String[] labels, List<Object[]> rows) {
+            this.statement = statement;
+            this.labels = labels;
+            this.rows = rows;
+        }
+
+        @Override
+        Object handle(String name, Method method, Object[] args) throws Exception {
+            if (name.equals("getMetaData")) {
+                return Proxy.newProxyInstance(DbMemoryJdbc.class.getClassLoader(),
+                        new Class<?>[] { ResultSetMetaData.class }, new ResultSetMetaDataHandler(
+                                labels, rows));
+            }
+            checkOpen();
+            if (name.equals("next")) {
+                if (current < rows.size()) {
+                    current++;
+                }
+                return current < rows.size();
+            } else if (name.equals("wasNull")) {
+                return wasNull;
+            } else if (name.equals("findColumn")) {
+                return findColumn((String) args[0]);
+            } else if (name.equals("getRow")) {
+                return current >= 0 && current < rows.size() ? current + 1 : 0;
+            } else if (name.equals("isBeforeFirst")) {
+                return current < 0 && !rows.isEmpty();
+            } else if (name.equals("isAfterLast")) {
+                return current >= rows.size() && !rows.isEmpty();
+            } else if (name.equals("getStatement")) {
+                return statement;
+            } else if (name.equals("getFetchSize")) {
+                return rows.size();
+            } else if (name.equals("getType")) {
+                return ResultSet.TYPE_FORWARD_ONLY;
+            } else if (name.equals("getConcurrency")) {
+                return ResultSet.CONCUR_READ_ONLY;
+            } else if (name.startsWith("get") && args.length >= 1 &&
+                    (args[0] instanceof Integer || args[0] instanceof String)) {
+                int rank = args[0] instanceof Integer ? (Integer) args[0]
+                        : findColumn((String) args[0]);
+                return getValue(rank, method.getReturnType());
+            }
+            return unsupported(method);
+        }
+
+        private int findColumn(String label) throws SQLException {
+            String column = DbMemorySql.normalize(label);
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i].equals(column)) {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("Unknown column " + label, "42S22");
+        }
+
+        private Object getValue(int rank, Class<?> type) throws SQLException {
+            if (current < 0 || current >= rows.size()) {
+                throw new SQLException("No current row", "24000");
+            }
+            Object[] row = rows.get(current);
+            if (rank < 1 || rank > row.length) {
+                throw new SQLException("Invalid column index " + rank, "07009");
+            }
+            Object value = row[rank - 1];
+            wasNull = value == null;
+            return convert(value, type);
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     * @param type
+     * @return the value converted to the type expected by the getter
+     * @throws SQLException
+     */
+    private static Object convert(Object value, Class<?> type) throws SQLException {
+        if (type.isPrimitive()) {
+            if (type == Boolean.TYPE) {
+                if (value == null) {
+                    return false;
+                } else if (value instanceof Boolean) {
+                    return value;
+                } else if (value instanceof Number) {
+                    return ((Number) value).intValue() != 0;
+                }
+                String text = value.toString().trim();
+                return text.equalsIgnoreCase("true") || text.equals("1");
+            }
+            Number number = toNumber(value);
+            if (type == Long.TYPE) {
+                return number.longValue();
+            } else if (type == Integer.TYPE) {
+                return number.intValue();
+            } else if (type == Short.TYPE) {
+                return number.shortValue();
+            } else if (type == Byte.TYPE) {
+                return number.byteValue();
+            } else if (type == Double.TYPE) {
+                return number.doubleValue();
+            } else if (type == Float.TYPE) {
+                return number.floatValue();
+            }
+        }
+        if (value == null) {
+            return null;
+        }
+        if (type == Object.class) {
+            return DbMemoryStore.copy(value);
+        } else if (type == String.class) {
+            if (value instanceof byte[]) {
+                return new String((byte[]) value, UTF8);
+            }
+            return value.toString();
+        } else if (type == BigDecimal.class) {
+            Number number = toNumber(value);
+            return number instanceof BigDecimal ? number : new BigDecimal(number.toString());
+        } else if (type == byte[].class) {
+            return value instanceof byte[] ? ((byte[]) value).clone() : value.toString()
+                    .getBytes(UTF8);
+        } else if (type == Timestamp.class) {
+            return new Timestamp(toTime(value));
+        } else if (type == java.sql.Date.class) {
+            return new java.sql.Date(toTime(value));
+        } else if (type == Time.class) {
+            return new Time(toTime(value));
+        } else if (type == Clob.class) {
+            return new SerialClob(((String) convert(value, String.class)).toCharArray());
+        } else if (type == Blob.class) {
+            return new SerialBlob((byte[]) convert(value, byte[].class));
+        } else if (type == Reader.class) {
+            return new StringReader((String) convert(value, String.class));
+        } else if (type == InputStream.class) {
+            return new ByteArrayInputStream((byte[]) convert(value, byte[].class));
+        }
+        throw new SQLFeatureNotSupportedException("Memory database does not support " +
+                type.getSimpleName() + " values");
+    }
+
+    private static Number toNumber(Object value) throws SQLException {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return (Number) value;
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        try {
+            return new BigDecimal(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new SQLException("Not a number: " + value, "22018");
+        }
+    }
+
+    private static long toTime(Object value) throws SQLException {
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return Timestamp.valueOf(value.toString().trim()).getTime();
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Not a date: " + value, "22007");
+        }
+    }
+
+    /**
+     * Handler of ResultSetMetaData
+     */
+    private static final class ResultSetMetaDataHandler extends Handler {
+        private final String[] labels;
+        private final List<Object[]> rows;
+
+        private ResultSetMetaDataHandler(String[] labels, List<Object[]> rows) {
+            this.labels = labels;
+            this.rows = rows;
+        }
+
+        @Override
+        Object handle(String name, Method method, Object[] args) throws Exception {
+            if (name.equals("getColumnCount")) {
+                return labels.length;
+            }
+            int rank = args.length > 0 && args[0] instanceof Integer ? (Integer) args[0] : 0;
+            if (rank < 1 || rank > labels.length) {
+                return unsupported(method);
+            }
+            if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                return labels[rank - 1];
+            } else if (name.equals("getColumnType")) {
+                Object value = rows.isEmpty() || rows.get(0).length < rank ? null
+                        : rows.get(0)[rank - 1];
+                return typeOf(value);
+            } else if (name.equals("isNullable")) {
+                return ResultSetMetaData.columnNullableUnknown;
+            }
+            return unsupported(method);
+        }
+
+        private static int typeOf(Object value) {
+            if (value instanceof String) {
+                return Types.VARCHAR;
+            } else if (value instanceof Long) {
+                return Types.BIGINT;
+            } else if (value instanceof Integer) {
+                return Types.INTEGER;
+            } else if (value instanceof Short) {
+                return Types.SMALLINT;
+            } else if (value instanceof Byte) {
+                return Types.TINYINT;
+            } else if (value instanceof Boolean) {
+                return Types.BIT;
+            } else if (value instanceof Double) {
+                return Types.DOUBLE;
+            } else if (value instanceof Float) {
+                return Types.REAL;
+            } else if (value instanceof BigDecimal) {
+                return Types.DECIMAL;
+            } else if (value instanceof Timestamp) {
+                return Types.TIMESTAMP;
+            } else if (value instanceof java.sql.Date) {
+                return Types.DATE;
+            } else if (value instanceof byte[]) {
+                return Types.VARBINARY;
+            }
+            return Types.OTHER;
+        }
+    }
+}
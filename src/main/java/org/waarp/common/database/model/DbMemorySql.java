@@ -0,0 +1,767 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed SQL statement for the in-memory database (DbModelMemory).<br>
+ * <br>
+ * Only the subset of SQL generated by AbstractDbData, DbModelAbstract (limit and keyset requests)
+ * and simple administrative requests is supported:<br>
+ * - SELECT * | COUNT(*) | col, ... [FROM table] [WHERE cond] [ORDER BY col [ASC|DESC], ...] [LIMIT
+ * n] [OFFSET n]<br>
+ * - INSERT INTO table (col, ...) VALUES (value, ...)<br>
+ * - UPDATE table SET col = value, ... [WHERE cond]<br>
+ * - DELETE FROM table [WHERE cond]<br>
+ * where cond combines with AND, OR, NOT and parenthesis the comparisons (=, <>, !=, <, <=, >,
+ * >=, LIKE) of a column with a value, IS [NOT] NULL and IN (value, ...), and a value is a
+ * parameter (?), a number, a quoted string, TRUE, FALSE or NULL.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+final class DbMemorySql {
+    static final int SELECT = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+
+    /**
+     * Parsed statements by SQL
+     */
+    private static final ConcurrentHashMap<String, DbMemorySql> parsed =
+            new ConcurrentHashMap<String, DbMemorySql>();
+    private static final int MAXPARSED = 10000;
+
+    final String sql;
+    final int kind;
+    /**
+     * Table name (upper case), null for a SELECT without FROM
+     */
+    String table;
+    /**
+     * Selected columns (null for *), inserted or updated columns
+     */
+    String[] columns;
+    /**
+     * Constant values selected without FROM, inserted or updated values
+     */
+    Operand[] values;
+    boolean count = false;
+    Condition where;
+    String[] orderBy;
+    boolean[] orderDesc;
+    Operand limit;
+    Operand offset;
+    int nbParameters = 0;
+
+    private DbMemorySql(String sql, int kind) {
+        this.sql = sql;
+        this.kind = kind;
+    }
+
+    /**
+     * 
+     * @param sql
+     * @return the parsed statement
+     * @throws SQLException
+     *             if the statement is not supported
+     */
+    static DbMemorySql parse(String sql) throws SQLException {
+        DbMemorySql statement = parsed.get(sql);
+        if (statement == null) {
+            statement = new Parser(sql).parse();
+            if (parsed.size() < MAXPARSED) {
+                parsed.put(sql, statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * 
+     * @param name
+     * @return the normalized name of a table or a column (upper case, without prefix nor quote)
+     */
+    static String normalize(String name) {
+        String result = name.trim();
+        int pos = result.lastIndexOf('.');
+        if (pos >= 0) {
+            result = result.substring(pos + 1);
+        }
+        if (result.length() > 1 && result.charAt(0) == '"') {
+            result = result.substring(1, result.length() - 1);
+        }
+        return result.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Value of a statement: parameter or literal
+     */
+    static final class Operand {
+        final int parameter;
+        final Object literal;
+
+        Operand(int parameter, Object literal) {
+            this.parameter = parameter;
+            this.literal = literal;
+        }
+
+        Object get(Object[] parameters) {
+            return parameter >= 0 ? parameters[parameter] : literal;
+        }
+    }
+
+    /**
+     * Condition of a WHERE clause
+     */
+    static abstract class Condition {
+        /**
+         * 
+         * @param table
+         * @param row
+         * @param parameters
+         * @return True if the row matches
+         */
+        abstract boolean matches(DbMemoryTable table, Object[] row, Object[] parameters);
+    }
+
+    static final class And extends Condition {
+        final Condition[] conditions;
+
+        And(Condition[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            for (Condition condition : conditions) {
+                if (!condition.matches(table, row, parameters)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Or extends Condition {
+        final Condition[] conditions;
+
+        Or(Condition[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            for (Condition condition : conditions) {
+                if (condition.matches(table, row, parameters)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Not extends Condition {
+        final Condition condition;
+
+        Not(Condition condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            return !condition.matches(table, row, parameters);
+        }
+    }
+
+    static final class Compare extends Condition {
+        final String column;
+        final String op;
+        final Operand value;
+        private volatile Pattern like;
+
+        Compare(String column, String op, Operand value) {
+            this.column = column;
+            this.op = op;
+            this.value = value;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            Object current = table.getValue(row, column);
+            Object other = value.get(parameters);
+            if (current == null || other == null) {
+                return false;
+            }
+            if (op.equals("LIKE")) {
+                Pattern pattern = like;
+                if (pattern == null || value.parameter >= 0) {
+                    pattern = toPattern(other.toString());
+                    if (value.parameter < 0) {
+                        like = pattern;
+                    }
+                }
+                return pattern.matcher(current.toString()).matches();
+            }
+            if (op.equals("=")) {
+                return equalValues(current, other);
+            }
+            if (op.equals("<>")) {
+                return !equalValues(current, other);
+            }
+            int comparison = compareValues(current, other);
+            if (op.equals("<")) {
+                return comparison < 0;
+            } else if (op.equals("<=")) {
+                return comparison <= 0;
+            } else if (op.equals(">")) {
+                return comparison > 0;
+            }
+            return comparison >= 0;
+        }
+
+        private static Pattern toPattern(String like) {
+            StringBuilder builder = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < like.length(); i++) {
+                char c = like.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        builder.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    builder.append(c == '%' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                builder.append(Pattern.quote(literal.toString()));
+            }
+            return Pattern.compile(builder.toString(), Pattern.DOTALL);
+        }
+    }
+
+    static final class IsNull extends Condition {
+        final String column;
+        final boolean isNull;
+
+        IsNull(String column, boolean isNull) {
+            this.column = column;
+            this.isNull = isNull;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            return (table.getValue(row, column) == null) == isNull;
+        }
+    }
+
+    static final class In extends Condition {
+        final String column;
+        final Operand[] values;
+
+        In(String column, Operand[] values) {
+            this.column = column;
+            this.values = values;
+        }
+
+        @Override
+        boolean matches(DbMemoryTable table, Object[] row, Object[] parameters) {
+            Object current = table.getValue(row, column);
+            if (current == null) {
+                return false;
+            }
+            for (Operand value : values) {
+                Object other = value.get(parameters);
+                if (other != null && equalValues(current, other)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the key of the value for equality and indexes (numbers as Long or Double)
+     */
+    static Object key(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < Long.MAX_VALUE) {
+                return (long) d;
+            }
+            return d;
+        }
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, java.nio.charset.Charset.forName("ISO-8859-1"));
+        }
+        return value;
+    }
+
+    static boolean equalValues(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (a instanceof String && b instanceof Number || a instanceof Number && b instanceof String) {
+            return compareValues(a, b) == 0;
+        }
+        return key(a).equals(key(b));
+    }
+
+    /**
+     * 
+     * @param a
+     *            not null
+     * @param b
+     *            not null
+     * @return the comparison of the values
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static int compareValues(Object a, Object b) {
+        if (a instanceof Number || b instanceof Number) {
+            BigDecimal da = toDecimal(a);
+            BigDecimal db = toDecimal(b);
+            if (da != null && db != null) {
+                return da.compareTo(db);
+            }
+        }
+        if (a instanceof Date && b instanceof Date) {
+            return ((Date) a).compareTo((Date) b);
+        }
+        if (a instanceof Boolean && b instanceof Boolean) {
+            return ((Boolean) a).compareTo((Boolean) b);
+        }
+        if (a instanceof Comparable && a.getClass() == b.getClass()) {
+            return ((Comparable) a).compareTo(b);
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    private static BigDecimal toDecimal(Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        if (value instanceof Number) {
+            return BigDecimal.valueOf(((Number) value).doubleValue());
+        }
+        if (value instanceof String) {
+            try {
+                return new BigDecimal(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Recursive descent parser
+     */
+    private static final class Parser {
+        private final String sql;
+        private final List<String> tokens = new ArrayList<String>();
+        private int pos = 0;
+        private int nbParameters = 0;
+
+        private Parser(String sql) {
+            this.sql = sql;
+        }
+
+        private SQLException error(String message) {
+            return new SQLSyntaxErrorException("Unsupported SQL for memory database (" + message
+                    + "): " + sql, "42000");
+        }
+
+        private void tokenize() throws SQLException {
+            int i = 0;
+            int len = sql.length();
+            while (i < len) {
+                char c = sql.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    StringBuilder builder = new StringBuilder("'");
+                    i++;
+                    while (true) {
+                        if (i >= len) {
+                            throw error("unterminated string");
+                        }
+                        char s = sql.charAt(i++);
+                        if (s == '\'') {
+                            if (i < len && sql.charAt(i) == '\'') {
+                                builder.append('\'');
+                                i++;
+                            } else {
+                                break;
+                            }
+                        } else {
+                            builder.append(s);
+                        }
+                    }
+                    tokens.add(builder.toString());
+                } else if (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '"'
+                        || c == '.') {
+                    int start = i;
+                    while (i < len) {
+                        char s = sql.charAt(i);
+                        if (Character.isLetterOrDigit(s) || s == '_' || s == '$' || s == '"'
+                                || s == '.') {
+                            i++;
+                        } else {
+                            break;
+                        }
+                    }
+                    tokens.add(sql.substring(start, i));
+                } else if ((c == '<' || c == '>' || c == '!') && i + 1 < len
+                        && (sql.charAt(i + 1) == '=' || c == '<' && sql.charAt(i + 1) == '>')) {
+                    tokens.add(c == '!' ? "<>" : sql.substring(i, i + 2));
+                    i += 2;
+                } else if ("(),?=<>*;-+".indexOf(c) >= 0) {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else {
+                    throw error("unexpected character " + c);
+                }
+            }
+            if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).equals(";")) {
+                tokens.remove(tokens.size() - 1);
+            }
+        }
+
+        private String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : null;
+        }
+
+        private boolean peekKeyword(String keyword) {
+            String token = peek();
+            return token != null && token.equalsIgnoreCase(keyword);
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (peekKeyword(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) throws SQLException {
+            if (!acceptKeyword(keyword)) {
+                throw error("expecting " + keyword);
+            }
+        }
+
+        private String next() throws SQLException {
+            if (pos >= tokens.size()) {
+                throw error("unexpected end");
+            }
+            return tokens.get(pos++);
+        }
+
+        private String identifier() throws SQLException {
+            String token = next();
+            char c = token.charAt(0);
+            if (!(Character.isLetter(c) || c == '_' || c == '"')) {
+                throw error("expecting a name instead of " + token);
+            }
+            return normalize(token);
+        }
+
+        private DbMemorySql parse() throws SQLException {
+            tokenize();
+            DbMemorySql statement;
+            if (acceptKeyword("SELECT")) {
+                statement = parseSelect();
+            } else if (acceptKeyword("INSERT")) {
+                statement = parseInsert();
+            } else if (acceptKeyword("UPDATE")) {
+                statement = parseUpdate();
+            } else if (acceptKeyword("DELETE")) {
+                statement = new DbMemorySql(sql, DELETE);
+                expect("FROM");
+                statement.table = identifier();
+                parseWhere(statement);
+            } else {
+                throw error("unknown statement");
+            }
+            if (pos < tokens.size()) {
+                throw error("unexpected " + peek());
+            }
+            statement.nbParameters = nbParameters;
+            return statement;
+        }
+
+        private DbMemorySql parseSelect() throws SQLException {
+            DbMemorySql statement = new DbMemorySql(sql, SELECT);
+            List<String> columns = new ArrayList<String>();
+            List<Operand> constants = new ArrayList<Operand>();
+            if (acceptKeyword("*")) {
+                columns = null;
+            } else if (peekKeyword("COUNT")) {
+                next();
+                expect("(");
+                expect("*");
+                expect(")");
+                statement.count = true;
+                columns = null;
+            } else {
+                do {
+                    String token = peek();
+                    if (token != null && (Character.isLetter(token.charAt(0))
+                            || token.charAt(0) == '_' || token.charAt(0) == '"')
+                            && !isValueKeyword(token)) {
+                        columns.add(identifier());
+                    } else {
+                        constants.add(operand());
+                    }
+                } while (acceptKeyword(","));
+            }
+            if (acceptKeyword("FROM")) {
+                if (!constants.isEmpty()) {
+                    throw error("constant selected from a table");
+                }
+                statement.table = identifier();
+                // optional alias
+                String token = peek();
+                if (token != null && !isClauseKeyword(token) && !token.equals(")")) {
+                    acceptKeyword("AS");
+                    identifier();
+                }
+                statement.columns = columns == null ? null : columns.toArray(new String[0]);
+                parseWhere(statement);
+                if (acceptKeyword("ORDER")) {
+                    expect("BY");
+                    List<String> orderBy = new ArrayList<String>();
+                    List<Boolean> desc = new ArrayList<Boolean>();
+                    do {
+                        orderBy.add(identifier());
+                        if (acceptKeyword("DESC")) {
+                            desc.add(Boolean.TRUE);
+                        } else {
+                            acceptKeyword("ASC");
+                            desc.add(Boolean.FALSE);
+                        }
+                    } while (acceptKeyword(","));
+                    statement.orderBy = orderBy.toArray(new String[0]);
+                    statement.orderDesc = new boolean[desc.size()];
+                    for (int i = 0; i < statement.orderDesc.length; i++) {
+                        statement.orderDesc[i] = desc.get(i);
+                    }
+                }
+                if (acceptKeyword("LIMIT")) {
+                    statement.limit = operand();
+                }
+                if (acceptKeyword("OFFSET")) {
+                    statement.offset = operand();
+                }
+            } else {
+                if (columns == null || !columns.isEmpty() || statement.count) {
+                    throw error("columns without table");
+                }
+                statement.values = constants.toArray(new Operand[0]);
+            }
+            return statement;
+        }
+
+        private DbMemorySql parseInsert() throws SQLException {
+            DbMemorySql statement = new DbMemorySql(sql, INSERT);
+            expect("INTO");
+            statement.table = identifier();
+            expect("(");
+            List<String> columns = new ArrayList<String>();
+            do {
+                columns.add(identifier());
+            } while (acceptKeyword(","));
+            expect(")");
+            expect("VALUES");
+            expect("(");
+            List<Operand> values = new ArrayList<Operand>();
+            do {
+                values.add(operand());
+            } while (acceptKeyword(","));
+            expect(")");
+            if (columns.size() != values.size()) {
+                throw error("not the same number of columns and values");
+            }
+            statement.columns = columns.toArray(new String[0]);
+            statement.values = values.toArray(new Operand[0]);
+            return statement;
+        }
+
+        private DbMemorySql parseUpdate() throws SQLException {
+            DbMemorySql statement = new DbMemorySql(sql, UPDATE);
+            statement.table = identifier();
+            expect("SET");
+            List<String> columns = new ArrayList<String>();
+            List<Operand> values = new ArrayList<Operand>();
+            do {
+                columns.add(identifier());
+                expect("=");
+                values.add(operand());
+            } while (acceptKeyword(","));
+            statement.columns = columns.toArray(new String[0]);
+            statement.values = values.toArray(new Operand[0]);
+            parseWhere(statement);
+            return statement;
+        }
+
+        private void parseWhere(DbMemorySql statement) throws SQLException {
+            if (acceptKeyword("WHERE")) {
+                statement.where = orCondition();
+            }
+        }
+
+        private Condition orCondition() throws SQLException {
+            List<Condition> conditions = new ArrayList<Condition>();
+            conditions.add(andCondition());
+            while (acceptKeyword("OR")) {
+                conditions.add(andCondition());
+            }
+            if (conditions.size() == 1) {
+                return conditions.get(0);
+            }
+            return new Or(conditions.toArray(new Condition[0]));
+        }
+
+        private Condition andCondition() throws SQLException {
+            List<Condition> conditions = new ArrayList<Condition>();
+            conditions.add(primaryCondition());
+            while (acceptKeyword("AND")) {
+                conditions.add(primaryCondition());
+            }
+            if (conditions.size() == 1) {
+                return conditions.get(0);
+            }
+            return new And(conditions.toArray(new Condition[0]));
+        }
+
+        private Condition primaryCondition() throws SQLException {
+            if (acceptKeyword("(")) {
+                Condition condition = orCondition();
+                expect(")");
+                return condition;
+            }
+            if (acceptKeyword("NOT")) {
+                return new Not(primaryCondition());
+            }
+            String column = identifier();
+            if (acceptKeyword("IS")) {
+                boolean not = acceptKeyword("NOT");
+                expect("NULL");
+                return new IsNull(column, !not);
+            }
+            boolean not = acceptKeyword("NOT");
+            if (acceptKeyword("IN")) {
+                expect("(");
+                List<Operand> values = new ArrayList<Operand>();
+                do {
+                    values.add(operand());
+                } while (acceptKeyword(","));
+                expect(")");
+                Condition in = new In(column, values.toArray(new Operand[0]));
+                return not ? new Not(in) : in;
+            }
+            if (acceptKeyword("LIKE")) {
+                Condition like = new Compare(column, "LIKE", operand());
+                return not ? new Not(like) : like;
+            }
+            if (not) {
+                throw error("expecting IN or LIKE after NOT");
+            }
+            String op = next();
+            if (op.equals("=") && acceptKeyword("=")) {
+                // tolerate ==
+            }
+            if (!(op.equals("=") || op.equals("<>") || op.equals("<") || op.equals("<=")
+                    || op.equals(">") || op.equals(">="))) {
+                throw error("unknown operator " + op);
+            }
+            return new Compare(column, op, operand());
+        }
+
+        private Operand operand() throws SQLException {
+            String token = next();
+            if (token.equals("?")) {
+                return new Operand(nbParameters++, null);
+            }
+            if (token.charAt(0) == '\'') {
+                return new Operand(-1, token.substring(1));
+            }
+            if (token.equalsIgnoreCase("NULL")) {
+                return new Operand(-1, null);
+            }
+            if (token.equalsIgnoreCase("TRUE")) {
+                return new Operand(-1, Boolean.TRUE);
+            }
+            if (token.equalsIgnoreCase("FALSE")) {
+                return new Operand(-1, Boolean.FALSE);
+            }
+            boolean negative = false;
+            if (token.equals("-") || token.equals("+")) {
+                negative = token.equals("-");
+                token = next();
+            }
+            if (!Character.isDigit(token.charAt(0)) && token.charAt(0) != '.') {
+                throw error("expecting a value instead of " + token);
+            }
+            try {
+                if (token.indexOf('.') >= 0 || token.indexOf('e') >= 0
+                        || token.indexOf('E') >= 0) {
+                    double d = Double.parseDouble(token);
+                    return new Operand(-1, negative ? -d : d);
+                }
+                long l = Long.parseLong(token);
+                return new Operand(-1, negative ? -l : l);
+            } catch (NumberFormatException e) {
+                throw error("invalid number " + token);
+            }
+        }
+
+        private static boolean isValueKeyword(String token) {
+            return token.equalsIgnoreCase("NULL") || token.equalsIgnoreCase("TRUE")
+                    || token.equalsIgnoreCase("FALSE");
+        }
+
+        private static boolean isClauseKeyword(String token) {
+            return token.equalsIgnoreCase("WHERE") || token.equalsIgnoreCase("ORDER")
+                    || token.equalsIgnoreCase("LIMIT") || token.equalsIgnoreCase("OFFSET");
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Storage of the in-memory database (DbModelMemory): tables, the unique sequence and an optional
+ * snapshot file.<br>
+ * <br>
+ * Tables must be declared through createTable (with their columns and optional primary key)
+ * before use: as on a real database, an unknown table (SQLState 42S02) or column (42S22) is an
+ * error.
+ * Connections given by getConnection execute the supported subset of SQL (see DbMemorySql)
+ * directly on the tables, so that DbSession, DbPreparedStatement and AbstractDbData work
+ * unchanged. There is no transaction: each statement is applied immediately, commit and rollback
+ * do nothing.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbMemoryStore {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbMemoryStore.class);
+
+    /**
+     * Result of a statement: selected rows or number of updated rows
+     */
+    static final class Result {
+        final String[] labels;
+        final List<Object[]> rows;
+        final int updateCount;
+
+        private Result(String[] labels, List<Object[]> rows) {
+            this.labels = labels;
+            this.rows = rows;
+            this.updateCount = -1;
+        }
+
+        private Result(int updateCount) {
+            this.labels = null;
+            this.rows = null;
+            this.updateCount = updateCount;
+        }
+    }
+
+    private final ConcurrentHashMap<String, DbMemoryTable> tables =
+            new ConcurrentHashMap<String, DbMemoryTable>();
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final File snapshot;
+
+    /**
+     * 
+     * @param snapshot
+     *            file from where the content is loaded (if it exists) and into which it is saved
+     *            on saveSnapshot (null for a purely volatile store)
+     * @throws IOException
+     */
+    public DbMemoryStore(File snapshot) throws IOException {
+        this.snapshot = snapshot;
+        if (snapshot != null && snapshot.isFile()) {
+            load(snapshot);
+        }
+    }
+
+    /**
+     * 
+     * @return the snapshot file (may be null)
+     */
+    public File getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * 
+     * @return a new connection on this store
+     */
+    public Connection getConnection() {
+        return DbMemoryJdbc.newConnection(this);
+    }
+
+    /**
+     * Create a table (if not already existing) with a primary key
+     * 
+     * @param table
+     * @param columns
+     * @param primaryKey
+     *            columns of the primary key (may be empty)
+     */
+    public void createTable(String table, String[] columns, String... primaryKey) {
+        String name = DbMemorySql.normalize(table);
+        String[] normalizedColumns = normalize(columns);
+        String[] normalizedKey = normalize(primaryKey);
+        tables.putIfAbsent(name, new DbMemoryTable(name, normalizedColumns, normalizedKey));
+    }
+
+    private static String[] normalize(String[] names) {
+        if (names == null) {
+            return new String[0];
+        }
+        String[] result = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            result[i] = DbMemorySql.normalize(names[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Remove a table and its content
+     * 
+     * @param table
+     */
+    public void dropTable(String table) {
+        tables.remove(DbMemorySql.normalize(table));
+    }
+
+    /**
+     * 
+     * @param table
+     * @return the number of rows of this table
+     */
+    public int size(String table) {
+        DbMemoryTable memoryTable = tables.get(DbMemorySql.normalize(table));
+        return memoryTable == null ? 0 : memoryTable.size();
+    }
+
+    /**
+     * Remove the content of all tables
+     */
+    public void clear() {
+        for (DbMemoryTable table : tables.values()) {
+            table.clear();
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     *            next value given by the sequence
+     */
+    public void resetSequence(long value) {
+        sequence.set(value - 1);
+    }
+
+    /**
+     * 
+     * @return the next value of the sequence
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * 
+     * @param nb
+     * @return nb consecutive values of the sequence
+     */
+    public long[] reserveSequences(int nb) {
+        long first = sequence.addAndGet(nb) - nb + 1;
+        long[] result = new long[nb];
+        for (int i = 0; i < nb; i++) {
+            result[i] = first + i;
+        }
+        return result;
+    }
+
+    private DbMemoryTable getTable(String name) throws SQLSyntaxErrorException {
+        DbMemoryTable table = tables.get(name);
+        if (table == null) {
+            throw new SQLSyntaxErrorException("Table not found: " + name, "42S02");
+        }
+        return table;
+    }
+
+    /**
+     * 
+     * @param value
+     * @return a copy of the value if mutable
+     */
+    static Object copy(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof Date) {
+            return ((Date) value).clone();
+        }
+        return value;
+    }
+
+    private static int intValue(DbMemorySql.Operand operand, Object[] parameters, int def)
+            throws SQLException {
+        if (operand == null) {
+            return def;
+        }
+        Object value = operand.get(parameters);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            throw new SQLSyntaxErrorException("Not a number: " + value, "42000");
+        }
+    }
+
+    /**
+     * Execute a statement
+     * 
+     * @param statement
+     * @param parameters
+     * @return the result
+     * @throws SQLException
+     */
+    Result execute(DbMemorySql statement, Object[] parameters) throws SQLException {
+        switch (statement.kind) {
+            case DbMemorySql.INSERT: {
+                Object[] values = new Object[statement.values.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = copy(statement.values[i].get(parameters));
+                }
+                getTable(statement.table).insert(statement.columns, values);
+                return new Result(1);
+            }
+            case DbMemorySql.UPDATE: {
+                DbMemoryTable table = getTable(statement.table);
+                table.checkColumns(statement.where);
+                return new Result(table.update(statement.columns, statement.values,
+                        statement.where, parameters));
+            }
+            case DbMemorySql.DELETE: {
+                DbMemoryTable table = getTable(statement.table);
+                table.checkColumns(statement.where);
+                return new Result(table.delete(statement.where, parameters));
+            }
+            default:
+                break;
+        }
+        if (statement.table == null) {
+            // constants without table
+            Object[] row = new Object[statement.values.length];
+            String[] labels = new String[row.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = statement.values[i].get(parameters);
+                labels[i] = Integer.toString(i + 1);
+            }
+            return new Result(labels, Collections.singletonList(row));
+        }
+        DbMemoryTable table = getTable(statement.table);
+        table.checkColumns(statement.where);
+        if (statement.orderBy != null) {
+            for (String column : statement.orderBy) {
+                table.checkedRank(column);
+            }
+        }
+        int limit = intValue(statement.limit, parameters, 0);
+        int offset = intValue(statement.offset, parameters, 0);
+        if (statement.count) {
+            long count = table.select(statement.where, parameters, null, null, 0, 0).size();
+            return new Result(new String[] { "COUNT" },
+                    Collections.singletonList(new Object[] { count }));
+        }
+        List<Object[]> rows = table.select(statement.where, parameters, statement.orderBy,
+                statement.orderDesc, limit, offset);
+        if (statement.columns == null) {
+            return new Result(table.getColumns(), rows);
+        }
+        // projection
+        int[] ranks = new int[statement.columns.length];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = table.checkedRank(statement.columns[i]);
+        }
+        List<Object[]> projected = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            Object[] values = new Object[ranks.length];
+            for (int i = 0; i < ranks.length; i++) {
+                values[i] = row[ranks[i]];
+            }
+            projected.add(values);
+        }
+        return new Result(statement.columns, projected);
+    }
+
+    /**
+     * Save the content into the snapshot file (if any), through a temporary file renamed once
+     * complete
+     * 
+     * @throws IOException
+     */
+    public void saveSnapshot() throws IOException {
+        if (snapshot != null) {
+            save(snapshot);
+        }
+    }
+
+    /**
+     * Save the content into the given file, through a temporary file renamed once complete.
+     * Concurrent writes during the save may be partially included.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            output.writeLong(sequence.get());
+            List<DbMemoryTable> list = new ArrayList<DbMemoryTable>(tables.values());
+            output.writeInt(list.size());
+            for (DbMemoryTable table : list) {
+                output.writeUTF(table.getName());
+                output.writeObject(table.getColumns());
+                output.writeObject(table.getPrimaryKey());
+                List<Object[]> rows = table.getRows();
+                output.writeInt(rows.size());
+                for (Object[] row : rows) {
+                    output.writeObject(row);
+                }
+            }
+        } finally {
+            output.close();
+        }
+        // atomic replacement: the previous snapshot is kept if interrupted
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        logger.debug("Memory database saved into " + file);
+    }
+
+    /**
+     * Load the content from the given file, replacing the tables with the same names
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public void load(File file) throws IOException {
+        ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            sequence.set(input.readLong());
+            int nbTables = input.readInt();
+            for (int i = 0; i < nbTables; i++) {
+                String name = input.readUTF();
+                String[] columns = (String[]) input.readObject();
+                String[] primaryKey = (String[]) input.readObject();
+                DbMemoryTable table = new DbMemoryTable(name, columns, primaryKey);
+                int nbRows = input.readInt();
+                for (int j = 0; j < nbRows; j++) {
+                    Object[] row = (Object[]) input.readObject();
+                    table.insert(columns, Arrays.copyOf(row, columns.length));
+                }
+                tables.put(name, table);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid snapshot " + file, e);
+        } catch (SQLException e) {
+            throw new IOException("Invalid snapshot " + file, e);
+        } finally {
+            input.close();
+        }
+        logger.debug("Memory database loaded from " + file);
+    }
+}
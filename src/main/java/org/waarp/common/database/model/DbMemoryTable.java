@@ -0,0 +1,546 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.waarp.common.database.model.DbMemorySql.And;
+import org.waarp.common.database.model.DbMemorySql.Compare;
+import org.waarp.common.database.model.DbMemorySql.Condition;
+import org.waarp.common.database.model.DbMemorySql.In;
+import org.waarp.common.database.model.DbMemorySql.IsNull;
+import org.waarp.common.database.model.DbMemorySql.Not;
+import org.waarp.common.database.model.DbMemorySql.Operand;
+import org.waarp.common.database.model.DbMemorySql.Or;
+
+/**
+ * Table of the in-memory database (DbModelMemory).<br>
+ * <br>
+ * Rows are immutable arrays kept in insertion order in a concurrent map: reads are lock-free,
+ * while writes are serialized by table to keep the indexes consistent. Rows are found through the
+ * primary key index (if declared), a hash index on a column compared for equality (created at its
+ * first use) or else a full scan. Columns are fixed at creation: using an unknown column is an
+ * error (SQLState 42S22), as on a real database.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class DbMemoryTable {
+    private final String name;
+    private final String[] columns;
+    private final Map<String, Integer> columnIndex;
+    private final String[] primaryKey;
+    private final int[] primaryKeyRank;
+
+    private final AtomicLong nextRowId = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Object[]> rows =
+            new ConcurrentSkipListMap<Long, Object[]>();
+    /**
+     * Primary key to row id (null if no primary key)
+     */
+    private final ConcurrentHashMap<List<Object>, Long> primaryIndex;
+    /**
+     * Hash index by column rank: value to row ids
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Object, Set<Long>>> indexes =
+            new ConcurrentHashMap<Integer, ConcurrentHashMap<Object, Set<Long>>>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * 
+     * @param name
+     * @param columns
+     *            initial columns (normalized)
+     * @param primaryKey
+     *            columns of the primary key (normalized), may be null
+     */
+    DbMemoryTable(String name, String[] columns, String[] primaryKey) {
+        this.name = name;
+        List<String> all = new ArrayList<String>(Arrays.asList(columns));
+        if (primaryKey != null) {
+            for (String column : primaryKey) {
+                if (!all.contains(column)) {
+                    all.add(column);
+                }
+            }
+        }
+        this.columns = all.toArray(new String[0]);
+        columnIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < this.columns.length; i++) {
+            columnIndex.put(this.columns[i], i);
+        }
+        this.primaryKey = primaryKey != null && primaryKey.length > 0 ? primaryKey : null;
+        if (this.primaryKey != null) {
+            primaryKeyRank = new int[this.primaryKey.length];
+            for (int i = 0; i < primaryKeyRank.length; i++) {
+                primaryKeyRank[i] = columnIndex.get(this.primaryKey[i]);
+            }
+            primaryIndex = new ConcurrentHashMap<List<Object>, Long>();
+        } else {
+            primaryKeyRank = null;
+            primaryIndex = null;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String[] getColumns() {
+        return columns;
+    }
+
+    String[] getPrimaryKey() {
+        return primaryKey;
+    }
+
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * 
+     * @param column
+     * @return the rank of the column or -1 if unknown
+     */
+    int getRank(String column) {
+        Integer rank = columnIndex.get(column);
+        return rank == null ? -1 : rank;
+    }
+
+    /**
+     * 
+     * @param column
+     * @return the rank of the column
+     * @throws SQLSyntaxErrorException
+     *             if the column is unknown
+     */
+    int checkedRank(String column) throws SQLSyntaxErrorException {
+        Integer rank = columnIndex.get(column);
+        if (rank == null) {
+            throw new SQLSyntaxErrorException("Column not found: " + column + " in " + name,
+                    "42S22");
+        }
+        return rank;
+    }
+
+    /**
+     * Check that all the columns used by the condition exist
+     * 
+     * @param where
+     *            may be null
+     * @throws SQLSyntaxErrorException
+     *             if a column is unknown
+     */
+    void checkColumns(Condition where) throws SQLSyntaxErrorException {
+        if (where instanceof And) {
+            for (Condition condition : ((And) where).conditions) {
+                checkColumns(condition);
+            }
+        } else if (where instanceof Or) {
+            for (Condition condition : ((Or) where).conditions) {
+                checkColumns(condition);
+            }
+        } else if (where instanceof Not) {
+            checkColumns(((Not) where).condition);
+        } else if (where instanceof Compare) {
+            checkedRank(((Compare) where).column);
+        } else if (where instanceof IsNull) {
+            checkedRank(((IsNull) where).column);
+        } else if (where instanceof In) {
+            checkedRank(((In) where).column);
+        }
+    }
+
+    /**
+     * 
+     * @param row
+     * @param column
+     * @return the value of the column in this row (null if unknown)
+     */
+    Object getValue(Object[] row, String column) {
+        int rank = getRank(column);
+        return rank >= 0 && rank < row.length ? row[rank] : null;
+    }
+
+    /**
+     * 
+     * @return a copy of all rows, in insertion order
+     */
+    List<Object[]> getRows() {
+        return new ArrayList<Object[]>(rows.values());
+    }
+
+    private List<Object> primaryKeyOf(Object[] row) {
+        Object[] key = new Object[primaryKeyRank.length];
+        for (int i = 0; i < key.length; i++) {
+            Object value = primaryKeyRank[i] < row.length ? row[primaryKeyRank[i]] : null;
+            key[i] = value == null ? null : DbMemorySql.key(value);
+        }
+        return Arrays.asList(key);
+    }
+
+    private int[] ranksForWrite(String[] names) throws SQLSyntaxErrorException {
+        int[] ranks = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            ranks[i] = checkedRank(names[i]);
+        }
+        return ranks;
+    }
+
+    /**
+     * Insert a row
+     * 
+     * @param names
+     *            inserted columns
+     * @param values
+     * @throws SQLException
+     *             if a column is unknown or the primary key already exists
+     */
+    void insert(String[] names, Object[] values) throws SQLException {
+        writeLock.lock();
+        try {
+            int[] ranks = ranksForWrite(names);
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < ranks.length; i++) {
+                row[ranks[i]] = values[i];
+            }
+            Long id = nextRowId.incrementAndGet();
+            if (primaryIndex != null) {
+                List<Object> key = primaryKeyOf(row);
+                if (primaryIndex.containsKey(key)) {
+                    throw new SQLIntegrityConstraintViolationException(
+                            "Duplicate primary key " + key + " in " + name, "23505");
+                }
+                primaryIndex.put(key, id);
+            }
+            addToIndexes(id, row);
+            rows.put(id, row);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Update the rows matching the condition
+     * 
+     * @param names
+     *            updated columns
+     * @param values
+     * @param where
+     * @param parameters
+     * @return the number of updated rows
+     * @throws SQLException
+     *             if a column is unknown or a primary key is changed to an existing one
+     */
+    int update(String[] names, Operand[] values, Condition where, Object[] parameters)
+            throws SQLException {
+        writeLock.lock();
+        try {
+            int[] ranks = ranksForWrite(names);
+            int count = 0;
+            for (Long id : find(where, parameters, 0)) {
+                Object[] old = rows.get(id);
+                if (old == null || (where != null && !where.matches(this, old, parameters))) {
+                    continue;
+                }
+                Object[] row = Arrays.copyOf(old, columns.length);
+                for (int i = 0; i < ranks.length; i++) {
+                    row[ranks[i]] = DbMemoryStore.copy(values[i].get(parameters));
+                }
+                if (primaryIndex != null) {
+                    List<Object> oldKey = primaryKeyOf(old);
+                    List<Object> key = primaryKeyOf(row);
+                    if (!key.equals(oldKey)) {
+                        if (primaryIndex.containsKey(key)) {
+                            throw new SQLIntegrityConstraintViolationException(
+                                    "Duplicate primary key " + key + " in " + name, "23505");
+                        }
+                        primaryIndex.remove(oldKey);
+                        primaryIndex.put(key, id);
+                    }
+                }
+                removeFromIndexes(id, old);
+                addToIndexes(id, row);
+                rows.put(id, row);
+                count++;
+            }
+            return count;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete the rows matching the condition
+     * 
+     * @param where
+     * @param parameters
+     * @return the number of deleted rows
+     */
+    int delete(Condition where, Object[] parameters) {
+        writeLock.lock();
+        try {
+            int count = 0;
+            for (Long id : find(where, parameters, 0)) {
+                Object[] old = rows.get(id);
+                if (old == null || (where != null && !where.matches(this, old, parameters))) {
+                    continue;
+                }
+                rows.remove(id);
+                if (primaryIndex != null) {
+                    primaryIndex.remove(primaryKeyOf(old));
+                }
+                removeFromIndexes(id, old);
+                count++;
+            }
+            return count;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Delete all rows
+     */
+    void clear() {
+        writeLock.lock();
+        try {
+            rows.clear();
+            if (primaryIndex != null) {
+                primaryIndex.clear();
+            }
+            indexes.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Select the rows matching the condition
+     * 
+     * @param where
+     * @param parameters
+     * @param orderBy
+     *            may be null
+     * @param orderDesc
+     * @param limit
+     *            max number of rows (0 for no limit)
+     * @param offset
+     *            number of first rows skipped
+     * @return the matching rows
+     */
+    List<Object[]> select(Condition where, Object[] parameters, String[] orderBy,
+            boolean[] orderDesc, int limit, int offset) {
+        boolean ordered = orderBy != null && orderBy.length > 0;
+        int max = ordered || limit <= 0 ? 0 : limit + offset;
+        List<Object[]> result = new ArrayList<Object[]>();
+        for (Long id : find(where, parameters, max)) {
+            Object[] row = rows.get(id);
+            if (row == null || (where != null && !where.matches(this, row, parameters))) {
+                continue;
+            }
+            result.add(row);
+            if (max > 0 && result.size() >= max) {
+                break;
+            }
+        }
+        if (ordered) {
+            final int[] ranks = new int[orderBy.length];
+            for (int i = 0; i < ranks.length; i++) {
+                ranks[i] = getRank(orderBy[i]);
+            }
+            final boolean[] desc = orderDesc;
+            Collections.sort(result, new Comparator<Object[]>() {
+                public int compare(Object[] o1, Object[] o2) {
+                    for (int i = 0; i < ranks.length; i++) {
+                        Object v1 = ranks[i] >= 0 && ranks[i] < o1.length ? o1[ranks[i]] : null;
+                        Object v2 = ranks[i] >= 0 && ranks[i] < o2.length ? o2[ranks[i]] : null;
+                        int comparison;
+                        if (v1 == null || v2 == null) {
+                            // nulls first
+                            comparison = v1 == v2 ? 0 : (v1 == null ? -1 : 1);
+                        } else {
+                            comparison = DbMemorySql.compareValues(v1, v2);
+                        }
+                        if (comparison != 0) {
+                            return desc[i] ? -comparison : comparison;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+        if (offset > 0 || (limit > 0 && result.size() > limit)) {
+            int from = Math.min(offset, result.size());
+            int to = limit > 0 ? Math.min(result.size(), from + limit) : result.size();
+            result = new ArrayList<Object[]>(result.subList(from, to));
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @param where
+     * @param parameters
+     * @param max
+     *            used only for full scan as a hint (0 for all)
+     * @return the ids of the candidate rows (to be checked against the condition)
+     */
+    private Collection<Long> find(Condition where, Object[] parameters, int max) {
+        if (where != null) {
+            Condition[] conditions = where instanceof And ? ((And) where).conditions
+                    : new Condition[] { where };
+            // primary key lookup
+            if (primaryIndex != null) {
+                Object[] key = new Object[primaryKey.length];
+                int found = 0;
+                for (Condition condition : conditions) {
+                    if (condition instanceof Compare && ((Compare) condition).op.equals("=")) {
+                        Compare compare = (Compare) condition;
+                        int rank = Arrays.asList(primaryKey).indexOf(compare.column);
+                        Object value = compare.value.get(parameters);
+                        if (rank >= 0 && key[rank] == null && value != null) {
+                            key[rank] = DbMemorySql.key(value);
+                            found++;
+                        }
+                    }
+                }
+                if (found == key.length) {
+                    Long id = primaryIndex.get(Arrays.asList(key));
+                    return id == null ? Collections.<Long> emptyList() : Collections
+                            .singletonList(id);
+                }
+            }
+            // hash index lookup
+            for (Condition condition : conditions) {
+                if (condition instanceof Compare && ((Compare) condition).op.equals("=")) {
+                    Compare compare = (Compare) condition;
+                    Object value = compare.value.get(parameters);
+                    int rank = getRank(compare.column);
+                    if (value != null && rank >= 0) {
+                        return lookup(rank, value);
+                    }
+                } else if (condition instanceof In) {
+                    In in = (In) condition;
+                    int rank = getRank(in.column);
+                    if (rank >= 0) {
+                        Set<Long> ids = new TreeSet<Long>();
+                        for (Operand operand : in.values) {
+                            Object value = operand.get(parameters);
+                            if (value != null) {
+                                ids.addAll(lookup(rank, value));
+                            }
+                        }
+                        return ids;
+                    }
+                }
+            }
+        }
+        return rows.keySet();
+    }
+
+    private Collection<Long> lookup(int rank, Object value) {
+        ConcurrentHashMap<Object, Set<Long>> index = indexes.get(rank);
+        if (index == null) {
+            index = buildIndex(rank);
+        }
+        Set<Long> ids = index.get(DbMemorySql.key(value));
+        if (ids == null) {
+            return Collections.<Long> emptyList();
+        }
+        synchronized (ids) {
+            return new ArrayList<Long>(ids);
+        }
+    }
+
+    private ConcurrentHashMap<Object, Set<Long>> buildIndex(int rank) {
+        writeLock.lock();
+        try {
+            ConcurrentHashMap<Object, Set<Long>> index = indexes.get(rank);
+            if (index != null) {
+                return index;
+            }
+            index = new ConcurrentHashMap<Object, Set<Long>>();
+            for (Map.Entry<Long, Object[]> entry : rows.entrySet()) {
+                Object[] row = entry.getValue();
+                if (rank < row.length && row[rank] != null) {
+                    addToIndex(index, DbMemorySql.key(row[rank]), entry.getKey());
+                }
+            }
+            indexes.put(rank, index);
+            return index;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static void addToIndex(ConcurrentHashMap<Object, Set<Long>> index, Object key, Long id) {
+        Set<Long> ids = index.get(key);
+        if (ids == null) {
+            ids = new TreeSet<Long>();
+            index.put(key, ids);
+        }
+        synchronized (ids) {
+            ids.add(id);
+        }
+    }
+
+    private void addToIndexes(Long id, Object[] row) {
+        for (Map.Entry<Integer, ConcurrentHashMap<Object, Set<Long>>> entry : indexes.entrySet()) {
+            int rank = entry.getKey();
+            if (rank < row.length && row[rank] != null) {
+                addToIndex(entry.getValue(), DbMemorySql.key(row[rank]), id);
+            }
+        }
+    }
+
+    private void removeFromIndexes(Long id, Object[] row) {
+        for (Map.Entry<Integer, ConcurrentHashMap<Object, Set<Long>>> entry : indexes.entrySet()) {
+            int rank = entry.getKey();
+            if (rank < row.length && row[rank] != null) {
+                Object key = DbMemorySql.key(row[rank]);
+                Set<Long> ids = entry.getValue().get(key);
+                if (ids != null) {
+                    synchronized (ids) {
+                        ids.remove(id);
+                        if (ids.isEmpty()) {
+                            entry.getValue().remove(key);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
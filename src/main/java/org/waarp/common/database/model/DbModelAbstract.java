@@ -21,13 +21,22 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientException;
 import java.sql.Statement;
 import java.util.ConcurrentModificationException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbConnectionPool;
 import org.waarp.common.database.DbConstant;
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbRetryPolicy;
 import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.DbValue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
@@ -46,12 +55,45 @@ public abstract class DbModelAbstract implements DbModel {
             .getLogger(DbModelAbstract.class);
 
     /**
-     * Recreate the disActive session
+     * Block of reserved sequence values
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static final class SequenceBlock {
+        private final long[] values;
+        private final AtomicInteger next = new AtomicInteger(0);
+
+        private SequenceBlock(long[] values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Number of sequence values reserved in one database operation
+     */
+    private volatile int sequenceBlockSize = DbConstant.SEQUENCEBLOCKSIZE;
+    /**
+     * Current block of reserved sequence values
+     */
+    private volatile SequenceBlock sequenceBlock = null;
+    /**
+     * Only one reservation at a time
+     */
+    private final Object sequenceLock = new Object();
+
+    /**
+     * Open a new connection to replace the lost one of the session, with the same autocommit and
+     * read only modes
      * 
      * @param dbSession
+     * @param select
+     *            True to validate the new connection with validConnectionString() instead of
+     *            isValid()
+     * @return the new validated connection
      * @throws WaarpDatabaseNoConnectionException
      */
-    private void recreateSession(DbSession dbSession)
+    private Connection openConnection(DbSession dbSession, boolean select)
             throws WaarpDatabaseNoConnectionException {
         DbAdmin admin = dbSession.getAdmin();
         if (admin == null) {
@@ -61,20 +103,125 @@ public abstract class DbModelAbstract implements DbModel {
                 admin = DbConstant.noCommitAdmin;
             }
         }
-        DbSession newdbSession = admin.getSession();
-        if (admin.isActive()) {
-            newdbSession = new DbSession(admin, dbSession.isReadOnly());
+        if (admin == null) {
+            throw new WaarpDatabaseNoConnectionException("Cannot connect to database: no DbAdmin");
         }
+        Connection conn = null;
         try {
-            if (dbSession.getConn() != null) {
-                dbSession.getConn().close();
+            conn = getDbConnection(admin.getServer(), admin.getUser(), admin.getPasswd());
+            conn.setAutoCommit(dbSession.isAutoCommit());
+            conn.setReadOnly(dbSession.isReadOnly());
+            if (!isConnectionValid(conn, select)) {
+                throw new SQLException("Cannot connect to database", "08001");
+            }
+            return conn;
+        } catch (SQLException e) {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e1) {
+                }
+            }
+            throw new WaarpDatabaseNoConnectionException("Cannot connect to database", e);
+        }
+    }
+
+    /**
+     * 
+     * @param conn
+     * @param select
+     *            True to validate with validConnectionString() instead of isValid()
+     * @return True if the connection is valid
+     * @throws SQLException
+     */
+    private boolean isConnectionValid(Connection conn, boolean select) throws SQLException {
+        if (!select) {
+            return conn.isValid(DbConstant.VALIDTESTDURATION);
+        }
+        Statement stmt = conn.createStatement();
+        try {
+            if (stmt.execute(validConnectionString())) {
+                ResultSet set = stmt.getResultSet();
+                return set.next();
+            }
+            return true;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Recreate the disActive session.<br>
+     * <br>
+     * The new connection is opened through the retry policy of the DbAdmin (backoff between
+     * attempts, circuit breaker) and outside of the monitor of the session, such that the threads
+     * using the session are not blocked during the attempts. If another thread reconnected the
+     * session meanwhile, its connection is kept.
+     * 
+     * @param dbSession
+     * @param lost
+     *            the connection found invalid
+     * @param cause
+     *            the error of the validation
+     * @param select
+     *            True to validate the new connection with validConnectionString()
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    private void recreateSession(final DbSession dbSession, Connection lost,
+            SQLException cause, final boolean select) throws WaarpDatabaseNoConnectionException {
+        DbAdmin admin = dbSession.getAdmin();
+        DbRetryPolicy policy = admin != null ? admin.getRetryPolicy() : new DbRetryPolicy();
+        Connection conn;
+        try {
+            conn = policy.execute(admin, new DbRetryPolicy.Action<Connection>() {
+                public Connection run() throws WaarpDatabaseNoConnectionException {
+                    return openConnection(dbSession, select);
+                }
+            });
+        } catch (WaarpDatabaseNoConnectionException e) {
+            synchronized (dbSession) {
+                if (dbSession.getConn() == lost) {
+                    closeInternalConnection(dbSession);
+                }
+            }
+            throw new WaarpDatabaseNoConnectionException("Cannot connect to database", cause);
+        } catch (WaarpDatabaseSqlException e) {
+            // not thrown by the action
+            throw new WaarpDatabaseNoConnectionException("Cannot connect to database", e);
+        }
+        synchronized (dbSession) {
+            if (dbSession.getConn() != lost) {
+                // already reconnected by another thread
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                }
+                if (dbSession.isDisActive()) {
+                    throw new WaarpDatabaseNoConnectionException("Cannot connect to database",
+                            cause);
+                }
+                return;
+            }
+            try {
+                if (lost != null) {
+                    lost.close();
+                }
+            } catch (SQLException e1) {
+            } catch (ConcurrentModificationException e) {
+            }
+            dbSession.setConn(conn);
+            DbAdmin.addConnection(dbSession.getInternalId(), dbSession);
+            dbSession.setLastValid();
+            dbSession.setDisActive(false);
+            if (dbSession.getAdmin() != null)
+                dbSession.getAdmin().setActive(true);
+            try {
+                dbSession.recreateLongTermPreparedStatements();
+            } catch (WaarpDatabaseSqlException e) {
+                closeInternalConnection(dbSession);
+                throw new WaarpDatabaseNoConnectionException("Cannot connect to database", e);
             }
-        } catch (SQLException e1) {
-        } catch (ConcurrentModificationException e) {
         }
-        dbSession.setConn(newdbSession.getConn());
-        DbAdmin.addConnection(dbSession.getInternalId(), dbSession);
-        DbAdmin.removeConnection(newdbSession.getInternalId());
         logger.warn("Database Connection lost: database connection reopened");
     }
 
@@ -92,164 +239,113 @@ public abstract class DbModelAbstract implements DbModel {
         } catch (ConcurrentModificationException e) {
         }
         dbSession.setDisActive(true);
+        dbSession.invalidateLastValid();
         if (dbSession.getAdmin() != null)
             dbSession.getAdmin().setActive(false);
         DbAdmin.removeConnection(dbSession.getInternalId());
     }
 
+    /**
+     * 
+     * @param dbSession
+     * @return True if the connection of this session must be really validated according to
+     *         DbConstant.VALIDATIONPOLICY
+     */
+    protected boolean isValidationNeeded(DbSession dbSession) {
+        if (dbSession.isDisActive() || dbSession.getConn() == null) {
+            return true;
+        }
+        return DbConstant.VALIDATIONPOLICY.needValidation(dbSession.getLastValid(),
+                DbConstant.VALIDATIONIDLEDELAY);
+    }
+
+    /**
+     * Mark the session as not valid after a failed validation
+     * 
+     * @param dbSession
+     */
+    private static void setInvalid(DbSession dbSession) {
+        dbSession.setDisActive(true);
+        dbSession.invalidateLastValid();
+        if (dbSession.getAdmin() != null)
+            dbSession.getAdmin().setActive(false);
+    }
+
+    /**
+     * Mark the session as valid after a successful validation
+     * 
+     * @param dbSession
+     */
+    private static void setValid(DbSession dbSession) {
+        dbSession.setLastValid();
+        dbSession.setDisActive(false);
+        if (dbSession.getAdmin() != null)
+            dbSession.getAdmin().setActive(true);
+    }
+
     public void validConnection(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException {
+        // healthy connection, no need of a round trip
+        if (!isValidationNeeded(dbSession)) {
+            return;
+        }
+        Connection lost;
+        SQLException cause;
         // try to limit the number of check!
         synchronized (dbSession) {
-            if (dbSession.getConn() == null) {
+            lost = dbSession.getConn();
+            if (lost == null) {
                 throw new WaarpDatabaseNoConnectionException(
                         "Cannot connect to database");
             }
             try {
-                if (!dbSession.getConn().isClosed()) {
-                    if (!dbSession.getConn().isValid(DbConstant.VALIDTESTDURATION)) {
+                if (!lost.isClosed()) {
+                    if (!lost.isValid(DbConstant.VALIDTESTDURATION)) {
                         // Give a try by closing the current connection
                         throw new SQLException("Cannot connect to database");
                     }
                 }
-                dbSession.setDisActive(false);
-                if (dbSession.getAdmin() != null)
-                    dbSession.getAdmin().setActive(true);
+                setValid(dbSession);
+                return;
             } catch (SQLException e2) {
-                dbSession.setDisActive(true);
-                if (dbSession.getAdmin() != null)
-                    dbSession.getAdmin().setActive(false);
-                // Might be unsupported so switch to SELECT 1 way
-                if (e2 instanceof org.postgresql.util.PSQLException) {
-                    validConnectionSelect(dbSession);
-                    return;
-                }
-                try {
-                    try {
-                        recreateSession(dbSession);
-                    } catch (WaarpDatabaseNoConnectionException e) {
-                        closeInternalConnection(dbSession);
-                        throw e;
-                    }
-                    try {
-                        if (!dbSession.getConn().isValid(DbConstant.VALIDTESTDURATION)) {
-                            // Not ignored
-                            closeInternalConnection(dbSession);
-                            throw new WaarpDatabaseNoConnectionException(
-                                    "Cannot connect to database", e2);
-                        }
-                    } catch (SQLException e) {
-                        closeInternalConnection(dbSession);
-                        throw new WaarpDatabaseNoConnectionException(
-                                "Cannot connect to database", e);
-                    }
-                    dbSession.setDisActive(false);
-                    if (dbSession.getAdmin() != null)
-                        dbSession.getAdmin().setActive(true);
-                    dbSession.recreateLongTermPreparedStatements();
-                    return;
-                } catch (WaarpDatabaseSqlException e1) {
-                    // ignore and will send a No Connection error
-                }
-                closeInternalConnection(dbSession);
-                throw new WaarpDatabaseNoConnectionException(
-                        "Cannot connect to database", e2);
+                setInvalid(dbSession);
+                cause = e2;
             }
         }
+        // Might be unsupported so switch to SELECT 1 way
+        if (cause instanceof org.postgresql.util.PSQLException) {
+            validConnectionSelect(dbSession);
+            return;
+        }
+        // reconnection outside of the monitor
+        recreateSession(dbSession, lost, cause, false);
     }
 
     protected void validConnectionSelect(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException {
+        Connection lost;
+        SQLException cause;
         // try to limit the number of check!
         synchronized (dbSession) {
-            Statement stmt = null;
+            lost = dbSession.getConn();
+            if (lost == null) {
+                throw new WaarpDatabaseNoConnectionException(
+                        "Cannot connect to database");
+            }
             try {
-                stmt = dbSession.getConn().createStatement();
-                if (stmt.execute(validConnectionString())) {
-                    ResultSet set = stmt.getResultSet();
-                    if (!set.next()) {
-                        stmt.close();
-                        stmt = null;
-                        // Give a try by closing the current connection
-                        throw new SQLException("Cannot connect to database");
-                    }
+                if (!isConnectionValid(lost, true)) {
+                    // Give a try by closing the current connection
+                    throw new SQLException("Cannot connect to database");
                 }
-                dbSession.setDisActive(false);
-                if (dbSession.getAdmin() != null)
-                    dbSession.getAdmin().setActive(true);
+                setValid(dbSession);
+                return;
             } catch (SQLException e2) {
-                dbSession.setDisActive(true);
-                if (dbSession.getAdmin() != null)
-                    dbSession.getAdmin().setActive(false);
-                try {
-                    try {
-                        recreateSession(dbSession);
-                    } catch (WaarpDatabaseNoConnectionException e) {
-                        closeInternalConnection(dbSession);
-                        throw e;
-                    }
-                    try {
-                        if (stmt != null) {
-                            stmt.close();
-                            stmt = null;
-                        }
-                    } catch (SQLException e) {
-                        // ignore
-                    }
-                    try {
-                        stmt = dbSession.getConn().createStatement();
-                    } catch (SQLException e) {
-                        // Not ignored
-                        closeInternalConnection(dbSession);
-                        throw new WaarpDatabaseNoConnectionException(
-                                "Cannot connect to database", e);
-                    }
-                    try {
-                        if (stmt.execute(validConnectionString())) {
-                            ResultSet set = stmt.getResultSet();
-                            if (!set.next()) {
-                                if (stmt != null) {
-                                    stmt.close();
-                                    stmt = null;
-                                }
-                                closeInternalConnection(dbSession);
-                                throw new WaarpDatabaseNoConnectionException(
-                                        "Cannot connect to database");
-                            }
-                        }
-                    } catch (SQLException e) {
-                        // not ignored
-                        try {
-                            if (stmt != null) {
-                                stmt.close();
-                                stmt = null;
-                            }
-                        } catch (SQLException e1) {
-                        }
-                        closeInternalConnection(dbSession);
-                        throw new WaarpDatabaseNoConnectionException(
-                                "Cannot connect to database", e);
-                    }
-                    dbSession.setDisActive(false);
-                    if (dbSession.getAdmin() != null)
-                        dbSession.getAdmin().setActive(true);
-                    dbSession.recreateLongTermPreparedStatements();
-                    return;
-                } catch (WaarpDatabaseSqlException e1) {
-                    // ignore and will send a No Connection error
-                }
-                closeInternalConnection(dbSession);
-                throw new WaarpDatabaseNoConnectionException(
-                        "Cannot connect to database", e2);
-            } finally {
-                if (stmt != null) {
-                    try {
-                        stmt.close();
-                    } catch (SQLException e) {
-                    }
-                }
+                setInvalid(dbSession);
+                cause = e2;
             }
         }
+        // reconnection outside of the monitor
+        recreateSession(dbSession, lost, cause, true);
     }
 
     /**
@@ -267,8 +363,444 @@ public abstract class DbModelAbstract implements DbModel {
     public void releaseResources() {
     }
 
+    /**
+     * 
+     * @return the internal connection pool if any (null by default)
+     */
+    public DbConnectionPool getPool() {
+        return null;
+    }
+
     public int currentNumberOfPooledConnections() {
         return DbAdmin.getNbConnection();
     }
 
+    /**
+     * Create a pool for a read replica of the same type of database
+     * 
+     * @param server
+     * @param user
+     * @param passwd
+     * @return the pool for this replica, or null if this model does not use pool
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public DbConnectionPool createReplicaPool(String server, String user, String passwd)
+            throws WaarpDatabaseNoConnectionException {
+        return null;
+    }
+
+    /**
+     * 
+     * @return the request giving the replication lag in ms on a replica, or null if not supported
+     */
+    public String getReplicaLagRequest() {
+        return null;
+    }
+
+    /**
+     * 
+     * @param table
+     * @param allFields
+     *            all the columns of the row, in the order of the parameters of the request
+     * @param primaryKey
+     *            the columns of the primary key
+     * @return the request inserting the row or updating it if the primary key already exists, in
+     *         one statement, or null if not supported
+     */
+    public String getUpsertRequest(String table, DbValue[] allFields, DbValue[] primaryKey) {
+        return null;
+    }
+
+    /**
+     * Upsert request of MySQL and MariaDB
+     * 
+     * @param table
+     * @param allFields
+     * @param primaryKey
+     * @return the INSERT ... ON DUPLICATE KEY UPDATE request
+     * @see #getUpsertRequest(String, DbValue[], DbValue[])
+     */
+    protected static String getOnDuplicateKeyUpsertRequest(String table, DbValue[] allFields,
+            DbValue[] primaryKey) {
+        StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(getColumns(allFields, "")).append(") VALUES (")
+                .append(getParameters(allFields.length)).append(") ON DUPLICATE KEY UPDATE ");
+        boolean first = true;
+        for (DbValue value : allFields) {
+            if (isPrimaryKey(value, primaryKey)) {
+                continue;
+            }
+            if (!first) {
+                builder.append(',');
+            }
+            builder.append(value.getColumn()).append(" = VALUES(").append(value.getColumn())
+                    .append(')');
+            first = false;
+        }
+        if (first) {
+            // nothing to update: no-op assignment
+            builder.append(primaryKey[0].getColumn()).append(" = ")
+                    .append(primaryKey[0].getColumn());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @param values
+     * @param prefix
+     *            prefix of each column (as "s."), or empty
+     * @return the list of columns separated by commas
+     */
+    protected static String getColumns(DbValue[] values, String prefix) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(prefix).append(values[i].getColumn());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @param value
+     * @param primaryKey
+     * @return True if this column is part of the primary key
+     */
+    protected static boolean isPrimaryKey(DbValue value, DbValue[] primaryKey) {
+        for (DbValue key : primaryKey) {
+            if (key == value || key.getColumn().equalsIgnoreCase(value.getColumn())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @param nb
+     * @return the list of nb parameters separated by commas
+     */
+    protected static String getParameters(int nb) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < nb; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('?');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @param sql
+     *            a query (SELECT) without parameters
+     * @return the request giving the plan of this statement, or null if not supported
+     */
+    public String getExplainRequest(String sql) {
+        return "EXPLAIN " + sql;
+    }
+
+    /**
+     * Classification of errors for DbRetryPolicy: by default connection errors (SQLState class
+     * 08), transaction rollbacks as deadlocks or serialization failures (class 40, see
+     * isTransactionRollback) and timeouts (HYT00, HYT01)
+     * 
+     * @param e
+     * @return True if the error is transient, such that the request might be retried
+     */
+    public boolean isTransientError(SQLException e) {
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        if (state == null) {
+            return false;
+        }
+        return state.startsWith("08") || state.startsWith("40") || state.equals("HYT00")
+                || state.equals("HYT01");
+    }
+
+    /**
+     * Transient errors for which the database has already rolled back the whole current
+     * transaction: by default deadlocks and serialization failures (SQLState class 40).<br>
+     * <br>
+     * Retrying only the failing statement would then silently lose the previous work of the
+     * transaction, so DbRetryPolicy retries those errors only for actions covering a whole
+     * transaction or for sessions in autocommit.
+     * 
+     * @param e
+     * @return True if the current transaction was rolled back by the database
+     */
+    public boolean isTransactionRollback(SQLException e) {
+        if (e instanceof SQLTransactionRollbackException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && state.startsWith("40");
+    }
+
+    /**
+     * 
+     * @return True if the row value comparison as "(a, b) > (?, ?)" is supported and able to use
+     *         an index
+     */
+    protected boolean isRowValueComparisonSupported() {
+        return false;
+    }
+
+    /**
+     * Request for keyset pagination: the next page is the rows following the last key seen, such
+     * that each page costs the same whatever its position (no OFFSET).<br>
+     * <br>
+     * The key columns must identify uniquely a row (adding the primary key as last column if
+     * needed) and should be covered by an index. All key columns are ordered in the same
+     * direction.
+     * 
+     * @param allfields
+     *            string representing the equivalent to "*" in "select *", which must include the
+     *            key columns
+     * @param table
+     * @param condition
+     *            optional condition (without WHERE), may be null
+     * @param keys
+     *            the ordering columns
+     * @param descending
+     *            True for a descending order
+     * @param afterKey
+     *            True to select the rows after the last key seen (parameters from
+     *            getKeysetParameters after those of the condition), False for the first page
+     * @param limit
+     *            the size of a page
+     * @return the request for one page
+     */
+    public String getKeysetRequest(String allfields, String table, String condition,
+            String[] keys, boolean descending, boolean afterKey, int limit) {
+        StringBuilder builder = new StringBuilder("SELECT ").append(allfields).append(" FROM ")
+                .append(table);
+        boolean hasCondition = condition != null && !condition.trim().isEmpty();
+        if (hasCondition) {
+            builder.append(" WHERE (").append(condition).append(')');
+        }
+        if (afterKey) {
+            builder.append(hasCondition ? " AND " : " WHERE ");
+            String op = descending ? " < " : " > ";
+            if (keys.length == 1) {
+                builder.append(keys[0]).append(op).append('?');
+            } else if (isRowValueComparisonSupported()) {
+                builder.append('(');
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(keys[i]);
+                }
+                builder.append(')').append(op).append('(').append(getParameters(keys.length))
+                        .append(')');
+            } else {
+                // (k1 > ? OR (k1 = ? AND k2 > ?) OR ...)
+                builder.append('(');
+                for (int i = 0; i < keys.length; i++) {
+                    if (i > 0) {
+                        builder.append(" OR ");
+                    }
+                    builder.append('(');
+                    for (int j = 0; j < i; j++) {
+                        builder.append(keys[j]).append(" = ? AND ");
+                    }
+                    builder.append(keys[i]).append(op).append("?)");
+                }
+                builder.append(')');
+            }
+        }
+        builder.append(" ORDER BY ");
+        for (int i = 0; i < keys.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(keys[i]);
+            if (descending) {
+                builder.append(" DESC");
+            }
+        }
+        return limitRequest(allfields, builder.toString(), limit);
+    }
+
+    /**
+     * 
+     * @param lastKey
+     *            the values of the key columns of the last row seen
+     * @return the values of the parameters of the keyset condition of getKeysetRequest, in order
+     */
+    public Object[] getKeysetParameters(Object[] lastKey) {
+        if (lastKey.length == 1 || isRowValueComparisonSupported()) {
+            return lastKey;
+        }
+        Object[] parameters = new Object[lastKey.length * (lastKey.length + 1) / 2];
+        int rank = 0;
+        for (int i = 0; i < lastKey.length; i++) {
+            for (int j = 0; j <= i; j++) {
+                parameters[rank++] = lastKey[j];
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * 
+     * @return the fetch size to set on a statement for a streaming cursor
+     */
+    public int getStreamingFetchSize() {
+        return DbConstant.STREAMINGFETCHSIZE;
+    }
+
+    /**
+     * 
+     * @return True if a streaming cursor needs the connection not in autocommit mode
+     */
+    public boolean isStreamingNeedsTransaction() {
+        return false;
+    }
+
+    /**
+     * 
+     * @param blockSize
+     *            number of sequence values reserved in one database operation by nextSequence (1
+     *            or less meaning one database operation per value)
+     */
+    public void setSequenceBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            blockSize = 1;
+        }
+        sequenceBlockSize = blockSize;
+        clearSequenceBlock();
+    }
+
+    /**
+     * 
+     * @return the number of sequence values reserved in one database operation
+     */
+    public int getSequenceBlockSize() {
+        return sequenceBlockSize;
+    }
+
+    /**
+     * 
+     * @return True if nextSequence should use reserved blocks of values
+     */
+    protected boolean isSequenceBlockEnabled() {
+        return sequenceBlockSize > 1;
+    }
+
+    /**
+     * Forget the values reserved but not yet used (as after a resetSequence)
+     */
+    protected void clearSequenceBlock() {
+        SequenceBlock block = sequenceBlock;
+        sequenceBlock = null;
+        if (block != null) {
+            block.next.set(block.values.length);
+        }
+    }
+
+    /**
+     * Give the next value from the current reserved block, reserving a new block from the database
+     * when exhausted.<br>
+     * <br>
+     * Values are given lock-free within a block. Since each block is reserved by one atomic
+     * database operation, values stay unique across all nodes sharing the same database, but are
+     * not strictly increasing across nodes.
+     * 
+     * @param dbSession
+     * @return the next sequence value
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     * @throws WaarpDatabaseNoDataException
+     */
+    protected long nextSequenceFromBlock(DbSession dbSession)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        for (;;) {
+            SequenceBlock block = sequenceBlock;
+            if (block != null) {
+                int rank = block.next.getAndIncrement();
+                if (rank < block.values.length) {
+                    return block.values[rank];
+                }
+            }
+            synchronized (sequenceLock) {
+                if (sequenceBlock == block) {
+                    long[] values = reserveSequences(dbSession, sequenceBlockSize);
+                    if (values == null || values.length == 0) {
+                        throw new WaarpDatabaseNoDataException(
+                                "No sequence found. Must be initialized first");
+                    }
+                    sequenceBlock = new SequenceBlock(values);
+                }
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param nb
+     *            number of values to reserve
+     * @return the request giving nb new values of the sequence, one per row, or null (default) if
+     *         the database cannot do it in one request
+     */
+    protected String getReserveSequencesRequest(int nb) {
+        return null;
+    }
+
+    /**
+     * Reserve in one database operation a number of sequence values, using
+     * getReserveSequencesRequest.<br>
+     * <br>
+     * By default (no such request), only one value is reserved through nextSequence, such that a
+     * database model not supporting blocks still works. A model calling nextSequenceFromBlock from
+     * its nextSequence must therefore give getReserveSequencesRequest or override this method.
+     * 
+     * @param dbSession
+     * @param nb
+     *            number of values to reserve
+     * @return the reserved values (possibly less than nb)
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     * @throws WaarpDatabaseNoDataException
+     */
+    protected long[] reserveSequences(DbSession dbSession, int nb)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        String action = getReserveSequencesRequest(nb);
+        if (action == null) {
+            return new long[] { nextSequence(dbSession) };
+        }
+        long[] result = new long[nb];
+        int rank = 0;
+        DbPreparedStatement preparedStatement = new DbPreparedStatement(
+                dbSession);
+        try {
+            preparedStatement.createPrepareStatement(action);
+            preparedStatement.executeQuery();
+            while (rank < nb && preparedStatement.getNext()) {
+                try {
+                    result[rank++] = preparedStatement.getResultSet().getLong(1);
+                } catch (SQLException e) {
+                    throw new WaarpDatabaseSqlException(e);
+                }
+            }
+        } finally {
+            preparedStatement.realClose();
+        }
+        if (rank < nb) {
+            long[] values = new long[rank];
+            System.arraycopy(result, 0, values, 0, rank);
+            return values;
+        }
+        return result;
+    }
+
 }
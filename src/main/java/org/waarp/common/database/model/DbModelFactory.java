@@ -74,6 +74,9 @@ public class DbModelFactory {
             case MariaDB:
                 // dbModel = new DbModelMariadb(dbserver, dbuser, dbpasswd);
                 break;
+            case Memory:
+                dbModel = new DbModelMemory(dbserver);
+                break;
             default:
                 throw new WaarpDatabaseNoConnectionException(
                         "TypeDriver unknown: " + type);
@@ -29,6 +29,7 @@ import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbRequest;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.data.DbValue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -279,6 +280,7 @@ public abstract class DbModelH2 extends DbModelAbstract {
 
     public void resetSequence(DbSession session, long newvalue)
             throws WaarpDatabaseNoConnectionException {
+        clearSequenceBlock();
         String action = "ALTER SEQUENCE " + DbDataModel.fieldseq +
                 " RESTART WITH " + newvalue;
         DbRequest request = new DbRequest(session);
@@ -296,9 +298,34 @@ public abstract class DbModelH2 extends DbModelAbstract {
         logger.warn(action);
     }
 
+    /**
+     * H2: also broken connection (90067)
+     */
+    @Override
+    public boolean isTransientError(SQLException e) {
+        return super.isTransientError(e) || e.getErrorCode() == 90067;
+    }
+
+    @Override
+    protected boolean isRowValueComparisonSupported() {
+        return true;
+    }
+
+    /**
+     * H2 MERGE on the primary key
+     */
+    @Override
+    public String getUpsertRequest(String table, DbValue[] allFields, DbValue[] primaryKey) {
+        return "MERGE INTO " + table + " (" + getColumns(allFields, "") + ") KEY (" +
+                getColumns(primaryKey, "") + ") VALUES (" + getParameters(allFields.length) + ")";
+    }
+
     public long nextSequence(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        if (isSequenceBlockEnabled()) {
+            return nextSequenceFromBlock(dbSession);
+        }
         long result = DbConstant.ILLEGALVALUE;
         String action = "SELECT NEXTVAL('" + DbDataModel.fieldseq + "')";
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
@@ -323,6 +350,12 @@ public abstract class DbModelH2 extends DbModelAbstract {
         }
     }
 
+    @Override
+    protected String getReserveSequencesRequest(int nb) {
+        return "SELECT NEXTVAL('" + DbDataModel.fieldseq + "') FROM SYSTEM_RANGE(1, " +
+                nb + ")";
+    }
+
     @Override
     protected String validConnectionString() {
         return "select 1";
@@ -0,0 +1,209 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * In-memory Database Model implementation, for deployments without database, tests and
+ * benchmarks.<br>
+ * <br>
+ * Data are kept in concurrent indexed tables (see DbMemoryStore), reached through a minimal JDBC
+ * layer so that DbSession, DbPreparedStatement and AbstractDbData run unchanged. Only the subset
+ * of SQL used by the data classes is supported (SELECT, INSERT, UPDATE and DELETE on one table
+ * with simple conditions) and there is no transaction. The content may be saved into a snapshot
+ * file on releaseResources and reloaded at creation, using "jdbc:memory:" followed by the file
+ * path as server.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class DbModelMemory extends DbModelAbstract {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(DbModelMemory.class);
+
+    private static final DbType type = DbType.Memory;
+    /**
+     * Prefix of the server for the in-memory database
+     */
+    public static final String MEMORYPREFIX = "jdbc:memory:";
+
+    protected final DbMemoryStore store;
+
+    public DbType getDbType() {
+        return type;
+    }
+
+    /**
+     * Create a purely volatile in-memory database
+     * 
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public DbModelMemory() throws WaarpDatabaseNoConnectionException {
+        this((File) null);
+    }
+
+    /**
+     * Create the in-memory database
+     * 
+     * @param dbserver
+     *            "jdbc:memory:" optionally followed by the path of the snapshot file
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public DbModelMemory(String dbserver) throws WaarpDatabaseNoConnectionException {
+        this(getSnapshot(dbserver));
+    }
+
+    /**
+     * Create the in-memory database
+     * 
+     * @param snapshot
+     *            file loaded if it exists and saved on releaseResources (null for none)
+     * @throws WaarpDatabaseNoConnectionException
+     */
+    public DbModelMemory(File snapshot) throws WaarpDatabaseNoConnectionException {
+        try {
+            store = new DbMemoryStore(snapshot);
+        } catch (IOException e) {
+            logger.error("Cannot load memory database " + snapshot + " " + e.getMessage());
+            throw new WaarpDatabaseNoConnectionException(
+                    "Cannot load memory database:" + snapshot, e);
+        }
+        DbModelFactory.classLoaded.add(type.name());
+    }
+
+    private static File getSnapshot(String dbserver) {
+        if (dbserver == null) {
+            return null;
+        }
+        String path = dbserver.startsWith(MEMORYPREFIX) ? dbserver
+                .substring(MEMORYPREFIX.length()) : "";
+        return path.trim().isEmpty() ? null : new File(path.trim());
+    }
+
+    /**
+     * 
+     * @return the store of this in-memory database
+     */
+    public DbMemoryStore getStore() {
+        return store;
+    }
+
+    @Override
+    public Connection getDbConnection(String server, String user, String passwd)
+            throws SQLException {
+        return store.getConnection();
+    }
+
+    @Override
+    public void releaseResources() {
+        try {
+            store.saveSnapshot();
+        } catch (IOException e) {
+            logger.error("Cannot save memory database " + store.getSnapshot() + " " +
+                    e.getMessage());
+        }
+    }
+
+    @Override
+    public void validConnection(DbSession dbSession)
+            throws WaarpDatabaseNoConnectionException {
+        // no network so no round trip
+        if (dbSession.getConn() == null) {
+            throw new WaarpDatabaseNoConnectionException(
+                    "Cannot connect to database");
+        }
+        dbSession.setLastValid();
+        dbSession.setDisActive(false);
+        if (dbSession.getAdmin() != null)
+            dbSession.getAdmin().setActive(true);
+    }
+
+    @Override
+    protected String validConnectionString() {
+        return "SELECT 1";
+    }
+
+    public void createTables(DbSession session) throws WaarpDatabaseNoConnectionException {
+        // Example
+        DbDataModel.Columns[] ccolumns = DbDataModel.Columns.values();
+        String[] columns = new String[ccolumns.length];
+        for (int i = 0; i < ccolumns.length; i++) {
+            columns[i] = ccolumns[i].name();
+        }
+        store.createTable(DbDataModel.table, columns, DbDataModel.Columns.HOSTID.name());
+    }
+
+    public void resetSequence(DbSession session, long newvalue)
+            throws WaarpDatabaseNoConnectionException {
+        clearSequenceBlock();
+        store.resetSequence(newvalue);
+    }
+
+    public long nextSequence(DbSession dbSession)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        if (isSequenceBlockEnabled()) {
+            return nextSequenceFromBlock(dbSession);
+        }
+        return store.nextSequence();
+    }
+
+    @Override
+    protected long[] reserveSequences(DbSession dbSession, int nb)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        return store.reserveSequences(nb);
+    }
+
+    public String limitRequest(String allfields, String request, int nb) {
+        if (nb == 0)
+            return request;
+        return request + " LIMIT " + nb;
+    }
+
+    @Override
+    public String getExplainRequest(String sql) {
+        // no plan
+        return null;
+    }
+
+    public boolean upgradeDb(DbSession session, String version)
+            throws WaarpDatabaseNoConnectionException {
+        return true;
+    }
+
+    public boolean needUpgradeDb(DbSession session, String version, boolean tryFix)
+            throws WaarpDatabaseNoConnectionException {
+        return false;
+    }
+}
@@ -31,6 +31,7 @@ import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbRequest;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.data.DbValue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -55,7 +56,7 @@ public abstract class DbModelMysql extends DbModelAbstract {
     private static final DbType type = DbType.MySQL;
 
     protected MysqlConnectionPoolDataSource mysqlConnectionPoolDataSource;
-    protected DbConnectionPool pool;
+    protected volatile DbConnectionPool pool;
 
     public DbType getDbType() {
         return type;
@@ -80,6 +81,7 @@ public abstract class DbModelMysql extends DbModelAbstract {
         mysqlConnectionPoolDataSource.setPassword(dbpasswd);
         // Create a pool with no limit
         pool = new DbConnectionPool(mysqlConnectionPoolDataSource, timer, delay);
+        pool.registerMBean(type.name());
         logger.info("Some info: MaxConn: " + pool.getMaxConnections() + " LogTimeout: "
                 + pool.getLoginTimeout()
                 + " ForceClose: " + pool.getTimeoutForceClose());
@@ -102,6 +104,7 @@ public abstract class DbModelMysql extends DbModelAbstract {
         mysqlConnectionPoolDataSource.setPassword(dbpasswd);
         // Create a pool with no limit
         pool = new DbConnectionPool(mysqlConnectionPoolDataSource);
+        pool.registerMBean(type.name());
         logger.warn("Some info: MaxConn: " + pool.getMaxConnections() + " LogTimeout: "
                 + pool.getLoginTimeout()
                 + " ForceClose: " + pool.getTimeoutForceClose());
@@ -144,26 +147,44 @@ public abstract class DbModelMysql extends DbModelAbstract {
         return DbAdmin.getNbConnection();
     }
 
+    @Override
+    public DbConnectionPool createReplicaPool(String server, String user, String passwd)
+            throws WaarpDatabaseNoConnectionException {
+        MysqlConnectionPoolDataSource dataSource = new MysqlConnectionPoolDataSource();
+        dataSource.setUrl(server);
+        dataSource.setUser(user);
+        dataSource.setPassword(passwd);
+        return new DbConnectionPool(dataSource);
+    }
+
+    @Override
+    public DbConnectionPool getPool() {
+        return pool;
+    }
+
     @Override
     public Connection getDbConnection(String server, String user, String passwd)
             throws SQLException {
-        synchronized (this) {
-            if (pool != null) {
-                try {
-                    return pool.getConnection();
-                } catch (SQLException e) {
-                    // try to renew the pool
-                    mysqlConnectionPoolDataSource = new MysqlConnectionPoolDataSource();
-                    mysqlConnectionPoolDataSource.setUrl(server);
-                    mysqlConnectionPoolDataSource.setUser(user);
-                    mysqlConnectionPoolDataSource.setPassword(passwd);
-                    pool.resetPoolDataSource(mysqlConnectionPoolDataSource);
-                    try {
-                        return pool.getConnection();
-                    } catch (SQLException e2) {
-                        pool.dispose();
-                        pool = null;
-                        return super.getDbConnection(server, user, passwd);
+        // Checkout is lock-free: only the renewal of the pool is serialized
+        DbConnectionPool currentPool = pool;
+        if (currentPool != null) {
+            try {
+                return currentPool.getConnection();
+            } catch (SQLException e) {
+                synchronized (this) {
+                    if (pool != null) {
+                        // try to renew the pool
+                        mysqlConnectionPoolDataSource = new MysqlConnectionPoolDataSource();
+                        mysqlConnectionPoolDataSource.setUrl(server);
+                        mysqlConnectionPoolDataSource.setUser(user);
+                        mysqlConnectionPoolDataSource.setPassword(passwd);
+                        pool.resetPoolDataSource(mysqlConnectionPoolDataSource);
+                        try {
+                            return pool.getConnection();
+                        } catch (SQLException e2) {
+                            pool.dispose();
+                            pool = null;
+                        }
                     }
                 }
             }
@@ -327,6 +348,7 @@ public abstract class DbModelMysql extends DbModelAbstract {
 
     public void resetSequence(DbSession session, long newvalue)
             throws WaarpDatabaseNoConnectionException {
+        clearSequenceBlock();
         String action = "UPDATE Sequences SET seq = " + newvalue +
                 " WHERE name = '" + DbDataModel.fieldseq + "'";
         DbRequest request = new DbRequest(session);
@@ -344,7 +366,81 @@ public abstract class DbModelMysql extends DbModelAbstract {
         logger.warn(action);
     }
 
-    public synchronized long nextSequence(DbSession dbSession)
+    /**
+     * MySQL: also lock wait timeout (1205), deadlock (1213), too many connections (1040) and lost
+     * connection (2006, 2013)
+     */
+    @Override
+    public boolean isTransientError(SQLException e) {
+        if (super.isTransientError(e)) {
+            return true;
+        }
+        switch (e.getErrorCode()) {
+            case 1040:
+            case 1205:
+            case 1213:
+            case 2006:
+            case 2013:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * MySQL: also lock wait timeout (1205) and deadlock (1213)
+     */
+    @Override
+    public boolean isTransactionRollback(SQLException e) {
+        return super.isTransactionRollback(e) || e.getErrorCode() == 1205
+                || e.getErrorCode() == 1213;
+    }
+
+    @Override
+    protected boolean isRowValueComparisonSupported() {
+        return true;
+    }
+
+    /**
+     * MySQL INSERT ... ON DUPLICATE KEY UPDATE
+     */
+    @Override
+    public String getUpsertRequest(String table, DbValue[] allFields, DbValue[] primaryKey) {
+        return getOnDuplicateKeyUpsertRequest(table, allFields, primaryKey);
+    }
+
+    public long nextSequence(DbSession dbSession)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        if (isSequenceBlockEnabled()) {
+            return nextSequenceFromBlock(dbSession);
+        }
+        return reserveSequenceRange(dbSession, 1);
+    }
+
+    @Override
+    protected long[] reserveSequences(DbSession dbSession, int nb)
+            throws WaarpDatabaseNoConnectionException,
+            WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        long first = reserveSequenceRange(dbSession, nb);
+        long[] result = new long[nb];
+        for (int i = 0; i < nb; i++) {
+            result[i] = first + i;
+        }
+        return result;
+    }
+
+    /**
+     * Reserve in one operation a range of nb values from the Sequences table
+     * 
+     * @param dbSession
+     * @param nb
+     * @return the first value of the reserved range
+     * @throws WaarpDatabaseNoConnectionException
+     * @throws WaarpDatabaseSqlException
+     * @throws WaarpDatabaseNoDataException
+     */
+    private synchronized long reserveSequenceRange(DbSession dbSession, int nb)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
         lock.lock();
@@ -375,7 +471,7 @@ public abstract class DbModelMysql extends DbModelAbstract {
             } finally {
                 preparedStatement.realClose();
             }
-            action = "UPDATE Sequences SET seq = " + (result + 1) +
+            action = "UPDATE Sequences SET seq = " + (result + nb) +
                     " WHERE name = '" + DbDataModel.fieldseq + "'";
             try {
                 preparedStatement.createPrepareStatement(action);
@@ -394,6 +490,14 @@ public abstract class DbModelMysql extends DbModelAbstract {
         }
     }
 
+    /**
+     * MySQL driver streams rows one by one only with Integer.MIN_VALUE as fetch size
+     */
+    @Override
+    public int getStreamingFetchSize() {
+        return Integer.MIN_VALUE;
+    }
+
     @Override
     protected String validConnectionString() {
         return "select 1 from dual";
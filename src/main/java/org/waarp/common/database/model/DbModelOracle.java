@@ -32,6 +32,7 @@ import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbRequest;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.data.DbValue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -54,7 +55,7 @@ public abstract class DbModelOracle extends DbModelAbstract {
     private static final DbType type = DbType.Oracle;
 
     protected OracleConnectionPoolDataSource oracleConnectionPoolDataSource;
-    protected DbConnectionPool pool;
+    protected volatile DbConnectionPool pool;
 
     public DbType getDbType() {
         return type;
@@ -85,6 +86,7 @@ public abstract class DbModelOracle extends DbModelAbstract {
         oracleConnectionPoolDataSource.setUser(dbuser);
         oracleConnectionPoolDataSource.setPassword(dbpasswd);
         pool = new DbConnectionPool(oracleConnectionPoolDataSource, timer, delay);
+        pool.registerMBean(type.name());
         logger.info("Some info: MaxConn: " + pool.getMaxConnections() + " LogTimeout: "
                 + pool.getLoginTimeout()
                 + " ForceClose: " + pool.getTimeoutForceClose());
@@ -113,6 +115,7 @@ public abstract class DbModelOracle extends DbModelAbstract {
         oracleConnectionPoolDataSource.setUser(dbuser);
         oracleConnectionPoolDataSource.setPassword(dbpasswd);
         pool = new DbConnectionPool(oracleConnectionPoolDataSource);
+        pool.registerMBean(type.name());
         logger.warn("Some info: MaxConn: " + pool.getMaxConnections() + " LogTimeout: "
                 + pool.getLoginTimeout()
                 + " ForceClose: " + pool.getTimeoutForceClose());
@@ -158,31 +161,63 @@ public abstract class DbModelOracle extends DbModelAbstract {
         return DbAdmin.getNbConnection();
     }
 
+    /**
+     * Oracle needs EXPLAIN PLAN then a query on the plan table, so no plan is captured
+     */
+    @Override
+    public String getExplainRequest(String sql) {
+        return null;
+    }
+
+    @Override
+    public DbConnectionPool createReplicaPool(String server, String user, String passwd)
+            throws WaarpDatabaseNoConnectionException {
+        OracleConnectionPoolDataSource dataSource;
+        try {
+            dataSource = new OracleConnectionPoolDataSource();
+        } catch (SQLException e) {
+            // then no pool
+            return null;
+        }
+        dataSource.setURL(server);
+        dataSource.setUser(user);
+        dataSource.setPassword(passwd);
+        return new DbConnectionPool(dataSource);
+    }
+
+    @Override
+    public DbConnectionPool getPool() {
+        return pool;
+    }
+
     @Override
     public Connection getDbConnection(String server, String user, String passwd)
             throws SQLException {
-        if (pool == null) {
-            return super.getDbConnection(server, user, passwd);
-        }
-        synchronized (this) {
+        // Checkout is lock-free: only the renewal of the pool is serialized
+        DbConnectionPool currentPool = pool;
+        if (currentPool != null) {
             try {
-                return pool.getConnection();
+                return currentPool.getConnection();
             } catch (SQLException e) {
-                // try to renew the pool
-                oracleConnectionPoolDataSource = new OracleConnectionPoolDataSource();
-                oracleConnectionPoolDataSource.setURL(server);
-                oracleConnectionPoolDataSource.setUser(user);
-                oracleConnectionPoolDataSource.setPassword(passwd);
-                pool.resetPoolDataSource(oracleConnectionPoolDataSource);
-                try {
-                    return pool.getConnection();
-                } catch (SQLException e2) {
-                    pool.dispose();
-                    pool = null;
-                    return super.getDbConnection(server, user, passwd);
+                synchronized (this) {
+                    if (pool != null) {
+                        // try to renew the pool
+                        oracleConnectionPoolDataSource = new OracleConnectionPoolDataSource();
+                        oracleConnectionPoolDataSource.setURL(server);
+                        oracleConnectionPoolDataSource.setUser(user);
+                        oracleConnectionPoolDataSource.setPassword(passwd);
+                        pool.resetPoolDataSource(oracleConnectionPoolDataSource);
+                        try {
+                            return pool.getConnection();
+                        } catch (SQLException e2) {
+                            pool.dispose();
+                            pool = null;
+                        }
+                    }
                 }
             }
         }
+        return super.getDbConnection(server, user, passwd);
     }
 
     protected static enum DBType {
@@ -317,6 +352,7 @@ public abstract class DbModelOracle extends DbModelAbstract {
 
     public void resetSequence(DbSession session, long newvalue)
             throws WaarpDatabaseNoConnectionException {
+        clearSequenceBlock();
         String action = "DROP SEQUENCE " + DbDataModel.fieldseq;
         String action2 = "CREATE SEQUENCE " + DbDataModel.fieldseq +
                 " MINVALUE " + (DbConstant.ILLEGALVALUE + 1) +
@@ -338,9 +374,48 @@ public abstract class DbModelOracle extends DbModelAbstract {
         logger.warn(action);
     }
 
+    /**
+     * Oracle MERGE from DUAL
+     */
+    @Override
+    public String getUpsertRequest(String table, DbValue[] allFields, DbValue[] primaryKey) {
+        StringBuilder builder = new StringBuilder("MERGE INTO ").append(table)
+                .append(" d USING (SELECT ");
+        for (int i = 0; i < allFields.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("? ").append(allFields[i].getColumn());
+        }
+        builder.append(" FROM DUAL) s ON (");
+        for (int i = 0; i < primaryKey.length; i++) {
+            if (i > 0) {
+                builder.append(" AND ");
+            }
+            builder.append("d.").append(primaryKey[i].getColumn()).append(" = s.")
+                    .append(primaryKey[i].getColumn());
+        }
+        builder.append(')');
+        boolean first = true;
+        for (DbValue value : allFields) {
+            if (isPrimaryKey(value, primaryKey)) {
+                continue;
+            }
+            builder.append(first ? " WHEN MATCHED THEN UPDATE SET " : ",").append("d.")
+                    .append(value.getColumn()).append(" = s.").append(value.getColumn());
+            first = false;
+        }
+        builder.append(" WHEN NOT MATCHED THEN INSERT (").append(getColumns(allFields, ""))
+                .append(") VALUES (").append(getColumns(allFields, "s.")).append(')');
+        return builder.toString();
+    }
+
     public long nextSequence(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        if (isSequenceBlockEnabled()) {
+            return nextSequenceFromBlock(dbSession);
+        }
         long result = DbConstant.ILLEGALVALUE;
         String action = "SELECT " + DbDataModel.fieldseq + ".NEXTVAL FROM DUAL";
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
@@ -365,11 +440,57 @@ public abstract class DbModelOracle extends DbModelAbstract {
         }
     }
 
+    @Override
+    protected String getReserveSequencesRequest(int nb) {
+        return "SELECT " + DbDataModel.fieldseq + ".NEXTVAL FROM DUAL CONNECT BY LEVEL <= " +
+                nb;
+    }
+
     @Override
     protected String validConnectionString() {
         return "select 1 from dual";
     }
 
+    /**
+     * Oracle: also deadlock (ORA-00060), resource busy (ORA-00051), serialization failure
+     * (ORA-08177), max sessions or processes (ORA-00018, ORA-00020), shutdown in progress
+     * (ORA-01033, ORA-01089), lost connection (ORA-03113, ORA-03114, 17002) and listener errors
+     * (ORA-12514, ORA-12528, ORA-12541)
+     */
+    @Override
+    public boolean isTransientError(SQLException e) {
+        if (super.isTransientError(e)) {
+            return true;
+        }
+        switch (e.getErrorCode()) {
+            case 18:
+            case 20:
+            case 51:
+            case 60:
+            case 1033:
+            case 1089:
+            case 3113:
+            case 3114:
+            case 8177:
+            case 12514:
+            case 12528:
+            case 12541:
+            case 17002:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Oracle: also deadlock (ORA-00060) and serialization failure (ORA-08177)
+     */
+    @Override
+    public boolean isTransactionRollback(SQLException e) {
+        return super.isTransactionRollback(e) || e.getErrorCode() == 60
+                || e.getErrorCode() == 8177;
+    }
+
     public String limitRequest(String allfields, String request, int nb) {
         if (nb == 0)
             return request;
@@ -27,6 +27,7 @@ import org.waarp.common.database.DbPreparedStatement;
 import org.waarp.common.database.DbRequest;
 import org.waarp.common.database.DbSession;
 import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.data.DbValue;
 import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
 import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
 import org.waarp.common.database.exception.WaarpDatabaseSqlException;
@@ -90,6 +91,10 @@ public abstract class DbModelPostgresql extends DbModelAbstract {
     @Override
     public void validConnection(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException {
+        // healthy connection, no need of a round trip
+        if (!isValidationNeeded(dbSession)) {
+            return;
+        }
         if (useIsValid == null) {
             try {
                 DatabaseMetaData metadata = dbSession.getConn().getMetaData();
@@ -242,6 +247,7 @@ public abstract class DbModelPostgresql extends DbModelAbstract {
 
     public void resetSequence(DbSession session, long newvalue)
             throws WaarpDatabaseNoConnectionException {
+        clearSequenceBlock();
         String action = "ALTER SEQUENCE " + DbDataModel.fieldseq +
                 " MINVALUE " + (DbConstant.ILLEGALVALUE + 1) +
                 " RESTART WITH " + newvalue;
@@ -260,9 +266,67 @@ public abstract class DbModelPostgresql extends DbModelAbstract {
         logger.warn(action);
     }
 
+    /**
+     * PostgreSQL: also insufficient resources (class 53, as too many connections), server
+     * shutdown or startup (57P01 to 57P03) and lock not available (55P03)
+     */
+    @Override
+    public boolean isTransientError(SQLException e) {
+        if (super.isTransientError(e)) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("53") || state.equals("57P01")
+                || state.equals("57P02") || state.equals("57P03") || state.equals("55P03"));
+    }
+
+    /**
+     * PostgreSQL: also lock not available (55P03), since any error aborts the current transaction
+     */
+    @Override
+    public boolean isTransactionRollback(SQLException e) {
+        if (super.isTransactionRollback(e)) {
+            return true;
+        }
+        String state = e.getSQLState();
+        return state != null && state.equals("55P03");
+    }
+
+    @Override
+    protected boolean isRowValueComparisonSupported() {
+        return true;
+    }
+
+    /**
+     * PostgreSQL INSERT ... ON CONFLICT (9.5 and above)
+     */
+    @Override
+    public String getUpsertRequest(String table, DbValue[] allFields, DbValue[] primaryKey) {
+        StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(getColumns(allFields, "")).append(") VALUES (")
+                .append(getParameters(allFields.length)).append(") ON CONFLICT (")
+                .append(getColumns(primaryKey, "")).append(')');
+        boolean first = true;
+        for (DbValue value : allFields) {
+            if (isPrimaryKey(value, primaryKey)) {
+                continue;
+            }
+            builder.append(first ? " DO UPDATE SET " : ",").append(value.getColumn())
+                    .append(" = EXCLUDED.").append(value.getColumn());
+            first = false;
+        }
+        if (first) {
+            builder.append(" DO NOTHING");
+        }
+        return builder.toString();
+    }
+
     public long nextSequence(DbSession dbSession)
             throws WaarpDatabaseNoConnectionException,
             WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+        if (isSequenceBlockEnabled()) {
+            return nextSequenceFromBlock(dbSession);
+        }
         long result = DbConstant.ILLEGALVALUE;
         String action = "SELECT NEXTVAL('" + DbDataModel.fieldseq + "')";
         DbPreparedStatement preparedStatement = new DbPreparedStatement(
@@ -287,6 +351,27 @@ public abstract class DbModelPostgresql extends DbModelAbstract {
         }
     }
 
+    @Override
+    protected String getReserveSequencesRequest(int nb) {
+        return "SELECT NEXTVAL('" + DbDataModel.fieldseq + "') FROM generate_series(1, " +
+                nb + ")";
+    }
+
+    @Override
+    public String getReplicaLagRequest() {
+        return "SELECT CASE WHEN pg_is_in_recovery() THEN COALESCE(EXTRACT(EPOCH FROM (now() - " +
+                "pg_last_xact_replay_timestamp())) * 1000, 0) ELSE 0 END";
+    }
+
+    /**
+     * PostgreSQL driver uses the fetch size only outside autocommit mode, else the whole result is
+     * loaded in memory
+     */
+    @Override
+    public boolean isStreamingNeedsTransaction() {
+        return true;
+    }
+
     @Override
     protected String validConnectionString() {
         return "select 1";
@@ -24,7 +24,7 @@ package org.waarp.common.database.model;
  * 
  */
 public enum DbType {
-    Oracle, MySQL, PostGreSQL, H2, MariaDB, none;
+    Oracle, MySQL, PostGreSQL, H2, MariaDB, Memory, none;
 
     public static DbType getFromDriver(String driver) {
         if (driver.contains("oracle")) {
@@ -37,6 +37,8 @@ public enum DbType {
             return DbType.H2;
         } else if (driver.contains("mariadb")) {
             return DbType.MariaDB;
+        } else if (driver.contains("memory")) {
+            return DbType.Memory;
         }
         return none;
     }
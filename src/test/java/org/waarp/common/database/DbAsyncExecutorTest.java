@@ -0,0 +1,134 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbAsyncExecutorTest {
+
+    @Test
+    public void testAsyncData() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.createTables(session);
+            DbDataModel data = new DbDataModel(session, "host1", 1, 2, 3, 4, 5);
+            DbFuture<Void> insert = data.insertAsync();
+            assertTrue(insert.await(10, TimeUnit.SECONDS));
+            assertTrue(insert.isSuccess());
+
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<Boolean> exist = new AtomicReference<Boolean>();
+            data.existAsync().addListener(new DbFuture.Listener<Boolean>() {
+                public void operationComplete(DbFuture<Boolean> future) {
+                    exist.set(future.getResult());
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertTrue(exist.get());
+
+            DbFuture<Void> delete = data.deleteAsync();
+            delete.awaitUninterruptibly();
+            assertTrue(delete.isSuccess());
+            DbFuture<Void> select = data.selectAsync();
+            select.awaitUninterruptibly();
+            assertTrue(select.isFailed());
+            assertTrue(select.getCause() instanceof WaarpDatabaseNoDataException);
+            assertEquals(4, admin.getAsyncExecutor().getSubmittedCount());
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        DbAsyncExecutor executor = new DbAsyncExecutor(1, 1);
+        Callable<Long> remaining = new Callable<Long>() {
+            public Long call() throws Exception {
+                return DbDeadline.remaining(0);
+            }
+        };
+        try {
+            DbFuture<Long> future;
+            long previous = DbDeadline.set(5000);
+            try {
+                future = executor.submit(remaining);
+            } finally {
+                DbDeadline.restore(previous);
+            }
+            assertTrue(future.await(10, TimeUnit.SECONDS));
+            // the deadline of the caller applies to the operation
+            assertTrue(future.getResult() > 0);
+            assertTrue(future.getResult() <= 5000);
+            // and is not kept by the executor thread
+            future = executor.submit(remaining);
+            assertTrue(future.await(10, TimeUnit.SECONDS));
+            assertEquals(Long.valueOf(DbDeadline.NONE), future.getResult());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        DbAsyncExecutor executor = new DbAsyncExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Callable<Integer> blocking = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                started.countDown();
+                release.await();
+                return 1;
+            }
+        };
+        try {
+            DbFuture<Integer> running = executor.submit(blocking);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            DbFuture<Integer> waiting = executor.submit(blocking);
+            assertTrue(executor.isSaturated());
+            DbFuture<Integer> rejected = executor.submit(blocking);
+            assertTrue(rejected.isFailed());
+            assertTrue(rejected.getCause() instanceof WaarpDatabaseNoConnectionException);
+            assertEquals(1, executor.getRejectedCount());
+            release.countDown();
+            assertTrue(running.await(10, TimeUnit.SECONDS));
+            assertTrue(waiting.await(10, TimeUnit.SECONDS));
+            assertEquals(Integer.valueOf(1), waiting.getResult());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
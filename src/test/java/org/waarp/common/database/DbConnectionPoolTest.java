@@ -0,0 +1,333 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+
+import org.junit.Test;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbConnectionPoolTest {
+
+    @Test
+    public void testCheckoutAndRecycle() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 2, 1);
+        Connection conn1 = pool.getConnection();
+        Connection conn2 = pool.getConnection();
+        assertEquals(2, pool.getActiveConnections());
+        assertEquals(2, source.created.get());
+        conn1.close();
+        conn2.close();
+        assertEquals(0, pool.getActiveConnections());
+        // reuse without creating new ones
+        Connection conn3 = pool.getConnection();
+        assertEquals(2, source.created.get());
+        conn3.close();
+        pool.dispose();
+        assertEquals(2, source.closed.get());
+    }
+
+    @Test
+    public void testTimeout() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 1, 1);
+        Connection conn = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("Should have timeout");
+        } catch (DbConnectionPool.TimeoutException e) {
+            // ok
+        }
+        conn.close();
+        pool.getConnection().close();
+        assertEquals(1, source.created.get());
+        pool.dispose();
+    }
+
+    @Test
+    public void testInvalidConnectionNotRecycled() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 1, 1);
+        Connection conn = pool.getConnection();
+        source.valid = false;
+        conn.close();
+        assertEquals(1, source.closed.get());
+        assertEquals(0, pool.getActiveConnections());
+        source.valid = true;
+        pool.getConnection().close();
+        assertEquals(2, source.created.get());
+        pool.dispose();
+    }
+
+    @Test
+    public void testBackoffWhileInvalid() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 1, 1);
+        pool.setRetryPolicy(new DbRetryPolicy(10, 100, 200, 0));
+        source.valid = false;
+        try {
+            pool.getConnection();
+            fail("Should raise an exception");
+        } catch (SQLException e) {
+            // ok
+        }
+        // database unavailable: a few attempts during the timeout, not one per loop
+        assertTrue(source.created.get() > 1);
+        assertTrue(source.created.get() < 30);
+        assertEquals(0, pool.getActiveConnections());
+        source.valid = true;
+        pool.getConnection().close();
+        pool.dispose();
+    }
+
+    @Test
+    public void testConcurrentCheckout() throws Exception {
+        final FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        final DbConnectionPool pool = new DbConnectionPool(source, 4, 10);
+        final int nbThread = 16;
+        final int nbLoop = 500;
+        final CountDownLatch latch = new CountDownLatch(nbThread);
+        final AtomicInteger errors = new AtomicInteger();
+        for (int i = 0; i < nbThread; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < nbLoop; j++) {
+                            Connection conn = pool.getConnection();
+                            if (pool.getActiveConnections() > 4) {
+                                errors.incrementAndGet();
+                            }
+                            conn.close();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+        latch.await();
+        assertEquals(0, errors.get());
+        assertEquals(0, pool.getActiveConnections());
+        assertTrue(source.created.get() <= 4);
+        pool.dispose();
+        assertEquals(source.created.get(), source.closed.get());
+    }
+
+    @Test
+    public void testValidationPolicy() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 1, 1);
+        pool.setValidationPolicy(DbValidationPolicy.ALWAYS, 0);
+        pool.getConnection().close();
+        // once on checkout, once on recycle
+        assertEquals(2, source.validations.get());
+        pool.setValidationPolicy(DbValidationPolicy.IDLE, 60000);
+        for (int i = 0; i < 10; i++) {
+            pool.getConnection().close();
+        }
+        assertEquals(2, source.validations.get());
+        pool.setValidationPolicy(DbValidationPolicy.IDLE, -1);
+        pool.getConnection().close();
+        assertEquals(4, source.validations.get());
+        pool.setValidationPolicy(DbValidationPolicy.ONERROR, 0);
+        pool.getConnection().close();
+        assertEquals(4, source.validations.get());
+        pool.dispose();
+    }
+
+    @Test
+    public void testMonitor() throws SQLException {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 2, 1);
+        DbConnectionPoolMonitor monitor = pool.getMonitor();
+        Connection conn1 = pool.getConnection();
+        Connection conn2 = pool.getConnection();
+        assertEquals(2, monitor.getActiveConnections());
+        assertEquals(0, monitor.getIdleConnections());
+        try {
+            pool.getConnection();
+            fail("Should have timeout");
+        } catch (DbConnectionPool.TimeoutException e) {
+            // ok
+        }
+        conn1.close();
+        source.valid = false;
+        conn2.close();
+        assertEquals(0, monitor.getActiveConnections());
+        assertEquals(1, monitor.getIdleConnections());
+        assertEquals(2, monitor.getPeakConnections());
+        assertEquals(2, monitor.getCheckoutCount());
+        assertEquals(1, monitor.getTimeoutCount());
+        assertEquals(2, monitor.getCreatedCount());
+        assertEquals(1, monitor.getClosedCount());
+        assertEquals(1, monitor.getInvalidatedCount());
+        assertEquals(2, monitor.getCheckoutLatency().getCount());
+        assertEquals(1, monitor.getSemaphoreWait().getCount());
+        assertTrue(monitor.getSemaphoreWaitTotalMs() >= 900);
+        assertTrue(monitor.toJson().has("checkoutLatency"));
+        pool.registerMBean("test");
+        pool.dispose();
+        assertEquals(2, monitor.getClosedCount());
+    }
+
+    @Test
+    public void testMBeanSameName() throws Exception {
+        DbConnectionPool pool1 = new DbConnectionPool(new FakeConnectionPoolDataSource(), 2, 1);
+        DbConnectionPool pool2 = new DbConnectionPool(new FakeConnectionPoolDataSource(), 2, 1);
+        try {
+            pool1.registerMBean("H2");
+            pool2.registerMBean("H2");
+            ObjectName name1 = pool1.getMonitor().getObjectName();
+            ObjectName name2 = pool2.getMonitor().getObjectName();
+            assertNotNull(name1);
+            assertNotNull(name2);
+            assertFalse(name1.equals(name2));
+            assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name2));
+        } finally {
+            pool1.dispose();
+            pool2.dispose();
+        }
+        assertNull(pool1.getMonitor().getObjectName());
+    }
+
+    @Test
+    public void testLeakDetection() throws Exception {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 2, 1);
+        DbConnectionOwner.setLeakDetection(1, 1, true);
+        try {
+            Connection conn1 = pool.getConnection();
+            Connection conn2 = pool.getConnection();
+            conn2.close();
+            assertEquals(1, pool.getOwners().size());
+            assertNotNull(pool.getOwners().get(0).getStack());
+            Thread.sleep(20);
+            assertEquals(1, pool.checkLeaks());
+            assertEquals(1, pool.getMonitor().getLeakCount());
+            assertEquals(1, pool.getMonitor().getReclaimedCount());
+            assertEquals(0, pool.getActiveConnections());
+            assertEquals(1, source.closed.get());
+            // late close by the owner must not corrupt the pool
+            conn1.close();
+            assertEquals(0, pool.getActiveConnections());
+            pool.getConnection().close();
+            assertEquals(0, pool.checkLeaks());
+        } finally {
+            DbConnectionOwner.setLeakDetection(DbConstant.LEAKTHRESHOLD,
+                    DbConstant.LEAKSTACKSAMPLING, DbConstant.LEAKRECLAIM);
+            pool.dispose();
+        }
+    }
+
+    @Test
+    public void testCloseWhileReclaimed() throws Exception {
+        final List<FakeConnectionPoolDataSource.FakePooledConnection> pooled =
+                new CopyOnWriteArrayList<FakeConnectionPoolDataSource.FakePooledConnection>();
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource() {
+            @Override
+            public PooledConnection getPooledConnection() throws SQLException {
+                FakeConnectionPoolDataSource.FakePooledConnection pconn =
+                        (FakeConnectionPoolDataSource.FakePooledConnection) super
+                                .getPooledConnection();
+                pooled.add(pconn);
+                return pconn;
+            }
+        };
+        DbConnectionPool pool = new DbConnectionPool(source, 2, 1);
+        DbConnectionOwner.setLeakDetection(1, 1, true);
+        try {
+            pool.getConnection();
+            FakeConnectionPoolDataSource.FakePooledConnection pconn = pooled.get(0);
+            // the close event is already being delivered when the leak checker reclaims it
+            ConnectionEventListener listener = pconn.listeners.get(0);
+            Thread.sleep(20);
+            assertEquals(1, pool.checkLeaks());
+            listener.connectionClosed(new ConnectionEvent(pconn));
+            assertEquals(0, pool.getActiveConnections());
+            assertEquals(1, source.closed.get());
+            // only 2 permits
+            Connection conn1 = pool.getConnection();
+            Connection conn2 = pool.getConnection();
+            try {
+                pool.getConnection();
+                fail("Should time out");
+            } catch (DbConnectionPool.TimeoutException e) {
+                // ok
+            }
+            conn1.close();
+            conn2.close();
+        } finally {
+            DbConnectionOwner.setLeakDetection(DbConstant.LEAKTHRESHOLD,
+                    DbConstant.LEAKSTACKSAMPLING, DbConstant.LEAKRECLAIM);
+            pool.dispose();
+        }
+    }
+
+    @Test
+    public void testMinIdlePrefill() throws Exception {
+        FakeConnectionPoolDataSource source = new FakeConnectionPoolDataSource();
+        DbConnectionPool pool = new DbConnectionPool(source, 4, 1);
+        assertEquals(0, pool.prefill());
+        pool.setMinIdle(3);
+        long limit = System.currentTimeMillis() + 5000;
+        while (pool.getIdleConnections() < 3 && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, pool.getIdleConnections());
+        assertEquals(3, source.created.get());
+        assertEquals(0, pool.prefill());
+        // checkouts use the prefilled connections
+        Connection conn1 = pool.getConnection();
+        Connection conn2 = pool.getConnection();
+        Connection conn3 = pool.getConnection();
+        assertEquals(3, source.created.get());
+        // an empty pool creates one in place and the missing ones in background, within max
+        Connection conn4 = pool.getConnection();
+        assertEquals(4, source.created.get());
+        conn1.close();
+        conn2.close();
+        conn3.close();
+        conn4.close();
+        assertEquals(4, pool.getIdleConnections());
+        // old idle connections are freed only above the minimum
+        pool.freeIdleConnections();
+        assertEquals(4, pool.getIdleConnections());
+        pool.dispose();
+        assertEquals(0, pool.prefill());
+        assertEquals(4, source.closed.get());
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.junit.Test;
+import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.data.DbDataTransfer;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+import org.waarp.common.json.AdaptativeJsonHandler.JsonCodec;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbCursorTest {
+    private static final String SELECT = "SELECT HOSTID FROM " + DbDataModel.table;
+
+    /**
+     * Memory database streaming as PostgreSQL (only within a transaction)
+     */
+    static class StreamingModel extends DbModelMemory {
+        StreamingModel() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        @Override
+        public boolean isStreamingNeedsTransaction() {
+            return true;
+        }
+
+        @Override
+        public int getStreamingFetchSize() {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static final DbCursor.RowMapper<String> mapper = new DbCursor.RowMapper<String>() {
+        public String mapRow(ResultSet resultSet, String previous) throws SQLException {
+            return resultSet.getString(1);
+        }
+    };
+
+    private static DbAdmin newAdmin(DbModelMemory model) throws Exception {
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        DbSession session = admin.getSession();
+        model.createTables(session);
+        for (int i = 0; i < 3; i++) {
+            new DbDataModel(session, "host" + i, i, i, i, i, i).insert();
+        }
+        return admin;
+    }
+
+    @Test
+    public void testStreamingNeedsTransaction() throws Exception {
+        DbAdmin admin = newAdmin(new StreamingModel());
+        try {
+            DbSession session = admin.getSession();
+            assertFalse(DbCursor.isStreamingAllowed(session));
+            DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+            try {
+                preparedStatement.createPrepareStatement(SELECT);
+                preparedStatement.executeCursor(mapper);
+                fail("Should refuse to stream in autocommit");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            } finally {
+                preparedStatement.realClose();
+            }
+            // the shared connection is left untouched
+            assertTrue(session.isAutoCommit());
+            assertTrue(session.getConn().getAutoCommit());
+
+            DbSession dedicated = DbCursor.getStreamingSession(session);
+            assertNotSame(session, dedicated);
+            assertFalse(dedicated.isAutoCommit());
+            preparedStatement = new DbPreparedStatement(dedicated);
+            try {
+                preparedStatement.createPrepareStatement(SELECT);
+                DbCursor<String> cursor = preparedStatement.executeCursor(mapper);
+                int nb = 0;
+                while (cursor.hasNext()) {
+                    assertNotNull(cursor.next());
+                    nb++;
+                }
+                assertEquals(3, nb);
+                assertFalse(dedicated.getConn().getAutoCommit());
+            } finally {
+                preparedStatement.realClose();
+                dedicated.disconnect();
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(3, DbDataTransfer.exportTable(new DbDataModel(session, "template", 0,
+                    0, 0, 0, 0), out, JsonCodec.JSON));
+            assertTrue(session.getConn().getAutoCommit());
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testRealCloseWithOpenCursor() throws Exception {
+        DbAdmin admin = newAdmin(new StreamingModel());
+        try {
+            DbSession session = new DbSession(admin, false);
+            session.setAutoCommit(false);
+            assertTrue(DbCursor.isStreamingAllowed(session));
+            DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+            preparedStatement.createPrepareStatement(SELECT);
+            PreparedStatement statement = preparedStatement.getPreparedStatement();
+            DbCursor<String> cursor = preparedStatement.executeCursor(mapper);
+            assertTrue(cursor.hasNext());
+            assertEquals(Integer.MIN_VALUE, statement.getFetchSize());
+            // closed without closing the cursor first
+            preparedStatement.realClose();
+            assertTrue(cursor.isClosed());
+            assertEquals(0, statement.getFetchSize());
+
+            DbPreparedStatement next = new DbPreparedStatement(session);
+            try {
+                next.createPrepareStatement(SELECT);
+                // from the cache, out of streaming mode
+                assertSame(statement, next.getPreparedStatement());
+                assertEquals(0, next.getPreparedStatement().getFetchSize());
+            } finally {
+                next.realClose();
+            }
+            session.disconnect();
+        } finally {
+            admin.close();
+        }
+    }
+}
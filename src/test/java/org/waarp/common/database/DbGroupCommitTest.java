@@ -0,0 +1,164 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbGroupCommitTest {
+    private static Connection newConnection(final AtomicInteger commits,
+            final AtomicBoolean fail) {
+        return (Connection) Proxy.newProxyInstance(DbGroupCommitTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("commit")) {
+                            Thread.sleep(2);
+                            commits.incrementAndGet();
+                            if (fail.get()) {
+                                throw new SQLException("commit failed");
+                            }
+                            return null;
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == Boolean.TYPE) {
+                            return false;
+                        } else if (type == Integer.TYPE) {
+                            return 0;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        DbAdmin admin = new DbAdmin(new DbModelMemory(), DbModelMemory.MEMORYPREFIX, null, null,
+                true);
+        try {
+            final AtomicInteger commits = new AtomicInteger();
+            AtomicBoolean fail = new AtomicBoolean(false);
+            final DbSession session = admin.getSession();
+            session.setAutoCommit(false);
+            session.setConn(newConnection(commits, fail));
+            admin.setGroupCommit(20, 8);
+            final int nbThreads = 8;
+            final int nbCommits = 20;
+            final AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[nbThreads];
+            for (int i = 0; i < nbThreads; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < nbCommits; j++) {
+                            try {
+                                session.commit();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(0, errors.get());
+            DbGroupCommit group = session.getGroupCommit();
+            assertEquals(nbThreads * nbCommits, group.getRequestedCount());
+            assertEquals(commits.get(), group.getCommitCount());
+            assertTrue(commits.get() < nbThreads * nbCommits);
+
+            fail.set(true);
+            try {
+                session.commit();
+                fail("Commit failure should be reported");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            fail.set(false);
+
+            // strict mode
+            admin.setGroupCommit(0, 0);
+            assertNull(session.getGroupCommit());
+            int before = commits.get();
+            session.commit();
+            session.commit();
+            assertEquals(before + 2, commits.get());
+        } finally {
+            admin.getSession().setConn(null);
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testFailingRounds() throws Exception {
+        DbAdmin admin = new DbAdmin(new DbModelMemory(), DbModelMemory.MEMORYPREFIX, null, null,
+                true);
+        try {
+            final AtomicInteger commits = new AtomicInteger();
+            AtomicBoolean fail = new AtomicBoolean(true);
+            final DbSession session = admin.getSession();
+            session.setAutoCommit(false);
+            session.setConn(newConnection(commits, fail));
+            admin.setGroupCommit(1, 4);
+            final int nbThreads = 8;
+            final int nbCommits = 50;
+            final AtomicInteger errors = new AtomicInteger();
+            Thread[] threads = new Thread[nbThreads];
+            for (int i = 0; i < nbThreads; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        for (int j = 0; j < nbCommits; j++) {
+                            try {
+                                session.commit();
+                            } catch (Exception e) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // back-to-back failing rounds: no commit is reported as successful
+            assertEquals(nbThreads * nbCommits, errors.get());
+            assertTrue(commits.get() < nbThreads * nbCommits);
+        } finally {
+            admin.getSession().setConn(null);
+            admin.close();
+        }
+    }
+}
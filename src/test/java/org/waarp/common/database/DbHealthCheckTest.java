@@ -0,0 +1,205 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbHealthCheckTest {
+
+    /**
+     * In memory model whose validation is slow and fails for the given sessions
+     */
+    static class CheckedModel extends DbModelMemory {
+        final Set<DbSession> invalid = Collections
+                .newSetFromMap(new ConcurrentHashMap<DbSession, Boolean>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger validations = new AtomicInteger();
+        volatile long duration = 0;
+
+        CheckedModel() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        @Override
+        public void validConnection(DbSession dbSession)
+                throws WaarpDatabaseNoConnectionException {
+            int nb = running.incrementAndGet();
+            try {
+                int max = maxRunning.get();
+                while (nb > max && !maxRunning.compareAndSet(max, nb)) {
+                    max = maxRunning.get();
+                }
+                validations.incrementAndGet();
+                if (duration > 0) {
+                    try {
+                        Thread.sleep(duration);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (invalid.contains(dbSession)) {
+                    throw new WaarpDatabaseNoConnectionException("Cannot connect to database");
+                }
+                super.validConnection(dbSession);
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static List<DbSession> newSessions(DbAdmin admin, int nb)
+            throws WaarpDatabaseNoConnectionException {
+        List<DbSession> sessions = new ArrayList<DbSession>();
+        for (int i = 0; i < nb; i++) {
+            sessions.add(new DbSession(admin, false));
+        }
+        return sessions;
+    }
+
+    private static void disconnect(List<DbSession> sessions) {
+        for (DbSession session : sessions) {
+            session.forceDisconnect();
+        }
+    }
+
+    @Test
+    public void testSkip() throws Exception {
+        CheckedModel model = new CheckedModel();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        List<DbSession> sessions = newSessions(admin, 3);
+        DbHealthCheck healthCheck = new DbHealthCheck(2, 60000);
+        try {
+            long now = System.currentTimeMillis();
+            for (DbSession session : sessions) {
+                session.setLastValid();
+            }
+            // validated recently
+            assertFalse(healthCheck.needCheck(sessions.get(0), now));
+            assertFalse(healthCheck.needCheck(sessions.get(0), now + 59000));
+            assertTrue(healthCheck.needCheck(sessions.get(0), now + 61000));
+            // a session known as inactive is always checked
+            sessions.get(1).setDisActive(true);
+            assertTrue(healthCheck.needCheck(sessions.get(1), now));
+
+            model.validations.set(0);
+            assertEquals(0, healthCheck.checkAll(sessions));
+            assertEquals(1, model.validations.get());
+            assertEquals(1, healthCheck.toJson().get("checked").asLong());
+            assertEquals(2, healthCheck.toJson().get("skipped").asLong());
+            assertFalse(sessions.get(1).isDisActive());
+            assertEquals(1, sessions.get(1).getHealth().getChecks());
+            assertEquals(0, sessions.get(0).getHealth().getChecks());
+
+            // a session whose check is still running is skipped
+            DbHealthCheck noSkip = new DbHealthCheck(2, 0);
+            assertTrue(sessions.get(2).getHealth().tryStartCheck());
+            assertTrue(sessions.get(2).getHealth().isInCheck());
+            model.validations.set(0);
+            noSkip.checkAll(sessions);
+            assertEquals(2, model.validations.get());
+            assertEquals(1, noSkip.toJson().get("skipped").asLong());
+            assertEquals(0, sessions.get(2).getHealth().getChecks());
+            sessions.get(2).getHealth().cancelCheck();
+            assertFalse(sessions.get(2).getHealth().isInCheck());
+            noSkip.stop();
+        } finally {
+            healthCheck.stop();
+            disconnect(sessions);
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testParallelism() throws Exception {
+        CheckedModel model = new CheckedModel();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        List<DbSession> sessions = newSessions(admin, 8);
+        DbHealthCheck healthCheck = new DbHealthCheck(3, 0);
+        try {
+            model.duration = 30;
+            model.maxRunning.set(0);
+            model.validations.set(0);
+            assertEquals(0, healthCheck.checkAll(sessions));
+            assertEquals(8, model.validations.get());
+            // 8 checks of 30 ms, 3 at a time
+            assertEquals(3, model.maxRunning.get());
+            assertEquals(0, model.running.get());
+            for (DbSession session : sessions) {
+                assertEquals(1, session.getHealth().getChecks());
+                assertFalse(session.getHealth().isInCheck());
+            }
+        } finally {
+            healthCheck.stop();
+            disconnect(sessions);
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testRecording() throws Exception {
+        CheckedModel model = new CheckedModel();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        List<DbSession> sessions = newSessions(admin, 2);
+        DbHealthCheck healthCheck = new DbHealthCheck(2, 0);
+        try {
+            DbSession bad = sessions.get(1);
+            model.invalid.add(bad);
+            assertEquals(1, healthCheck.checkAll(sessions));
+            assertEquals(1, healthCheck.checkAll(sessions));
+            DbSessionHealth health = bad.getHealth();
+            assertFalse(health.isHealthy());
+            assertEquals(2, health.getConsecutiveFailures());
+            assertEquals(2, health.getFailures());
+            assertEquals(2, health.getChecks());
+            assertTrue(health.getLastCheck() > 0);
+            assertTrue(bad.isDisActive());
+            assertTrue(sessions.get(0).getHealth().isHealthy());
+            assertEquals(2, healthCheck.toJson().get("failed").asLong());
+
+            // recovery
+            model.invalid.clear();
+            assertEquals(0, healthCheck.checkAll(sessions));
+            assertTrue(health.isHealthy());
+            assertEquals(0, health.getConsecutiveFailures());
+            assertEquals(2, health.getFailures());
+            assertEquals(3, health.getChecks());
+            assertFalse(bad.isDisActive());
+            assertEquals(3, healthCheck.toJson().get("runs").asLong());
+        } finally {
+            healthCheck.stop();
+            disconnect(sessions);
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbKeysetPaginatorTest {
+    private static final String[] KEYS = { "OWNER", "ID" };
+
+    private static DbAdmin newAdmin(int nb) throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        model.getStore().createTable("T", new String[] { "OWNER", "ID", "VAL" }, KEYS);
+        DbPreparedStatement insert = new DbPreparedStatement(admin.getSession(),
+                "INSERT INTO T (OWNER, ID, VAL) VALUES (?, ?, ?)");
+        try {
+            for (int i = 0; i < nb; i++) {
+                // several rows per owner, such that the second key is needed
+                insert.getPreparedStatement().setString(1, "owner" + (i % 3));
+                insert.getPreparedStatement().setLong(2, i);
+                insert.getPreparedStatement().setLong(3, i * 10);
+                insert.executeUpdate();
+            }
+        } finally {
+            insert.realClose();
+        }
+        return admin;
+    }
+
+    private static List<String> readAll(DbKeysetPaginator paginator, List<Integer> pages)
+            throws Exception {
+        List<String> rows = new ArrayList<String>();
+        try {
+            while (paginator.hasNext()) {
+                DbPreparedStatement page = paginator.next();
+                int nb = 0;
+                while (paginator.getNext()) {
+                    rows.add(page.getResultSet().getString("OWNER") + "/" +
+                            page.getResultSet().getLong("ID"));
+                    nb++;
+                }
+                pages.add(nb);
+            }
+        } finally {
+            paginator.close();
+        }
+        return rows;
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        DbAdmin admin = newAdmin(25);
+        try {
+            List<Integer> pages = new ArrayList<Integer>();
+            List<String> rows = readAll(new DbKeysetPaginator(admin.getSession(), "*", "T",
+                    null, null, KEYS, false, 10), pages);
+            assertEquals(25, rows.size());
+            assertEquals("owner0/0", rows.get(0));
+            assertEquals("owner0/3", rows.get(1));
+            // owner0 has 9 rows, the page ends within owner1
+            assertEquals("owner1/1", rows.get(9));
+            assertEquals("owner1/4", rows.get(10));
+            assertEquals("owner2/23", rows.get(24));
+            assertEquals(3, pages.size());
+            assertEquals(Integer.valueOf(5), pages.get(2));
+
+            // descending with a condition
+            pages.clear();
+            rows = readAll(new DbKeysetPaginator(admin.getSession(), "*", "T", "VAL >= ?",
+                    new Object[] { 100L }, KEYS, true, 4), pages);
+            assertEquals(15, rows.size());
+            assertEquals("owner2/23", rows.get(0));
+            assertEquals("owner0/12", rows.get(14));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testStartAfterAndSkip() throws Exception {
+        DbAdmin admin = newAdmin(12);
+        try {
+            DbKeysetPaginator paginator = new DbKeysetPaginator(admin.getSession(), "*", "T",
+                    null, null, KEYS, false, 3);
+            paginator.startAfter(new Object[] { "owner1", 7L });
+            List<String> rows = readAll(paginator, new ArrayList<Integer>());
+            assertEquals(5, rows.size());
+            assertEquals("owner1/10", rows.get(0));
+            assertEquals("owner2/11", rows.get(4));
+
+            // rows of a page not read are skipped
+            paginator = new DbKeysetPaginator(admin.getSession(), "*", "T", null, null, KEYS,
+                    false, 5);
+            try {
+                paginator.next();
+                assertTrue(paginator.getNext());
+                assertTrue(paginator.hasNext());
+                paginator.next();
+                assertTrue(paginator.getNext());
+                assertEquals("owner1/4", paginator.getLastKey()[0] + "/" +
+                        paginator.getLastKey()[1]);
+                assertTrue(paginator.hasNext());
+                paginator.next();
+                int nb = 0;
+                while (paginator.getNext()) {
+                    nb++;
+                }
+                assertEquals(2, nb);
+                assertFalse(paginator.hasNext());
+                try {
+                    paginator.next();
+                    fail("Should have no more page");
+                } catch (NoSuchElementException e) {
+                    // ok
+                }
+            } finally {
+                paginator.close();
+            }
+        } finally {
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbPreparedStatementCacheTest {
+    final AtomicInteger prepared = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+
+    private Connection newConnection() {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("prepareStatement")) {
+                            prepared.incrementAndGet();
+                            return newStatement();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private PreparedStatement newStatement() {
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("close")) {
+                            closed.incrementAndGet();
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void testHitAndMiss() throws SQLException {
+        Connection conn = newConnection();
+        DbPreparedStatementCache cache = new DbPreparedStatementCache(2);
+        int generation = cache.getGeneration();
+        PreparedStatement ps1 = cache.acquire(conn, "SELECT 1");
+        // in use: not shared
+        PreparedStatement ps2 = cache.acquire(conn, "SELECT 1");
+        assertNotSame(ps1, ps2);
+        cache.release("SELECT 1", ps1, generation);
+        // one idle statement only per SQL text
+        cache.release("SELECT 1", ps2, generation);
+        assertEquals(1, closed.get());
+        assertSame(ps2, cache.acquire(conn, "SELECT 1"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, prepared.get());
+    }
+
+    @Test
+    public void testEviction() throws SQLException {
+        Connection conn = newConnection();
+        DbPreparedStatementCache cache = new DbPreparedStatementCache(2);
+        int generation = cache.getGeneration();
+        for (int i = 0; i < 3; i++) {
+            String sql = "SELECT " + i;
+            cache.release(sql, cache.acquire(conn, sql), generation);
+        }
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, closed.get());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(3, closed.get());
+    }
+
+    @Test
+    public void testRebuild() throws SQLException {
+        Connection conn = newConnection();
+        DbPreparedStatementCache cache = new DbPreparedStatementCache(4);
+        int generation = cache.getGeneration();
+        cache.release("SELECT 1", cache.acquire(conn, "SELECT 1"), generation);
+        PreparedStatement inUse = cache.acquire(conn, "SELECT 2");
+        // reconnection
+        cache.rebuild(newConnection());
+        assertEquals(1, closed.get());
+        assertEquals(1, cache.size());
+        // statement from the previous connection is not kept
+        cache.release("SELECT 2", inUse, generation);
+        assertEquals(2, closed.get());
+        assertEquals(1, cache.size());
+        cache.acquire(conn, "SELECT 1");
+        assertEquals(1, cache.getHits());
+    }
+}
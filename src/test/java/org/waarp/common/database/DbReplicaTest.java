@@ -0,0 +1,141 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.PooledConnection;
+
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbReplicaTest {
+
+    /**
+     * Replica source recording the threads asking for a connection
+     */
+    static class RecordingSource extends FakeConnectionPoolDataSource {
+        final List<String> threads = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public PooledConnection getPooledConnection() throws SQLException {
+            threads.add(Thread.currentThread().getName());
+            return super.getPooledConnection();
+        }
+    }
+
+    /**
+     * In memory primary whose replicas use the given source
+     */
+    static class ReplicaModel extends DbModelMemory {
+        final RecordingSource source;
+
+        ReplicaModel(RecordingSource source) throws WaarpDatabaseNoConnectionException {
+            super();
+            this.source = source;
+        }
+
+        @Override
+        public DbConnectionPool createReplicaPool(String server, String user, String passwd)
+                throws WaarpDatabaseNoConnectionException {
+            // no reuse so that each check asks the source
+            return new DbConnectionPool(source, 2, 1) {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    return source.getPooledConnection().getConnection();
+                }
+            };
+        }
+    }
+
+    private static boolean waitHealthy(DbReplica replica, boolean healthy) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            if (replica.isHealthy() == healthy) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test
+    public void testCheckOnOwnThread() throws Exception {
+        long delay = DbConstant.REPLICACHECKDELAY;
+        DbConstant.REPLICACHECKDELAY = 20;
+        RecordingSource source = new RecordingSource();
+        DbAdmin admin = new DbAdmin(new ReplicaModel(source), DbModelMemory.MEMORYPREFIX, null,
+                null, true);
+        try {
+            DbReplica replica = admin.addReplica("replica", null, null, 0);
+            // first check done by the caller
+            assertTrue(replica.isHealthy());
+            assertEquals(Thread.currentThread().getName(), source.threads.get(0));
+
+            source.valid = false;
+            assertTrue(waitHealthy(replica, false));
+            assertNull(admin.getReplicaConnection());
+            source.valid = true;
+            assertTrue(waitHealthy(replica, true));
+            for (String name : source.threads.subList(1, source.threads.size())) {
+                assertTrue(name, name.startsWith("DbReplicaCheck"));
+            }
+        } finally {
+            admin.close();
+            DbConstant.REPLICACHECKDELAY = delay;
+        }
+        // no more check once closed
+        int nb = source.threads.size();
+        Thread.sleep(100);
+        assertEquals(nb, source.threads.size());
+    }
+
+    @Test
+    public void testRouting() throws Exception {
+        RecordingSource source = new RecordingSource();
+        DbAdmin admin = new DbAdmin(new ReplicaModel(source), DbModelMemory.MEMORYPREFIX, null,
+                null, true);
+        try {
+            DbReplica replica = admin.addReplica("replica", null, null, 0);
+            Connection conn = admin.getReplicaConnection();
+            assertNotNull(conn);
+            conn.close();
+            assertEquals(1, replica.getRouted());
+            replica.markFailure();
+            assertNull(admin.getReplicaConnection());
+            assertEquals(1, replica.getFailures());
+            // back in the routing after a successful check
+            assertTrue(replica.check());
+            conn = admin.getReplicaConnection();
+            assertNotNull(conn);
+            conn.close();
+            assertEquals(2, replica.getRouted());
+        } finally {
+            admin.close();
+        }
+    }
+}
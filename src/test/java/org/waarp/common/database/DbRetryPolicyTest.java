@@ -0,0 +1,348 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbMemoryStore;
+import org.waarp.common.database.model.DbModelAbstract;
+import org.waarp.common.database.model.DbModelFactory;
+import org.waarp.common.database.model.DbModelMemory;
+import org.waarp.common.database.model.DbType;
+import org.waarp.common.database.model.DialectModels;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbRetryPolicyTest {
+
+    /**
+     * Model validating connections by a round trip (as real databases), whose connections can
+     * be broken and reconnections made to fail
+     */
+    static class FlakyModel extends DbModelAbstract {
+        final DbMemoryStore store;
+        final AtomicInteger generation = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        final List<Boolean> lockHeld = new CopyOnWriteArrayList<Boolean>();
+        volatile DbSession watched = null;
+
+        FlakyModel() throws Exception {
+            store = new DbMemoryStore(null);
+            DbModelFactory.classLoaded.add(DbType.Memory.name());
+        }
+
+        /**
+         * The current connections become invalid
+         */
+        void breakConnections() {
+            generation.incrementAndGet();
+        }
+
+        @Override
+        public Connection getDbConnection(String server, String user, String passwd)
+                throws SQLException {
+            attempts.incrementAndGet();
+            DbSession session = watched;
+            if (session != null) {
+                lockHeld.add(Thread.holdsLock(session));
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new SQLException("Connection refused", "08001");
+            }
+            final Connection conn = store.getConnection();
+            final int current = generation.get();
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                            if (method.getName().equals("isValid")) {
+                                return current == generation.get();
+                            }
+                            try {
+                                return method.invoke(conn, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        public DbType getDbType() {
+            return DbType.Memory;
+        }
+
+        @Override
+        protected String validConnectionString() {
+            return "SELECT 1";
+        }
+
+        public void releaseResources() {
+        }
+
+        public int currentNumberOfPooledConnections() {
+            return 0;
+        }
+
+        public void createTables(DbSession session) {
+        }
+
+        public void resetSequence(DbSession session, long newvalue) {
+        }
+
+        public long nextSequence(DbSession dbSession) throws WaarpDatabaseNoConnectionException,
+                WaarpDatabaseSqlException, WaarpDatabaseNoDataException {
+            return store.nextSequence();
+        }
+
+        public String limitRequest(String allfields, String request, int limit) {
+            return request;
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testBackoff() {
+        DbRetryPolicy policy = new DbRetryPolicy(5, 100, 1000, 0);
+        assertEquals(100, policy.getDelay(0));
+        assertEquals(200, policy.getDelay(1));
+        assertEquals(800, policy.getDelay(3));
+        assertEquals(1000, policy.getDelay(4));
+        assertEquals(1000, policy.getDelay(100));
+        policy = new DbRetryPolicy(5, 100, 1000, 0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(2);
+            assertTrue(delay >= 200 && delay <= 400);
+        }
+    }
+
+    @Test
+    public void testRetryOnlyTransientErrors() throws Exception {
+        DbRetryPolicy policy = new DbRetryPolicy(3, 1, 10, 0);
+        final AtomicInteger count = new AtomicInteger();
+        String result = policy.execute(null, new DbRetryPolicy.Action<String>() {
+            public String run() throws WaarpDatabaseNoConnectionException {
+                if (count.incrementAndGet() < 3) {
+                    throw new WaarpDatabaseNoConnectionException("lost");
+                }
+                return "ok";
+            }
+        });
+        assertEquals("ok", result);
+        assertEquals(3, count.get());
+        count.set(0);
+        try {
+            policy.execute(null, new DbRetryPolicy.Action<String>() {
+                public String run() throws WaarpDatabaseSqlException {
+                    count.incrementAndGet();
+                    throw new WaarpDatabaseSqlException("syntax",
+                            new SQLException("syntax", "42000"));
+                }
+            });
+            fail("Should fail");
+        } catch (WaarpDatabaseSqlException e) {
+            // ok
+        }
+        assertEquals(1, count.get());
+        count.set(0);
+        try {
+            policy.execute(null, new DbRetryPolicy.Action<String>() {
+                public String run() throws WaarpDatabaseSqlException {
+                    count.incrementAndGet();
+                    throw new WaarpDatabaseSqlException("link",
+                            new SQLException("link", "08S01"));
+                }
+            });
+            fail("Should fail");
+        } catch (WaarpDatabaseSqlException e) {
+            // ok
+        }
+        assertEquals(3, count.get());
+    }
+
+    @Test
+    public void testTransactionRollback() throws Exception {
+        DbRetryPolicy policy = new DbRetryPolicy(3, 1, 10, 0);
+        DbAdmin admin = new DbAdmin(new DbModelMemory(), DbModelMemory.MEMORYPREFIX, null, null,
+                true);
+        try {
+            final AtomicInteger count = new AtomicInteger();
+            DbRetryPolicy.Action<String> deadlock = new DbRetryPolicy.Action<String>() {
+                public String run() throws WaarpDatabaseSqlException {
+                    count.incrementAndGet();
+                    throw new WaarpDatabaseSqlException("deadlock",
+                            new SQLException("deadlock", "40001"));
+                }
+            };
+            // part of a transaction: the previous work is lost, so no retry
+            try {
+                policy.execute(admin, deadlock);
+                fail("Should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            assertEquals(1, count.get());
+            DbSession session = new DbSession(admin, false);
+            session.setAutoCommit(false);
+            count.set(0);
+            try {
+                policy.executeOnSession(session, deadlock);
+                fail("Should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            assertEquals(1, count.get());
+            // autocommit or whole transaction: retried
+            session.setAutoCommit(true);
+            count.set(0);
+            try {
+                policy.executeOnSession(session, deadlock);
+                fail("Should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            assertEquals(3, count.get());
+            count.set(0);
+            try {
+                policy.executeTransaction(admin, deadlock);
+                fail("Should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            assertEquals(3, count.get());
+            session.forceDisconnect();
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testDialectTransactionRollback() throws Exception {
+        SQLException deadlock = new SQLException("deadlock", "HY000", 1213);
+        SQLException lockWait = new SQLException("lock wait", "HY000", 1205);
+        assertTrue(new DialectModels.Mysql().isTransactionRollback(deadlock));
+        assertTrue(new DialectModels.Mariadb().isTransactionRollback(lockWait));
+        assertTrue(new DialectModels.Oracle().isTransactionRollback(
+                new SQLException("ORA-08177", "72000", 8177)));
+        assertTrue(new DialectModels.Oracle().isTransactionRollback(
+                new SQLException("ORA-00060", "61000", 60)));
+        assertTrue(new DialectModels.Postgresql().isTransactionRollback(
+                new SQLException("lock", "55P03")));
+        assertTrue(new DialectModels.H2().isTransactionRollback(
+                new SQLException("deadlock", "40001")));
+        // connection errors remain retryable for a statement
+        SQLException link = new SQLException("link", "08S01");
+        assertFalse(new DialectModels.Mysql().isTransactionRollback(link));
+        DbRetryPolicy policy = new DbRetryPolicy();
+        DbModelAbstract model = new DialectModels.Mysql();
+        assertTrue(policy.isRetryable(link, model, false));
+        assertFalse(policy.isRetryable(deadlock, model, false));
+        assertTrue(policy.isRetryable(deadlock, model, true));
+        assertTrue(policy.isRetryable(deadlock, model));
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        FlakyModel model = new FlakyModel();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        admin.setRetryPolicy(new DbRetryPolicy(4, 5, 20, 0));
+        DbSession session = new DbSession(admin, false);
+        try {
+            Connection lost = session.getConn();
+            model.watched = session;
+            model.breakConnections();
+            model.failures.set(2);
+            model.attempts.set(0);
+            // reconnected after 2 failed attempts, without holding the session
+            assertTrue(session.checkConnectionNoException());
+            assertEquals(3, model.attempts.get());
+            assertFalse(session.isDisActive());
+            assertNotSame(lost, session.getConn());
+            assertTrue(session.getConn().isValid(1));
+            assertFalse(model.lockHeld.isEmpty());
+            assertFalse(model.lockHeld.contains(Boolean.TRUE));
+
+            // database still down after all the attempts
+            model.breakConnections();
+            model.failures.set(100);
+            model.attempts.set(0);
+            assertFalse(session.checkConnectionNoException());
+            assertEquals(4, model.attempts.get());
+            assertTrue(session.isDisActive());
+        } finally {
+            model.failures.set(0);
+            session.forceDisconnect();
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        DbCircuitBreaker breaker = new DbCircuitBreaker(2, 50);
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(DbCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure();
+        assertEquals(DbCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getRejectedCount());
+        Thread.sleep(60);
+        // only one probe
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(DbCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onFailure();
+        assertEquals(DbCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertEquals(DbCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        // disabled
+        breaker = new DbCircuitBreaker(0, 50);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure();
+        }
+        assertTrue(breaker.allowRequest());
+    }
+}
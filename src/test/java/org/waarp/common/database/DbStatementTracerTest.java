@@ -0,0 +1,154 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbStatementTracerTest {
+
+    /**
+     * In memory model whose EXPLAIN always fails, recording the calls on its connections
+     */
+    static class ExplainModel extends DbModelMemory {
+        final List<String> explained = new CopyOnWriteArrayList<String>();
+        final List<String> calls = new CopyOnWriteArrayList<String>();
+
+        ExplainModel() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        @Override
+        public String getExplainRequest(String sql) {
+            explained.add(sql);
+            return "EXPLAIN " + sql;
+        }
+
+        @Override
+        public Connection getDbConnection(String server, String user, String passwd)
+                throws SQLException {
+            final Connection conn = super.getDbConnection(server, user, passwd);
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                            calls.add(method.getName());
+                            try {
+                                return method.invoke(conn, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DbStatementTracer.setEnabled(false);
+        DbStatementTracer.setSlowQuery(DbConstant.SLOWQUERYTHRESHOLD, false);
+        DbStatementTracer.reset();
+    }
+
+    @Test
+    public void testTemplate() {
+        assertEquals("SELECT * FROM RUNNER WHERE ID = ? AND OWNER = ?",
+                DbStatementTracer.template(
+                        "SELECT * FROM RUNNER WHERE ID = 123 AND OWNER = 'it''s me'"));
+        assertEquals("SELECT COL1 FROM T2 WHERE A = ?",
+                DbStatementTracer.template("SELECT COL1 FROM T2 WHERE A = 1.5"));
+    }
+
+    @Test
+    public void testRecord() {
+        assertEquals(0, DbStatementTracer.start());
+        DbStatementTracer.setEnabled(true);
+        DbStatementTracer.setSlowQuery(0, false);
+        long start = DbStatementTracer.start();
+        assertTrue(start != 0);
+        DbStatementTracer.end(null, "SELECT ?", null, start, false);
+        DbStatementTracer.rows("SELECT ?", 3);
+        DbStatementTracer.end(null, "SELECT ?", null, DbStatementTracer.start(), true);
+        DbStatementTracer.StatementStats stats = DbStatementTracer.getStats("SELECT ?");
+        assertEquals(2, stats.getLatency().getCount());
+        assertEquals(3, stats.getRows());
+        assertEquals(1, stats.getErrors());
+        assertEquals(0, stats.getSlow());
+        DbStatementTracer.setSlowQuery(1, false);
+        DbStatementTracer.end(null, "SELECT ?", null, System.nanoTime() - 5000000L, false);
+        assertEquals(1, stats.getSlow());
+        assertNotNull(DbStatementTracer.toJson().get("statements").get("SELECT ?"));
+    }
+
+    @Test
+    public void testIsSelect() {
+        assertTrue(DbStatementTracer.isSelect("SELECT * FROM T"));
+        assertTrue(DbStatementTracer.isSelect("  (select A FROM T) UNION (SELECT A FROM T2)"));
+        assertFalse(DbStatementTracer.isSelect("UPDATE T SET A = 1"));
+        assertFalse(DbStatementTracer.isSelect("DROP TABLE T"));
+        assertFalse(DbStatementTracer.isSelect("SEL"));
+    }
+
+    @Test
+    public void testExplainUnderSavepoint() throws Exception {
+        ExplainModel model = new ExplainModel();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = new DbSession(admin, false);
+            session.setAutoCommit(false);
+            DbStatementTracer.setEnabled(true);
+            DbStatementTracer.setSlowQuery(1, true);
+            // never explain other statements than queries
+            DbStatementTracer.end(session, "UPDATE T SET A = ?", "UPDATE T SET A = 1",
+                    System.nanoTime() - 5000000L, false);
+            assertTrue(model.explained.isEmpty());
+            assertEquals(1, DbStatementTracer.getStats("UPDATE T SET A = ?").getSlow());
+
+            model.calls.clear();
+            DbStatementTracer.end(session, "SELECT A FROM T", "SELECT A FROM T",
+                    System.nanoTime() - 5000000L, false);
+            assertEquals(1, model.explained.size());
+            assertNull(DbStatementTracer.getStats("SELECT A FROM T").getExplain());
+            // the failed EXPLAIN is rolled back to its savepoint only
+            assertTrue(model.calls.contains("setSavepoint"));
+            assertTrue(model.calls.indexOf("rollback") > model.calls.indexOf("setSavepoint"));
+            assertTrue(model.calls.contains("releaseSavepoint"));
+            assertFalse(model.calls.contains("commit"));
+            session.forceDisconnect();
+        } finally {
+            admin.close();
+        }
+    }
+}
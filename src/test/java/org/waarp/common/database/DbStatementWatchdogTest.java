@@ -0,0 +1,269 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbStatementWatchdogTest {
+    /**
+     * 
+     * @param calls
+     *            names of the methods called on the connection and its statements
+     * @return a connection whose executions time out
+     */
+    private static Connection newConnection(final List<String> calls) {
+        final InvocationHandler statementHandler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                calls.add("statement." + name);
+                if (name.startsWith("execute")) {
+                    throw new SQLTimeoutException("timeout");
+                }
+                return defaultValue(method);
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(DbStatementWatchdogTest.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        String name = method.getName();
+                        calls.add(name);
+                        if (name.equals("prepareStatement") || name.equals("createStatement")) {
+                            return Proxy.newProxyInstance(
+                                    DbStatementWatchdogTest.class.getClassLoader(),
+                                    new Class<?>[] { PreparedStatement.class }, statementHandler);
+                        }
+                        return defaultValue(method);
+                    }
+                });
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return false;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        }
+        return null;
+    }
+
+
+    @Test
+    public void testDeadline() {
+        assertFalse(DbDeadline.isSet());
+        assertEquals(DbDeadline.NONE, DbDeadline.remaining(0));
+        assertEquals(200, DbDeadline.remaining(200));
+        long previous = DbDeadline.set(10000);
+        try {
+            assertTrue(DbDeadline.isSet());
+            assertEquals(200, DbDeadline.remaining(200));
+            assertTrue(DbDeadline.remaining(0) <= 10000);
+            long inner = DbDeadline.set(50000);
+            // a nested deadline cannot extend the current one
+            assertTrue(DbDeadline.remaining(0) <= 10000);
+            DbDeadline.restore(inner);
+            inner = DbDeadline.set(0);
+            assertEquals(0, DbDeadline.remaining(200));
+            DbDeadline.restore(inner);
+            assertTrue(DbDeadline.remaining(0) > 0);
+        } finally {
+            DbDeadline.restore(previous);
+        }
+        assertFalse(DbDeadline.isSet());
+    }
+
+    @Test
+    public void testWatchdogCancel() throws Exception {
+        final CountDownLatch cancel = new CountDownLatch(1);
+        Statement statement = (Statement) Proxy.newProxyInstance(
+                Statement.class.getClassLoader(), new Class<?>[] { Statement.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals("cancel")) {
+                            cancel.countDown();
+                        }
+                        return null;
+                    }
+                });
+        long cancelled = DbStatementWatchdog.getCancelledCount();
+        assertNull(DbStatementWatchdog.watch(statement, DbDeadline.NONE));
+        DbStatementWatchdog.Watch watch = DbStatementWatchdog.watch(statement, 10000);
+        // the execution lasts longer than its deadline
+        watch.run(null);
+        assertTrue(cancel.await(10, TimeUnit.SECONDS));
+        assertTrue(watch.done());
+        assertEquals(cancelled + 1, DbStatementWatchdog.getCancelledCount());
+
+        watch = DbStatementWatchdog.watch(statement, 10000);
+        assertFalse(watch.done());
+        assertEquals(cancelled + 1, DbStatementWatchdog.getCancelledCount());
+        try {
+            DbStatementWatchdog.applyTimeout(statement, 0, 0);
+            fail("Should raise an exception");
+        } catch (SQLException e) {
+            // ok
+        }
+        assertEquals(2, DbStatementWatchdog.applyTimeout(statement, 1500, 0));
+    }
+
+    @Test
+    public void testExceededDeadline() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.createTables(session);
+            DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+            preparedStatement.createPrepareStatement("SELECT HOSTID FROM CONFIGURATION");
+            long previous = DbDeadline.set(0);
+            try {
+                preparedStatement.executeQuery();
+                fail("Should raise an exception");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            } finally {
+                DbDeadline.restore(previous);
+                preparedStatement.realClose();
+            }
+            preparedStatement = new DbPreparedStatement(session);
+            try {
+                preparedStatement.createPrepareStatement("SELECT HOSTID FROM CONFIGURATION");
+                preparedStatement.executeQuery();
+                assertFalse(preparedStatement.getNext());
+            } finally {
+                preparedStatement.realClose();
+            }
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testCancelOwnedSession() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = new DbSession(admin, false, false);
+            session.setAutoCommit(false);
+            assertFalse(session.isShared());
+            List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+            session.setConn(newConnection(calls));
+            DbPreparedStatement preparedStatement = new DbPreparedStatement(session);
+            try {
+                preparedStatement.createPrepareStatement("UPDATE T SET A = 1");
+                preparedStatement.executeUpdate();
+                fail("Should raise an exception");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            } finally {
+                preparedStatement.realClose();
+            }
+            // the transaction of its own session is rolled back
+            assertTrue(calls.contains("rollback"));
+            assertFalse(session.isTransactionInvalid());
+            session.commit();
+
+            calls.clear();
+            DbRequest request = new DbRequest(session);
+            try {
+                request.query("UPDATE T SET A = 1");
+                fail("Should raise an exception");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            // the cancelled statement is closed
+            assertTrue(calls.contains("statement.close"));
+            assertTrue(calls.contains("rollback"));
+            request.close();
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testCancelSharedSession() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            session.setAutoCommit(false);
+            assertTrue(session.isShared());
+            List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+            session.setConn(newConnection(calls));
+            DbRequest request = new DbRequest(session);
+            try {
+                request.select("SELECT A FROM T");
+                fail("Should raise an exception");
+            } catch (WaarpDatabaseSqlException e) {
+                assertTrue(e.getMessage().contains("rolled back"));
+            }
+            request.close();
+            assertTrue(calls.contains("statement.close"));
+            // the work of the other threads is not silently discarded
+            assertFalse(calls.contains("rollback"));
+            assertTrue(session.isTransactionInvalid());
+            admin.setGroupCommit(10, 4);
+            try {
+                session.commit();
+                fail("Should raise an exception");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            // neither as leader of a group commit
+            try {
+                session.getGroupCommit().commit(session);
+                fail("Should raise an exception");
+            } catch (SQLException e) {
+                // ok
+            }
+            assertFalse(calls.contains("commit"));
+            session.rollback(null);
+            assertFalse(session.isTransactionInvalid());
+            session.commit();
+            assertTrue(calls.contains("commit"));
+        } finally {
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.ConnectionPoolDataSource;
+import javax.sql.PooledConnection;
+
+/**
+ * In memory ConnectionPoolDataSource to test the pool without any database
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class FakeConnectionPoolDataSource implements ConnectionPoolDataSource {
+    final AtomicInteger created = new AtomicInteger();
+    final AtomicInteger closed = new AtomicInteger();
+    final AtomicInteger validations = new AtomicInteger();
+    volatile boolean valid = true;
+    volatile long creationDelay = 0;
+
+    public PooledConnection getPooledConnection() throws SQLException {
+        if (creationDelay > 0) {
+            try {
+                Thread.sleep(creationDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        created.incrementAndGet();
+        return new FakePooledConnection(this);
+    }
+
+    public PooledConnection getPooledConnection(String user, String password) throws SQLException {
+        return getPooledConnection();
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    public Logger getParentLogger() {
+        return null;
+    }
+
+    /**
+     * PooledConnection giving logical connections which send back closed event
+     */
+    static class FakePooledConnection implements PooledConnection {
+        final FakeConnectionPoolDataSource source;
+        final List<ConnectionEventListener> listeners = new CopyOnWriteArrayList<ConnectionEventListener>();
+        volatile boolean isClosed = false;
+
+        FakePooledConnection(FakeConnectionPoolDataSource source) {
+            this.source = source;
+        }
+
+        public Connection getConnection() throws SQLException {
+            if (isClosed) {
+                throw new SQLException("Physical connection closed");
+            }
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { Connection.class }, new InvocationHandler() {
+                        boolean logicalClosed = false;
+
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                                throws Throwable {
+                            String name = method.getName();
+                            if (name.equals("close")) {
+                                if (!logicalClosed) {
+                                    logicalClosed = true;
+                                    ConnectionEvent event = new ConnectionEvent(FakePooledConnection.this);
+                                    for (ConnectionEventListener listener : listeners) {
+                                        listener.connectionClosed(event);
+                                    }
+                                }
+                                return null;
+                            } else if (name.equals("isValid")) {
+                                source.validations.incrementAndGet();
+                                return source.valid && !isClosed;
+                            } else if (name.equals("isClosed")) {
+                                return logicalClosed || isClosed;
+                            } else if (name.equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            } else if (name.equals("equals")) {
+                                return proxy == args[0];
+                            } else if (name.equals("toString")) {
+                                return "FakeConnection";
+                            }
+                            Class<?> rtype = method.getReturnType();
+                            if (rtype == boolean.class) {
+                                return false;
+                            } else if (rtype == int.class) {
+                                return 0;
+                            }
+                            return null;
+                        }
+                    });
+        }
+
+        public void close() throws SQLException {
+            if (!isClosed) {
+                isClosed = true;
+                source.closed.incrementAndGet();
+            }
+        }
+
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+            listeners.remove(listener);
+        }
+
+        public void addStatementEventListener(javax.sql.StatementEventListener listener) {
+        }
+
+        public void removeStatementEventListener(javax.sql.StatementEventListener listener) {
+        }
+    }
+}
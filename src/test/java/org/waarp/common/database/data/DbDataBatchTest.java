@@ -0,0 +1,253 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.DbDataCacheTest.Entity;
+import org.waarp.common.database.exception.WaarpDatabaseBatchException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataBatchTest {
+    /**
+     * Same entity as DbDataCacheTest.Entity, committing each operation
+     */
+    static class CommitEntity extends AbstractDbDataWithCommit {
+        long id;
+        String name;
+
+        CommitEntity(DbSession session, long id, String name) {
+            super(session);
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        protected void initObject() {
+            primaryKey = new DbValue[] { new DbValue(0L, "ID") };
+            otherFields = new DbValue[] { new DbValue("", "NAME") };
+            allFields = new DbValue[] { otherFields[0], primaryKey[0] };
+        }
+
+        @Override
+        protected String getWherePrimaryKey() {
+            return "ID = ?";
+        }
+
+        @Override
+        protected void setPrimaryKey() {
+            primaryKey[0].setValue(id);
+        }
+
+        @Override
+        protected String getSelectAllFields() {
+            return "NAME,ID";
+        }
+
+        @Override
+        protected String getTable() {
+            return "ENTITY";
+        }
+
+        @Override
+        protected String getInsertAllValues() {
+            return "(?,?)";
+        }
+
+        @Override
+        protected String getUpdateAllFields() {
+            return "NAME = ?";
+        }
+
+        @Override
+        public void changeUpdatedInfo(UpdatedInfo info) {
+        }
+
+        @Override
+        protected void setToArray() {
+            allFields[0].setValue(name);
+            allFields[1].setValue(id);
+        }
+
+        @Override
+        protected void setFromArray() throws WaarpDatabaseSqlException {
+            name = (String) allFields[0].getValue();
+            id = (Long) allFields[1].getValue();
+        }
+    }
+
+    /**
+     * Entity whose binding fails for the name "fail"
+     */
+    static class FailingEntity extends Entity {
+        FailingEntity(DbSession session, long id, String name) {
+            super(session, id, name);
+        }
+
+        @Override
+        protected void setToArray() {
+            if ("fail".equals(name)) {
+                throw new IllegalStateException("Cannot bind");
+            }
+            super.setToArray();
+        }
+    }
+
+    @Test
+    public void testBindingFailureInBatch() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            assertNotNull(session.getPreparedStatementCache());
+            model.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            List<FailingEntity> datas = new ArrayList<FailingEntity>();
+            datas.add(new FailingEntity(session, 1, "name1"));
+            datas.add(new FailingEntity(session, 2, "name2"));
+            datas.add(new FailingEntity(session, 3, "fail"));
+            try {
+                AbstractDbData.insertBatch(datas, 10);
+                fail("Binding should fail");
+            } catch (IllegalStateException e) {
+                // ok
+            }
+            assertEquals(0, model.getStore().size("ENTITY"));
+            // the same request from the cache must not execute the rows queued before
+            datas.clear();
+            datas.add(new FailingEntity(session, 4, "name4"));
+            assertArrayEquals(new int[] { 1 }, AbstractDbData.insertBatch(datas, 10));
+            assertEquals(1, model.getStore().size("ENTITY"));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testBatchResults() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            List<Entity> datas = new ArrayList<Entity>();
+            for (int i = 1; i <= 5; i++) {
+                datas.add(new Entity(session, i, "name" + i));
+            }
+            assertArrayEquals(new int[] { 1, 1, 1, 1, 1 }, AbstractDbData.insertBatch(datas));
+            for (Entity data : datas) {
+                data.name = "updated";
+                data.isSaved = false;
+            }
+            datas.add(new Entity(session, 10, "missing"));
+            assertArrayEquals(new int[] { 1, 1, 1, 1, 1, 0 },
+                    AbstractDbData.updateBatch(datas, 4));
+            assertArrayEquals(new int[] { 1, 1, 1, 1, 1, 0 },
+                    AbstractDbData.deleteBatch(datas, 4));
+            assertEquals(0, model.getStore().size("ENTITY"));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testBatchFailure() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            new Entity(session, 3, "existing").insert();
+            List<Entity> datas = new ArrayList<Entity>();
+            for (int i = 1; i <= 6; i++) {
+                datas.add(new Entity(session, i, "name" + i));
+            }
+            try {
+                // batches of 2: the second one fails on its first row
+                AbstractDbData.insertBatch(datas, 2);
+                fail("Duplicate key should fail");
+            } catch (WaarpDatabaseBatchException e) {
+                assertArrayEquals(new int[] { 1, 1, Statement.EXECUTE_FAILED, 0, 0, 0 },
+                        e.getResults());
+            }
+            assertTrue(datas.get(0).isSaved);
+            assertTrue(datas.get(1).isSaved);
+            assertFalse(datas.get(3).isSaved);
+            assertEquals(3, model.getStore().size("ENTITY"));
+
+            datas.clear();
+            for (int i = 4; i <= 6; i++) {
+                datas.add(new Entity(session, i, "name" + i));
+            }
+            datas.add(new Entity(session, 1, "duplicate"));
+            try {
+                AbstractDbData.insertBatch(datas, 10);
+                fail("Duplicate key should fail");
+            } catch (WaarpDatabaseBatchException e) {
+                // autocommit: the rows before the failed one are applied
+                assertArrayEquals(new int[] { 1, 1, 1, Statement.EXECUTE_FAILED },
+                        e.getResults());
+            }
+            assertTrue(datas.get(2).isSaved);
+            assertEquals(6, model.getStore().size("ENTITY"));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testBatchFailureWithCommit() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = new DbSession(admin, false);
+            session.setAutoCommit(false);
+            model.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            new CommitEntity(session, 3, "existing").insert();
+            List<CommitEntity> datas = new ArrayList<CommitEntity>();
+            for (int i = 1; i <= 4; i++) {
+                datas.add(new CommitEntity(session, i, "name" + i));
+            }
+            try {
+                AbstractDbData.insertBatch(datas, 10);
+                fail("Duplicate key should fail");
+            } catch (WaarpDatabaseBatchException e) {
+                // not in autocommit: the whole batch is rolled back
+                assertArrayEquals(new int[] { 0, 0, Statement.EXECUTE_FAILED, 0 },
+                        e.getResults());
+            }
+            for (CommitEntity data : datas) {
+                assertFalse(data.isSaved);
+            }
+            session.disconnect();
+        } finally {
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Per row cost of the generic path (setToArray/setFromArray and switch over DbValue types)
+ * compared to the generated DbDataBinder. Run with: java ... DbDataBinderBenchmark [rows]<br>
+ * <br>
+ * PreparedStatement and ResultSet are dynamic proxies doing nothing, so their (same) cost is
+ * included in both measures.
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataBinderBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        DbDataBinderTest.Entity entity = DbDataBinderTest.newEntity(1, "name");
+        PreparedStatement ps = DbDataBinderTest.newStatement(null);
+        ResultSet rs = DbDataBinderTest.newResultSet(DbDataBinderTest.newRow());
+        for (int pass = 0; pass < 3; pass++) {
+            DbDataBinder.setEnabled(false);
+            long bindGeneric = bind(entity, ps, rows);
+            long readGeneric = read(entity, rs, rows);
+            DbDataBinder.setEnabled(true);
+            long bindGenerated = bind(entity, ps, rows);
+            long readGenerated = read(entity, rs, rows);
+            System.out.println("pass " + pass + " (ns/row) bind generic: " + bindGeneric / rows +
+                    " generated: " + bindGenerated / rows + " | read generic: " +
+                    readGeneric / rows + " generated: " + readGenerated / rows);
+        }
+        DbDataBinder.setEnabled(false);
+    }
+
+    private static long bind(AbstractDbData entity, PreparedStatement ps, int rows)
+            throws Exception {
+        long start = System.nanoTime();
+        DbDataBinder binder = DbDataBinder.getBinder(entity);
+        for (int i = 0; i < rows; i++) {
+            if (binder == null) {
+                entity.setToArray();
+                for (int j = 0; j < entity.allFields.length; j++) {
+                    AbstractDbData.setTrueValue(ps, entity.allFields[j], j + 1);
+                }
+            } else {
+                binder.bind(entity, ps);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long read(AbstractDbData entity, ResultSet rs, int rows) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            entity.readAllFields(rs);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,287 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataBinderTest {
+    /**
+     * Entity with plain copies between its fields and allFields
+     */
+    static class Entity extends AbstractDbData {
+        long id;
+        String name;
+        int count;
+        boolean flag;
+        double ratio;
+        Timestamp stamp;
+        byte[] data;
+
+        Entity(DbSession session) {
+            super(session);
+        }
+
+        @Override
+        protected void initObject() {
+            primaryKey = new DbValue[] { new DbValue(0L, "ID") };
+            otherFields = new DbValue[] {
+                    new DbValue("", "NAME"), new DbValue(0, "COUNT"),
+                    new DbValue(false, "FLAG"), new DbValue(0.0, "RATIO"),
+                    new DbValue(new Timestamp(0), "STAMP"), new DbValue(new byte[0], "DATA") };
+            allFields = new DbValue[] {
+                    otherFields[0], otherFields[1], otherFields[2], otherFields[3],
+                    otherFields[4], otherFields[5], primaryKey[0] };
+        }
+
+        @Override
+        protected String[] getBinderFields() {
+            return new String[] { "name", "count", "flag", "ratio", "stamp", "data", "id" };
+        }
+
+        @Override
+        protected String getWherePrimaryKey() {
+            return "ID = ?";
+        }
+
+        @Override
+        protected void setPrimaryKey() {
+            primaryKey[0].setValue(id);
+        }
+
+        @Override
+        protected String getSelectAllFields() {
+            return "NAME,COUNT,FLAG,RATIO,STAMP,DATA,ID";
+        }
+
+        @Override
+        protected String getTable() {
+            return "ENTITY";
+        }
+
+        @Override
+        protected String getInsertAllValues() {
+            return "(?,?,?,?,?,?,?)";
+        }
+
+        @Override
+        protected String getUpdateAllFields() {
+            return "NAME = ?,COUNT = ?,FLAG = ?,RATIO = ?,STAMP = ?,DATA = ?";
+        }
+
+        @Override
+        public void changeUpdatedInfo(UpdatedInfo info) {
+        }
+
+        @Override
+        protected void setToArray() {
+            allFields[0].setValue(name);
+            allFields[1].setValue(count);
+            allFields[2].setValue(flag);
+            allFields[3].setValue(ratio);
+            allFields[4].setValue(stamp);
+            allFields[5].setValue(data);
+            allFields[6].setValue(id);
+        }
+
+        @Override
+        protected void setFromArray() throws WaarpDatabaseSqlException {
+            name = (String) allFields[0].getValue();
+            count = allFields[1].getInt();
+            flag = allFields[2].getBoolean();
+            ratio = allFields[3].getDouble();
+            stamp = (Timestamp) allFields[4].getValue();
+            data = (byte[]) allFields[5].getValue();
+            id = allFields[6].getLong();
+        }
+    }
+
+    static Entity newEntity(long id, String name) {
+        Entity entity = new Entity(null);
+        entity.id = id;
+        entity.name = name;
+        entity.count = 12;
+        entity.flag = true;
+        entity.ratio = 0.5;
+        entity.stamp = null;
+        entity.data = new byte[] { 1, 2, 3 };
+        return entity;
+    }
+
+    /**
+     * 
+     * @param calls
+     *            where to record the parameters set, by rank
+     * @return a PreparedStatement recording the parameters set
+     */
+    static PreparedStatement newStatement(final Map<Integer, String> calls) {
+        return (PreparedStatement) Proxy.newProxyInstance(DbDataBinderTest.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (calls != null && method.getName().startsWith("set")) {
+                            Object value = args[1];
+                            if (value instanceof byte[]) {
+                                value = Arrays.toString((byte[]) value);
+                            }
+                            calls.put((Integer) args[0], method.getName() + ":" + value);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * 
+     * @param row
+     *            values by column
+     * @return a ResultSet giving the values of the row
+     */
+    static ResultSet newResultSet(final Map<String, Object> row) {
+        return (ResultSet) Proxy.newProxyInstance(DbDataBinderTest.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getName().startsWith("get")) {
+                            return row.get(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    static Map<String, Object> newRow() {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("NAME", "read");
+        row.put("COUNT", 7);
+        row.put("FLAG", true);
+        row.put("RATIO", 2.5);
+        row.put("STAMP", new Timestamp(123456));
+        row.put("DATA", null);
+        row.put("ID", 42L);
+        return row;
+    }
+
+    /**
+     * Type only used by testConcurrentGeneration, such that its binder is generated there
+     */
+    static class ConcurrentEntity extends Entity {
+        ConcurrentEntity(DbSession session) {
+            super(session);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DbDataBinder.setEnabled(false);
+        DbDataBinder.clear();
+    }
+
+    private String bind(Entity entity) throws Exception {
+        Map<Integer, String> calls = new TreeMap<Integer, String>();
+        PreparedStatement ps = newStatement(calls);
+        DbDataBinder binder = DbDataBinder.getBinder(entity);
+        if (binder == null) {
+            entity.setToArray();
+            for (int i = 0; i < entity.allFields.length; i++) {
+                AbstractDbData.setTrueValue(ps, entity.allFields[i], i + 1);
+            }
+        } else {
+            binder.bind(entity, ps);
+        }
+        return calls.toString();
+    }
+
+    private String read(Map<String, Object> row) throws Exception {
+        Entity entity = new Entity(null);
+        entity.readAllFields(newResultSet(row));
+        return entity.id + " " + entity.name + " " + entity.count + " " + entity.flag + " " +
+                entity.ratio + " " + entity.stamp + " " + Arrays.toString(entity.data);
+    }
+
+    @Test
+    public void testSameResults() throws Exception {
+        Entity entity = newEntity(42, null);
+        String bindGeneric = bind(entity);
+        String readGeneric = read(newRow());
+        assertFalse(DbDataBinder.hasBinder(Entity.class));
+        DbDataBinder.setEnabled(true);
+        assertEquals(bindGeneric, bind(entity));
+        assertTrue(DbDataBinder.hasBinder(Entity.class));
+        assertEquals(readGeneric, read(newRow()));
+        // allFields refreshed on demand after a generated read
+        Entity other = new Entity(null);
+        other.readAllFields(newResultSet(newRow()));
+        assertEquals("read", other.getAllFields()[0].getValue());
+        assertEquals(42L, other.getAllFields()[6].getLong());
+    }
+
+    @Test
+    public void testConcurrentGeneration() throws Exception {
+        DbDataBinder.setEnabled(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger generic = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        if (DbDataBinder.getBinder(new ConcurrentEntity(null)) == null) {
+                            generic.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        generic.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // one generation, shared by all threads
+        assertEquals(0, generic.get());
+        assertTrue(DbDataBinder.hasBinder(ConcurrentEntity.class));
+        // the generated class is still defined after a clear
+        DbDataBinder.clear();
+        assertNotNull(DbDataBinder.getBinder(new ConcurrentEntity(null)));
+    }
+}
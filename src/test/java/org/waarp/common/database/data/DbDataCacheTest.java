@@ -0,0 +1,184 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import java.sql.Types;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataCacheTest {
+    /**
+     * Minimal entity with one primary key and one field
+     */
+    static class Entity extends AbstractDbData {
+        long id;
+        String name;
+
+        Entity(DbSession session, long id, String name) {
+            super(session);
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        protected void initObject() {
+            primaryKey = new DbValue[] { new DbValue(0L, "ID") };
+            otherFields = new DbValue[] { new DbValue("", "NAME") };
+            allFields = new DbValue[] { otherFields[0], primaryKey[0] };
+        }
+
+        @Override
+        protected String getWherePrimaryKey() {
+            return "ID = ?";
+        }
+
+        @Override
+        protected void setPrimaryKey() {
+            primaryKey[0].setValue(id);
+        }
+
+        @Override
+        protected String getSelectAllFields() {
+            return "NAME,ID";
+        }
+
+        @Override
+        protected String getTable() {
+            return "ENTITY";
+        }
+
+        @Override
+        protected String getInsertAllValues() {
+            return "(?,?)";
+        }
+
+        @Override
+        protected String getUpdateAllFields() {
+            return "NAME = ?";
+        }
+
+        @Override
+        public void changeUpdatedInfo(UpdatedInfo info) {
+        }
+
+        @Override
+        protected void setToArray() {
+            allFields[0].setValue(name);
+            allFields[1].setValue(id);
+        }
+
+        @Override
+        protected void setFromArray() throws WaarpDatabaseSqlException {
+            name = (String) allFields[0].getValue();
+            id = (Long) allFields[1].getValue();
+        }
+    }
+
+    @Test
+    public void testLoadStoreInvalidate() throws Exception {
+        DbDataCache cache = DbDataCache.register(Entity.class, 10, 60000);
+        try {
+            assertSame(cache, DbDataCache.getCache(Entity.class));
+            Entity first = new Entity(null, 1, "first");
+            first.setToArray();
+            cache.store(first, cache.getVersions());
+            Entity other = new Entity(null, 1, null);
+            assertTrue(cache.load(other));
+            other.setFromArray();
+            assertEquals("first", other.name);
+            assertEquals(Types.VARCHAR, other.allFields[0].type);
+            assertFalse(cache.load(new Entity(null, 2, null)));
+            assertEquals(0.5, cache.getHitRatio(), 0.001);
+            first.invalidateCache();
+            assertFalse(cache.contains(other));
+            assertEquals(1, cache.getInvalidations());
+        } finally {
+            DbDataCache.unregister(Entity.class);
+        }
+        assertNull(DbDataCache.getCache(Entity.class));
+    }
+
+    @Test
+    public void testStoreAfterInvalidation() throws Exception {
+        DbDataCache cache = DbDataCache.register(Entity.class, 10, 60000);
+        try {
+            Entity first = new Entity(null, 1, "old");
+            first.setToArray();
+            // select started before a concurrent update
+            long[] versions = cache.getVersions();
+            new Entity(null, 1, "new").invalidateCache();
+            cache.store(first, versions);
+            assertFalse(cache.contains(first));
+            cache.store(first, cache.getVersions());
+            assertTrue(cache.contains(first));
+        } finally {
+            DbDataCache.unregister(Entity.class);
+        }
+    }
+
+    @Test
+    public void testKeyByDatabase() throws Exception {
+        DbModelMemory model1 = new DbModelMemory();
+        DbAdmin admin1 = new DbAdmin(model1, DbModelMemory.MEMORYPREFIX + "db1", null, null,
+                true);
+        DbModelMemory model2 = new DbModelMemory();
+        DbAdmin admin2 = new DbAdmin(model2, DbModelMemory.MEMORYPREFIX + "db2", null, null,
+                true);
+        DbDataCache cache = DbDataCache.register(Entity.class, 10, 60000);
+        try {
+            model1.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            model2.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+            new Entity(admin1.getSession(), 1, "first").insert();
+            new Entity(admin2.getSession(), 1, "second").insert();
+            Entity read = new Entity(admin1.getSession(), 1, null);
+            read.select();
+            assertEquals("first", read.name);
+            assertEquals(1, cache.size());
+            read = new Entity(admin2.getSession(), 1, null);
+            read.select();
+            assertEquals("second", read.name);
+            assertEquals(2, cache.size());
+            assertEquals(0, cache.getHits());
+        } finally {
+            DbDataCache.unregister(Entity.class);
+            admin1.close();
+            admin2.close();
+        }
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        DbDataCache cache = new DbDataCache(10, 10);
+        Entity first = new Entity(null, 1, "first");
+        first.setToArray();
+        cache.store(first, cache.getVersions());
+        assertTrue(cache.contains(first));
+        Thread.sleep(50);
+        assertFalse(cache.load(first));
+    }
+}
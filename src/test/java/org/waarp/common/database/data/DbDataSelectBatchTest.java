@@ -0,0 +1,98 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataSelectBatchTest {
+
+    @Test
+    public void testSelectBatch() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.createTables(session);
+            for (int i = 0; i < 10; i += 2) {
+                new DbDataModel(session, "host" + i, i, i, i, i, i).insert();
+            }
+            List<DbDataModel> datas = new ArrayList<DbDataModel>();
+            for (int i = 0; i < 10; i++) {
+                datas.add(new DbDataModel(session, "host" + i, -1, -1, -1, -1, -1));
+            }
+            // duplicated key
+            datas.add(new DbDataModel(session, "host4", -1, -1, -1, -1, -1));
+            // 3 keys by request, so the last request is padded
+            List<DbDataModel> missing = AbstractDbData.selectBatch(datas, 3);
+            assertEquals(5, missing.size());
+            for (int i = 0; i < 10; i++) {
+                DbDataModel data = datas.get(i);
+                DbValue[] fields = data.getAllFields();
+                assertEquals("host" + i, fields[DbDataModel.Columns.HOSTID.ordinal()].getValue());
+                if (i % 2 == 0) {
+                    assertFalse(missing.contains(data));
+                    assertEquals((long) i,
+                            fields[DbDataModel.Columns.DELAYLIMIT.ordinal()].getValue());
+                } else {
+                    assertTrue(missing.contains(data));
+                }
+            }
+            assertEquals(4L, datas.get(10).getAllFields()[DbDataModel.Columns.DELAYLIMIT
+                    .ordinal()].getValue());
+            assertTrue(AbstractDbData.selectBatch(new ArrayList<DbDataModel>()).isEmpty());
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testSelectBatchReused() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.createTables(session);
+            new DbDataModel(session, "host1", 1, 1, 1, 1, 1).insert();
+            new DbDataModel(session, "host2", 2, 2, 2, 2, 2).insert();
+            // objects already loaded, then one row deleted behind them
+            DbDataModel kept = new DbDataModel(session, "host1");
+            DbDataModel deleted = new DbDataModel(session, "host2");
+            new DbDataModel(session, "host2").delete();
+            List<DbDataModel> datas = new ArrayList<DbDataModel>();
+            datas.add(kept);
+            datas.add(deleted);
+            List<DbDataModel> missing = AbstractDbData.selectBatch(datas, 2);
+            assertEquals(1, missing.size());
+            assertSame(deleted, missing.get(0));
+        } finally {
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.waarp.common.database.data.DbDataBinderTest.Entity;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.json.AdaptativeJsonHandler.JsonCodec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbDataTransferTest {
+
+    private static Map<String, Integer> columns(Entity entity) {
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for (int i = 0; i < entity.allFields.length; i++) {
+            columns.put(entity.allFields[i].getColumn(), i);
+        }
+        return columns;
+    }
+
+    @Test
+    public void testRowRoundTrip() throws Exception {
+        Entity source = DbDataBinderTest.newEntity(42, "name");
+        source.stamp = new Timestamp(123456);
+        source.setToArray();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = JsonCodec.JSON.factory.createGenerator(out);
+        generator.writeStartArray();
+        DbDataTransfer.writeRow(generator, source.allFields);
+        source.name = null;
+        source.setToArray();
+        DbDataTransfer.writeRow(generator, source.allFields);
+        generator.writeEndArray();
+        generator.close();
+
+        Entity target = new Entity(null);
+        JsonParser parser = JsonCodec.JSON.factory.createParser(out.toByteArray());
+        assertEquals(JsonToken.START_ARRAY, parser.nextToken());
+        assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        DbDataTransfer.readRow(parser, target.allFields, columns(target));
+        target.setFromArray();
+        assertEquals(42, target.id);
+        assertEquals("name", target.name);
+        assertEquals(12, target.count);
+        assertTrue(target.flag);
+        assertEquals(0.5, target.ratio, 0.0);
+        assertEquals(123456, target.stamp.getTime());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, target.data);
+        // the reused object gets the null of the second row
+        assertEquals(JsonToken.START_OBJECT, parser.nextToken());
+        DbDataTransfer.readRow(parser, target.allFields, columns(target));
+        target.setFromArray();
+        assertNull(target.name);
+        parser.close();
+    }
+
+    @Test(expected = WaarpDatabaseSqlException.class)
+    public void testMissingColumn() throws Exception {
+        Entity target = new Entity(null);
+        JsonParser parser = JsonCodec.JSON.factory.createParser("{\"ID\": 1}");
+        parser.nextToken();
+        DbDataTransfer.readRow(parser, target.allFields, columns(target));
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbValueTest {
+
+    @Test
+    public void testPrimitiveCompatibility() {
+        DbValue value = new DbValue(12, "INT");
+        assertEquals(Integer.valueOf(12), value.getValue());
+        assertEquals(12, value.getInt());
+        assertEquals(12L, value.getLong());
+        value.setValue(13L);
+        assertEquals(Long.valueOf(13), value.getValue());
+        value.setValue((Object) Integer.valueOf(14));
+        assertEquals(14L, value.getLong());
+        assertFalse(value.isNull());
+        value.setValue((Object) null);
+        assertTrue(value.isNull());
+        assertNull(value.getValue());
+    }
+
+    @Test
+    public void testBooleanAndDouble() {
+        DbValue value = new DbValue(true, "BOOL");
+        assertEquals(Boolean.TRUE, value.getValue());
+        assertTrue(value.getBoolean());
+        value.setValue(false);
+        assertFalse(value.getBoolean());
+        DbValue real = new DbValue(1.5f, "REAL");
+        assertEquals(Float.valueOf(1.5f), real.getValue());
+        assertEquals(1.5, real.getDouble(), 0.0);
+        real.setValue(2.5);
+        assertEquals(Double.valueOf(2.5), real.getValue());
+        assertEquals(2L, real.getLong());
+    }
+}
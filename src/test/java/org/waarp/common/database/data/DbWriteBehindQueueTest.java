@@ -0,0 +1,210 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.data;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.DbDataCacheTest.Entity;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+import org.waarp.common.database.model.DbModelMemory;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbWriteBehindQueueTest {
+    /**
+     * Entity giving a value of the wrong type while bad
+     */
+    static class BadEntity extends Entity {
+        boolean bad = false;
+
+        BadEntity(DbSession session, long id, String name) {
+            super(session, id, name);
+        }
+
+        @Override
+        protected void setToArray() {
+            super.setToArray();
+            if (bad) {
+                allFields[0].setValue((Object) Long.valueOf(id));
+            }
+        }
+    }
+
+    private static DbAdmin newAdmin(DbModelMemory model) throws Exception {
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        model.getStore().createTable("ENTITY", new String[] { "NAME", "ID" }, "ID");
+        return admin;
+    }
+
+    private static String read(DbSession session, long id) throws Exception {
+        Entity entity = new Entity(session, id, null);
+        entity.select();
+        return entity.name;
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = newAdmin(model);
+        try {
+            DbSession session = admin.getSession();
+            Entity first = new Entity(session, 1, "a");
+            first.insert();
+            Entity second = new Entity(session, 2, "a");
+            second.insert();
+            DbWriteBehindQueue queue = new DbWriteBehindQueue(session, 0, 100);
+            first.name = "b";
+            queue.add(first);
+            first.name = "c";
+            queue.add(first);
+            second.name = "x";
+            queue.add(second);
+            assertEquals(2, queue.getPending());
+            assertEquals(3, queue.getUpdates());
+            assertEquals(1, queue.getCoalesced());
+            // changed after its last update: must not be written
+            first.name = "torn";
+            queue.flush();
+            assertEquals(0, queue.getPending());
+            assertEquals(2, queue.getWritten());
+            assertEquals(1, queue.getFlushes());
+            assertEquals("c", read(session, 1));
+            assertEquals("x", read(session, 2));
+
+            // threshold
+            DbWriteBehindQueue small = new DbWriteBehindQueue(session, 0, 2);
+            first.name = "d";
+            small.add(first);
+            assertEquals(1, small.getPending());
+            second.name = "y";
+            small.add(second);
+            assertEquals(0, small.getPending());
+            assertEquals("d", read(session, 1));
+            assertFalse(small.remove(first));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testPeriodicFlush() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = newAdmin(model);
+        try {
+            DbSession session = admin.getSession();
+            Entity first = new Entity(session, 1, "a");
+            first.insert();
+            Entity second = new Entity(session, 2, "a");
+            second.insert();
+            // autocommit: written from the timer thread
+            DbWriteBehindQueue queue = new DbWriteBehindQueue(session, 0, 100);
+            first.name = "b";
+            queue.add(first);
+            queue.periodicFlush();
+            assertEquals(0, queue.getPending());
+            assertEquals("b", read(session, 1));
+
+            // not in autocommit: only due, written by the owner thread
+            DbSession transacted = new DbSession(admin, false, false);
+            transacted.setAutoCommit(false);
+            queue = new DbWriteBehindQueue(transacted, 0, 100);
+            first = new Entity(transacted, 1, "c");
+            queue.add(first);
+            queue.periodicFlush();
+            assertEquals(1, queue.getPending());
+            assertEquals(0, queue.getFlushes());
+            assertEquals("b", read(session, 1));
+            second = new Entity(transacted, 2, "d");
+            queue.add(second);
+            assertEquals(0, queue.getPending());
+            assertEquals(1, queue.getFlushes());
+            assertEquals("c", read(session, 1));
+            assertEquals("d", read(session, 2));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testFlushOnClose() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = newAdmin(model);
+        try {
+            DbSession session = admin.getSession();
+            Entity first = new Entity(session, 1, "a");
+            first.insert();
+            DbWriteBehindQueue queue = new DbWriteBehindQueue(session, 60000, 100);
+            first.name = "b";
+            queue.add(first);
+            assertEquals("a", read(session, 1));
+            queue.close();
+            assertEquals(0, queue.getPending());
+            assertEquals("b", read(session, 1));
+            try {
+                queue.add(first);
+                fail("Queue closed");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testFlushFailure() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = newAdmin(model);
+        try {
+            DbSession session = admin.getSession();
+            BadEntity first = new BadEntity(session, 1, "a");
+            first.insert();
+            Entity second = new Entity(session, 2, "a");
+            second.insert();
+            DbWriteBehindQueue queue = new DbWriteBehindQueue(session, 0, 100);
+            first.bad = true;
+            queue.add(first);
+            second.name = "b";
+            queue.add(second);
+            try {
+                queue.flush();
+                fail("Should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                // ok
+            }
+            // the failed update is kept, the other type is written
+            assertEquals(1, queue.getPending());
+            assertEquals(1, queue.getWritten());
+            assertEquals("b", read(session, 2));
+            assertTrue(queue.remove(first));
+            first.bad = false;
+            first.name = "c";
+            queue.add(first);
+            queue.flush();
+            assertEquals(0, queue.getPending());
+            assertEquals("c", read(session, 1));
+        } finally {
+            admin.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbModelKeysetTest {
+    private static final String[] ONEKEY = { "ID" };
+    private static final String[] KEYS = { "OWNER", "ID" };
+    private static final String[] THREEKEYS = { "A", "B", "C" };
+
+    @Test
+    public void testSingleKey() throws Exception {
+        DbModelAbstract model = new DbModelMemory();
+        assertEquals("SELECT * FROM T ORDER BY ID LIMIT 10",
+                model.getKeysetRequest("*", "T", null, ONEKEY, false, false, 10));
+        assertEquals("SELECT * FROM T WHERE ID > ? ORDER BY ID LIMIT 10",
+                model.getKeysetRequest("*", "T", "  ", ONEKEY, false, true, 10));
+        assertEquals("SELECT * FROM T WHERE (S = ?) AND ID < ? ORDER BY ID DESC LIMIT 10",
+                model.getKeysetRequest("*", "T", "S = ?", ONEKEY, true, true, 10));
+        // same single key form with row value comparison
+        assertEquals("SELECT * FROM T WHERE ID > ? ORDER BY ID LIMIT 10",
+                new DialectModels.Postgresql().getKeysetRequest("*", "T", null, ONEKEY, false,
+                        true, 10));
+        Object[] key = { 5L };
+        assertArrayEquals(key, model.getKeysetParameters(key));
+    }
+
+    @Test
+    public void testRowValue() throws Exception {
+        DbModelAbstract model = new DialectModels.Postgresql();
+        assertEquals("SELECT * FROM T WHERE (S = ?) AND (OWNER, ID) > (?,?) " +
+                "ORDER BY OWNER, ID LIMIT 10",
+                model.getKeysetRequest("*", "T", "S = ?", KEYS, false, true, 10));
+        assertEquals("SELECT * FROM T WHERE (OWNER, ID) < (?,?) " +
+                "ORDER BY OWNER DESC, ID DESC LIMIT 10",
+                model.getKeysetRequest("*", "T", null, KEYS, true, true, 10));
+        Object[] key = { "me", 5L };
+        assertArrayEquals(key, model.getKeysetParameters(key));
+        assertArrayEquals(key, new DialectModels.Mysql().getKeysetParameters(key));
+    }
+
+    @Test
+    public void testRowValueDialects() throws Exception {
+        // all dialects supporting row value comparison (index range scan)
+        DbModelAbstract[] models = {
+                new DialectModels.Postgresql(), new DialectModels.Mysql(),
+                new DialectModels.Mariadb(), new DialectModels.H2() };
+        for (DbModelAbstract model : models) {
+            assertTrue(model.getClass().getSimpleName(), model.isRowValueComparisonSupported());
+            assertEquals(model.getClass().getSimpleName(),
+                    "SELECT * FROM T WHERE (OWNER, ID) > (?,?) ORDER BY OWNER, ID LIMIT 10",
+                    model.getKeysetRequest("*", "T", null, KEYS, false, true, 10));
+            Object[] key = { "me", 5L };
+            assertArrayEquals(key, model.getKeysetParameters(key));
+        }
+        assertFalse(new DialectModels.Oracle().isRowValueComparisonSupported());
+        assertFalse(new DbModelMemory().isRowValueComparisonSupported());
+    }
+
+    @Test
+    public void testExpandedOr() throws Exception {
+        DbModelAbstract model = new DbModelMemory();
+        assertEquals("SELECT * FROM T WHERE ((OWNER > ?) OR (OWNER = ? AND ID > ?)) " +
+                "ORDER BY OWNER, ID LIMIT 10",
+                model.getKeysetRequest("*", "T", null, KEYS, false, true, 10));
+        assertEquals("SELECT * FROM T WHERE ((A < ?) OR (A = ? AND B < ?) " +
+                "OR (A = ? AND B = ? AND C < ?)) ORDER BY A DESC, B DESC, C DESC LIMIT 5",
+                model.getKeysetRequest("*", "T", null, THREEKEYS, true, true, 5));
+        assertArrayEquals(new Object[] { "me", "me", 5L },
+                model.getKeysetParameters(new Object[] { "me", 5L }));
+        assertArrayEquals(new Object[] { 1, 1, 2, 1, 2, 3 },
+                model.getKeysetParameters(new Object[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void testOracleRownum() throws Exception {
+        DbModelAbstract model = new DialectModels.Oracle();
+        // no row value comparison: expanded form, then ROWNUM on the ordered request
+        assertEquals("select * from ( SELECT * FROM T WHERE (S = ?) AND " +
+                "((OWNER > ?) OR (OWNER = ? AND ID > ?)) ORDER BY OWNER, ID ) where rownum <= 10",
+                model.getKeysetRequest("*", "T", "S = ?", KEYS, false, true, 10));
+        assertEquals("select * from ( SELECT * FROM T ORDER BY ID DESC ) where rownum <= 3",
+                model.getKeysetRequest("*", "T", null, ONEKEY, true, false, 3));
+        assertArrayEquals(new Object[] { "me", "me", 5L },
+                model.getKeysetParameters(new Object[] { "me", 5L }));
+    }
+}
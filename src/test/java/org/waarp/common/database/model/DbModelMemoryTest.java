@@ -0,0 +1,205 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Statement;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbPreparedStatement;
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.data.AbstractDbData.UpdatedInfo;
+import org.waarp.common.database.data.DbDataModel;
+import org.waarp.common.database.exception.WaarpDatabaseNoDataException;
+import org.waarp.common.database.exception.WaarpDatabaseSqlException;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbModelMemoryTest {
+
+    @Test
+    public void testDataModel() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.createTables(session);
+            DbDataModel data = new DbDataModel(session, "host1", 1, 2, 3, 4, 5);
+            assertFalse(data.exist());
+            data.insert();
+            assertTrue(data.exist());
+            new DbDataModel(session, "host2", 10, 20, 30, 40, 50).insert();
+            try {
+                new DbDataModel(session, "host1", 1, 2, 3, 4, 5).insert();
+                fail("Duplicate key should fail");
+            } catch (WaarpDatabaseSqlException e) {
+                assertTrue(e.getCause() instanceof SQLIntegrityConstraintViolationException);
+                assertEquals("23505", ((SQLException) e.getCause()).getSQLState());
+            }
+            DbDataModel read = new DbDataModel(session, "host2");
+            assertEquals(20L, read.getAllFields()[DbDataModel.Columns.WRITEGLOBALLIMIT.ordinal()]
+                    .getValue());
+
+            data.changeUpdatedInfo(UpdatedInfo.TOSUBMIT);
+            data.update();
+            DbPreparedStatement updated = DbDataModel.getUpdatedPrepareStament(session);
+            updated.executeQuery();
+            assertTrue(updated.getNext());
+            assertEquals("host1", DbDataModel.getFromStatement(updated).getAllFields()[
+                    DbDataModel.Columns.HOSTID.ordinal()].getValue());
+            assertFalse(updated.getNext());
+            updated.realClose();
+
+            data.delete();
+            assertFalse(data.exist());
+            try {
+                new DbDataModel(session, "host1");
+                fail("Deleted row should not be found");
+            } catch (WaarpDatabaseNoDataException e) {
+                // ok
+            }
+            assertEquals(1, model.getStore().size(DbDataModel.table));
+
+            model.resetSequence(session, 100);
+            assertEquals(100, model.nextSequence(session));
+            model.setSequenceBlockSize(10);
+            assertEquals(101, model.nextSequence(session));
+            assertEquals(102, model.nextSequence(session));
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        DbMemoryStore store = new DbMemoryStore(null);
+        store.createTable("T", new String[] { "ID", "NAME", "VAL" }, "ID");
+        Connection connection = store.getConnection();
+        PreparedStatement insert = connection
+                .prepareStatement("INSERT INTO T (ID, NAME, VAL) VALUES (?, ?, ?)");
+        for (int i = 0; i < 20; i++) {
+            insert.setLong(1, i);
+            insert.setString(2, "name" + (i % 4));
+            if (i % 5 == 0) {
+                insert.setNull(3, java.sql.Types.INTEGER);
+            } else {
+                insert.setInt(3, i);
+            }
+            insert.addBatch();
+        }
+        assertEquals(20, insert.executeBatch().length);
+
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "SELECT COUNT(*) FROM T WHERE NAME = 'name1' AND VAL IS NOT NULL");
+        assertTrue(resultSet.next());
+        assertEquals(4, resultSet.getLong(1));
+
+        PreparedStatement select = connection.prepareStatement(
+                "SELECT ID FROM T WHERE (ID > ? OR (ID = ? AND VAL > ?)) AND NAME IN ('name2', 'name3') ORDER BY ID DESC LIMIT 3");
+        select.setLong(1, 5);
+        select.setLong(2, 5);
+        select.setLong(3, 0);
+        resultSet = select.executeQuery();
+        long[] expected = { 19, 18, 15 };
+        for (long id : expected) {
+            assertTrue(resultSet.next());
+            assertEquals(id, resultSet.getLong("ID"));
+        }
+        assertFalse(resultSet.next());
+
+        assertEquals(5, connection.createStatement().executeUpdate(
+                "UPDATE T SET VAL = 0 WHERE NAME = 'name0'"));
+        resultSet = connection.createStatement().executeQuery(
+                "SELECT NAME, VAL FROM T WHERE ID = 8");
+        assertTrue(resultSet.next());
+        assertEquals("name0", resultSet.getString(1));
+        assertEquals(0, resultSet.getInt(2));
+        assertFalse(resultSet.wasNull());
+        assertEquals(5, connection.createStatement().executeUpdate(
+                "DELETE FROM T WHERE NAME LIKE '%0'"));
+        assertEquals(15, store.size("T"));
+        try {
+            connection.prepareStatement("SELECT ID FROM T GROUP BY NAME");
+            fail("Unsupported syntax should fail");
+        } catch (SQLException e) {
+            assertEquals("42000", e.getSQLState());
+        }
+
+        File file = File.createTempFile("memory", ".db");
+        try {
+            store.save(file);
+            // replace the existing snapshot
+            store.save(file);
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+            DbMemoryStore loaded = new DbMemoryStore(file);
+            assertEquals(15, loaded.size("T"));
+            resultSet = loaded.getConnection().createStatement().executeQuery(
+                    "SELECT VAL FROM T WHERE ID = 7");
+            assertTrue(resultSet.next());
+            assertEquals(7, resultSet.getInt(1));
+        } finally {
+            file.delete();
+        }
+        connection.close();
+    }
+
+    private static void assertSyntaxError(Statement statement, String sql, String state)
+            throws SQLException {
+        try {
+            statement.execute(sql);
+            fail("Should fail: " + sql);
+        } catch (SQLSyntaxErrorException e) {
+            assertEquals(state, e.getSQLState());
+        }
+    }
+
+    @Test
+    public void testUnknownTableOrColumn() throws Exception {
+        DbMemoryStore store = new DbMemoryStore(null);
+        store.createTable("T", new String[] { "ID", "NAME" }, "ID");
+        Connection connection = store.getConnection();
+        Statement statement = connection.createStatement();
+        assertSyntaxError(statement, "INSERT INTO T2 (ID) VALUES (1)", "42S02");
+        assertSyntaxError(statement, "SELECT ID FROM T2", "42S02");
+        assertSyntaxError(statement, "SELECT COUNT(*) FROM T2", "42S02");
+        assertSyntaxError(statement, "UPDATE T2 SET NAME = 'a'", "42S02");
+        assertSyntaxError(statement, "DELETE FROM T2", "42S02");
+        assertSyntaxError(statement, "INSERT INTO T (ID, NAM) VALUES (1, 'a')", "42S22");
+        assertSyntaxError(statement, "UPDATE T SET NAM = 'a' WHERE ID = 1", "42S22");
+        assertSyntaxError(statement, "SELECT NAM FROM T", "42S22");
+        assertSyntaxError(statement, "SELECT ID FROM T WHERE NAM = 'a'", "42S22");
+        assertSyntaxError(statement, "SELECT ID FROM T ORDER BY NAM", "42S22");
+        assertSyntaxError(statement, "DELETE FROM T WHERE NAM IS NULL", "42S22");
+        assertEquals(0, store.size("T"));
+        assertEquals(1, statement.executeUpdate("INSERT INTO T (ID, NAME) VALUES (1, 'a')"));
+        assertEquals(2, store.getConnection().createStatement().executeQuery("SELECT * FROM T")
+                .getMetaData().getColumnCount());
+        connection.close();
+    }
+}
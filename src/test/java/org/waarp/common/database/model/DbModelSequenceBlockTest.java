@@ -0,0 +1,107 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.waarp.common.database.DbAdmin;
+import org.waarp.common.database.DbSession;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbModelSequenceBlockTest {
+
+    @Test
+    public void testSequenceBlock() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            DbSession session = admin.getSession();
+            model.setSequenceBlockSize(10);
+            assertEquals(10, model.getSequenceBlockSize());
+            model.resetSequence(session, 1);
+            for (long i = 1; i <= 25; i++) {
+                assertEquals(i, model.nextSequence(session));
+            }
+            // 3 blocks reserved
+            assertEquals(31, model.getStore().nextSequence());
+
+            // the values reserved but not used are forgotten
+            model.resetSequence(session, 100);
+            assertEquals(100, model.nextSequence(session));
+            assertEquals(101, model.nextSequence(session));
+
+            model.setSequenceBlockSize(0);
+            assertEquals(1, model.getSequenceBlockSize());
+            assertEquals(110, model.nextSequence(session));
+            assertEquals(111, model.getStore().nextSequence());
+        } finally {
+            admin.close();
+        }
+    }
+
+    @Test
+    public void testSequenceBlockConcurrent() throws Exception {
+        DbModelMemory model = new DbModelMemory();
+        DbAdmin admin = new DbAdmin(model, DbModelMemory.MEMORYPREFIX, null, null, true);
+        try {
+            final DbSession session = admin.getSession();
+            final DbModelMemory dbModel = model;
+            model.setSequenceBlockSize(7);
+            model.resetSequence(session, 1);
+            final Set<Long> values = Collections
+                    .newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            final AtomicReference<Exception> error = new AtomicReference<Exception>();
+            final int nbThreads = 4;
+            final int nb = 250;
+            final CountDownLatch done = new CountDownLatch(nbThreads);
+            for (int t = 0; t < nbThreads; t++) {
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < nb; i++) {
+                                values.add(dbModel.nextSequence(session));
+                            }
+                        } catch (Exception e) {
+                            error.set(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertNull(error.get());
+            // no value given twice
+            assertEquals(nbThreads * nb, values.size());
+        } finally {
+            admin.close();
+        }
+    }
+}
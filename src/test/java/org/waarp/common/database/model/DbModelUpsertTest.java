@@ -0,0 +1,75 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.waarp.common.database.data.DbValue;
+
+/**
+ * @author "Frederic Bregier"
+ *
+ */
+public class DbModelUpsertTest {
+    private static final DbValue ID = new DbValue(1L, "ID");
+    private static final DbValue NAME = new DbValue("name", "NAME");
+    private static final DbValue SIZE = new DbValue(2, "SIZE");
+    private static final DbValue[] ALL = { NAME, SIZE, ID };
+    private static final DbValue[] KEY = { ID };
+
+    @Test
+    public void testH2() throws Exception {
+        assertEquals("MERGE INTO T (NAME,SIZE,ID) KEY (ID) VALUES (?,?,?)",
+                new DialectModels.H2().getUpsertRequest("T", ALL, KEY));
+    }
+
+    @Test
+    public void testPostgresql() throws Exception {
+        DbModelAbstract model = new DialectModels.Postgresql();
+        assertEquals("INSERT INTO T (NAME,SIZE,ID) VALUES (?,?,?) ON CONFLICT (ID) " +
+                "DO UPDATE SET NAME = EXCLUDED.NAME,SIZE = EXCLUDED.SIZE",
+                model.getUpsertRequest("T", ALL, KEY));
+        assertEquals("INSERT INTO T (ID) VALUES (?) ON CONFLICT (ID) DO NOTHING",
+                model.getUpsertRequest("T", KEY, KEY));
+    }
+
+    @Test
+    public void testMysqlAndMariadb() throws Exception {
+        String expected = "INSERT INTO T (NAME,SIZE,ID) VALUES (?,?,?) ON DUPLICATE KEY " +
+                "UPDATE NAME = VALUES(NAME),SIZE = VALUES(SIZE)";
+        assertEquals(expected, new DialectModels.Mysql().getUpsertRequest("T", ALL, KEY));
+        assertEquals(expected, new DialectModels.Mariadb().getUpsertRequest("T", ALL, KEY));
+        // nothing to update
+        assertEquals("INSERT INTO T (ID) VALUES (?) ON DUPLICATE KEY UPDATE ID = ID",
+                new DialectModels.Mysql().getUpsertRequest("T", KEY, KEY));
+    }
+
+    @Test
+    public void testOracle() throws Exception {
+        assertEquals("MERGE INTO T d USING (SELECT ? NAME,? SIZE,? ID FROM DUAL) s " +
+                "ON (d.ID = s.ID) WHEN MATCHED THEN UPDATE SET d.NAME = s.NAME,d.SIZE = s.SIZE " +
+                "WHEN NOT MATCHED THEN INSERT (NAME,SIZE,ID) VALUES (s.NAME,s.SIZE,s.ID)",
+                new DialectModels.Oracle().getUpsertRequest("T", ALL, KEY));
+    }
+
+    @Test
+    public void testNotSupported() throws Exception {
+        assertNull(new DbModelMemory().getUpsertRequest("T", ALL, KEY));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.common.database.model;
+
+import org.waarp.common.database.DbSession;
+import org.waarp.common.database.exception.WaarpDatabaseNoConnectionException;
+
+/**
+ * Concrete models of each dialect, to test the SQL they generate without any database
+ * 
+ * @author "Frederic Bregier"
+ *
+ */
+public class DialectModels {
+    private DialectModels() {
+    }
+
+    public static class H2 extends DbModelH2 {
+        public H2() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+
+    public static class Mysql extends DbModelMysql {
+        public Mysql() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+
+    public static class Mariadb extends DbModelMariadb {
+        public Mariadb() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+
+    public static class Oracle extends DbModelOracle {
+        public Oracle() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+
+    public static class Postgresql extends DbModelPostgresql {
+        public Postgresql() throws WaarpDatabaseNoConnectionException {
+            super();
+        }
+
+        public boolean upgradeDb(DbSession session, String version) {
+            return true;
+        }
+
+        public boolean needUpgradeDb(DbSession session, String version, boolean tryFix) {
+            return false;
+        }
+    }
+}